@@ -100,6 +100,29 @@ public @interface BuiltinBPFFunction {
      * @BuiltinBPFFunction(value = "", carrier = "scx_bpf_get_idle_cpumask()")
      * public static CpuMask idle() { throw new MethodIsBPFRelatedFunction(); }
      * }</pre>
+     *
+     * <p>In a carrier, {@code $field} stands for the name of the {@code @BPF} field being initialised;
+     * see {@link #global()}.
      */
     String carrier() default "";
+
+    /**
+     * For constructors of {@link BPFAbstraction} classes: file-scope C declarations emitted once
+     * for every {@code @BPF} program field initialised through this constructor, after the struct
+     * definitions. Needed by abstractions whose state cannot live in a map, e.g. a
+     * {@code bpf_rb_root} and the {@code bpf_spin_lock} guarding it.
+     *
+     * <p>Placeholders: {@code $field} (the field name), {@code $argN} (constructor arguments),
+     * {@code $C1}, {@code $C2}, … (C type of the field's N-th type argument, e.g.
+     * {@code struct node}) and {@code $N1}, {@code $N2}, … (the same without the {@code struct}
+     * keyword, as needed by {@code __contains}). An abstraction with a global can only be used as
+     * a field; declaring a local of that type is a compile error.
+     *
+     * <pre>{@code
+     * @BuiltinBPFFunction(value = "", carrier = "$field",
+     *         global = "private($field) struct bpf_spin_lock $field_lock;")
+     * public RbTree() { throw new MethodIsBPFRelatedFunction(); }
+     * }</pre>
+     */
+    String global() default "";
 }
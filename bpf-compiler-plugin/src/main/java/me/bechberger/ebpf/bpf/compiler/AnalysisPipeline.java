@@ -0,0 +1,105 @@
+package me.bechberger.ebpf.bpf.compiler;
+
+import com.sun.source.tree.MethodTree;
+import me.bechberger.ebpf.bpf.compiler.CompilerPlugin.TypedTreePath;
+import me.bechberger.ebpf.bpf.compiler.flow.AnalysisContext;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * The per-method analysis passes that run before {@link Translator}, in their fixed order.
+ *
+ * <ul>
+ *   <li>The pure AST lints ({@link JavaIsmsRejectPass}, {@link MapIdiomLintPass},
+ *   {@link UnboundedLoopPass}, {@link ProbeReadSizeZeroPass}, {@link MissingCoreReadPass})
+ *   share one {@link FusedTreeScanner} walk; their diagnostics are still reported in pass
+ *   order.</li>
+ *   <li>The CFG is built once, by {@link RegionAnalyzer}, into {@link AnalysisContext#cfg}.
+ *   The dataflow results (constants, regions, nullability, ...) land in the same context and
+ *   are read from there by the later passes and the Translator.</li>
+ *   <li>Passes that need earlier results or keep state across a subtree walk run on their
+ *   own, in the original order.</li>
+ * </ul>
+ *
+ * <p>With the plugin argument {@code passTimings=true} the time spent per pass over the whole
+ * compilation is printed at its end.
+ */
+final class AnalysisPipeline {
+
+    /** Facts for the Translator and the kfuncs the method calls. */
+    record Result(AnalysisContext ctx, Map<String, String> calledKFuncs) {}
+
+    private final CompilerPlugin plugin;
+    private final Map<String, Long> nanosPerPass = new LinkedHashMap<>();
+    private final boolean timed;
+
+    AnalysisPipeline(CompilerPlugin plugin, boolean timed) {
+        this.plugin = plugin;
+        this.timed = timed;
+    }
+
+    Result run(TypedTreePath<MethodTree> methodPath) {
+        var ctx = new AnalysisContext();
+        var method = methodPath.leaf();
+        time("SuppressionScan", () -> new SuppressionScan(ctx).scan(method));
+
+        var javaIsms = new JavaIsmsRejectPass(plugin, methodPath, ctx);
+        var mapIdioms = new MapIdiomLintPass(plugin, methodPath, ctx);
+        var loops = new UnboundedLoopPass(plugin, methodPath, ctx);
+        var probeReads = new ProbeReadSizeZeroPass(plugin, methodPath, ctx);
+        var coreReads = new MissingCoreReadPass(plugin, methodPath, ctx);
+        if (method.getBody() != null) {
+            time("fused lints", () -> FusedTreeScanner.walk(method.getBody(), List.of(javaIsms.scanner(),
+                    mapIdioms.scanner(), loops.scanner(), probeReads.scanner(), coreReads.scanner())));
+        }
+        javaIsms.report();
+        mapIdioms.report();
+        time("GraphLockDisciplinePass", () -> new GraphLockDisciplinePass(plugin, methodPath, ctx).analyze());
+        loops.report();
+        probeReads.report();
+        coreReads.report();
+
+        time("ConstantPropagator", () -> new ConstantPropagator(methodPath, ctx).analyze());
+        time("RegionAnalyzer", () -> new RegionAnalyzer(plugin, methodPath, ctx).analyze());
+        time("PtrCoercionInference", () -> new PtrCoercionInference(plugin, methodPath, ctx).analyze());
+        time("CaptureAnalyzer", () -> new CaptureAnalyzer(plugin, methodPath, ctx).analyze());
+        time("NullabilityAnalyzer", () -> new NullabilityAnalyzer(plugin, methodPath, ctx).analyze());
+        time("BoundsCheckPass", () -> new BoundsCheckPass(plugin, methodPath, ctx).analyze());
+        time("MapValueIndexBoundsPass", () -> new MapValueIndexBoundsPass(plugin, methodPath, ctx).analyze());
+        time("StackBudgetPass", () -> new StackBudgetPass(plugin, methodPath, ctx).analyze());
+        time("HelperContextPass", () -> new HelperContextPass(plugin, methodPath, ctx).analyze());
+        time("ArenaAccessCheckPass", () -> new ArenaAccessCheckPass(plugin, methodPath, ctx).analyze());
+        var calledKFuncs = measure("KFuncCollectPass", () -> new KFuncCollectPass(plugin, methodPath).analyze());
+        return new Result(ctx, calledKFuncs);
+    }
+
+    private void time(String pass, Runnable action) {
+        measure(pass, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    private <T> T measure(String pass, Supplier<T> action) {
+        if (!timed) {
+            return action.get();
+        }
+        long start = System.nanoTime();
+        try {
+            return action.get();
+        } finally {
+            nanosPerPass.merge(pass, System.nanoTime() - start, Long::sum);
+        }
+    }
+
+    /** Time per pass so far, slowest first, e.g. {@code "RegionAnalyzer: 812 ms"}; empty if untimed. */
+    List<String> timings() {
+        return nanosPerPass.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .map(e -> e.getKey() + ": " + e.getValue() / 1_000_000 + " ms")
+                .toList();
+    }
+}
@@ -153,6 +153,27 @@ public class CompilerPlugin implements Plugin {
      */
     private String dumpCArg = "true";
 
+    /**
+     * Analysis passes run per BPF method; with {@code passTimings=true} as plugin arg they are
+     * timed and the totals printed at the end of the compilation.
+     */
+    private AnalysisPipeline analysisPipeline = new AnalysisPipeline(this, false);
+
+    /**
+     * Translations of unchanged {@code @BPFFunction} methods from earlier compilations; null if
+     * there is no class output folder or with {@code translationCache=false} as plugin arg.
+     */
+    private @Nullable TranslationCache translationCache;
+
+    /**
+     * Byte-code patches of {@code @BPFImpl} classes whose clang run is still in flight, keyed by
+     * qualified class name. Each is applied when javac starts generating that class (or at the
+     * end of the compilation), so clang runs of different programs overlap. With
+     * {@code -XDcompilePolicy=simple} javac analyzes all classes before generating any, which
+     * lets every program of a module compile concurrently.
+     */
+    private final Map<String, Runnable> pendingByteCode = new LinkedHashMap<>();
+
     /**
      * Per-{@code @BPF} class memoization of struct-ops discovery / validation / synthesis.
      * Keyed by qualified class name (not {@link TypeElement} reference) because the symbol
@@ -332,18 +353,49 @@ public class CompilerPlugin implements Plugin {
         this.names = Names.instance(context);
         this.methodTemplateCache = new MethodTemplateCache(this);
         this.types = Types.instance(context);
-        // Parse plugin args: dumpC=true|false|<path>
+        this.translationCache = TranslationCache.open(this, context.get(JavaFileManager.class));
+        // Parse plugin args: dumpC=true|false|<path>, passTimings=true|false, translationCache=true|false
         for (String arg : args) {
             if (arg.startsWith("dumpC=")) {
                 this.dumpCArg = arg.substring("dumpC=".length());
+            } else if (arg.startsWith("passTimings=")) {
+                this.analysisPipeline = new AnalysisPipeline(this,
+                        Boolean.parseBoolean(arg.substring("passTimings=".length())));
+            } else if (arg.equals("translationCache=false")) {
+                this.translationCache = null;
             }
         }
         var types = task.getTypes();
         List<CompilerPlugin.TypedTreePath<MethodTree>> funcs = new ArrayList<>();
         task.addTaskListener(new TaskListener() {
 
+            @Override
+            public void started(TaskEvent e) {
+                if (e.getKind() == TaskEvent.Kind.GENERATE && e.getTypeElement() != null) {
+                    var patch = pendingByteCode.remove(e.getTypeElement().getQualifiedName().toString());
+                    if (patch != null) {
+                        patch.run();
+                    }
+                }
+            }
+
             @Override
             public void finished(TaskEvent e) {
+                if (e.getKind() == TaskEvent.Kind.COMPILATION) {
+                    // classes that were analyzed but never generated (e.g. after errors)
+                    var remaining = new ArrayList<>(pendingByteCode.values());
+                    pendingByteCode.clear();
+                    remaining.forEach(Runnable::run);
+                    var timings = analysisPipeline.timings();
+                    if (!timings.isEmpty()) {
+                        logger.printRawLines("BPF analysis pass timings:\n  " + String.join("\n  ", timings));
+                    }
+                    if (translationCache != null && translationCache.lookups() > 0) {
+                        logger.printRawLines("BPF translation cache: " + translationCache.stats());
+                        translationCache.trim();
+                    }
+                    return;
+                }
                 if (e.getKind() != TaskEvent.Kind.ANALYZE) { // we do need all information
                     return;
                 }
@@ -855,30 +907,28 @@ public class CompilerPlugin implements Plugin {
     }
 
     private @Nullable FuncDeclStatementResult processBPFFunctionWithCode(TypedTreePath<MethodTree> methodPath) {
+        var cacheKey = translationCache == null ? null : translationCache.key(methodPath);
+        if (cacheKey != null) {
+            var cached = translationCache.load(methodPath, cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        int errors = logger.nerrors;
+        int warnings = logger.nwarnings;
         // Shared per-method analysis context — populated by each pass, consumed by Translator.
-        var ctx = new me.bechberger.ebpf.bpf.compiler.flow.AnalysisContext();
-        new SuppressionScan(ctx).scan(methodPath.leaf());
-        new JavaIsmsRejectPass(this, methodPath, ctx).analyze();
-        new MapIdiomLintPass(this, methodPath, ctx).analyze();
-        new UnboundedLoopPass(this, methodPath, ctx).analyze();
-        new ProbeReadSizeZeroPass(this, methodPath, ctx).analyze();
-        new MissingCoreReadPass(this, methodPath, ctx).analyze();
-        new ConstantPropagator(methodPath, ctx).analyze();
-        new RegionAnalyzer(this, methodPath, ctx).analyze();
-        new PtrCoercionInference(this, methodPath, ctx).analyze();
-        new CaptureAnalyzer(this, methodPath, ctx).analyze();
-        new NullabilityAnalyzer(this, methodPath, ctx).analyze();
-        new BoundsCheckPass(this, methodPath, ctx).analyze();
-        new MapValueIndexBoundsPass(this, methodPath, ctx).analyze();
-        new StackBudgetPass(this, methodPath, ctx).analyze();
-        new HelperContextPass(this, methodPath, ctx).analyze();
-        new ArenaAccessCheckPass(this, methodPath, ctx).analyze();
-        var calledKFuncs = new KFuncCollectPass(this, methodPath).analyze();
+        var analysis = analysisPipeline.run(methodPath);
+        var ctx = analysis.ctx();
+        var calledKFuncs = analysis.calledKFuncs();
         var translator = new Translator(this, methodPath, ctx);
         return callIfNonNull(translator.translate(), decl -> {
             var requiredDefines = translator.getRequiredDefines();
-            return new FuncDeclStatementResult(decl, requiredDefines, translator.addDefinition(),
+            var result = new FuncDeclStatementResult(decl, requiredDefines, translator.addDefinition(),
                     List.copyOf(translator.getSyntheticFunctions()), calledKFuncs);
+            if (cacheKey != null && logger.nerrors == errors && logger.nwarnings == warnings) {
+                translationCache.store(methodPath, cacheKey, result);
+            }
+            return result;
         });
     }
 
@@ -1555,7 +1605,22 @@ public class CompilerPlugin implements Plugin {
             }
         }
 
-        var compiledCode = compile(newCode, cFile);
+        var pending = Processor.compileAsync(createProcessingEnvironment(), newCode, cFile);
+        var finalCode = newCode;
+        pendingByteCode.put(bpfProgramTypeElement.getQualifiedName().toString(),
+                () -> setByteCode(programPath, bpfProgramTypeElement, finalCode, pending.join()));
+        // Expose this plugin instance for test code that drives javac in-process.
+        lastGeneratedCode = newCode;
+        LAST_PLUGIN.set(this);
+    }
+
+    /**
+     * Make the generated getters of the {@code @BPFImpl} class return the compiled program:
+     * inlined as a string if small enough, else as a gzipped class-path resource.
+     */
+    private void setByteCode(TypedTreePath<ClassTree> programPath, TypeElement bpfProgramTypeElement,
+                             String newCode, Processor.CompileResult compiledCode) {
+        var bpfProgram = programPath.leaf();
         // adding fields would be easier, but this doesn't seem to work
 
         if (compiledCode.encode().length() < 2 << 15) { // strings can only be 2^16 bytes long, so stay below that
@@ -1601,9 +1666,6 @@ public class CompilerPlugin implements Plugin {
                 }
             }
         }
-        // Expose this plugin instance for test code that drives javac in-process.
-        lastGeneratedCode = newCode;
-        LAST_PLUGIN.set(this);
     }
 
     private Map<MethodSymbol, String> getInterfaceMethodsWithDefaultCode(Symbol.ClassSymbol superClassElement) {
@@ -1824,10 +1886,6 @@ public class CompilerPlugin implements Plugin {
         }
     }
 
-    private Processor.CompileResult compile(String code, Path file) {
-        return Processor.compileAndEncode(createProcessingEnvironment(), code, file);
-    }
-
     VariableTree getMember(ClassTree klass, String name) {
         return klass.getMembers().stream()
                 .filter(m -> m instanceof VariableTree)
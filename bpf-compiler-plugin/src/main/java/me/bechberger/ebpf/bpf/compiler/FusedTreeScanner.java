@@ -0,0 +1,86 @@
+package me.bechberger.ebpf.bpf.compiler;
+
+import com.sun.source.tree.Tree;
+import com.sun.source.util.TreeScanner;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs several tree scanners in a single walk over a method body, used by
+ * {@link AnalysisPipeline} for the pure detection passes.
+ *
+ * <p>Each scanner is a {@link Part}: an ordinary {@link TreeScanner} that works standalone, but
+ * that during a fused walk only <em>records</em> the children it would descend into instead of
+ * descending. The fused walker visits every node once and hands it to the parts that asked for
+ * it, so a part that skips a subtree (e.g. the selector of a method call) still skips it, and
+ * each part sees its nodes in the same pre-order as on its own.
+ *
+ * <p>This is only valid for parts whose {@code visitX} methods do all their work before calling
+ * {@code super.visitX} / {@code scan} — state updated after the children return (depth counters,
+ * "inside loop" flags) would run too early. Such scanners have to keep their own walk.
+ */
+public final class FusedTreeScanner extends TreeScanner<Void, Void> {
+
+    /** A scanner that can take part in a fused walk. */
+    public abstract static class Part extends TreeScanner<Void, Void> {
+
+        /** Nodes this part wants visited; non-null only during a fused walk. */
+        private Set<Tree> requested;
+
+        @Override
+        public Void scan(Tree tree, Void unused) {
+            if (requested != null) {
+                if (tree != null) requested.add(tree);
+                return null;
+            }
+            return super.scan(tree, unused);
+        }
+
+        /** Called once after the walk over {@code root}, e.g. for whole-method checks. */
+        protected void finish(Tree root) {}
+
+        /** Scan {@code root} on its own, then {@link #finish(Tree)}. */
+        public final void scanAll(Tree root) {
+            scan(root, null);
+            finish(root);
+        }
+    }
+
+    private final List<? extends Part> parts;
+
+    private FusedTreeScanner(List<? extends Part> parts) {
+        this.parts = parts;
+    }
+
+    /** Walk {@code root} once for all {@code parts}, then {@link Part#finish(Tree)} each. */
+    public static void walk(Tree root, List<? extends Part> parts) {
+        for (var part : parts) {
+            part.requested = Collections.newSetFromMap(new IdentityHashMap<>());
+            part.requested.add(root);
+        }
+        try {
+            new FusedTreeScanner(parts).scan(root, null);
+        } finally {
+            for (var part : parts) {
+                part.requested = null;
+            }
+        }
+        for (var part : parts) {
+            part.finish(root);
+        }
+    }
+
+    @Override
+    public Void scan(Tree tree, Void unused) {
+        if (tree == null) return null;
+        for (var part : parts) {
+            if (part.requested.remove(tree)) {
+                tree.accept(part, null);
+            }
+        }
+        return super.scan(tree, unused);
+    }
+}
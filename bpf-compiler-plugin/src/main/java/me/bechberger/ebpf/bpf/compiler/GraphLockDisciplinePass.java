@@ -0,0 +1,312 @@
+package me.bechberger.ebpf.bpf.compiler;
+
+import com.sun.source.tree.*;
+import com.sun.source.util.TreeScanner;
+import com.sun.tools.javac.tree.JCTree.JCExpression;
+import me.bechberger.ebpf.bpf.compiler.CompilerPlugin.TypedTreePath;
+import me.bechberger.ebpf.bpf.compiler.flow.AnalysisContext;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Pre-pass that checks the lock discipline of the spin-lock-guarded graph abstractions
+ * ({@code RbTree}, {@code ListHead}).
+ *
+ * <p>The verifier only accepts {@code bpf_rbtree_*} / {@code bpf_list_*} calls while the
+ * container's {@code bpf_spin_lock} is held, allows one lock at a time, forbids other helper and
+ * kfunc calls (including {@code bpf_obj_new} / {@code bpf_obj_drop}) under the lock and requires
+ * it to be released on every path. Its rejection names an instruction, not the Java line, so the
+ * rules are checked here per method on the AST:
+ * <ul>
+ *   <li>a container operation without that container's lock held,</li>
+ *   <li>{@code lock()} while a lock is held, {@code unlock()} without it,</li>
+ *   <li>{@code newNode()} / {@code drop()} or a {@code bpf_*} / {@code scx_bpf_*} call under a lock,</li>
+ *   <li>{@code return} or end of method with the lock held, branches that leave the lock in
+ *       different states, and loop bodies that change it.</li>
+ * </ul>
+ *
+ * <p>The walk follows structured control flow only; locks are identified by the source text of
+ * the receiver. Lambda bodies are checked as methods of their own. Category:
+ * {@code lock.discipline}.
+ */
+public final class GraphLockDisciplinePass {
+
+    /** A single detected violation. Exposed for unit testing. */
+    public record Detection(Tree at, String category, String message) {}
+
+    static final String CATEGORY = "lock.discipline";
+
+    /** Abstractions whose operations require their own lock. */
+    static final Set<String> GUARDED_TYPES = Set.of(
+            "me.bechberger.ebpf.bpf.sched.RbTree",
+            "me.bechberger.ebpf.bpf.sched.ListHead");
+
+    /** Container methods that must run <em>without</em> a lock (they are plain kfunc calls). */
+    private static final Set<String> UNLOCKED_OPS = Set.of("newNode", "drop");
+
+    private final CompilerPlugin compilerPlugin;
+    private final TypedTreePath<MethodTree> methodPath;
+    private final AnalysisContext ctx;
+
+    public GraphLockDisciplinePass(CompilerPlugin compilerPlugin,
+                                   TypedTreePath<MethodTree> methodPath,
+                                   AnalysisContext ctx) {
+        this.compilerPlugin = compilerPlugin;
+        this.methodPath = methodPath;
+        this.ctx = ctx;
+    }
+
+    public void analyze() {
+        var body = methodPath.leaf().getBody();
+        if (body == null) return;
+        for (var d : detect(body, GraphLockDisciplinePass::isGuardedReceiver)) {
+            if (ctx.isSuppressed(d.at(), d.category())) continue;
+            compilerPlugin.logError(methodPath, d.at(), d.message());
+        }
+    }
+
+    private static boolean isGuardedReceiver(ExpressionTree receiver) {
+        return receiver instanceof JCExpression je && je.type != null && je.type.tsym != null
+                && GUARDED_TYPES.contains(je.type.tsym.getQualifiedName().toString());
+    }
+
+    /**
+     * Pure detection over {@code body}. {@code isGuarded} decides whether a receiver expression
+     * is a lock-guarded container; the plugin answers from the attributed type, tests by name.
+     */
+    public static List<Detection> detect(BlockTree body, Predicate<ExpressionTree> isGuarded) {
+        var out = new ArrayList<Detection>();
+        new Walker(out, isGuarded).method(body);
+        return out;
+    }
+
+    /** Marker state: the statement never completes normally (return, break, continue). */
+    private static final String EXITS = "<exits>";
+
+    private static final class Walker {
+        private final List<Detection> out;
+        private final Predicate<ExpressionTree> isGuarded;
+        /** Lock state at entry of each enclosing loop, for break/continue. */
+        private final Deque<String> loopEntry = new ArrayDeque<>();
+        private final Deque<LambdaExpressionTree> pendingLambdas = new ArrayDeque<>();
+
+        Walker(List<Detection> out, Predicate<ExpressionTree> isGuarded) {
+            this.out = out;
+            this.isGuarded = isGuarded;
+        }
+
+        void method(Tree body) {
+            String held = body instanceof StatementTree s ? stmt(s, null) : expr((ExpressionTree) body, null);
+            if (held != null && !held.equals(EXITS)) {
+                report(body, "Method ends with the lock of '" + held + "' held.",
+                        "Fix: call '" + held + ".unlock()' before the end of the method.");
+            }
+            while (!pendingLambdas.isEmpty()) {
+                var lambda = pendingLambdas.pop();
+                var saved = new ArrayDeque<>(loopEntry);
+                loopEntry.clear();
+                method(lambda.getBody());
+                loopEntry.addAll(saved);
+            }
+        }
+
+        /** Lock held after {@code s} when entered with {@code held}; {@link #EXITS} if it never completes. */
+        String stmt(StatementTree s, String held) {
+            if (s == null) return held;
+            return switch (s) {
+                case BlockTree b -> {
+                    for (var inner : b.getStatements()) {
+                        held = stmt(inner, held);
+                        if (EXITS.equals(held)) yield EXITS;
+                    }
+                    yield held;
+                }
+                case ExpressionStatementTree e -> expr(e.getExpression(), held);
+                case VariableTree v -> v.getInitializer() == null ? held : expr(v.getInitializer(), held);
+                case ReturnTree r -> {
+                    if (r.getExpression() != null) held = expr(r.getExpression(), held);
+                    if (held != null) {
+                        report(r, "Return with the lock of '" + held + "' held.",
+                                "Fix: call '" + held + ".unlock()' on this path before returning.");
+                    }
+                    yield EXITS;
+                }
+                case ThrowTree t -> EXITS;
+                case BreakTree b -> jump(b, held);
+                case ContinueTree c -> jump(c, held);
+                case IfTree i -> {
+                    held = expr(i.getCondition(), held);
+                    yield join(i, stmt(i.getThenStatement(), held),
+                            i.getElseStatement() == null ? held : stmt(i.getElseStatement(), held));
+                }
+                case WhileLoopTree w -> loop(w, expr(w.getCondition(), held), w.getStatement());
+                case DoWhileLoopTree d -> loop(d, held, d.getStatement());
+                case ForLoopTree f -> {
+                    for (var init : f.getInitializer()) held = stmt(init, held);
+                    if (f.getCondition() != null) held = expr(f.getCondition(), held);
+                    yield loop(f, held, f.getStatement());
+                }
+                case EnhancedForLoopTree f -> loop(f, expr(f.getExpression(), held), f.getStatement());
+                case LabeledStatementTree l -> stmt(l.getStatement(), held);
+                case SwitchTree sw -> {
+                    held = expr(sw.getExpression(), held);
+                    String after = null;
+                    boolean any = false;
+                    loopEntry.push(held == null ? "" : held);   // break leaves the switch
+                    for (var c : sw.getCases()) {
+                        String caseHeld = held;
+                        if (c.getBody() != null) {
+                            caseHeld = c.getBody() instanceof StatementTree st ? stmt(st, held)
+                                    : expr((ExpressionTree) c.getBody(), held);
+                        } else if (c.getStatements() != null) {
+                            for (var inner : c.getStatements()) {
+                                caseHeld = stmt(inner, caseHeld);
+                                if (EXITS.equals(caseHeld)) break;
+                            }
+                        }
+                        if (EXITS.equals(caseHeld)) continue;
+                        if (!any) {
+                            after = caseHeld;
+                            any = true;
+                        } else {
+                            after = join(c, after, caseHeld);
+                        }
+                    }
+                    loopEntry.pop();
+                    yield any ? after : held;
+                }
+                default -> {
+                    scanCalls(s, held);
+                    yield held;
+                }
+            };
+        }
+
+        private String loop(Tree loop, String held, StatementTree body) {
+            loopEntry.push(held == null ? "" : held);
+            String after = stmt(body, held);
+            loopEntry.pop();
+            if (!EXITS.equals(after) && !Objects.equals(after, held)) {
+                report(loop, "Loop body changes the lock state (" + describe(held) + " before, "
+                                + describe(after) + " after one iteration).",
+                        "Fix: acquire and release the lock within the same iteration, or around the whole loop.");
+            }
+            return held;
+        }
+
+        private String jump(Tree at, String held) {
+            var entry = loopEntry.peek();
+            if (entry != null && !Objects.equals(entry.isEmpty() ? null : entry, held)) {
+                report(at, "Jump out of a loop or switch with the lock state changed ("
+                                + describe(held) + ").",
+                        "Fix: unlock before 'break' / 'continue', or lock before entering the loop.");
+            }
+            return EXITS;
+        }
+
+        private String join(Tree at, String a, String b) {
+            if (EXITS.equals(a)) return b;
+            if (EXITS.equals(b)) return a;
+            if (!Objects.equals(a, b)) {
+                report(at, "Branches leave the lock in different states (" + describe(a) + " vs "
+                                + describe(b) + ").",
+                        "Fix: lock and unlock on both branches, or move the lock/unlock out of the branch.");
+            }
+            return a;
+        }
+
+        /** Evaluate the calls of {@code e} in source order. */
+        String expr(ExpressionTree e, String held) {
+            if (e == null) return held;
+            return scanCalls(e, held);
+        }
+
+        private String scanCalls(Tree t, String held) {
+            var scanner = new CallScanner(held);
+            scanner.scan(t, null);
+            return scanner.held;
+        }
+
+        private final class CallScanner extends TreeScanner<Void, Void> {
+            String held;
+
+            CallScanner(String held) { this.held = held; }
+
+            @Override
+            public Void visitLambdaExpression(LambdaExpressionTree node, Void unused) {
+                pendingLambdas.add(node);    // separate C body: checked on its own
+                return null;
+            }
+
+            @Override
+            public Void visitMethodInvocation(MethodInvocationTree node, Void unused) {
+                super.visitMethodInvocation(node, unused);   // receiver and arguments first
+                var sel = node.getMethodSelect();
+                String name = sel instanceof MemberSelectTree ms ? ms.getIdentifier().toString()
+                        : sel instanceof IdentifierTree id ? id.getName().toString() : "";
+                if (sel instanceof MemberSelectTree ms && isGuarded.test(ms.getExpression())) {
+                    container(node, ms.getExpression().toString(), name);
+                } else if (held != null && (name.startsWith("bpf_") || name.startsWith("scx_bpf_"))) {
+                    report(node, "Call to " + name + " while holding the lock of '" + held + "'.",
+                            "Fix: move the call after '" + held + ".unlock()'; only the container's "
+                                    + "own operations may run under its lock.");
+                }
+                return null;
+            }
+
+            private void container(Tree at, String receiver, String name) {
+                switch (name) {
+                    case "lock" -> {
+                        if (held != null) {
+                            report(at, "'" + receiver + ".lock()' while the lock of '" + held + "' is held.",
+                                    "Fix: the verifier allows one spin lock at a time; unlock '" + held
+                                            + "' first.");
+                        }
+                        held = receiver;
+                    }
+                    case "unlock" -> {
+                        if (!receiver.equals(held)) {
+                            report(at, "'" + receiver + ".unlock()' without holding its lock.",
+                                    "Fix: pair every unlock() with a preceding lock() on the same container.");
+                        }
+                        held = null;
+                    }
+                    default -> {
+                        if (UNLOCKED_OPS.contains(name)) {
+                            if (held != null) {
+                                report(at, "'" + receiver + "." + name + "()' while holding the lock of '"
+                                                + held + "'.",
+                                        "Fix: allocate before lock() and drop after unlock(); bpf_obj_new "
+                                                + "and bpf_obj_drop are not allowed under a spin lock.");
+                            }
+                        } else if (!receiver.equals(held)) {
+                            report(at, "'" + receiver + "." + name + "()' without holding '" + receiver
+                                            + "''s lock.",
+                                    "Fix: wrap the call in '" + receiver + ".lock()' … '" + receiver
+                                            + ".unlock()'.");
+                        }
+                    }
+                }
+            }
+        }
+
+        private static String describe(String held) {
+            return held == null || held.isEmpty() ? "unlocked" : "'" + held + "' locked";
+        }
+
+        private void report(Tree at, String what, String fix) {
+            out.add(new Detection(at, CATEGORY, what + "\n"
+                    + "Why: the verifier requires bpf_rbtree_* / bpf_list_* calls under the container's "
+                    + "bpf_spin_lock, one lock at a time, no other helper calls while it is held, and "
+                    + "the lock released on every path.\n"
+                    + fix + "\n"
+                    + "See: cookbook §In-kernel queues"));
+        }
+    }
+}
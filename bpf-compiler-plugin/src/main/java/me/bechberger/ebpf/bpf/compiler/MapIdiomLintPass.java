@@ -1,7 +1,6 @@
 package me.bechberger.ebpf.bpf.compiler;
 
 import com.sun.source.tree.*;
-import com.sun.source.util.TreeScanner;
 import me.bechberger.ebpf.bpf.compiler.CompilerPlugin.TypedTreePath;
 import me.bechberger.ebpf.bpf.compiler.flow.AnalysisContext;
 
@@ -36,6 +35,7 @@ public final class MapIdiomLintPass {
     private final CompilerPlugin compilerPlugin;
     private final TypedTreePath<MethodTree> methodPath;
     private final AnalysisContext ctx;
+    private List<Detection> detections = List.of();
 
     public MapIdiomLintPass(CompilerPlugin compilerPlugin,
                             TypedTreePath<MethodTree> methodPath,
@@ -48,7 +48,23 @@ public final class MapIdiomLintPass {
     public void analyze() {
         var body = methodPath.leaf().getBody();
         if (body == null) return;
-        for (var d : detect(body)) {
+        detections = detect(body);
+        report();
+    }
+
+    /**
+     * Scanner for {@link AnalysisPipeline}'s fused walk over the method body, in place of
+     * {@link #analyze()}; {@link #report()} logs what it found.
+     */
+    FusedTreeScanner.Part scanner() {
+        var out = new ArrayList<Detection>();
+        detections = out;
+        return new Visitor(out);
+    }
+
+    /** Log the detections of the last walk that are not suppressed. */
+    void report() {
+        for (var d : detections) {
             if (ctx.isSuppressed(d.at(), d.category())) continue;
             compilerPlugin.logWarning(methodPath, d.at(), d.message());
         }
@@ -57,25 +73,14 @@ public final class MapIdiomLintPass {
     /** Pure detection. Walks the given subtree and returns every detected misuse. */
     public static List<Detection> detect(Tree subtree) {
         var out = new ArrayList<Detection>();
-        new Visitor(out).scan(subtree, null);
-        // Whole-method check: reserve() called but no submit/discard anywhere.
-        var counts = new ReserveCommitCounter();
-        counts.scan(subtree, null);
-        if (counts.reserveCalls > 0 && counts.commitOrDiscardCalls == 0) {
-            out.add(new Detection(subtree, "ringbuf.no-submit",
-                    "Ring-buffer reserve() with no matching submit() or discard().\n"
-                  + "Why: a reserved slot must be released via submit (publish) or discard (drop). "
-                  + "Leaving it reserved leaks the slot until the BPF program reloads.\n"
-                  + "Fix: call '.submit(event)' on the success path and '.discard(event)' on every "
-                  + "early-return path. A try-finally pattern is not available in BPF; mirror the "
-                  + "shape used in samples/RingBufferDemo.java.\n"
-                  + "See: cookbook §Ring buffers"));
-        }
+        new Visitor(out).scanAll(subtree);
         return out;
     }
 
-    private static final class Visitor extends TreeScanner<Void, Void> {
+    private static final class Visitor extends FusedTreeScanner.Part {
         private final List<Detection> out;
+        private int reserveCalls;
+        private int commitOrDiscardCalls;
 
         Visitor(List<Detection> out) { this.out = out; }
 
@@ -98,10 +103,36 @@ public final class MapIdiomLintPass {
         @Override
         public Void visitMethodInvocation(MethodInvocationTree node, Void unused) {
             // Pattern: <bpf_get-call>.val()  — the visitMemberSelect above already catches this
-            // because val() is a MemberSelectTree under the invocation. So no extra work here.
+            // because val() is a MemberSelectTree under the invocation. Only count ring-buffer
+            // calls here.
+            if (node.getMethodSelect() instanceof MemberSelectTree ms
+                    && node.getArguments().size() <= 1) {
+                String name = ms.getIdentifier().toString();
+                // We can't disambiguate "reserve" from a non-ringbuf "reserve" without symbols,
+                // but the misuse pattern (reserve with no submit/discard in the same method) is
+                // specific enough that the false-positive rate is low. A user can suppress with
+                // @SuppressBPFWarning("ringbuf.no-submit").
+                if (name.equals("reserve") && node.getArguments().isEmpty()) reserveCalls++;
+                else if (name.equals("submit") || name.equals("discard")) commitOrDiscardCalls++;
+            }
             return super.visitMethodInvocation(node, unused);
         }
 
+        /** Whole-method check: reserve() called but no submit/discard anywhere. */
+        @Override
+        protected void finish(Tree root) {
+            if (reserveCalls > 0 && commitOrDiscardCalls == 0) {
+                out.add(new Detection(root, "ringbuf.no-submit",
+                        "Ring-buffer reserve() with no matching submit() or discard().\n"
+                      + "Why: a reserved slot must be released via submit (publish) or discard (drop). "
+                      + "Leaving it reserved leaks the slot until the BPF program reloads.\n"
+                      + "Fix: call '.submit(event)' on the success path and '.discard(event)' on every "
+                      + "early-return path. A try-finally pattern is not available in BPF; mirror the "
+                      + "shape used in samples/RingBufferDemo.java.\n"
+                      + "See: cookbook §Ring buffers"));
+            }
+        }
+
         private static boolean isBpfGet(MethodInvocationTree mi) {
             if (mi.getMethodSelect() instanceof MemberSelectTree ms) {
                 String name = ms.getIdentifier().toString();
@@ -123,25 +154,4 @@ public final class MapIdiomLintPass {
                  + "See: cookbook §Map lookups";
         }
     }
-
-    /** Counts reserve() vs submit()/discard() calls on what looks like a BPFRingBuffer. */
-    private static final class ReserveCommitCounter extends TreeScanner<Void, Void> {
-        int reserveCalls;
-        int commitOrDiscardCalls;
-
-        @Override
-        public Void visitMethodInvocation(MethodInvocationTree node, Void unused) {
-            if (node.getMethodSelect() instanceof MemberSelectTree ms
-                    && node.getArguments().size() <= 1) {
-                String name = ms.getIdentifier().toString();
-                // We can't disambiguate "reserve" from a non-ringbuf "reserve" without symbols,
-                // but the misuse pattern (reserve with no submit/discard in the same method) is
-                // specific enough that the false-positive rate is low. A user can suppress with
-                // @SuppressBPFWarning("ringbuf.no-submit").
-                if (name.equals("reserve") && node.getArguments().isEmpty()) reserveCalls++;
-                else if (name.equals("submit") || name.equals("discard")) commitOrDiscardCalls++;
-            }
-            return super.visitMethodInvocation(node, unused);
-        }
-    }
 }
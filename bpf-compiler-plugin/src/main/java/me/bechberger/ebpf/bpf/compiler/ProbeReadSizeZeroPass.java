@@ -1,7 +1,6 @@
 package me.bechberger.ebpf.bpf.compiler;
 
 import com.sun.source.tree.*;
-import com.sun.source.util.TreeScanner;
 import me.bechberger.ebpf.bpf.compiler.CompilerPlugin.TypedTreePath;
 import me.bechberger.ebpf.bpf.compiler.flow.AnalysisContext;
 
@@ -39,6 +38,7 @@ public final class ProbeReadSizeZeroPass {
     private final CompilerPlugin compilerPlugin;
     private final TypedTreePath<MethodTree> methodPath;
     private final AnalysisContext ctx;
+    private List<Detection> detections = List.of();
 
     public ProbeReadSizeZeroPass(CompilerPlugin compilerPlugin,
                                  TypedTreePath<MethodTree> methodPath,
@@ -51,7 +51,23 @@ public final class ProbeReadSizeZeroPass {
     public void analyze() {
         var body = methodPath.leaf().getBody();
         if (body == null) return;
-        for (var d : detect(body)) {
+        detections = detect(body);
+        report();
+    }
+
+    /**
+     * Scanner for {@link AnalysisPipeline}'s fused walk over the method body, in place of
+     * {@link #analyze()}; {@link #report()} logs what it found.
+     */
+    FusedTreeScanner.Part scanner() {
+        var out = new ArrayList<Detection>();
+        detections = out;
+        return new Visitor(out);
+    }
+
+    /** Log the detections of the last walk that are not suppressed. */
+    void report() {
+        for (var d : detections) {
             if (ctx.isSuppressed(d.at(), d.category())) continue;
             compilerPlugin.logError(methodPath, d.at(), d.message());
         }
@@ -94,7 +110,7 @@ public final class ProbeReadSizeZeroPass {
              + "See: cookbook §Probe-read";
     }
 
-    private static final class Visitor extends TreeScanner<Void, Void> {
+    private static final class Visitor extends FusedTreeScanner.Part {
         private final List<Detection> out;
 
         Visitor(List<Detection> out) { this.out = out; }
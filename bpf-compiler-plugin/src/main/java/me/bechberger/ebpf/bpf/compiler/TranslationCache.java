@@ -0,0 +1,456 @@
+package me.bechberger.ebpf.bpf.compiler;
+
+import com.sun.source.tree.MethodTree;
+import com.sun.source.util.TreeScanner;
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.code.Symbol.ClassSymbol;
+import com.sun.tools.javac.code.Symbol.MethodSymbol;
+import com.sun.tools.javac.code.Symbol.VarSymbol;
+import com.sun.tools.javac.code.Type;
+import com.sun.tools.javac.tree.JCTree;
+import me.bechberger.cast.CAST.PrimaryExpression.Constant;
+import me.bechberger.cast.CAST.Statement;
+import me.bechberger.cast.CAST.Statement.CompoundStatement;
+import me.bechberger.cast.CAST.Statement.Define;
+import me.bechberger.cast.CAST.Statement.FunctionDeclarationStatement;
+import me.bechberger.cast.CAST.Statement.VerbatimStatement;
+import me.bechberger.ebpf.annotations.bpf.BPFJavaInline;
+import me.bechberger.ebpf.bpf.compiler.CompilerPlugin.FuncDeclStatementResult;
+import me.bechberger.ebpf.bpf.compiler.CompilerPlugin.TypedTreePath;
+import org.jetbrains.annotations.Nullable;
+
+import javax.tools.JavaFileManager;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * On-disk cache of translated {@code @BPFFunction} bodies, so that changing one method of a
+ * large {@code @BPF} class does not re-run the analysis passes and {@link Translator} for all
+ * others. The processor's {@code CompilationCache} then skips clang if the assembled C is
+ * unchanged.
+ * <p>
+ * Entries live in {@code bpf-translation-cache} next to the class output folder (e.g.
+ * {@code target/bpf-translation-cache}), one properties file per translated method, named by a
+ * {@linkplain #key(TypedTreePath) hash} of
+ * <ul>
+ *     <li>the method's tree, including its annotations, and its source file name,</li>
+ *     <li>every symbol the method references: owner, type, annotations (also those of the
+ *     methods it overrides), constant value, the declaration of fields compiled with it, the
+ *     body of {@code @BPFJavaInline} methods it inlines, and the annotations of all types
+ *     involved, including the classes declaring the symbols (e.g. {@code @BPFAbstraction}),</li>
+ *     <li>the plugin build.</li>
+ * </ul>
+ * An entry holds the translated statements, with {@code #line} directives relative to the
+ * method's first line so that moving a method does not invalidate it, and the side results of
+ * the translation: required defines, called kfuncs, dereferenced arenas and calls to other
+ * {@code @BPFFunction}s. Only translations that logged no diagnostics and lifted no lambdas
+ * are stored, so a hit never hides a warning.
+ * <p>
+ * Disabled with the plugin argument {@code translationCache=false}.
+ */
+final class TranslationCache {
+
+    static final String FOLDER_NAME = "bpf-translation-cache";
+    /** Bump when the entry format or the key changes. */
+    private static final String FORMAT = "2";
+    private static final String PLUGIN_BUILD = pluginBuild();
+    private static final int MAX_ENTRIES = 10_000;
+    private static final Pattern LINE_DIRECTIVE = Pattern.compile("(?m)^(\\s*)#line (\\d+) ");
+    private static final Pattern RELATIVE_LINE_DIRECTIVE = Pattern.compile("(?m)^(\\s*)#line @(-?\\d+) ");
+
+    /** Translation of one method, as stored. */
+    record Fragment(boolean addDefine, List<String> statements, List<Define> requiredDefines,
+                    Map<String, String> calledKFuncs, List<String> arenas, List<String> callees) {
+    }
+
+    private final @Nullable CompilerPlugin plugin;
+    private final Path folder;
+    private int hits;
+    private int misses;
+    private int writes;
+
+    TranslationCache(@Nullable CompilerPlugin plugin, Path folder) {
+        this.plugin = plugin;
+        this.folder = folder;
+    }
+
+    /** Cache next to the class output folder, or null if there is none on disk. */
+    static @Nullable TranslationCache open(CompilerPlugin plugin, JavaFileManager fileManager) {
+        if (!(fileManager instanceof StandardJavaFileManager standard)
+                || !standard.hasLocation(StandardLocation.CLASS_OUTPUT)) {
+            return null;
+        }
+        var output = standard.getLocationAsPaths(StandardLocation.CLASS_OUTPUT).iterator();
+        if (!output.hasNext()) {
+            return null;
+        }
+        var parent = output.next().toAbsolutePath().getParent();
+        return parent == null ? null : new TranslationCache(plugin, parent.resolve(FOLDER_NAME));
+    }
+
+    /** Cache key of the method, see the class comment. */
+    String key(TypedTreePath<MethodTree> methodPath) {
+        var method = (JCTree.JCMethodDecl) methodPath.leaf();
+        var symbols = new LinkedHashSet<Symbol>();
+        symbols.add(method.sym);
+        new TreeScanner<Void, Void>() {
+            @Override
+            public Void scan(com.sun.source.tree.Tree tree, Void unused) {
+                var symbol = switch (tree) {
+                    case JCTree.JCIdent ident -> ident.sym;
+                    case JCTree.JCFieldAccess select -> select.sym;
+                    case JCTree.JCNewClass newClass -> newClass.constructor;
+                    case JCTree.JCVariableDecl variable -> variable.sym;
+                    case JCTree.JCMemberReference reference -> reference.sym;
+                    case null, default -> null;
+                };
+                if (symbol != null) {
+                    symbols.add(symbol);
+                }
+                return super.scan(tree, unused);
+            }
+        }.scan(method.getBody(), null);
+
+        var out = new StringBuilder();
+        out.append(FORMAT).append('\n').append(PLUGIN_BUILD).append('\n');
+        out.append(Path.of(methodPath.root().getSourceFile().getName()).getFileName()).append('\n');
+        out.append(method).append('\n');
+        var types = new HashSet<Symbol>();
+        for (var symbol : symbols) {
+            describe(symbol, out, types);
+        }
+        return sha256(out.toString());
+    }
+
+    private void describe(Symbol symbol, StringBuilder out, Set<Symbol> types) {
+        out.append(symbol.kind).append(' ').append(symbol.owner).append('.').append(symbol.name)
+                .append(' ').append(symbol.type).append(' ').append(symbol.getAnnotationMirrors()).append('\n');
+        if (symbol instanceof VarSymbol variable) {
+            if (variable.getConstValue() != null) {
+                out.append(" = ").append(variable.getConstValue()).append('\n');
+            }
+            if (variable.owner instanceof ClassSymbol && plugin != null) {
+                var tree = plugin.trees.getTree(variable);
+                if (tree != null) {
+                    out.append(tree).append('\n');
+                }
+                var carrier = plugin.abstractionFieldCarrierOverrides.get(variable.owner + "." + variable.name);
+                if (carrier != null) {
+                    out.append(" carrier ").append(carrier).append('\n');
+                }
+            }
+        }
+        if (symbol instanceof MethodSymbol method && method.owner instanceof ClassSymbol owner && plugin != null) {
+            if (method.getAnnotation(BPFJavaInline.class) != null) {
+                var tree = plugin.trees.getTree(method);
+                if (tree != null) {
+                    out.append(" inlines ").append(tree).append('\n');
+                }
+            }
+            // effective @BPFFunction and templates may come from overridden methods
+            for (var superType : plugin.types.closure(owner.type)) {
+                for (var member : superType.tsym.members().getSymbolsByName(method.name)) {
+                    if (member != method && member instanceof MethodSymbol overridden
+                            && method.overrides(overridden, owner, plugin.types, true)) {
+                        out.append(" overrides ").append(overridden.owner).append(' ')
+                                .append(overridden.getAnnotationMirrors()).append('\n');
+                    }
+                }
+            }
+        }
+        for (var owner = symbol.owner; owner instanceof ClassSymbol; owner = owner.owner) {
+            describe(owner.type, out, types);
+        }
+        describe(symbol.type, out, types);
+    }
+
+    private void describe(@Nullable Type type, StringBuilder out, Set<Symbol> types) {
+        if (type == null) {
+            return;
+        }
+        if (type.tsym != null && types.add(type.tsym)) {
+            out.append(" type ").append(type.tsym.flatName()).append(' ')
+                    .append(type.tsym.getAnnotationMirrors()).append('\n');
+        }
+        describe(type.getReturnType(), out, types);
+        type.getParameterTypes().forEach(t -> describe(t, out, types));
+        type.getTypeArguments().forEach(t -> describe(t, out, types));
+        if (type instanceof Type.ArrayType array) {
+            describe(array.elemtype, out, types);
+        }
+    }
+
+    /**
+     * The stored translation of the method, with its side results recorded in the plugin again,
+     * or null on a miss.
+     */
+    @Nullable
+    FuncDeclStatementResult load(TypedTreePath<MethodTree> methodPath, String key) {
+        assert plugin != null;
+        var fragment = get(key, firstLine(methodPath));
+        if (fragment == null) {
+            return null;
+        }
+        var callees = new ArrayList<MethodSymbol>();
+        for (var callee : fragment.callees()) {
+            var symbol = resolveCallee(callee);
+            if (symbol == null) {
+                return null;
+            }
+            callees.add(symbol);
+        }
+        var header = new Translator(plugin, methodPath).translateIgnoringBody();
+        if (header == null) {
+            return null;
+        }
+        var methodSymbol = (MethodSymbol) plugin.trees.getElement(methodPath.path());
+        if (!fragment.arenas().isEmpty()) {
+            plugin.directArenaRefs.computeIfAbsent(methodSymbol, k -> new HashSet<>()).addAll(fragment.arenas());
+        }
+        if (!callees.isEmpty()) {
+            plugin.callGraph.computeIfAbsent(methodSymbol, k -> new HashSet<>()).addAll(callees);
+        }
+        var body = new CompoundStatement(fragment.statements().stream()
+                .map(s -> (Statement) new VerbatimStatement(s)).toList());
+        return new FuncDeclStatementResult(
+                new FunctionDeclarationStatement(header.declarator(), body, header.annotations()),
+                new HashSet<>(fragment.requiredDefines()), fragment.addDefine(), List.of(),
+                fragment.calledKFuncs());
+    }
+
+    /** Store a translation that produced no diagnostics; translations with lambdas are skipped. */
+    void store(TypedTreePath<MethodTree> methodPath, String key, FuncDeclStatementResult result) {
+        assert plugin != null;
+        if (!result.syntheticFunctions().isEmpty()) {
+            return;
+        }
+        var methodSymbol = (MethodSymbol) plugin.trees.getElement(methodPath.path());
+        var arenas = new ArrayList<>(plugin.directArenaRefs.getOrDefault(methodSymbol, Set.of()));
+        arenas.sort(null);
+        var callees = plugin.callGraph.getOrDefault(methodSymbol, Set.of()).stream()
+                .map(TranslationCache::calleeId).sorted().toList();
+        var defines = result.requiredDefines().stream().sorted(Comparator.comparing(Define::name)).toList();
+        put(key, new Fragment(result.addDefine(),
+                result.decl().body().statements().stream().map(Statement::toPrettyString).toList(),
+                defines, result.calledKFuncs(), arenas, callees), firstLine(methodPath));
+    }
+
+    private int firstLine(TypedTreePath<MethodTree> methodPath) {
+        assert plugin != null;
+        var root = methodPath.root();
+        long start = plugin.trees.getSourcePositions().getStartPosition(root, methodPath.leaf());
+        return (int) root.getLineMap().getLineNumber(start);
+    }
+
+    private static String calleeId(MethodSymbol callee) {
+        return callee.owner.getQualifiedName() + "\t" + callee;
+    }
+
+    private @Nullable MethodSymbol resolveCallee(String id) {
+        assert plugin != null;
+        var parts = id.split("\t", 2);
+        var owner = plugin.task.getElements().getTypeElement(parts[0]);
+        if (owner == null) {
+            return null;
+        }
+        return owner.getEnclosedElements().stream()
+                .filter(e -> e instanceof MethodSymbol && e.toString().equals(parts[1]))
+                .map(e -> (MethodSymbol) e)
+                .findFirst().orElse(null);
+    }
+
+    @Nullable
+    Fragment get(String key, int firstLine) {
+        var file = folder.resolve(key + ".properties");
+        var properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException | IllegalArgumentException e) { // mostly NoSuchFileException
+            misses++;
+            return null;
+        }
+        var fragment = decode(properties, firstLine);
+        if (fragment == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return fragment;
+    }
+
+    void put(String key, Fragment fragment, int firstLine) {
+        try {
+            Files.createDirectories(folder);
+            var temp = Files.createTempFile(folder, key, ".tmp");
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                encode(fragment, firstLine).store(writer, null);
+            }
+            Files.move(temp, folder.resolve(key + ".properties"), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            writes++;
+        } catch (IOException e) {
+            // the cache is an optimization, the translation itself succeeded
+        }
+    }
+
+    /** Delete the least recently used entries beyond {@value #MAX_ENTRIES}. */
+    void trim() {
+        if (writes == 0) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(folder)) {
+            var entries = files.filter(f -> f.getFileName().toString().endsWith(".properties")).toList();
+            if (entries.size() <= MAX_ENTRIES) {
+                return;
+            }
+            var modified = new LinkedHashMap<Path, Long>();
+            for (var entry : entries) {
+                modified.put(entry, Files.getLastModifiedTime(entry).toMillis());
+            }
+            var oldestFirst = modified.entrySet().stream().sorted(Map.Entry.comparingByValue()).toList();
+            for (var entry : oldestFirst.subList(0, entries.size() - MAX_ENTRIES)) {
+                Files.deleteIfExists(entry.getKey());
+            }
+        } catch (IOException e) {
+            // retried after the next compilation
+        }
+    }
+
+    /** E.g. {@code "12 hits, 1 misses, 1 writes"}. */
+    String stats() {
+        return hits + " hits, " + misses + " misses, " + writes + " writes";
+    }
+
+    int lookups() {
+        return hits + misses;
+    }
+
+    static Properties encode(Fragment fragment, int firstLine) {
+        var properties = new Properties();
+        properties.setProperty("addDefine", Boolean.toString(fragment.addDefine()));
+        putList(properties, "statement", fragment.statements().stream()
+                .map(s -> replaceLines(LINE_DIRECTIVE, s, line -> "@" + (line - firstLine))).toList());
+        putList(properties, "define", fragment.requiredDefines().stream()
+                .map(TranslationCache::encodeDefine).toList());
+        putList(properties, "kfunc", fragment.calledKFuncs().entrySet().stream()
+                .map(e -> e.getKey() + "\t" + e.getValue()).toList());
+        putList(properties, "arena", fragment.arenas());
+        putList(properties, "callee", fragment.callees());
+        return properties;
+    }
+
+    static @Nullable Fragment decode(Properties properties, int firstLine) {
+        try {
+            var kfuncs = new LinkedHashMap<String, String>();
+            for (var kfunc : getList(properties, "kfunc")) {
+                var parts = kfunc.split("\t", 2);
+                kfuncs.put(parts[0], parts[1]);
+            }
+            return new Fragment(Boolean.parseBoolean(properties.getProperty("addDefine")),
+                    getList(properties, "statement").stream()
+                            .map(s -> replaceLines(RELATIVE_LINE_DIRECTIVE, s, line -> "" + (line + firstLine)))
+                            .toList(),
+                    getList(properties, "define").stream().map(TranslationCache::decodeDefine).toList(),
+                    kfuncs, getList(properties, "arena"), getList(properties, "callee"));
+        } catch (RuntimeException e) { // written by another plugin version or truncated
+            return null;
+        }
+    }
+
+    private static String replaceLines(Pattern pattern, String statement,
+                                       java.util.function.IntFunction<String> line) {
+        return pattern.matcher(statement).replaceAll(m -> Matcher.quoteReplacement(
+                m.group(1) + "#line " + line.apply(Integer.parseInt(m.group(2))) + " "));
+    }
+
+    private static void putList(Properties properties, String name, List<String> values) {
+        properties.setProperty(name + ".count", Integer.toString(values.size()));
+        for (int i = 0; i < values.size(); i++) {
+            properties.setProperty(name + "." + i, values.get(i));
+        }
+    }
+
+    private static List<String> getList(Properties properties, String name) {
+        int count = Integer.parseInt(properties.getProperty(name + ".count"));
+        var values = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(properties.getProperty(name + "." + i));
+        }
+        return values;
+    }
+
+    private static String encodeDefine(Define define) {
+        var value = define.value();
+        var kind = switch (value) {
+            case Constant.IntegerConstant i -> "int";
+            case Constant.LongConstant l -> "long";
+            case Constant.CharConstant c -> "char";
+            case Constant.StringConstant s -> "string";
+            case Constant.FloatConstant f -> "float";
+            case Constant.DoubleConstant d -> "double";
+        };
+        var text = value instanceof Constant.CharConstant c ? Integer.toString(c.value()) : value.value().toString();
+        return define.name() + "\t" + kind + "\t" + text;
+    }
+
+    private static Define decodeDefine(String encoded) {
+        var parts = encoded.split("\t", 3);
+        Constant<?> value = switch (parts[1]) {
+            case "int" -> new Constant.IntegerConstant(Integer.parseInt(parts[2]));
+            case "long" -> new Constant.LongConstant(Long.parseLong(parts[2]));
+            case "char" -> new Constant.CharConstant((char) Integer.parseInt(parts[2]));
+            case "string" -> new Constant.StringConstant(parts[2]);
+            case "float" -> new Constant.FloatConstant(Float.parseFloat(parts[2]));
+            case "double" -> new Constant.DoubleConstant(Double.parseDouble(parts[2]));
+            default -> throw new IllegalArgumentException("Unknown define kind " + parts[1]);
+        };
+        return new Define(parts[0], value);
+    }
+
+    private static String sha256(String text) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /** Changes whenever the plugin is rebuilt, so that its fixes invalidate stored translations. */
+    private static String pluginBuild() {
+        var resource = Translator.class.getResource("Translator.class");
+        if (resource == null) {
+            return "unknown";
+        }
+        try {
+            var connection = resource.openConnection();
+            return resource + " " + connection.getLastModified() + " " + connection.getContentLengthLong();
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+}
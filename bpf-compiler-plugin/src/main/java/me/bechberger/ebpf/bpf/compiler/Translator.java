@@ -366,6 +366,12 @@ class Translator {
                             }
                             if (methodSym != null) {
                                 var builtinAnn = methodSym.getAnnotation(BuiltinBPFFunction.class);
+                                if (builtinAnn != null && !builtinAnn.global().isBlank()) {
+                                    // Its state is emitted at file scope per @BPF field; a local has none.
+                                    logError(variableTree, typeElem.getSimpleName() + " '" + name
+                                            + "' must be a final field of the @BPF class, not a local variable");
+                                    yield null;
+                                }
                                 if (builtinAnn != null) {
                                     var carrier = builtinAnn.carrier();
                                     var sideEffect = builtinAnn.value();
@@ -2900,7 +2906,8 @@ class Translator {
         if (builtinAnn == null || builtinAnn.carrier().isBlank()) return null;
 
         // Resolve $argN placeholders in carrier template
-        var carrier = resolveAbstractionPlaceholders(builtinAnn.carrier(), ctorArgs);
+        var carrier = resolveAbstractionPlaceholders(builtinAnn.carrier(), ctorArgs)
+                .replace("$field", field.getSimpleName().toString());
 
         // If <auto> remains, look up the processor-resolved id from the impl class
         if (carrier.contains("<auto>")) {
@@ -1,7 +1,6 @@
 package me.bechberger.ebpf.bpf.compiler;
 
 import com.sun.source.tree.*;
-import com.sun.source.util.TreeScanner;
 import me.bechberger.ebpf.bpf.compiler.CompilerPlugin.TypedTreePath;
 import me.bechberger.ebpf.bpf.compiler.flow.AnalysisContext;
 
@@ -36,6 +35,7 @@ public final class UnboundedLoopPass {
     private final CompilerPlugin compilerPlugin;
     private final TypedTreePath<MethodTree> methodPath;
     private final AnalysisContext ctx;
+    private List<Detection> detections = List.of();
 
     public UnboundedLoopPass(CompilerPlugin compilerPlugin,
                              TypedTreePath<MethodTree> methodPath,
@@ -48,7 +48,23 @@ public final class UnboundedLoopPass {
     public void analyze() {
         var body = methodPath.leaf().getBody();
         if (body == null) return;
-        for (var d : detect(body)) {
+        detections = detect(body);
+        report();
+    }
+
+    /**
+     * Scanner for {@link AnalysisPipeline}'s fused walk over the method body, in place of
+     * {@link #analyze()}; {@link #report()} logs what it found.
+     */
+    FusedTreeScanner.Part scanner() {
+        var out = new ArrayList<Detection>();
+        detections = out;
+        return new Visitor(out);
+    }
+
+    /** Log the detections of the last walk that are not suppressed. */
+    void report() {
+        for (var d : detections) {
             if (ctx.isSuppressed(d.at(), d.category())) continue;
             compilerPlugin.logWarning(methodPath, d.at(), d.message());
         }
@@ -150,7 +166,7 @@ public final class UnboundedLoopPass {
         return e;
     }
 
-    private static final class Visitor extends TreeScanner<Void, Void> {
+    private static final class Visitor extends FusedTreeScanner.Part {
         private final List<Detection> out;
 
         Visitor(List<Detection> out) { this.out = out; }
@@ -0,0 +1,103 @@
+package me.bechberger.ebpf.bpf.compiler;
+
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.LiteralTree;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.source.tree.MethodInvocationTree;
+import com.sun.source.tree.Tree;
+import me.bechberger.ebpf.bpf.compiler.flow.JavacTestSupport;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Unit tests for {@link FusedTreeScanner}: a fused walk must match each part's own walk. */
+class FusedTreeScannerTest {
+
+    private static final String SOURCE = """
+            class T {
+                int f(Object p, int[] a) {
+                    int s = 0;
+                    for (int i = 0; i < 4; i++) { s += a[i] + p.<Object>cast().field; }
+                    if (s > 1) { return bar(s, "x"); }
+                    return s;
+                }
+            }
+            """;
+
+    /** Records identifiers and literals in visiting order. */
+    private static final class Recorder extends FusedTreeScanner.Part {
+        final List<String> seen = new ArrayList<>();
+        int finished;
+
+        @Override
+        public Void visitIdentifier(IdentifierTree node, Void unused) {
+            seen.add(node.getName().toString());
+            return super.visitIdentifier(node, unused);
+        }
+
+        @Override
+        public Void visitLiteral(LiteralTree node, Void unused) {
+            seen.add(String.valueOf(node.getValue()));
+            return super.visitLiteral(node, unused);
+        }
+
+        @Override
+        protected void finish(Tree root) {
+            finished++;
+        }
+    }
+
+    /** Like {@link Recorder}, but never descends into the selector of a method call. */
+    private static final class SelectorSkipper extends FusedTreeScanner.Part {
+        final List<String> seen = new ArrayList<>();
+
+        @Override
+        public Void visitMethodInvocation(MethodInvocationTree node, Void unused) {
+            if (node.getMethodSelect() instanceof MemberSelectTree select) {
+                seen.add("." + select.getIdentifier());
+                scan(node.getArguments(), unused);
+                return null;
+            }
+            return super.visitMethodInvocation(node, unused);
+        }
+
+        @Override
+        public Void visitIdentifier(IdentifierTree node, Void unused) {
+            seen.add(node.getName().toString());
+            return null;
+        }
+    }
+
+    @Test
+    void fusedWalkMatchesStandaloneWalks() {
+        var body = JavacTestSupport.parseMethod(SOURCE, "f").getBody();
+        var alone = new Recorder();
+        alone.scanAll(body);
+        var skipAlone = new SelectorSkipper();
+        skipAlone.scanAll(body);
+
+        var fused = new Recorder();
+        var skipFused = new SelectorSkipper();
+        FusedTreeScanner.walk(body, List.of(fused, skipFused));
+
+        assertEquals(alone.seen, fused.seen);
+        assertEquals(skipAlone.seen, skipFused.seen);
+        assertTrue(alone.seen.contains("p"));
+        assertFalse(skipAlone.seen.contains("p"), "selector must stay skipped: " + skipAlone.seen);
+        assertEquals(1, fused.finished);
+    }
+
+    @Test
+    void partsWorkStandaloneAfterFusedWalk() {
+        var body = JavacTestSupport.parseMethod(SOURCE, "f").getBody();
+        var part = new Recorder();
+        FusedTreeScanner.walk(body, List.of(part));
+        var first = List.copyOf(part.seen);
+        part.seen.clear();
+        part.scanAll(body);
+        assertEquals(first, part.seen);
+    }
+}
@@ -0,0 +1,124 @@
+package me.bechberger.ebpf.bpf.compiler;
+
+import me.bechberger.ebpf.bpf.compiler.flow.JavacTestSupport;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Unit tests for {@link GraphLockDisciplinePass#detect}. */
+class GraphLockDisciplinePassTest {
+
+    /** Receivers named {@code tree} or {@code list} stand in for RbTree / ListHead fields. */
+    private static List<GraphLockDisciplinePass.Detection> detect(String body) {
+        var m = JavacTestSupport.parseMethod("class T { Object tree, list, n; void f(int x) { " + body + " } }", "f");
+        return GraphLockDisciplinePass.detect(m.getBody(), r -> Set.of("tree", "list").contains(r.toString()));
+    }
+
+    private static boolean has(List<GraphLockDisciplinePass.Detection> ds, String fragment) {
+        return ds.stream().anyMatch(d -> d.category().equals("lock.discipline") && d.message().contains(fragment));
+    }
+
+    @Test
+    void balancedLockIsAccepted() {
+        var d = detect("""
+                n = tree.newNode();
+                tree.lock();
+                tree.add(n);
+                tree.unlock();
+                tree.lock();
+                n = tree.pollFirst();
+                tree.unlock();
+                if (n != null) tree.drop(n);
+                """);
+        assertTrue(d.isEmpty(), "balanced usage must not fire: " + d);
+    }
+
+    @Test
+    void operationWithoutLockIsRejected() {
+        var d = detect("tree.add(n);");
+        assertTrue(has(d, "'tree.add()' without holding"), d.toString());
+    }
+
+    @Test
+    void operationUnderOtherContainersLockIsRejected() {
+        var d = detect("list.lock(); tree.add(n); list.unlock();");
+        assertTrue(has(d, "'tree.add()' without holding"), d.toString());
+    }
+
+    @Test
+    void returnWhileLockedIsRejected() {
+        var d = detect("tree.lock(); if (x > 0) { return; } tree.unlock();");
+        assertTrue(has(d, "Return with the lock of 'tree' held"), d.toString());
+    }
+
+    @Test
+    void methodEndWhileLockedIsRejected() {
+        var d = detect("tree.lock(); tree.add(n);");
+        assertTrue(has(d, "Method ends with the lock of 'tree' held"), d.toString());
+    }
+
+    @Test
+    void doubleLockIsRejected() {
+        var d = detect("tree.lock(); list.lock(); list.unlock(); tree.unlock();");
+        assertTrue(has(d, "'list.lock()' while the lock of 'tree' is held"), d.toString());
+    }
+
+    @Test
+    void unlockWithoutLockIsRejected() {
+        var d = detect("tree.unlock();");
+        assertTrue(has(d, "'tree.unlock()' without holding its lock"), d.toString());
+    }
+
+    @Test
+    void allocationUnderLockIsRejected() {
+        var d = detect("tree.lock(); n = tree.newNode(); tree.unlock();");
+        assertTrue(has(d, "'tree.newNode()' while holding"), d.toString());
+    }
+
+    @Test
+    void helperCallUnderLockIsRejected() {
+        var d = detect("tree.lock(); bpf_get_prandom_u32(); tree.unlock();");
+        assertTrue(has(d, "Call to bpf_get_prandom_u32 while holding"), d.toString());
+    }
+
+    @Test
+    void branchMismatchIsRejected() {
+        var d = detect("if (x > 0) { tree.lock(); } tree.unlock();");
+        assertTrue(has(d, "Branches leave the lock in different states"), d.toString());
+    }
+
+    @Test
+    void earlyReturnAfterUnlockIsAccepted() {
+        var d = detect("tree.lock(); n = tree.pollFirst(); if (n == null) { tree.unlock(); return; } tree.unlock();");
+        assertTrue(d.isEmpty(), d.toString());
+    }
+
+    @Test
+    void loopChangingLockStateIsRejected() {
+        var d = detect("for (int i = 0; i < 4; i++) { tree.lock(); }");
+        assertTrue(has(d, "Loop body changes the lock state"), d.toString());
+    }
+
+    @Test
+    void loopUnderLockWithBreakIsAccepted() {
+        var d = detect("""
+                list.lock();
+                for (int i = 0; i < 16; i++) {
+                    n = list.popFront();
+                    if (n == null) break;
+                    list.pushBack(n);
+                }
+                list.unlock();
+                """);
+        assertTrue(d.isEmpty(), d.toString());
+    }
+
+    @Test
+    void breakAfterLockingInLoopIsRejected() {
+        var d = detect("while (x > 0) { tree.lock(); break; }");
+        assertTrue(has(d, "Jump out of a loop or switch"), d.toString());
+    }
+}
@@ -0,0 +1,194 @@
+package me.bechberger.ebpf.bpf.compiler;
+
+import com.sun.source.tree.ClassTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.TreePath;
+import com.sun.source.util.Trees;
+import com.sun.tools.javac.api.BasicJavacTask;
+import com.sun.tools.javac.code.Types;
+import me.bechberger.cast.CAST.PrimaryExpression.Constant;
+import me.bechberger.cast.CAST.Statement.Define;
+import me.bechberger.ebpf.bpf.compiler.CompilerPlugin.TypedTreePath;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import java.io.StringWriter;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the entries of {@link TranslationCache}, and for its keys, which are computed
+ * on sources analyzed by an in-process javac: changing anything the translation depends on must
+ * change the key of the method, changing anything else must not.
+ */
+class TranslationCacheTest {
+
+    private static final TranslationCache.Fragment FRAGMENT = new TranslationCache.Fragment(true,
+            List.of("#line 12 \"Sched.java\"", "if (x) {\n  #line 13 \"Sched.java\"\n  y = 1;\n}", "return 0;"),
+            List.of(new Define("A", new Constant.IntegerConstant(1)), new Define("B", new Constant.LongConstant(2L)),
+                    new Define("C", new Constant.CharConstant('\n')), new Define("D", new Constant.StringConstant("a\tb"))),
+            Map.of("bpf_cpumask_create", "struct bpf_cpumask *bpf_cpumask_create(void)"),
+            List.of("arena"), List.of("Sched\tsetBit(int)"));
+
+    @Test
+    void roundTripsAtTheSameLine(@TempDir Path folder) {
+        var cache = new TranslationCache(null, folder);
+        cache.put("key", FRAGMENT, 10);
+        assertEquals(FRAGMENT, cache.get("key", 10));
+        assertEquals("1 hits, 0 misses, 1 writes", cache.stats());
+    }
+
+    @Test
+    void lineDirectivesFollowTheMethod(@TempDir Path folder) {
+        var cache = new TranslationCache(null, folder);
+        cache.put("key", FRAGMENT, 10);
+        var moved = cache.get("key", 20);
+        assertNotNull(moved);
+        assertEquals(List.of("#line 22 \"Sched.java\"", "if (x) {\n  #line 23 \"Sched.java\"\n  y = 1;\n}", "return 0;"),
+                moved.statements());
+        assertEquals(FRAGMENT.requiredDefines(), moved.requiredDefines());
+    }
+
+    @Test
+    void missesUnknownKeys(@TempDir Path folder) {
+        var cache = new TranslationCache(null, folder);
+        assertNull(cache.get("key", 10));
+        assertEquals(1, cache.lookups());
+    }
+
+    /** The method under test is {@code demo.Prog.run}; each placeholder is replaced by a variant. */
+    private static final String PROG = """
+            package demo;
+            import me.bechberger.ebpf.annotations.bpf.BPFJavaInline;
+            import java.lang.annotation.*;
+
+            @Retention(RetentionPolicy.RUNTIME)
+            @interface Marker { String value(); }
+
+            @Marker("%OWNER%")
+            class Helper {
+                int get() { return 1; }
+            }
+
+            class HelperChild extends Helper {}
+
+            class Base {
+                @Marker("%OVERRIDDEN%")
+                int value() { return 1; }
+            }
+
+            class Sub extends Base {
+                @Override
+                int value() { return 2; }
+            }
+
+            class Prog {
+                static final int LIMIT = %LIMIT%;
+                Object queue;
+
+                @Marker("%CALLEE%")
+                int helper() { return 0; }
+
+                @BPFJavaInline
+                int twice(int x) { return x * %INLINED%; }
+
+                int unrelated() { return %UNRELATED%; }
+
+                int run(Sub sub, HelperChild child) {
+                    Object q = queue;
+                    return LIMIT + helper() + sub.value() + child.get() + twice(1);
+                }
+            }
+            """;
+
+    private static final Map<String, String> BASE = Map.of("%OWNER%", "a", "%OVERRIDDEN%", "a",
+            "%LIMIT%", "1", "%CALLEE%", "a", "%INLINED%", "2", "%UNRELATED%", "0");
+
+    /** Key of {@code Prog.run} with one placeholder changed and the given abstraction carrier of {@code queue}. */
+    private static String key(String placeholder, String value, String carrier) {
+        var source = PROG;
+        for (var entry : BASE.entrySet()) {
+            source = source.replace(entry.getKey(), entry.getKey().equals(placeholder) ? value : entry.getValue());
+        }
+        var text = source;
+        var file = new SimpleJavaFileObject(URI.create("mem:///demo/Prog.java"), JavaFileObject.Kind.SOURCE) {
+            @Override public CharSequence getCharContent(boolean ignoreEncodingErrors) { return text; }
+        };
+        var errors = new StringWriter();
+        var task = (JavacTask) ToolProvider.getSystemJavaCompiler().getTask(errors, null, null,
+                List.of("-proc:none", "-classpath", System.getProperty("java.class.path")), null, List.of(file));
+        try {
+            var units = task.parse();
+            task.analyze();
+            assertEquals("", errors.toString());
+            var plugin = new CompilerPlugin();
+            plugin.trees = Trees.instance(task);
+            plugin.types = Types.instance(((BasicJavacTask) task).getContext());
+            plugin.abstractionFieldCarrierOverrides.put("demo.Prog.queue", carrier);
+            for (var unit : units) {
+                for (var type : unit.getTypeDecls()) {
+                    if (type instanceof ClassTree cls && cls.getSimpleName().contentEquals("Prog")) {
+                        for (var member : cls.getMembers()) {
+                            if (member instanceof MethodTree method && method.getName().contentEquals("run")) {
+                                var path = new TypedTreePath<MethodTree>(TreePath.getPath(unit, method));
+                                return new TranslationCache(plugin, Path.of("unused")).key(path);
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+        throw new AssertionError("Prog.run not found");
+    }
+
+    private static String key(String placeholder, String value) {
+        return key(placeholder, value, "1");
+    }
+
+    @Test
+    void keyIsStableAndIgnoresOtherMethods() {
+        var key = key("%LIMIT%", "1");
+        assertEquals(key, key("%LIMIT%", "1"));
+        assertEquals(key, key("%UNRELATED%", "42"), "the body of a method it does not call");
+    }
+
+    @Test
+    void keyChangesWithReferencedConstant() {
+        assertNotEquals(key("%LIMIT%", "1"), key("%LIMIT%", "2"));
+    }
+
+    @Test
+    void keyChangesWithCalleeAnnotation() {
+        assertNotEquals(key("%CALLEE%", "a"), key("%CALLEE%", "b"));
+    }
+
+    @Test
+    void keyChangesWithOverriddenMethodAnnotation() {
+        assertNotEquals(key("%OVERRIDDEN%", "a"), key("%OVERRIDDEN%", "b"));
+    }
+
+    @Test
+    void keyChangesWithOwnerClassAnnotation() {
+        assertNotEquals(key("%OWNER%", "a"), key("%OWNER%", "b"));
+    }
+
+    @Test
+    void keyChangesWithInlinedMethodBody() {
+        assertNotEquals(key("%INLINED%", "2"), key("%INLINED%", "3"));
+    }
+
+    @Test
+    void keyChangesWithAbstractionCarrier() {
+        assertNotEquals(key("%LIMIT%", "1", "1"), key("%LIMIT%", "1", "2"));
+    }
+}
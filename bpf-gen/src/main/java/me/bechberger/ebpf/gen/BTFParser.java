@@ -0,0 +1,313 @@
+package me.bechberger.ebpf.gen;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import me.bechberger.ebpf.gen.Generator.Kind;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Parser for raw BTF blobs like {@code /sys/kernel/btf/vmlinux}, producing the same type
+ * objects as {@code bpftool btf dump file ... format raw -j} without running bpftool or
+ * building a JSON string.
+ * <p>
+ * The blob is memory-mapped where the file system allows it. A first sequential pass only
+ * records where each type starts (the records have variable length), then the types are
+ * decoded in parallel. Module BTF ({@code /sys/kernel/btf/<module>}) is split BTF: its type ids
+ * continue after those of the base and it refers to the base's strings, so it is parsed
+ * {@linkplain #parse(Path, BTFParser) together with the base}.
+ * <p>
+ * Format: {@code include/uapi/linux/btf.h} in the kernel sources.
+ */
+public final class BTFParser {
+
+    private static final int MAGIC = 0xEB9F;
+    private static final int TYPE_SIZE = 12;
+
+    private final ByteBuffer buffer;
+    private final @Nullable BTFParser base;
+    private final int typesStart;
+    private final int stringsStart;
+    private final int stringsLength;
+    /** Offset of each type record, index 0 is the first type of this blob. */
+    private final int[] typeOffsets;
+
+    private BTFParser(ByteBuffer buffer, @Nullable BTFParser base) {
+        this.base = base;
+        if ((buffer.getShort(0) & 0xFFFF) != MAGIC) {
+            buffer.order(buffer.order() == ByteOrder.BIG_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+            if ((buffer.getShort(0) & 0xFFFF) != MAGIC) {
+                throw new IllegalArgumentException("Not a BTF blob");
+            }
+        }
+        this.buffer = buffer;
+        int headerLength = buffer.getInt(4);
+        this.typesStart = headerLength + buffer.getInt(8);
+        int typesLength = buffer.getInt(12);
+        this.stringsStart = headerLength + buffer.getInt(16);
+        this.stringsLength = buffer.getInt(20);
+        this.typeOffsets = scan(typesStart, typesStart + typesLength);
+    }
+
+    /** Parse a base BTF blob, e.g. {@code /sys/kernel/btf/vmlinux}. */
+    public static BTFParser parse(Path file) throws IOException {
+        return new BTFParser(map(file), null);
+    }
+
+    /** Parse split BTF, e.g. {@code /sys/kernel/btf/<module>}, on top of {@code base}. */
+    public static BTFParser parse(Path file, BTFParser base) throws IOException {
+        return new BTFParser(map(file), base);
+    }
+
+    public static BTFParser parse(byte[] blob) {
+        return new BTFParser(ByteBuffer.wrap(blob).order(ByteOrder.nativeOrder()), null);
+    }
+
+    public static BTFParser parse(byte[] blob, BTFParser base) {
+        return new BTFParser(ByteBuffer.wrap(blob).order(ByteOrder.nativeOrder()), base);
+    }
+
+    private static ByteBuffer map(Path file) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.nativeOrder());
+        } catch (IOException | UnsupportedOperationException e) {
+            // sysfs supports mmap for vmlinux BTF only on recent kernels
+            return ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private int[] scan(int start, int end) {
+        int[] offsets = new int[1024];
+        int count = 0;
+        for (int offset = start; offset < end; offset += recordSize(offset)) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = offset;
+        }
+        return Arrays.copyOf(offsets, count);
+    }
+
+    private int recordSize(int offset) {
+        int info = buffer.getInt(offset + 4);
+        int vlen = info & 0xFFFF;
+        return TYPE_SIZE + switch (kind(info)) {
+            case INT, VAR, DECL_TAG -> 4;
+            case ARRAY -> 12;
+            case STRUCT, UNION, DATASEC, ENUM64 -> vlen * 12;
+            case ENUM, FUNC_PROTO -> vlen * 8;
+            default -> 0;
+        };
+    }
+
+    private static Kind kind(int info) {
+        int kind = (info >>> 24) & 0x1F;
+        if (kind > Kind.ENUM64.ordinal()) {
+            throw new IllegalArgumentException("Unknown BTF kind " + kind);
+        }
+        return Kind.values()[kind];
+    }
+
+    /** Id of the first type in this blob: 1, or the one after the base's last type. */
+    public int firstId() {
+        return base == null ? 1 : base.firstId() + base.typeCount();
+    }
+
+    /** Number of types in this blob, not counting the base or void. */
+    public int typeCount() {
+        return typeOffsets.length;
+    }
+
+    /** All types of this blob, in id order, decoded in parallel. */
+    public JSONArray types() {
+        var decoded = IntStream.range(0, typeOffsets.length).parallel()
+                .mapToObj(this::decode).toArray();
+        var result = new JSONArray(decoded.length);
+        result.addAll(Arrays.asList(decoded));
+        return result;
+    }
+
+    /** The type with the given id in the format of bpftool's JSON. */
+    public JSONObject type(int id) {
+        int index = id - firstId();
+        if (index < 0) {
+            if (base == null) {
+                throw new IllegalArgumentException("No type with id " + id);
+            }
+            return base.type(id);
+        }
+        if (index >= typeOffsets.length) {
+            throw new IllegalArgumentException("No type with id " + id);
+        }
+        return decode(index);
+    }
+
+    private JSONObject decode(int index) {
+        int offset = typeOffsets[index];
+        int info = buffer.getInt(offset + 4);
+        int vlen = info & 0xFFFF;
+        boolean kindFlag = info < 0;
+        var kind = kind(info);
+        int sizeOrType = buffer.getInt(offset + 8);
+        int extra = offset + TYPE_SIZE;
+
+        var type = new JSONObject();
+        type.put("id", firstId() + index);
+        type.put("kind", kind.name());
+        type.put("name", nameOrAnon(buffer.getInt(offset)));
+        switch (kind) {
+            case INT -> {
+                int data = buffer.getInt(extra);
+                int encoding = (data >>> 24) & 0x0F;
+                type.put("size", sizeOrType);
+                type.put("bits_offset", (data >>> 16) & 0xFF);
+                type.put("nr_bits", data & 0xFF);
+                type.put("encoding", switch (encoding) {
+                    case 1 -> "SIGNED";
+                    case 2 -> "CHAR";
+                    case 4 -> "BOOL";
+                    default -> "(none)";
+                });
+            }
+            case PTR, TYPEDEF, VOLATILE, CONST, RESTRICT, TYPE_TAG -> type.put("type_id", sizeOrType);
+            case ARRAY -> {
+                type.put("type_id", buffer.getInt(extra));
+                type.put("index_type_id", buffer.getInt(extra + 4));
+                type.put("nr_elems", buffer.getInt(extra + 8));
+            }
+            case STRUCT, UNION -> {
+                type.put("size", sizeOrType);
+                type.put("vlen", vlen);
+                var members = new JSONArray(vlen);
+                for (int i = 0; i < vlen; i++) {
+                    int m = extra + i * 12;
+                    int bitsOffset = buffer.getInt(m + 8);
+                    var member = new JSONObject();
+                    member.put("name", nameOrAnon(buffer.getInt(m)));
+                    member.put("type_id", buffer.getInt(m + 4));
+                    if (kindFlag) {
+                        member.put("bits_offset", bitsOffset & 0xFFFFFF);
+                        if ((bitsOffset >>> 24) != 0) {
+                            member.put("bitfield_size", bitsOffset >>> 24);
+                        }
+                    } else {
+                        member.put("bits_offset", bitsOffset);
+                    }
+                    members.add(member);
+                }
+                type.put("members", members);
+            }
+            case ENUM, ENUM64 -> {
+                type.put("encoding", kindFlag ? "SIGNED" : "UNSIGNED");
+                type.put("size", sizeOrType);
+                type.put("vlen", vlen);
+                var values = new JSONArray(vlen);
+                for (int i = 0; i < vlen; i++) {
+                    var value = new JSONObject();
+                    if (kind == Kind.ENUM) {
+                        int v = buffer.getInt(extra + i * 8 + 4);
+                        value.put("name", nameOrAnon(buffer.getInt(extra + i * 8)));
+                        value.put("val", kindFlag ? (Object) v : (Object) Integer.toUnsignedLong(v));
+                    } else {
+                        int m = extra + i * 12;
+                        long v = Integer.toUnsignedLong(buffer.getInt(m + 4))
+                                | ((long) buffer.getInt(m + 8) << 32);
+                        value.put("name", nameOrAnon(buffer.getInt(m)));
+                        value.put("val", kindFlag || v >= 0 ? (Object) v : new BigInteger(Long.toUnsignedString(v)));
+                    }
+                    values.add(value);
+                }
+                type.put("values", values);
+            }
+            case FWD -> type.put("fwd_kind", kindFlag ? "union" : "struct");
+            case FUNC -> {
+                type.put("type_id", sizeOrType);
+                type.put("linkage", switch (vlen) {
+                    case 0 -> "static";
+                    case 1 -> "global";
+                    case 2 -> "extern";
+                    default -> "(unknown)";
+                });
+            }
+            case FUNC_PROTO -> {
+                type.put("ret_type_id", sizeOrType);
+                type.put("vlen", vlen);
+                var params = new JSONArray(vlen);
+                for (int i = 0; i < vlen; i++) {
+                    var param = new JSONObject();
+                    param.put("name", nameOrAnon(buffer.getInt(extra + i * 8)));
+                    param.put("type_id", buffer.getInt(extra + i * 8 + 4));
+                    params.add(param);
+                }
+                type.put("params", params);
+            }
+            case VAR -> {
+                type.put("type_id", sizeOrType);
+                type.put("linkage", switch (buffer.getInt(extra)) {
+                    case 0 -> "static";
+                    case 1 -> "global";
+                    case 2 -> "extern";
+                    default -> "(unknown)";
+                });
+            }
+            case DATASEC -> {
+                type.put("size", sizeOrType);
+                type.put("vlen", vlen);
+                var vars = new JSONArray(vlen);
+                for (int i = 0; i < vlen; i++) {
+                    int m = extra + i * 12;
+                    var var = new JSONObject();
+                    var.put("type_id", buffer.getInt(m));
+                    var.put("offset", buffer.getInt(m + 4));
+                    var.put("size", buffer.getInt(m + 8));
+                    vars.add(var);
+                }
+                type.put("vars", vars);
+            }
+            case FLOAT -> type.put("size", sizeOrType);
+            case DECL_TAG -> {
+                type.put("type_id", sizeOrType);
+                type.put("component_idx", buffer.getInt(extra));
+            }
+            default -> throw new IllegalArgumentException("Unexpected BTF kind " + kind);
+        }
+        return type;
+    }
+
+    private String nameOrAnon(int nameOffset) {
+        var name = string(nameOffset);
+        return name.isEmpty() ? "(anon)" : name;
+    }
+
+    /** The string at {@code offset}; offsets past the base's strings refer to this blob's. */
+    private String string(int offset) {
+        if (base != null) {
+            if (offset < base.stringsLength) {
+                return base.string(offset);
+            }
+            offset -= base.stringsLength;
+        }
+        if (offset >= stringsLength) {
+            throw new IllegalArgumentException("Invalid BTF string offset " + offset);
+        }
+        int start = stringsStart + offset;
+        int end = start;
+        while (buffer.get(end) != 0) {
+            end++;
+        }
+        var bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
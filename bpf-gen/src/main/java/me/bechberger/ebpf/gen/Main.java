@@ -13,16 +13,19 @@
 
 package me.bechberger.ebpf.gen;
 
+import com.alibaba.fastjson.JSONArray;
+import me.bechberger.ebpf.bpf.processor.TypeIndex;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 
 import java.nio.file.Path;
+import java.util.List;
 import java.util.logging.Logger;
 
 /**
- * Usage: java ... <folder> <helper-json-file> [...]
+ * Usage: java ... <folder> [<helper-json-file>] [...]
  */
 @Command(name = "bpf-gen", mixinStandardHelpOptions = true, description = "Generates eBPF code from Java classes")
 public class Main implements Runnable {
@@ -31,7 +34,8 @@ public class Main implements Runnable {
     @Parameters(index = "0", description = "Folder to emit the Java class too")
     private Path folder;
 
-    @Parameters(index = "1", description = "JSON file containing the helper function descriptions")
+    @Parameters(index = "1", arity = "0..1", description = "JSON file containing the helper function descriptions, "
+            + "not needed with --write-index or --types")
     private Path helperJsonFile;
 
     @Parameters(index = "2", description = "Package name of the generated Java classes for the runtime",
@@ -49,14 +53,43 @@ public class Main implements Runnable {
     @Option(names = {"-v", "--verbose"}, description = "Be verbose")
     private boolean verbose = false;
 
+    @Option(names = "--write-index", description = "Only write a binary type index of the kernel BTF to this file")
+    private Path writeIndex;
+
+    @Option(names = "--index", description = "Read the types from this index instead of the running kernel")
+    private Path index;
+
+    @Option(names = "--module", description = "Also read the BTF of this kernel module, from /sys/kernel/btf/<module>")
+    private String module;
+
+    @Option(names = "--types", split = ",", description = "Only generate these types and the types they use, "
+            + "without helpers and system calls, e.g. to add types missing from bpf-runtime to a project")
+    private List<String> types;
+
     @Override
     public void run() {
         if (verbose) {
             Logger.getGlobal().setLevel(java.util.logging.Level.ALL);
         }
         try {
+            if (writeIndex != null) {
+                TypeIndex.write(kernelTypes(), writeIndex);
+                return;
+            }
             var gen = new Generator(runtimePackageName);
-            gen.process();
+            var typeIndex = index != null ? TypeIndex.open(index) : null;
+            if (types != null) {
+                if (typeIndex == null) {
+                    typeIndex = TypeIndex.of(TypeIndex.create(kernelTypes()));
+                }
+                gen.process(RuntimeDefinitionsGenerator.toJSON(typeIndex.types(typeIndex.closure(types))));
+                gen.generateBPFRuntimeJavaFiles().storeInFolder(folder);
+                return;
+            }
+            if (helperJsonFile == null) {
+                throw new IllegalArgumentException("Missing helper JSON file");
+            }
+            gen.process(typeIndex != null ? RuntimeDefinitionsGenerator.toJSON(typeIndex.types()) : kernelTypes());
             var generated = gen.generateBPFRuntimeJavaFiles();
             generated.storeInFolder(folder);
             var translator = gen.createNameTranslator();
@@ -71,6 +104,10 @@ public class Main implements Runnable {
         }
     }
 
+    private JSONArray kernelTypes() throws Exception {
+        return module != null ? BTF.getBTFJSONTypes(module) : BTF.getBTFJSONTypes();
+    }
+
     public static void main(String[] args) {
         // use picocli + help if no args
         if (args.length == 0) {
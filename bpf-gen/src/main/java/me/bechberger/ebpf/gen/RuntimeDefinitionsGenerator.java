@@ -0,0 +1,42 @@
+package me.bechberger.ebpf.gen;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import me.bechberger.ebpf.bpf.processor.DefinitionsGenerator;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link DefinitionsGenerator} for the annotation processor, registered as a service so that
+ * bpf-gen on the processor path lets it generate the kernel types programs import from a
+ * {@link me.bechberger.ebpf.bpf.processor.TypeIndex}
+ */
+public class RuntimeDefinitionsGenerator implements DefinitionsGenerator {
+
+    @Override
+    public Map<String, String> generate(List<Map<String, Object>> types) {
+        var gen = new Generator("me.bechberger.ebpf.runtime");
+        gen.process(toJSON(types));
+        var files = gen.generateBPFRuntimeJavaFiles();
+        Map<String, String> sources = new LinkedHashMap<>();
+        files.javaFilePerClass().forEach((className, code) -> sources.put(files.packageName() + "." + className, code));
+        return sources;
+    }
+
+    /** The type objects of a {@link me.bechberger.ebpf.bpf.processor.TypeIndex} as {@link Generator} input */
+    static JSONArray toJSON(List<?> types) {
+        var array = new JSONArray(types.size());
+        for (var type : types) {
+            array.add(toJSON((Map<?, ?>) type));
+        }
+        return array;
+    }
+
+    private static JSONObject toJSON(Map<?, ?> type) {
+        var object = new JSONObject(new LinkedHashMap<>());
+        type.forEach((key, value) -> object.put(key.toString(), value instanceof List<?> list ? toJSON(list) : value));
+        return object;
+    }
+}
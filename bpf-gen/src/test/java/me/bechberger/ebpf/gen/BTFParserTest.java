@@ -0,0 +1,124 @@
+package me.bechberger.ebpf.gen;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BTFParserTest {
+
+    /** Builds BTF blobs in native byte order; strings start with the empty string. */
+    private static class Blob {
+        private final ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        private final ByteBuffer types = ByteBuffer.allocate(4096).order(ByteOrder.nativeOrder());
+        private final int stringBase;
+
+        Blob(int stringBase) {
+            this.stringBase = stringBase;
+            if (stringBase == 0) {
+                strings.write(0);
+            }
+        }
+
+        int str(String s) {
+            int offset = stringBase + strings.size();
+            strings.writeBytes(s.getBytes(StandardCharsets.UTF_8));
+            strings.write(0);
+            return offset;
+        }
+
+        Blob type(int name, int kind, int vlen, boolean kindFlag, int sizeOrType, int... extra) {
+            types.putInt(name).putInt((kindFlag ? 1 << 31 : 0) | kind << 24 | vlen).putInt(sizeOrType);
+            for (int e : extra) {
+                types.putInt(e);
+            }
+            return this;
+        }
+
+        byte[] bytes() {
+            var out = ByteBuffer.allocate(24 + types.position() + strings.size()).order(ByteOrder.nativeOrder());
+            out.putShort((short) 0xEB9F).put((byte) 1).put((byte) 0).putInt(24)
+                    .putInt(0).putInt(types.position()).putInt(types.position()).putInt(strings.size());
+            out.put(types.array(), 0, types.position()).put(strings.toByteArray());
+            return out.array();
+        }
+    }
+
+    @Test
+    void decodesLikeBpftool() {
+        var b = new Blob(0);
+        int intName = b.str("int"), point = b.str("point"), x = b.str("x"), flag = b.str("flag");
+        int color = b.str("color"), red = b.str("RED"), use = b.str("use"), kfunc = b.str("bpf_kfunc");
+        b.type(intName, 1, 0, false, 4, 1 << 24 | 32)                   // 1: int
+                .type(point, 4, 2, true, 8, x, 1, 0, flag, 1, 3 << 24 | 32) // 2: struct point, bitfield
+                .type(0, 2, 0, false, 2)                                  // 3: struct point *
+                .type(0, 3, 0, false, 0, 1, 1, 4)                         // 4: int[4]
+                .type(color, 6, 1, false, 4, red, -1)                     // 5: unsigned enum color
+                .type(0, 13, 1, false, 0, x, 3)                           // 6: void (struct point *x)
+                .type(use, 12, 1, false, 6)                               // 7: global func use
+                .type(kfunc, 17, 0, false, 7, -1)                         // 8: decl tag
+                .type(point, 7, 0, true, 0);                              // 9: union point fwd
+        var parser = BTFParser.parse(b.bytes());
+        assertEquals(9, parser.typeCount());
+        var expected = JSON.parseArray("""
+                [
+                  {"id":1,"kind":"INT","name":"int","size":4,"bits_offset":0,"nr_bits":32,"encoding":"SIGNED"},
+                  {"id":2,"kind":"STRUCT","name":"point","size":8,"vlen":2,"members":[
+                    {"name":"x","type_id":1,"bits_offset":0},
+                    {"name":"flag","type_id":1,"bits_offset":32,"bitfield_size":3}]},
+                  {"id":3,"kind":"PTR","name":"(anon)","type_id":2},
+                  {"id":4,"kind":"ARRAY","name":"(anon)","type_id":1,"index_type_id":1,"nr_elems":4},
+                  {"id":5,"kind":"ENUM","name":"color","encoding":"UNSIGNED","size":4,"vlen":1,"values":[
+                    {"name":"RED","val":4294967295}]},
+                  {"id":6,"kind":"FUNC_PROTO","name":"(anon)","ret_type_id":0,"vlen":1,"params":[
+                    {"name":"x","type_id":3}]},
+                  {"id":7,"kind":"FUNC","name":"use","type_id":6,"linkage":"global"},
+                  {"id":8,"kind":"DECL_TAG","name":"bpf_kfunc","type_id":7,"component_idx":-1},
+                  {"id":9,"kind":"FWD","name":"point","fwd_kind":"union"}
+                ]""");
+        assertEquals(expected, parser.types());
+        assertEquals(expected.get(6), parser.type(7));
+    }
+
+    @Test
+    void splitBtfContinuesIdsAndStrings() {
+        var base = new Blob(0);
+        base.type(base.str("int"), 1, 0, false, 4, 1 << 24 | 32);
+        var baseParser = BTFParser.parse(base.bytes());
+        var module = new Blob(base.strings.size());
+        module.type(module.str("module_counter"), 14, 0, false, 1, 1); // 2: global var of type int
+        var parser = BTFParser.parse(module.bytes(), baseParser);
+        assertEquals(2, parser.firstId());
+        var counter = parser.type(2);
+        assertEquals("module_counter", counter.getString("name"));
+        assertEquals("global", counter.getString("linkage"));
+        assertEquals("int", parser.type(1).getString("name"));
+        assertEquals(1, parser.types().size());
+    }
+
+    @Test
+    void rejectsOtherBlobs() {
+        assertThrows(IllegalArgumentException.class, () -> BTFParser.parse(new byte[24]));
+    }
+
+    static boolean hasKernelBTF() {
+        return Files.isReadable(Path.of("/sys/kernel/btf/vmlinux"));
+    }
+
+    @EnabledIf("hasKernelBTF")
+    @Test
+    void parsesRunningKernel() throws Exception {
+        var types = BTF.getBTFJSONTypes();
+        assertTrue(types.size() > 1000);
+        assertTrue(types.stream().anyMatch(t -> ((JSONObject) t).getString("name").equals("task_struct")));
+    }
+}
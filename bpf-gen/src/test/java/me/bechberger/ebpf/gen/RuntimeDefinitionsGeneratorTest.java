@@ -0,0 +1,61 @@
+package me.bechberger.ebpf.gen;
+
+import com.alibaba.fastjson.JSON;
+import me.bechberger.ebpf.bpf.processor.DefinitionsGenerator;
+import me.bechberger.ebpf.bpf.processor.TypeIndex;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.ServiceLoader;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RuntimeDefinitionsGeneratorTest {
+
+    /** {@code struct point { int x; int y; }}, a typedef to it and an unrelated enum */
+    private static final String TYPES = """
+            [
+              {"id":1,"kind":"INT","name":"int","size":4,"bits_offset":0,"nr_bits":32,"encoding":"SIGNED"},
+              {"id":2,"kind":"STRUCT","name":"point","size":8,"vlen":2,"members":[
+                {"name":"x","type_id":1,"bits_offset":0},{"name":"y","type_id":1,"bits_offset":32}]},
+              {"id":3,"kind":"TYPEDEF","name":"point_t","type_id":2},
+              {"id":5,"kind":"ENUM64","name":"big","size":8,"vlen":2,"encoding":"UNSIGNED","values":[
+                {"name":"SMALL","val":-3},{"name":"HUGE","val":18446744073709551615}]}
+            ]""";
+
+    private static TypeIndex index() {
+        return TypeIndex.of(TypeIndex.create(JSON.parseArray(TYPES)));
+    }
+
+    @Test
+    void indexGivesTheGeneratorTheSameTypes() {
+        var original = JSON.parseArray(TYPES);
+        assertEquals(original, RuntimeDefinitionsGenerator.toJSON(index().types()));
+        assertTrue(TypeIndex.create(original).length < TYPES.length() / 2);
+    }
+
+    @Test
+    void generatesOnlyTheClosure() {
+        var index = index();
+        var types = RuntimeDefinitionsGenerator.toJSON(index.types(index.closure(List.of("point_t"))));
+        assertEquals(3, types.size());
+        var gen = new Generator("me.bechberger.ebpf.runtime");
+        gen.process(types);
+        var names = gen.generatedJavaTypeNames().stream().map(Object::toString).toList();
+        assertTrue(names.stream().anyMatch(n -> n.endsWith("point")), names.toString());
+        assertTrue(names.stream().noneMatch(n -> n.endsWith("big")), names.toString());
+    }
+
+    @Test
+    void isTheProcessorsDefinitionsGenerator() {
+        var generator = ServiceLoader.load(DefinitionsGenerator.class).findFirst().orElseThrow();
+        assertInstanceOf(RuntimeDefinitionsGenerator.class, generator);
+        var index = index();
+        var sources = generator.generate(index.types(index.closure(List.of("point_t"))));
+        assertFalse(sources.isEmpty());
+        assertTrue(sources.keySet().stream().allMatch(n -> n.startsWith("me.bechberger.ebpf.runtime.")),
+                sources.keySet().toString());
+        assertTrue(sources.values().stream().anyMatch(code -> code.contains("class point extends Struct")),
+                sources.toString());
+    }
+}
@@ -0,0 +1,174 @@
+package me.bechberger.ebpf.bpf.processor;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * The clang used to compile eBPF programs, resolved once per JVM, and a bounded pool that runs
+ * the compilations.
+ * <p>
+ * Resolving the newest usable clang spawns several {@code clang-N --version} processes, so it
+ * is done on first use only. {@link #version()} is the first line of {@code --version} and
+ * is part of every {@link CompilationCache} key, so upgrading clang invalidates the cache.
+ * <p>
+ * The pool runs at most {@code EBPF_CLANG_JOBS} (default: number of processors) clang
+ * processes at a time, which lets the compiler plugin compile all programs of a module
+ * concurrently.
+ */
+public record Clang(String command, String version) {
+
+    private static final int MINIMUM_VERSION = 19;
+
+    private static Clang instance;
+    private static ExecutorService pool;
+
+    /** Outcome of one clang run: the object file, or the error output of the failed command. */
+    public record Result(byte[] objectFile, List<String> command, String errors) {
+        public boolean ok() {
+            return objectFile != null;
+        }
+    }
+
+    /** The newest installed clang &gt;= 19; detected on the first call. */
+    public static synchronized Clang get() {
+        if (instance == null) {
+            instance = detect();
+        }
+        return instance;
+    }
+
+    /** Shared pool of {@link #jobs()} daemon threads for clang runs. */
+    public static synchronized ExecutorService pool() {
+        if (pool == null) {
+            var counter = new AtomicInteger();
+            pool = Executors.newFixedThreadPool(jobs(), r -> {
+                var thread = new Thread(r, "ebpf-clang-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return pool;
+    }
+
+    /** Maximum number of concurrent clang processes, from {@code EBPF_CLANG_JOBS}. */
+    static int jobs() {
+        return parseJobs(System.getenv("EBPF_CLANG_JOBS"), Runtime.getRuntime().availableProcessors());
+    }
+
+    static int parseJobs(String value, int fallback) {
+        if (value == null || value.isBlank()) {
+            return fallback;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    /**
+     * Compile C {@code code} to a BPF object file. Blocks until clang exits; call it from a
+     * {@link #pool()} thread to compile several programs at once.
+     */
+    public Result compile(String code, String arch, Path vmlinuxFolder, Path includePath) {
+        return compile(code, arch, vmlinuxFolder, includePath, null);
+    }
+
+    /**
+     * Like {@link #compile(String, String, Path, Path)}, but with the precompiled header
+     * {@code pch} included before {@code code}, see {@link PrecompiledHeaders}.
+     */
+    public Result compile(String code, String arch, Path vmlinuxFolder, Path includePath, @Nullable Path pch) {
+        try {
+            var tempFile = Files.createTempFile("ebpf", ".o");
+            try {
+                List<String> cmd = new ArrayList<>();
+                cmd.add(command);
+                cmd.addAll(flags(arch, vmlinuxFolder, includePath));
+                if (pch != null) {
+                    cmd.addAll(List.of("-include-pch", pch.toString()));
+                }
+                cmd.addAll(List.of("-c", "-o", tempFile.toString(), "-x", "c", "-"));
+                var process = new ProcessBuilder(cmd).redirectInput(ProcessBuilder.Redirect.PIPE)
+                        .redirectError(ProcessBuilder.Redirect.PIPE).start();
+                process.getOutputStream().write(code.getBytes());
+                process.getOutputStream().close();
+                ByteArrayOutputStream error = new ByteArrayOutputStream();
+                process.getErrorStream().transferTo(error);
+                if (process.waitFor() != 0) {
+                    return new Result(null, cmd, error.toString());
+                }
+                return new Result(Files.readAllBytes(tempFile), cmd, error.toString());
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Flags of every compilation; clang only accepts a precompiled header built with the same
+     * target, language and macro flags, so {@link PrecompiledHeaders} builds them with these too.
+     */
+    static List<String> flags(String arch, Path vmlinuxFolder, Path includePath) {
+        return List.of("-O2", "-g", "-std=gnu2y", "-target", "bpf", "-I", vmlinuxFolder.toString(),
+                "-D__TARGET_ARCH_" + arch, "-Wno-parentheses-equality", "-Wno-unused-value", "-Wreturn-type",
+                "-Wno-incompatible-pointer-types-discards-qualifiers", "--sysroot=/", "-I" + includePath);
+    }
+
+    private static Clang detect() {
+        var versionPattern = Pattern.compile("version (?<version>\\d+)");
+
+        var minimumVersion = MINIMUM_VERSION - 1;
+        String defaultVersion = versionLine("clang");
+        if (defaultVersion != null) {
+            var versionMatcher = versionPattern.matcher(defaultVersion);
+            if (versionMatcher.find()) {
+                var version = Integer.parseInt(versionMatcher.group("version"));
+                if (version > minimumVersion) {
+                    minimumVersion = version;
+                }
+            }
+        }
+        for (int i = 20; i > minimumVersion; i--) {
+            var name = "clang-" + i;
+            var version = versionLine(name);
+            if (version != null) {
+                return new Clang(name, version);
+            }
+        }
+        if (minimumVersion >= MINIMUM_VERSION) {
+            return new Clang("clang", defaultVersion);
+        }
+        throw new RuntimeException("Could not find clang >= " + MINIMUM_VERSION);
+    }
+
+    /** First line of {@code name --version}, or null if the command is missing or fails. */
+    private static String versionLine(String name) {
+        try {
+            var process = new ProcessBuilder(name, "--version").redirectErrorStream(true).start();
+            var output = new String(process.getInputStream().readAllBytes());
+            if (process.waitFor() != 0) {
+                return null;
+            }
+            int newline = output.indexOf('\n');
+            return (newline < 0 ? output : output.substring(0, newline)).trim();
+        } catch (IOException | InterruptedException e) {
+            return null;
+        }
+    }
+}
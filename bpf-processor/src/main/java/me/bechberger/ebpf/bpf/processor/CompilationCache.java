@@ -3,28 +3,96 @@ package me.bechberger.ebpf.bpf.processor;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Comparator;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Cache compilation results on disk, makes builds far faster.
+ * <p>
+ * By default one cache is shared by all projects of a user: {@link #shared()} lives in
+ * {@code ebpf.cache.dir} (system property), {@code EBPF_CACHE_DIR}, or
+ * {@code $XDG_CACHE_HOME/hello-ebpf} (falling back to {@code ~/.cache/hello-ebpf}), so
+ * modules and CI workspaces reuse each other's object files. Several JVMs (e.g. forked Maven
+ * compilers) may use the same folder:
+ * <ul>
+ *     <li>entries are written to a temp file and renamed into place, so readers never see a
+ *     partial object file;</li>
+ *     <li>eviction and writes hold an exclusive lock on {@code .lock} in the folder;</li>
+ *     <li>reads take no lock; an entry evicted under a reader is just a miss.</li>
+ * </ul>
+ * Every hit sets the entry's modification time to now, so eviction — oldest first once the
+ * folder exceeds {@code ebpf.cache.maxBytes} / {@code EBPF_CACHE_MAX_BYTES} (default 200 MB),
+ * and of entries unused for 30 days — is least-recently-used. The precompiled headers in the
+ * {@code pch} subfolder count towards that size and are evicted with the object files.
+ * {@link #stats()} counts hits, misses, writes and evictions.
  */
 public class CompilationCache {
 
     private static final String CACHE_FOLDER_NAME = ".bpf.compile.cache";
+    private static final String LOCK_FILE_NAME = ".lock";
+    private static final String PCH_FOLDER_NAME = "pch";
+    private static final String LAST_CLEAN_FILE_NAME = ".last-clean";
     private static final int MAX_DAYS_TO_KEEP_CACHE = 30;
-    private static final long MAX_CACHE_SIZE_IN_BYTES = 200_000_000L;
-    private static boolean cleaned = false;
+    private static final long DEFAULT_MAX_CACHE_SIZE_IN_BYTES = 200_000_000L;
+    private static final long CLEAN_INTERVAL_MS = 60 * 60 * 1000;
+
+    /** File digests by path, each with the size and modification time it was computed for. */
+    private static final Map<Path, FileDigest> fileDigests = new ConcurrentHashMap<>();
+    private static final Map<Path, CompilationCache> instances = new ConcurrentHashMap<>();
+
+    private record FileDigest(long size, long modified, String digest) {}
+
+    /** Counters since this cache object was created. */
+    public record Stats(long hits, long misses, long writes, long evictions, long bytesRead) {
+        public double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d hits, %d misses (%.0f%%), %d writes, %d evictions, %d bytes read",
+                    hits, misses, hitRate() * 100, writes, evictions, bytesRead);
+        }
+    }
 
     private final Path cacheFolder;
+    private final long maxSizeInBytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
 
+    /** Cache in {@code .bpf.compile.cache} below {@code baseFolder}. */
     public CompilationCache(Path baseFolder) {
-        this.cacheFolder = baseFolder.resolve(CACHE_FOLDER_NAME);
+        this(baseFolder.resolve(CACHE_FOLDER_NAME), maxSizeFromEnvironment(), true);
+    }
+
+    /** Cache directly in {@code cacheFolder}, evicting beyond {@code maxSizeInBytes}. */
+    public CompilationCache(Path cacheFolder, long maxSizeInBytes) {
+        this(cacheFolder, maxSizeInBytes, true);
+    }
+
+    private CompilationCache(Path cacheFolder, long maxSizeInBytes, boolean cleanIfDue) {
+        this.cacheFolder = cacheFolder;
+        this.maxSizeInBytes = maxSizeInBytes;
         if (!this.cacheFolder.toFile().exists()) {
             try {
                 Files.createDirectories(this.cacheFolder);
@@ -32,37 +100,93 @@ public class CompilationCache {
                 throw new RuntimeException(e);
             }
         }
-        if (!cleaned) {
-            cleaned = true;
-            cleanOldFiles();
+        if (cleanIfDue) {
+            cleanOldFilesIfDue();
+        }
+    }
+
+    /** The per-user cache shared by all projects, one instance per JVM. */
+    public static CompilationCache shared() {
+        return instances.computeIfAbsent(sharedFolder(),
+                folder -> new CompilationCache(folder, maxSizeFromEnvironment(), true));
+    }
+
+    /** Folder of {@link #shared()}; see the class comment for how it is chosen. */
+    public static Path sharedFolder() {
+        String configured = System.getProperty("ebpf.cache.dir", System.getenv("EBPF_CACHE_DIR"));
+        if (configured != null && !configured.isBlank()) {
+            return Path.of(configured);
+        }
+        String xdg = System.getenv("XDG_CACHE_HOME");
+        Path base = xdg != null && !xdg.isBlank() ? Path.of(xdg) : Path.of(System.getProperty("user.home"), ".cache");
+        return base.resolve("hello-ebpf");
+    }
+
+    private static long maxSizeFromEnvironment() {
+        String configured = System.getProperty("ebpf.cache.maxBytes", System.getenv("EBPF_CACHE_MAX_BYTES"));
+        if (configured != null && !configured.isBlank()) {
+            try {
+                return Long.parseLong(configured.trim());
+            } catch (NumberFormatException e) {
+                // fall through to the default
+            }
         }
+        return DEFAULT_MAX_CACHE_SIZE_IN_BYTES;
     }
 
+    /** The cached object file for {@code cProgram}, or null on a miss. Marks the entry as recently used. */
     public byte @Nullable [] getCached(String cProgram) {
         Path file = fileName(cProgram);
-        if (!file.toFile().exists()) {
+        try {
+            byte[] bytes = Files.readAllBytes(file);
+            touch(file);
+            hits.incrementAndGet();
+            bytesRead.addAndGet(bytes.length);
+            return bytes;
+        } catch (NoSuchFileException e) {
+            misses.incrementAndGet();
             return null;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
+    }
+
+    /** Record a use for LRU eviction; best effort, e.g. for entries owned by another user. */
+    private static void touch(Path file) {
         try {
-            return Files.readAllBytes(file);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            // the entry may just have been evicted or be read-only for us
         }
     }
 
-    private void cleanOldFiles() {
-        try (var list = Files.list(cacheFolder)) {
-            list.forEach(p -> {
-                // never delete vmlinux.h — it's expensive to regenerate and not an .o
-                if (p.getFileName().toString().equals("vmlinux.h")) return;
-                try {
-                    long ageMs = System.currentTimeMillis() - Files.getLastModifiedTime(p).toMillis();
-                    if (ageMs > (long) MAX_DAYS_TO_KEEP_CACHE * 24 * 60 * 60 * 1000) {
-                        Files.delete(p);
+    /**
+     * Delete entries unused for {@link #MAX_DAYS_TO_KEEP_CACHE} days, at most once per hour
+     * across all JVMs sharing the folder.
+     */
+    private void cleanOldFilesIfDue() {
+        Path stamp = cacheFolder.resolve(LAST_CLEAN_FILE_NAME);
+        try {
+            if (Files.exists(stamp)
+                    && System.currentTimeMillis() - Files.getLastModifiedTime(stamp).toMillis() < CLEAN_INTERVAL_MS) {
+                return;
+            }
+            withLock(() -> {
+                long now = System.currentTimeMillis();
+                for (var p : cachedObjectFiles()) {
+                    try {
+                        if (now - Files.getLastModifiedTime(p).toMillis() > (long) MAX_DAYS_TO_KEEP_CACHE * 24 * 60 * 60 * 1000) {
+                            Files.delete(p);
+                            evictions.incrementAndGet();
+                        }
+                    } catch (NoSuchFileException e) {
+                        // removed concurrently
                     }
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
                 }
+                if (!Files.exists(stamp)) {
+                    Files.createFile(stamp);
+                }
+                Files.setLastModifiedTime(stamp, FileTime.fromMillis(now));
             });
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -80,72 +204,145 @@ public class CompilationCache {
         return cacheFolder.resolve(Base64.getEncoder().encodeToString(hash).replaceAll("[^A-Za-z0-9_]", "") + ".o");
     }
 
+    /**
+     * SHA-256 of the content of {@code file} as hex, e.g. of {@code vmlinux.h} for cache keys.
+     * Recomputed only when the file's size or modification time changes.
+     */
+    public static String digest(Path file) {
+        try {
+            long size = Files.size(file);
+            long modified = Files.getLastModifiedTime(file).toMillis();
+            var known = fileDigests.get(file);
+            if (known != null && known.size() == size && known.modified() == modified) {
+                return known.digest();
+            }
+            var digest = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file)));
+            fileDigests.put(file, new FileDigest(size, modified, digest));
+            return digest;
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public void cache(String cProgram, byte[] objectFile) {
         Path file = fileName(cProgram);
-        removeFilesTill(objectFile.length);
         try {
-            // Write atomically via a temp file so a partial write or a pre-existing
-            // file owned by another user (e.g. from a prior sudo build) never leaves
-            // a corrupt or inaccessible cache entry.
-            Path tmp = Files.createTempFile(cacheFolder, "ebpf-cache-", ".tmp");
-            try {
-                Files.write(tmp, objectFile);
-                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
-            } catch (IOException e) {
-                Files.deleteIfExists(tmp);
-                throw e;
-            }
+            withLock(() -> {
+                removeFilesTill(objectFile.length);
+                // Write atomically via a temp file so a partial write or a pre-existing
+                // file owned by another user (e.g. from a prior sudo build) never leaves
+                // a corrupt or inaccessible cache entry.
+                Path tmp = Files.createTempFile(cacheFolder, "ebpf-cache-", ".tmp");
+                try {
+                    Files.write(tmp, objectFile);
+                    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    Files.deleteIfExists(tmp);
+                    throw e;
+                }
+            });
+            writes.incrementAndGet();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private void removeFilesTill(long emptySpace) {
-        long currentSize = size();
-        long toRemove = currentSize + emptySpace - MAX_CACHE_SIZE_IN_BYTES;
+    private interface LockedAction {
+        void run() throws IOException;
+    }
+
+    /**
+     * Run {@code action} holding the folder's lock file, which excludes other JVMs; the
+     * monitor on the folder path (interned per {@link #shared()} folder) excludes other
+     * threads of this JVM, for which file locks would throw.
+     */
+    private void withLock(LockedAction action) throws IOException {
+        synchronized (lockMonitor(cacheFolder)) {
+            try (var channel = FileChannel.open(cacheFolder.resolve(LOCK_FILE_NAME),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 var ignored = channel.lock()) {
+                action.run();
+            }
+        }
+    }
+
+    private static final Map<Path, Object> lockMonitors = new ConcurrentHashMap<>();
+
+    private static Object lockMonitor(Path folder) {
+        return lockMonitors.computeIfAbsent(folder.toAbsolutePath().normalize(), f -> new Object());
+    }
+
+    /**
+     * Evict least recently used object files and precompiled headers until {@code emptySpace}
+     * more bytes fit.
+     */
+    private void removeFilesTill(long emptySpace) throws IOException {
+        record Entry(Path path, long size, long used) {}
+        List<Entry> entries = new ArrayList<>();
+        long currentSize = 0;
+        for (var p : cachedFiles()) {
+            try {
+                var entry = new Entry(p, Files.size(p), Files.getLastModifiedTime(p).toMillis());
+                entries.add(entry);
+                currentSize += entry.size();
+            } catch (NoSuchFileException e) {
+                // removed concurrently
+            }
+        }
+        long toRemove = currentSize + emptySpace - maxSizeInBytes;
         if (toRemove <= 0) {
             return;
         }
-        // evict only .o files (never vmlinux.h) ordered oldest-first
-        var files = cachedFiles().stream()
-                .filter(p -> p.getFileName().toString().endsWith(".o"))
-                .sorted((p1, p2) -> {
-                    try {
-                        return Long.compare(Files.getLastModifiedTime(p1).toMillis(),
-                                            Files.getLastModifiedTime(p2).toMillis());
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                }).toList();
-        try {
-            for (var file : files) {
-                toRemove -= Files.size(file);
-                Files.delete(file);
-                if (toRemove <= 0) {
-                    return;
-                }
+        entries.sort(Comparator.comparingLong(Entry::used));
+        for (var entry : entries) {
+            try {
+                Files.deleteIfExists(entry.path());
+            } catch (AccessDeniedException e) {
+                continue; // a header built by another user, e.g. a prior sudo build
+            }
+            var fileName = entry.path().getFileName().toString();
+            if (fileName.endsWith(".pch")) {
+                // the header clang checks the precompiled one against
+                Files.deleteIfExists(entry.path().resolveSibling(fileName.replace(".pch", ".h")));
             }
+            evictions.incrementAndGet();
+            toRemove -= entry.size();
+            if (toRemove <= 0) {
+                return;
+            }
+        }
+    }
+
+    /** The {@code .o} entries; never {@code vmlinux.h} or the lock and stamp files. */
+    private List<Path> cachedObjectFiles() {
+        try (var list = Files.list(cacheFolder)) {
+            return list.filter(p -> p.getFileName().toString().endsWith(".o")).toList();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private long size() {
-        return cachedFiles().stream().mapToLong(p -> {
-            try {
-                return Files.size(p);
+    /** The {@code .o} entries and the {@code .pch} files in {@link #pchFolder()}. */
+    private List<Path> cachedFiles() {
+        List<Path> files = new ArrayList<>(cachedObjectFiles());
+        var pchFolder = pchFolder();
+        if (Files.isDirectory(pchFolder)) {
+            try (var list = Files.list(pchFolder)) {
+                list.filter(p -> p.getFileName().toString().endsWith(".pch")).forEach(files::add);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
-        }).sum();
+        }
+        return files;
     }
 
-    private List<Path> cachedFiles() {
-        try (var list = Files.list(cacheFolder)) {
-            return list.toList();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+    /** Folder of the {@link PrecompiledHeaders}, which count towards the size limit. */
+    Path pchFolder() {
+        return cacheFolder.resolve(PCH_FOLDER_NAME);
+    }
+
+    public Stats stats() {
+        return new Stats(hits.get(), misses.get(), writes.get(), evictions.get(), bytesRead.get());
     }
 
     public Path getCacheFolder() {
@@ -0,0 +1,20 @@
+package me.bechberger.ebpf.bpf.processor;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates the Java definitions of BTF types, found via {@link java.util.ServiceLoader} on the
+ * annotation processor path.
+ * <p>
+ * bpf-gen implements it with its {@code Generator}; it cannot live here, as bpf-gen depends on
+ * this module. {@link RuntimeDefinitions} uses it to generate the types that programs import.
+ */
+public interface DefinitionsGenerator {
+
+    /**
+     * Java sources for the given type objects, as returned by {@link TypeIndex#types}, by
+     * qualified class name
+     */
+    Map<String, String> generate(List<Map<String, Object>> types);
+}
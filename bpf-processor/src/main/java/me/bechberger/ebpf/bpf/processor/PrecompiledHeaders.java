@@ -0,0 +1,230 @@
+package me.bechberger.ebpf.bpf.processor;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Clang precompiled headers for the {@code #include} lines at the top of eBPF programs.
+ * <p>
+ * These lines are the same for nearly all programs ({@code vmlinux.h} and the libbpf headers
+ * of {@code BPF#includes()}), and parsing them, mostly the 3–5 MB {@code vmlinux.h}, is most of
+ * clang's time per program. {@link #split} cuts them off a program, leaving empty lines so that
+ * clang's error lines stay the same, and the program is compiled with a header precompiled from
+ * them.
+ * <p>
+ * A header is keyed by these lines, the clang, its {@link Clang#flags flags} and the digest of
+ * {@code vmlinux.h}, which changes with the kernel's BTF. It is built once per key into the
+ * {@code pch} folder of the {@link CompilationCache}, via a temp file renamed into place. It
+ * counts towards the cache's size limit, which may evict it like an object file, and is
+ * deleted after 30 days without use. If the header can't be built (e.g. the folder belongs to
+ * root after a sudo build) or clang rejects it (e.g. because a libbpf header changed since), the
+ * program is compiled without it. Set {@code EBPF_CLANG_PCH=false} or
+ * {@code -Debpf.clang.pch=false} to never use precompiled headers.
+ */
+final class PrecompiledHeaders {
+
+    private static final long MAX_UNUSED_MS = 30L * 24 * 60 * 60 * 1000;
+
+    /** Builds of this JVM by header path; a null result means the build failed. */
+    private static final Map<Path, Future<Path>> builds = new ConcurrentHashMap<>();
+
+    /** A program split into its leading includes and the rest, which has the same line numbers. */
+    record Split(String includes, String rest) {}
+
+    private PrecompiledHeaders() {
+    }
+
+    static boolean enabled() {
+        return !"false".equals(System.getProperty("ebpf.clang.pch", System.getenv("EBPF_CLANG_PCH")));
+    }
+
+    /**
+     * Split off the leading {@code #include}, blank and {@code //} comment lines, or return null
+     * if the program does not start with an include.
+     */
+    static @Nullable Split split(String code) {
+        var lines = code.split("\n", -1);
+        int end = 0;
+        for (int i = 0; i < lines.length; i++) {
+            var line = lines[i].strip();
+            if (line.startsWith("#include")) {
+                end = i + 1;
+            } else if (!line.isEmpty() && !line.startsWith("//")) {
+                break;
+            }
+        }
+        if (end == 0) {
+            return null;
+        }
+        var includes = String.join("\n", Arrays.asList(lines).subList(0, end)) + "\n";
+        var rest = "\n".repeat(end) + String.join("\n", Arrays.asList(lines).subList(end, lines.length));
+        return new Split(includes, rest);
+    }
+
+    /**
+     * Compile {@code code} like {@link Clang#compile(String, String, Path, Path)}, but with its
+     * leading includes precompiled in {@code folder} when possible.
+     */
+    static Clang.Result compile(Clang clang, String code, String arch, Path vmlinuxFolder, Path includePath,
+                                String vmlinuxDigest, Path folder) {
+        var split = enabled() ? split(code) : null;
+        if (split == null) {
+            return clang.compile(code, arch, vmlinuxFolder, includePath);
+        }
+        var flags = Clang.flags(arch, vmlinuxFolder, includePath);
+        var pch = get(clang, split.includes(), flags, vmlinuxDigest, folder);
+        if (pch == null) {
+            return clang.compile(code, arch, vmlinuxFolder, includePath);
+        }
+        var result = clang.compile(split.rest(), arch, vmlinuxFolder, includePath, pch);
+        if (!result.ok() && (result.errors().contains("precompiled header") || result.errors().contains("AST file"))) {
+            // stale or corrupt header: rebuild it on the next compile
+            builds.remove(pch);
+            try {
+                Files.deleteIfExists(pch);
+            } catch (IOException e) {
+                // owned by another user, clang rejects it again next time
+            }
+            return clang.compile(code, arch, vmlinuxFolder, includePath);
+        }
+        return result;
+    }
+
+    /** The precompiled header for {@code includes}, built on first use; null if clang can't build it. */
+    private static @Nullable Path get(Clang clang, String includes, List<String> flags, String vmlinuxDigest,
+                                      Path folder) {
+        var name = sha256(String.join("\n", includes, clang.command(), clang.version(), String.join(" ", flags),
+                vmlinuxDigest));
+        var pch = folder.resolve(name + ".pch");
+        var task = new FutureTask<>(() -> Files.exists(pch) ? touch(pch) : build(clang, includes, flags, folder, name));
+        var existing = builds.putIfAbsent(pch, task);
+        if (existing == null) {
+            task.run();
+            existing = task;
+        }
+        try {
+            var built = existing.get();
+            if (built != null && !Files.exists(built)) {
+                // evicted by the CompilationCache size limit: build it again
+                builds.remove(pch, existing);
+                return get(clang, includes, flags, vmlinuxDigest, folder);
+            }
+            return built;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            // let the next compile try again, this one goes without a header
+            builds.remove(pch, existing);
+            return null;
+        }
+    }
+
+    private static Path touch(Path pch) {
+        try {
+            Files.setLastModifiedTime(pch, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // read-only for us, e.g. built by a prior sudo build
+        }
+        return pch;
+    }
+
+    /**
+     * Build the header for {@code includes} in {@code folder}; null if clang fails or the folder
+     * is not writable (e.g. created by a prior sudo build), the program is then compiled without.
+     */
+    static @Nullable Path build(Clang clang, String includes, List<String> flags, Path folder, String name) {
+        Path temp = null;
+        try {
+            Files.createDirectories(folder);
+            deleteUnused(folder);
+            // clang records and later checks the header, so it must stay in place and unchanged
+            var header = folder.resolve(name + ".h");
+            if (!Files.exists(header)) {
+                var tempHeader = Files.createTempFile(folder, "pch", ".h.tmp");
+                Files.writeString(tempHeader, includes);
+                Files.move(tempHeader, header, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            var pch = folder.resolve(name + ".pch");
+            temp = Files.createTempFile(folder, "pch", ".pch.tmp");
+            List<String> cmd = new ArrayList<>();
+            cmd.add(clang.command());
+            cmd.addAll(flags);
+            cmd.addAll(List.of("-x", "c-header", header.toString(), "-o", temp.toString()));
+            var process = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+            process.getInputStream().transferTo(OutputStream.nullOutputStream());
+            if (process.waitFor() != 0) {
+                return null;
+            }
+            Files.move(temp, pch, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+            return pch;
+        } catch (IOException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    // left for deleteUnused
+                }
+            }
+        }
+    }
+
+    /** Delete headers not used for 30 days, e.g. of older kernels, and leftover temp files. */
+    private static void deleteUnused(Path folder) throws IOException {
+        long now = System.currentTimeMillis();
+        try (var files = Files.list(folder)) {
+            for (var file : files.toList()) {
+                var fileName = file.getFileName().toString();
+                if (!fileName.endsWith(".pch") && !fileName.endsWith(".tmp")) {
+                    continue; // a .h goes with its .pch, its modification time must stay
+                }
+                try {
+                    if (now - Files.getLastModifiedTime(file).toMillis() > MAX_UNUSED_MS) {
+                        Files.delete(file);
+                        if (fileName.endsWith(".pch")) {
+                            Files.deleteIfExists(file.resolveSibling(fileName.replace(".pch", ".h")));
+                        }
+                    }
+                } catch (NoSuchFileException e) {
+                    // removed concurrently
+                } catch (IOException e) {
+                    // owned by another user
+                }
+            }
+        }
+    }
+
+    private static String sha256(String text) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256")
+                    .digest(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
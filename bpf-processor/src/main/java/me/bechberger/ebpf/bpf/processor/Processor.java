@@ -19,8 +19,10 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -39,11 +41,10 @@ import static me.bechberger.ebpf.bpf.processor.AnnotationUtils.getAnnotationValu
 @SupportedSourceVersion(SourceVersion.RELEASE_22)
 public class Processor extends AbstractProcessor {
 
-    private static final int MINIMUM_CLANG_VERSION = 19;
     private static final String BPF = "me.bechberger.ebpf.annotations.bpf.BPF";
     private static final String SHARED_FROM = "me.bechberger.ebpf.annotations.bpf.SharedFrom";
     private static final String BPF_MAP_DEFINITION = "me.bechberger.ebpf.annotations.bpf.BPFMapDefinition";
-    private final CompilationCache cache = new CompilationCache(Paths.get("."));
+    private final CompilationCache cache = CompilationCache.shared();
 
     /**
      * In-memory cross-class index of {@code @SharedFrom} references collected at
@@ -54,6 +55,14 @@ public class Processor extends AbstractProcessor {
      */
     private final Map<String, Set<String>> sharedFromIndex = new java.util.HashMap<>();
 
+    /** Binary names of the generated {@code ImplFactory} classes, written in the last round. */
+    private final Set<String> factoryNames = new TreeSet<>();
+
+    /** Programs waiting for the runtime definitions generated for them in the previous round. */
+    private final Set<String> deferredPrograms = new TreeSet<>();
+    private @Nullable RuntimeDefinitions runtimeDefinitions;
+    private boolean runtimeDefinitionsCreated;
+
     public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment env) {
         this.processingEnv.getMessager().printNote("Processing BPF annotations");
         // First pass: scan all @BPF classes in this round for @SharedFrom fields and
@@ -68,16 +77,85 @@ public class Processor extends AbstractProcessor {
             }
         });
         loadSharedFromIndexFromClasspath();
-        // Second pass: actually process each @BPF class.
+        // Second pass: actually process each @BPF class, unless the kernel types it imports
+        // have just been generated (see RuntimeDefinitions); then wait for the next round.
+        List<TypeElement> programs = new ArrayList<>();
+        deferredPrograms.forEach(name -> programs.add(processingEnv.getElementUtils().getTypeElement(name)));
+        deferredPrograms.clear();
         annotations.forEach(annotation -> {
             Set<? extends Element> elements = env.getElementsAnnotatedWith(annotation);
             if (annotation.getQualifiedName().toString().equals(BPF)) {
-                elements.stream().filter(TypeElement.class::isInstance).map(TypeElement.class::cast).forEach(this::processBPFProgram);
+                elements.stream().filter(TypeElement.class::isInstance).map(TypeElement.class::cast).forEach(programs::add);
             }
         });
+        var definitions = getRuntimeDefinitions();
+        if (definitions != null && definitions.generate(programs)) {
+            programs.forEach(program -> deferredPrograms.add(program.getQualifiedName().toString()));
+        } else {
+            programs.forEach(this::processBPFProgram);
+        }
+        if (env.processingOver() && !factoryNames.isEmpty()) {
+            writeFactoryIndex();
+        }
         return true;
     }
 
+    static final String FACTORY_INDEX = "META-INF/services/me.bechberger.ebpf.bpf.BPFProgramFactory";
+    private static final String FACTORY_SUFFIX = "$ImplFactory";
+
+    /**
+     * List the generated factories as {@code BPFProgramFactory} services, so that
+     * {@code BPFProgram.load} finds them without reflection. Entries of earlier (incremental)
+     * compilations are kept if their impl class still exists.
+     */
+    private void writeFactoryIndex() {
+        var filer = processingEnv.getFiler();
+        List<String> existingLines = List.of();
+        try {
+            var existing = filer.getResource(javax.tools.StandardLocation.CLASS_OUTPUT, "", FACTORY_INDEX);
+            try (var reader = new java.io.BufferedReader(existing.openReader(true))) {
+                existingLines = reader.lines().toList();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // first compilation into this output folder
+        }
+        var elements = processingEnv.getElementUtils();
+        var names = mergeFactoryIndex(factoryNames, existingLines,
+                implName -> elements.getTypeElement(implName) != null);
+        try {
+            var file = filer.createResource(javax.tools.StandardLocation.CLASS_OUTPUT, "", FACTORY_INDEX);
+            try (var writer = file.openWriter()) {
+                for (var name : names) {
+                    writer.write(name + "\n");
+                }
+            }
+        } catch (IOException e) {
+            // Non-fatal: BPFProgram.load falls back to reflection
+            this.processingEnv.getMessager().printWarning("Failed to write " + FACTORY_INDEX + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Entries of the factory index: the factories of this compilation plus those of
+     * {@code existingLines} whose impl class (the factory's binary name without
+     * {@code $ImplFactory}, a top-level class) still {@code exists}, so renamed or deleted
+     * programs drop out.
+     */
+    static SortedSet<String> mergeFactoryIndex(Collection<String> generated, List<String> existingLines,
+                                               java.util.function.Predicate<String> exists) {
+        var names = new TreeSet<>(generated);
+        for (var line : existingLines) {
+            var name = line.strip();
+            if (name.isEmpty() || name.startsWith("#") || names.contains(name)) {
+                continue;
+            }
+            if (name.endsWith(FACTORY_SUFFIX) && exists.test(name.substring(0, name.length() - FACTORY_SUFFIX.length()))) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
     /** Scan a {@code @BPF} class for {@code @SharedFrom} fields and add producer→mapName entries. */
     private void collectSharedFromReferences(TypeElement bpfClass) {
         for (var enc : bpfClass.getEnclosedElements()) {
@@ -182,6 +260,8 @@ public class Processor extends AbstractProcessor {
             throw new RuntimeException(e);
         }
 
+        factoryNames.add(implName.fullyQualifiedClassName + FACTORY_SUFFIX);
+
         // Write META-INF index entry for any @SharedFrom map this consumer references,
         // so producer compilation in this round (or a future round/module) can discover
         // which of its maps to pin. One file per consumer keeps writes deterministic
@@ -290,10 +370,62 @@ public class Processor extends AbstractProcessor {
     }
 
     public static CompileResult compileAndEncode(ProcessingEnvironment env, String code, Path file) {
+        return compileAsync(env, code, file).join();
+    }
+
+    /**
+     * Start compiling {@code code} on the shared {@link Clang#pool()} and return at once.
+     * Cache lookups happen here; {@link PendingCompile#join()} waits for clang and reports
+     * errors, both on the calling (javac) thread, so callers can start all programs of a round
+     * before joining any.
+     */
+    public static PendingCompile compileAsync(ProcessingEnvironment env, String code, Path file) {
         var processor = new Processor();
         processor.processingEnv = env;
-        var result = processor.compile(new CombinedCode(code, null, null, List.of()), file);
-        return new CompileResult(result);
+        return processor.submit(new CombinedCode(code, null, null, List.of()), file);
+    }
+
+    /** A compilation started by {@link #compileAsync}; the byte code may still be in the making. */
+    public static final class PendingCompile {
+        private final Processor processor;
+        private final CombinedCode code;
+        private final Path ebpfFile;
+        private final String cacheKey;
+        private final @Nullable Future<Clang.Result> run;
+        private byte[] byteCode;
+        private boolean joined;
+
+        private PendingCompile(Processor processor, CombinedCode code, Path ebpfFile, String cacheKey,
+                               @Nullable Future<Clang.Result> run, byte[] byteCode) {
+            this.processor = processor;
+            this.code = code;
+            this.ebpfFile = ebpfFile;
+            this.cacheKey = cacheKey;
+            this.run = run;
+            this.byteCode = byteCode;
+        }
+
+        /** Wait for clang; caches the object file or reports the compile errors. Idempotent. */
+        public synchronized CompileResult join() {
+            if (!joined) {
+                joined = true;
+                if (run != null) {
+                    byteCode = processor.finish(code, ebpfFile, cacheKey, await(run));
+                }
+            }
+            return new CompileResult(byteCode);
+        }
+
+        private static Clang.Result await(Future<Clang.Result> run) {
+            try {
+                return run.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof RuntimeException re ? re : new RuntimeException(e.getCause());
+            }
+        }
     }
 
     /**
@@ -459,9 +591,48 @@ public class Processor extends AbstractProcessor {
                     .addAnnotation(Override.class).addModifiers(Modifier.PUBLIC).returns(TypeName.VOID), globalVariableDefinitions).build());
         }
         generateWithBuilders(outerTypeElement, spec);
+        spec.addType(factoryType(name, ClassName.get(outerTypeElement), distinctProducers));
         return spec.build();
     }
 
+    /**
+     * The nested {@code ImplFactory} of the impl class {@code name}, a {@code BPFProgramFactory}
+     * that calls the constructor directly, so that loading needs no reflection (e.g. under
+     * GraalVM native-image). {@code producers} are the constructor's parameter types.
+     */
+    static TypeSpec factoryType(String name, ClassName programClass, List<String> producers) {
+        var programType = ClassName.get("me.bechberger.ebpf.bpf", "BPFProgram");
+        var classType = ParameterizedTypeName.get(ClassName.get(Class.class), WildcardTypeName.subtypeOf(programType));
+        // producers must match the constructor parameters, like the reflective lookup checks
+        var condition = CodeBlock.builder().add("producers.length == $L", producers.size());
+        var arguments = new ArrayList<String>();
+        for (int i = 0; i < producers.size(); i++) {
+            condition.add(" && producers[$L] instanceof $T p$L", i, ClassName.bestGuess(producers.get(i)), i);
+            arguments.add("p" + i);
+        }
+        var create = MethodSpec.methodBuilder("create").addAnnotation(Override.class)
+                .addModifiers(Modifier.PUBLIC).returns(programType)
+                .addParameter(ArrayTypeName.of(programType), "producers").varargs()
+                .beginControlFlow("if ($L)", condition.build())
+                .addStatement("return new $L($L)", name, String.join(", ", arguments))
+                .endControlFlow()
+                .addStatement("return null");
+        return TypeSpec.classBuilder("ImplFactory")
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+                .addSuperinterface(ClassName.get("me.bechberger.ebpf.bpf", "BPFProgramFactory"))
+                .addMethod(MethodSpec.methodBuilder("programClass").addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC).returns(classType)
+                        .addStatement("return $T.class", programClass).build())
+                .addMethod(MethodSpec.methodBuilder("implClass").addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC).returns(classType)
+                        .addStatement("return $L.class", name).build())
+                .addMethod(MethodSpec.methodBuilder("code").addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC).returns(String.class)
+                        .addStatement("return CODE").build())
+                .addMethod(create.build())
+                .build();
+    }
+
     private String createStringExpression(String s) {
         // split the string into 2 << 16 character parts, as this is the maximum length of a string literal
         var parts = new ArrayList<String>();
@@ -757,41 +928,6 @@ public class Processor extends AbstractProcessor {
         return new CombinedCode(String.join("\n", resultLines), field, tpResult, autoAttachablePrograms);
     }
 
-    private static String findNewestClangVersion() {
-        var versionPattern = Pattern.compile("version (?<version>\\d+)");
-
-        var minimumVersion = MINIMUM_CLANG_VERSION - 1;
-        try {
-            var defaultClangProcess = new ProcessBuilder("clang", "--version").start();
-            if (defaultClangProcess.waitFor() == 0) {
-                var output = new String(defaultClangProcess.getInputStream().readAllBytes());
-                var versionMatcher = versionPattern.matcher(output);
-                versionMatcher.find();
-                var version = Integer.parseInt(versionMatcher.group("version"));
-                if (version > minimumVersion) {
-                    minimumVersion = version;
-                }
-            }
-        } catch (IOException | InterruptedException e) {
-            // ignore
-        }
-        for (int i = 20; i > minimumVersion; i--) {
-            try {
-                var name = "clang-" + i;
-                var process = new ProcessBuilder(name, "--version").start();
-                if (process.waitFor() == 0) {
-                    return name;
-                }
-            } catch (IOException | InterruptedException e) {
-                // ignore
-            }
-        }
-        if (minimumVersion >= MINIMUM_CLANG_VERSION) {
-            return "clang";
-        }
-        throw new RuntimeException("Could not find clang >= 19");
-    }
-
     private static Path includePath;
 
     /**
@@ -839,58 +975,50 @@ public class Processor extends AbstractProcessor {
         return arch;
     }
 
-    private byte[] compile(CombinedCode code, Path ebpfFile) {
+    private PendingCompile submit(CombinedCode code, Path ebpfFile) {
         if (dontCompile()) {
             System.out.println("EBPF program to compile:");
             System.out.println("-".repeat(10));
             System.out.println(code.ebpfProgram);
-            return new byte[]{0};
+            return new PendingCompile(this, code, ebpfFile, null, null, new byte[]{0});
         }
         // obtain the path to the vmlinux.h header file
         var vmlinuxHeader = getPathToVMLinuxHeader();
         if (vmlinuxHeader == null) {
-            return null;
+            return new PendingCompile(this, code, ebpfFile, null, null, null);
         }
-        // compile the eBPF program
-        // if the compilation fails, print an error
-        // if the compilation succeeds, return the byte code
         this.processingEnv.getMessager().printNote("Compiling eBPF program include path : " + findIncludePath());
-        var cached = cache.getCached(code.ebpfProgram + "|" + getArch());
+        var clang = Clang.get();
+        // the object file depends on the compiler and the kernel types as much as on the code
+        var vmlinuxDigest = CompilationCache.digest(vmlinuxHeader);
+        var cacheKey = code.ebpfProgram + "|" + getArch() + "|" + clang.version() + "|" + vmlinuxDigest;
+        var cached = cache.getCached(cacheKey);
         if (cached != null) {
-            return cached;
+            return new PendingCompile(this, code, ebpfFile, cacheKey, null, cached);
         }
-        try {
-            var tempFile = Files.createTempFile("ebpf", ".o");
-            tempFile.toFile().deleteOnExit();
-            List<String> command = List.of(findNewestClangVersion(), "-O2", "-g", "-std=gnu2y",  "-target", "bpf", "-c", "-o",
-                    tempFile.toString(), "-I", vmlinuxHeader.getParent().toString(),
-                    "-D__TARGET_ARCH_" + getArch(), "-Wno-parentheses-equality", "-Wno-unused-value", "-Wreturn-type",
-                    "-Wno-incompatible-pointer-types-discards-qualifiers",
-                    "-x", "c", "-", "--sysroot=/", "-I" + findIncludePath());
-            var process = new ProcessBuilder(command).redirectInput(ProcessBuilder.Redirect.PIPE).redirectError(ProcessBuilder.Redirect.PIPE).start();
-            process.getOutputStream().write(code.ebpfProgram.getBytes());
-            process.getOutputStream().close();
-            ByteArrayOutputStream error = new ByteArrayOutputStream();
-            process.getErrorStream().transferTo(error);
-            if (process.waitFor() != 0) {
-                System.err.println("Could not compile eBPF program");
-                var lines = code.ebpfProgram.split("\n");
-                for (int i = 0; i < lines.length; i++) {
-                    System.err.printf("%3d: %s\n", i + 1, lines[i]);
-                }
-                String errorString = error.toString();
-                this.processingEnv.getMessager().printError("Could not compile eBPF program via " +
-                        String.join(" ", command), code.codeField);
-                printErrorMessages(code, errorString, ebpfFile);
-                return new byte[0];
-                //throw new RuntimeException("Could not compile eBPF program");
+        var includePath = findIncludePath();
+        var arch = getArch();
+        var pchFolder = cache.pchFolder();
+        Future<Clang.Result> run = Clang.pool().submit(() -> PrecompiledHeaders.compile(clang, code.ebpfProgram,
+                arch, vmlinuxHeader.getParent(), includePath, vmlinuxDigest, pchFolder));
+        return new PendingCompile(this, code, ebpfFile, cacheKey, run, null);
+    }
+
+    /** Cache a successful clang run, or print its errors; returns the byte code (empty on failure). */
+    private byte[] finish(CombinedCode code, Path ebpfFile, String cacheKey, Clang.Result result) {
+        if (!result.ok()) {
+            System.err.println("Could not compile eBPF program");
+            var lines = code.ebpfProgram.split("\n");
+            for (int i = 0; i < lines.length; i++) {
+                System.err.printf("%3d: %s\n", i + 1, lines[i]);
             }
-            var bytes = Files.readAllBytes(tempFile);
-            cache.cache(code.ebpfProgram + "|" + getArch(), bytes);
-            return bytes;
-        } catch (IOException | InterruptedException e) {
-            throw new RuntimeException(e);
+            this.processingEnv.getMessager().printError("Could not compile eBPF program via " +
+                    String.join(" ", result.command()), code.codeField);
+            printErrorMessages(code, result.errors(), ebpfFile);
+            return new byte[0];
         }
+        cache.cache(cacheKey, result.objectFile());
+        return result.objectFile();
     }
 
     private void printErrorMessages(CombinedCode code, String errorString, Path ebpfFile) {
@@ -962,19 +1090,25 @@ public class Processor extends AbstractProcessor {
                 return vmlinuxHeader;
             }
             // else run bpftool btf dump file /sys/kernel/btf/vmlinux format c
-            // save output to a temp file and return the path to the temp file
-            var cacheFolder = cache.getCacheFolder();
+            // into the shared cache, one header per kernel release; the header is built in a
+            // temp file and moved into place, as other JVMs may look for it concurrently
+            var cacheFolder = cache.getCacheFolder().resolve("vmlinux").resolve(System.getProperty("os.version"));
             var vmLinuxFile = cacheFolder.resolve("vmlinux.h");
             if (Files.exists(vmLinuxFile)) {
                 appendVmlinuxFallbacks(vmLinuxFile);
                 return vmLinuxFile;
             }
-            var errorFile = cacheFolder.resolve("vmlinux_error.txt");
+            Files.createDirectories(cacheFolder);
+            var tempFile = Files.createTempFile(cacheFolder, "vmlinux", ".h.tmp");
+            var errorFile = Files.createTempFile(cacheFolder, "vmlinux_error", ".txt");
             var process = new ProcessBuilder(getBPFToolPath(), "btf", "dump", "file", "/sys/kernel/btf/vmlinux", "format",
-                    "c").redirectOutput(vmLinuxFile.toFile()).redirectError(errorFile.toFile()).start();
+                    "c").redirectOutput(tempFile.toFile()).redirectError(errorFile.toFile()).start();
             if (process.waitFor() != 0) {
+                String error = Files.readString(errorFile);
+                Files.delete(errorFile);
+                Files.delete(tempFile);
                 throw new UnsupportedOperationException("Could not obtain vmlinux.h header file via 'bpftool btf "
-                        + "dump file /sys/kernel/btf/vmlinux format c'" + Files.readString(errorFile));
+                        + "dump file /sys/kernel/btf/vmlinux format c'" + error);
             } else {
                 Files.delete(errorFile);
             }
@@ -984,7 +1118,7 @@ public class Processor extends AbstractProcessor {
             //	false = 0,
             //	true = 1,
             //  };
-            String content = Files.readString(vmLinuxFile);
+            String content = Files.readString(tempFile);
             content = content.replace("typedef _Bool bool;", "// typedef _Bool bool")
                     .replaceAll("""
                                 enum \\{
@@ -997,8 +1131,9 @@ public class Processor extends AbstractProcessor {
                                 //	true = 1,
                                 // };
                                 """);
-            Files.writeString(vmLinuxFile, content);
-            appendVmlinuxFallbacks(vmLinuxFile);
+            Files.writeString(tempFile, content);
+            appendVmlinuxFallbacks(tempFile);
+            Files.move(tempFile, vmLinuxFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
             return vmLinuxFile;
         } catch (IOException | InterruptedException e) {
             throw new RuntimeException(e);
@@ -1096,6 +1231,15 @@ extern bool bpf_cpumask_test_cpu(u32 cpu, const struct cpumask *cpumask) __weak
         Files.writeString(vmLinuxFile, current + fallbacks);
     }
 
+    private @Nullable RuntimeDefinitions getRuntimeDefinitions() {
+        if (!runtimeDefinitionsCreated) {
+            runtimeDefinitionsCreated = true;
+            String index = processingEnv.getOptions().getOrDefault("ebpf.typeIndex", System.getenv("EBPF_TYPE_INDEX"));
+            runtimeDefinitions = RuntimeDefinitions.create(processingEnv, index == null ? null : Path.of(index));
+        }
+        return runtimeDefinitions;
+    }
+
     public @Nullable Path getEBPFFolder() {
         String p = processingEnv.getOptions().getOrDefault("ebpf.folder", null);
         if (p == null) {
@@ -0,0 +1,150 @@
+package me.bechberger.ebpf.bpf.processor;
+
+import com.sun.source.util.Trees;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * Generates the kernel types that {@code @BPF} programs import from
+ * {@code me.bechberger.ebpf.runtime} but that are not on the class path, so that a project
+ * compiles just the definitions it uses instead of all of bpf-runtime's.
+ * <p>
+ * Enabled with {@code -Aebpf.typeIndex=<file>} (or {@code EBPF_TYPE_INDEX}) pointing to an
+ * index written by {@code bpf-gen --write-index}, with bpf-gen on the annotation processor path
+ * to provide the {@link DefinitionsGenerator}. For every single-type import like
+ * {@code import me.bechberger.ebpf.runtime.TaskDefinitions.task_struct;} that does not resolve,
+ * {@link #generate} writes the definitions of the type and of all types it uses
+ * ({@link TypeIndex#closure}). javac reports unresolved names only after the last round, so the
+ * programs compile against the generated types in the next round; {@link Processor} defers them
+ * until then.
+ * <p>
+ * Definitions are generated once per compilation, for the programs of the first round that
+ * has any, and only into classes that are not on the class path, as a generated
+ * {@code TaskDefinitions} would hide bpf-runtime's. Types only reached through wildcard imports
+ * are not found, and helpers and system calls still come from bpf-runtime.
+ */
+final class RuntimeDefinitions {
+
+    static final String RUNTIME_PACKAGE = "me.bechberger.ebpf.runtime";
+
+    private final ProcessingEnvironment processingEnv;
+    private final Path indexFile;
+    private final DefinitionsGenerator generator;
+    private boolean done;
+
+    private RuntimeDefinitions(ProcessingEnvironment processingEnv, Path indexFile, DefinitionsGenerator generator) {
+        this.processingEnv = processingEnv;
+        this.indexFile = indexFile;
+        this.generator = generator;
+    }
+
+    /** Null without an index file or without a {@link DefinitionsGenerator} on the processor path */
+    static @Nullable RuntimeDefinitions create(ProcessingEnvironment processingEnv, @Nullable Path indexFile) {
+        if (indexFile == null) {
+            return null;
+        }
+        var generators = ServiceLoader.load(DefinitionsGenerator.class,
+                RuntimeDefinitions.class.getClassLoader()).iterator();
+        if (!generators.hasNext()) {
+            processingEnv.getMessager().printWarning("ebpf.typeIndex is set, but there is no "
+                    + DefinitionsGenerator.class.getSimpleName() + " (bpf-gen) on the annotation processor path");
+            return null;
+        }
+        return new RuntimeDefinitions(processingEnv, indexFile, generators.next());
+    }
+
+    /**
+     * Generate the missing imported types of the {@code programs}, and the types they use
+     *
+     * @return whether sources were written, so that the programs have to wait for the next round
+     */
+    boolean generate(Collection<TypeElement> programs) {
+        if (done || programs.isEmpty()) {
+            return false;
+        }
+        done = true;
+        var elements = processingEnv.getElementUtils();
+        var messager = processingEnv.getMessager();
+        Trees trees;
+        try {
+            trees = Trees.instance(processingEnv);
+        } catch (IllegalArgumentException e) {
+            messager.printWarning("ebpf.typeIndex needs javac, not generating runtime definitions");
+            return false;
+        }
+        Set<String> names = new TreeSet<>();
+        for (var program : programs) {
+            var path = trees.getPath(program);
+            if (path == null) {
+                continue;
+            }
+            var imports = path.getCompilationUnit().getImports().stream()
+                    .filter(i -> !i.isStatic())
+                    .map(i -> i.getQualifiedIdentifier().toString())
+                    .toList();
+            names.addAll(missingTypes(imports, name -> elements.getTypeElement(name) != null));
+        }
+        if (names.isEmpty()) {
+            return false;
+        }
+        TypeIndex index;
+        try {
+            index = TypeIndex.open(indexFile);
+        } catch (IOException | IllegalArgumentException e) {
+            messager.printError("Cannot read the type index " + indexFile + ": " + e.getMessage());
+            return false;
+        }
+        // names the index lacks are left to javac's "cannot find symbol"
+        List<String> known = names.stream().filter(n -> !index.idsByName(n).isEmpty()).toList();
+        if (known.isEmpty()) {
+            return false;
+        }
+        var sources = generator.generate(index.types(index.closure(known)));
+        var filer = processingEnv.getFiler();
+        var origins = programs.toArray(Element[]::new);
+        boolean written = false;
+        for (var source : sources.entrySet()) {
+            if (elements.getTypeElement(source.getKey()) != null) {
+                messager.printNote("Not generating " + source.getKey() + ", it is on the class path");
+                continue;
+            }
+            try (var writer = filer.createSourceFile(source.getKey(), origins).openWriter()) {
+                writer.write(source.getValue());
+                written = true;
+            } catch (IOException e) {
+                messager.printError("Cannot write " + source.getKey() + ": " + e.getMessage());
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Kernel type names behind the single-type {@code imports} of runtime definitions that do
+     * not {@code resolve}: {@code task_struct} for
+     * {@code me.bechberger.ebpf.runtime.TaskDefinitions.task_struct} and for its nested types
+     */
+    static Set<String> missingTypes(Collection<String> imports, Predicate<String> resolves) {
+        Set<String> names = new TreeSet<>();
+        for (var name : imports) {
+            if (!name.startsWith(RUNTIME_PACKAGE + ".") || name.endsWith(".*") || resolves.test(name)) {
+                continue;
+            }
+            var parts = name.substring(RUNTIME_PACKAGE.length() + 1).split("\\.");
+            if (parts.length >= 2 && parts[0].endsWith("Definitions")) {
+                names.add(parts[1]);
+            }
+        }
+        return names;
+    }
+}
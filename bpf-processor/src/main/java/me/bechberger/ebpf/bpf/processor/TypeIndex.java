@@ -0,0 +1,376 @@
+package me.bechberger.ebpf.bpf.processor;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary index of the BTF types from {@code bpftool btf dump ... format raw -j}, so that
+ * Java definitions can be generated for just some types and those they use instead of all of them.
+ * <p>
+ * The index stores every type object losslessly (kind, name, size, members with offsets, enum
+ * values, function parameters, ...) with interned strings and variable-length integers, which
+ * makes it several times smaller than the JSON dump. {@link #open(Path)} maps the file and
+ * decodes a type only when it is asked for; {@link #closure(Collection)} collects the types
+ * reachable from some names, and {@link #types(BitSet)} turns them back into the type objects
+ * of the dump (maps, lists, numbers and strings), which bpf-gen's {@code Generator} consumes.
+ * Type ids are kept, so the generated code is the same as for the full dump.
+ * <p>
+ * bpf-gen writes the index ({@code bpf-gen --write-index}) and generates the closure of some
+ * types from it ({@code bpf-gen --types}). With {@code -Aebpf.typeIndex}, the annotation
+ * processor generates the closure of the kernel types that {@code @BPF} programs import but the
+ * class path lacks, see {@link RuntimeDefinitions}.
+ * <p>
+ * Layout (all counts and ids are unsigned LEB128 varints):
+ * <pre>
+ * "BTFI" version
+ * string count, then per string: byte length, UTF-8 bytes
+ * type count (highest id + 1), then per id: record offset + 1 (0 = no type)
+ * records: per type one object = field count, then per field: key string, tag, value
+ * </pre>
+ * with the tags {@code INT} (zig-zag varint), {@code STRING} (string), {@code BIG} (decimal
+ * string, for unsigned 64-bit enum values) and {@code OBJECTS} (count, then objects).
+ */
+public final class TypeIndex {
+
+    private static final int MAGIC = 0x42544649; // "BTFI"
+    private static final int VERSION = 1;
+
+    private static final int TAG_INT = 0, TAG_STRING = 1, TAG_BIG = 2, TAG_OBJECTS = 3;
+
+    private final ByteBuffer buffer;
+    private final int[] stringOffsets;
+    private final String[] strings;
+    private final int[] typeOffsets;
+    private final int recordsStart;
+    private @Nullable Map<String, List<Integer>> idsByName;
+    private final List<Integer> declTags = new ArrayList<>();
+
+    private TypeIndex(ByteBuffer buffer) {
+        this.buffer = buffer;
+        var in = new Reader(buffer, 0);
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("Not a BTF type index");
+        }
+        in.position = 4;
+        int version = in.varint();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported BTF type index version " + version);
+        }
+        stringOffsets = new int[in.varint()];
+        strings = new String[stringOffsets.length];
+        for (int i = 0; i < stringOffsets.length; i++) {
+            stringOffsets[i] = in.position;
+            int length = in.varint();
+            in.position += length;
+        }
+        typeOffsets = new int[in.varint()];
+        for (int i = 0; i < typeOffsets.length; i++) {
+            typeOffsets[i] = in.varint() - 1;
+        }
+        recordsStart = in.position;
+    }
+
+    /** Map an index written by {@link #write(List, Path)}; types are decoded on demand. */
+    public static TypeIndex open(Path file) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new TypeIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /** Read an index from memory, e.g. from a class path resource. */
+    public static TypeIndex of(byte[] bytes) {
+        return new TypeIndex(ByteBuffer.wrap(bytes));
+    }
+
+    public static void write(List<?> types, Path file) throws IOException {
+        Files.write(file, create(types));
+    }
+
+    /** Encode the type objects (maps) of a bpftool JSON dump; every object needs an {@code id}. */
+    public static byte[] create(List<?> types) {
+        Map<String, Integer> stringIds = new LinkedHashMap<>();
+        var records = new Writer();
+        var offsets = new ArrayList<int[]>();
+        int maxId = 0;
+        for (var t : types) {
+            var type = (Map<?, ?>) t;
+            int id = ((Number) type.get("id")).intValue();
+            maxId = Math.max(maxId, id);
+            offsets.add(new int[]{id, records.size()});
+            writeObject(records, type, stringIds);
+        }
+        var out = new Writer();
+        out.writeInt(MAGIC);
+        out.varint(VERSION);
+        out.varint(stringIds.size());
+        for (var s : stringIds.keySet()) {
+            var bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.varint(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+        int[] typeOffsets = new int[maxId + 1];
+        for (var o : offsets) {
+            typeOffsets[o[0]] = o[1] + 1;
+        }
+        out.varint(typeOffsets.length);
+        for (int offset : typeOffsets) {
+            out.varint(offset);
+        }
+        records.appendTo(out);
+        return out.toByteArray();
+    }
+
+    private static void writeObject(Writer out, Map<?, ?> object, Map<String, Integer> stringIds) {
+        out.varint(object.size());
+        for (var entry : object.entrySet()) {
+            out.varint(stringIds.computeIfAbsent(entry.getKey().toString(), k -> stringIds.size()));
+            switch (entry.getValue()) {
+                case Integer i -> {
+                    out.write(TAG_INT);
+                    out.zigzag(i);
+                }
+                case Long l -> {
+                    out.write(TAG_INT);
+                    out.zigzag(l);
+                }
+                case BigInteger b -> {
+                    out.write(TAG_BIG);
+                    out.varint(stringIds.computeIfAbsent(b.toString(), k -> stringIds.size()));
+                }
+                case String s -> {
+                    out.write(TAG_STRING);
+                    out.varint(stringIds.computeIfAbsent(s, k -> stringIds.size()));
+                }
+                case List<?> list -> {
+                    out.write(TAG_OBJECTS);
+                    out.varint(list.size());
+                    for (var element : list) {
+                        writeObject(out, (Map<?, ?>) element, stringIds);
+                    }
+                }
+                case null, default -> throw new IllegalArgumentException("Unsupported value for " + entry.getKey()
+                        + ": " + entry.getValue());
+            }
+        }
+    }
+
+    /** Highest type id + 1. */
+    public int size() {
+        return typeOffsets.length;
+    }
+
+    /** The type object with the given id, or null if there is none. */
+    public @Nullable Map<String, Object> type(int id) {
+        if (id < 0 || id >= typeOffsets.length || typeOffsets[id] < 0) {
+            return null;
+        }
+        return readObject(new Reader(buffer, recordsStart + typeOffsets[id]));
+    }
+
+    /** Ids of all types with this name (e.g. a struct and its typedef); built on first use. */
+    public List<Integer> idsByName(String name) {
+        return catalog().getOrDefault(name, List.of());
+    }
+
+    /** Decode every type once to find the names and the {@code DECL_TAG}s. */
+    private Map<String, List<Integer>> catalog() {
+        if (idsByName == null) {
+            Map<String, List<Integer>> map = new HashMap<>();
+            for (int id = 0; id < typeOffsets.length; id++) {
+                var type = type(id);
+                if (type != null) {
+                    map.computeIfAbsent((String) type.get("name"), n -> new ArrayList<>()).add(id);
+                    if ("DECL_TAG".equals(type.get("kind"))) {
+                        declTags.add(id);
+                    }
+                }
+            }
+            idsByName = map;
+        }
+        return idsByName;
+    }
+
+    /**
+     * Ids of the named types and of every type they reference (via any {@code *type_id} field,
+     * including those of members and parameters), plus the {@code DECL_TAG}s of these types,
+     * so that {@code bpf_kfunc} tags survive.
+     *
+     * @throws IllegalArgumentException if a name matches no type
+     */
+    public BitSet closure(Collection<String> names) {
+        BitSet result = new BitSet(typeOffsets.length);
+        List<Integer> work = new ArrayList<>();
+        for (var name : names) {
+            var ids = idsByName(name);
+            if (ids.isEmpty()) {
+                throw new IllegalArgumentException("Unknown type " + name);
+            }
+            work.addAll(ids);
+        }
+        while (!work.isEmpty()) {
+            int id = work.removeLast();
+            if (id <= 0 || result.get(id)) {
+                continue;
+            }
+            var type = type(id);
+            if (type == null) {
+                continue;
+            }
+            result.set(id);
+            collectReferences(type, work);
+        }
+        catalog();
+        for (int tag : declTags) {
+            var type = type(tag);
+            if (type != null && result.get(((Number) type.get("type_id")).intValue())) {
+                result.set(tag);
+            }
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void collectReferences(Map<String, Object> object, List<Integer> out) {
+        for (var entry : object.entrySet()) {
+            if (entry.getKey().endsWith("type_id") && entry.getValue() instanceof Number n) {
+                out.add(n.intValue());
+            } else if (entry.getValue() instanceof List<?> list) {
+                for (var element : list) {
+                    collectReferences((Map<String, Object>) element, out);
+                }
+            }
+        }
+    }
+
+    /** The type objects with the given ids, ordered by id. */
+    public List<Map<String, Object>> types(BitSet ids) {
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+            var type = type(id);
+            if (type != null) {
+                result.add(type);
+            }
+        }
+        return result;
+    }
+
+    /** All type objects, like bpf-gen's {@code BTF.getBTFJSONTypes()}. */
+    public List<Map<String, Object>> types() {
+        var all = new BitSet();
+        all.set(0, typeOffsets.length);
+        return types(all);
+    }
+
+    private String string(int id) {
+        var s = strings[id];
+        if (s == null) {
+            var in = new Reader(buffer, stringOffsets[id]);
+            int length = in.varint();
+            var bytes = new byte[length];
+            buffer.get(in.position, bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+            strings[id] = s;
+        }
+        return s;
+    }
+
+    private Map<String, Object> readObject(Reader in) {
+        int fields = in.varint();
+        Map<String, Object> object = new LinkedHashMap<>();
+        for (int i = 0; i < fields; i++) {
+            var key = string(in.varint());
+            int tag = buffer.get(in.position++);
+            Object value = switch (tag) {
+                case TAG_INT -> {
+                    long l = in.zigzag();
+                    yield l == (int) l ? (Object) (int) l : (Object) l;
+                }
+                case TAG_STRING -> string(in.varint());
+                case TAG_BIG -> new BigInteger(string(in.varint()));
+                case TAG_OBJECTS -> {
+                    int count = in.varint();
+                    List<Map<String, Object>> list = new ArrayList<>(count);
+                    for (int j = 0; j < count; j++) {
+                        list.add(readObject(in));
+                    }
+                    yield list;
+                }
+                default -> throw new IllegalStateException("Corrupt BTF type index, tag " + tag);
+            };
+            object.put(key, value);
+        }
+        return object;
+    }
+
+    private static final class Reader {
+        private final ByteBuffer buffer;
+        private int position;
+
+        Reader(ByteBuffer buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        int varint() {
+            return (int) varlong();
+        }
+
+        long varlong() {
+            long result = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buffer.get(position++);
+                result |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return result;
+                }
+            }
+        }
+
+        long zigzag() {
+            long v = varlong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+    }
+
+    private static final class Writer extends ByteArrayOutputStream {
+
+        void writeInt(int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        void varint(long value) {
+            while ((value & ~0x7fL) != 0) {
+                write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void zigzag(long value) {
+            varint((value << 1) ^ (value >> 63));
+        }
+
+        void appendTo(Writer out) {
+            out.write(buf, 0, count);
+        }
+    }
+}
@@ -421,6 +421,8 @@ public class TypeProcessor {
             return null;
         }
         var abstractionResult = collectAbstractionFieldPrologues(outerTypeElement);
+        // File-scope state of @BPFAbstraction fields (e.g. RbTree roots), after the structs they contain.
+        abstractionResult.globals().forEach(g -> definingStatements.add(CAST.Statement.verbatim(g)));
         return new TypeProcessorResult(fields, defines, definingStatements,
                 getLicenseDefinitionStatement(outerTypeElement), mapDefinitions,
                 globals,
@@ -542,11 +544,13 @@ public class TypeProcessor {
     /** Base value for auto-allocated DSQ ids: 0x1_0000_0000 (above user-id range). */
     private static final long AUTO_DSQ_ID_BASE = 0x1_0000_0000L;
 
-    private record AbstractionPrologueResult(Map<String, List<String>> prologues, Map<String, String> carriers) {}
+    private record AbstractionPrologueResult(Map<String, List<String>> prologues, Map<String, String> carriers,
+                                              List<String> globals) {}
 
     private AbstractionPrologueResult collectAbstractionFieldPrologues(TypeElement outerTypeElement) {
         var prologues = new LinkedHashMap<String, List<String>>();
         var carriers = new LinkedHashMap<String, String>();
+        var globals = new ArrayList<String>();
         int autoIdCounter = 0;
         for (var enclosed : outerTypeElement.getEnclosedElements()) {
             if (enclosed.getKind() != ElementKind.FIELD) continue;
@@ -601,10 +605,19 @@ public class TypeProcessor {
                 resolvedCarrier = autoId;
                 carriers.put(fieldName, resolvedCarrier);
             } else if (!carrierTemplate.isBlank()) {
-                resolvedCarrier = resolvePlaceholders(carrierTemplate, newClass.getArguments());
+                resolvedCarrier = resolvePlaceholders(carrierTemplate, newClass.getArguments())
+                        .replace("$field", fieldName);
                 carriers.put(fieldName, resolvedCarrier);
             }
 
+            var globalTemplate = AnnotationUtils.getAnnotationValue(builtinAnn.get(), "global", "");
+            if (!globalTemplate.isBlank()) {
+                var global = resolveGlobalPlaceholders(globalTemplate, declaredType, field);
+                if (global != null) {
+                    globals.add(resolvePlaceholders(global, newClass.getArguments()).replace("$field", fieldName));
+                }
+            }
+
             var sideEffect = AnnotationUtils.getAnnotationValue(builtinAnn.get(), "value", "");
             if (sideEffect.isBlank() || prependTo.isBlank()) continue; // no side effect or disabled
 
@@ -619,7 +632,30 @@ public class TypeProcessor {
             if (!resolved.endsWith(";")) resolved = resolved + ";";
             prologues.computeIfAbsent(prependTo, k -> new ArrayList<>()).add(resolved);
         }
-        return new AbstractionPrologueResult(prologues, carriers);
+        return new AbstractionPrologueResult(prologues, carriers, globals);
+    }
+
+    /**
+     * Resolve {@code $CN} (C type) and {@code $NN} (bare struct name) in a
+     * {@code @BuiltinBPFFunction#global()} template against the field's type arguments.
+     *
+     * @return the resolved template, or {@code null} after reporting an unresolvable type argument
+     */
+    private @Nullable String resolveGlobalPlaceholders(String template, DeclaredType fieldType, VariableElement field) {
+        var result = template;
+        var typeArgs = fieldType.getTypeArguments();
+        // Highest index first so $C1 does not clobber the prefix of $C10.
+        for (int i = typeArgs.size() - 1; i >= 0; i--) {
+            var cName = resolveCNameForArenaPointee(typeArgs.get(i));
+            if (cName == null) {
+                processingEnv.getMessager().printError("@BPFAbstraction field '" + field.getSimpleName()
+                        + "': could not resolve C type for type argument " + typeArgs.get(i), field);
+                return null;
+            }
+            var bare = cName.startsWith("struct ") ? cName.substring("struct ".length()) : cName;
+            result = result.replace("$C" + (i + 1), cName).replace("$N" + (i + 1), bare);
+        }
+        return result;
     }
 
     /** Return the resolved constructor from the javac-typed {@code newClass} node. */
@@ -0,0 +1,98 @@
+package me.bechberger.ebpf.bpf.processor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompilationCacheTest {
+
+    @TempDir
+    Path folder;
+
+    private long objectFiles() throws Exception {
+        try (var list = Files.list(folder)) {
+            return list.filter(p -> p.toString().endsWith(".o")).count();
+        }
+    }
+
+    @Test
+    public void roundTripCountsHitsAndMisses() {
+        var cache = new CompilationCache(folder, 1_000);
+        assertNull(cache.getCached("a"));
+        cache.cache("a", new byte[]{1, 2, 3});
+        assertArrayEquals(new byte[]{1, 2, 3}, cache.getCached("a"));
+        assertArrayEquals(new byte[]{1, 2, 3}, cache.getCached("a"));
+        var stats = cache.stats();
+        assertEquals(2, stats.hits());
+        assertEquals(1, stats.misses());
+        assertEquals(1, stats.writes());
+        assertEquals(6, stats.bytesRead());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedFirst() throws Exception {
+        var cache = new CompilationCache(folder, 250);
+        cache.cache("old", new byte[100]);
+        cache.cache("used", new byte[100]);
+        long now = System.currentTimeMillis();
+        try (var list = Files.list(folder)) {
+            for (var p : list.filter(p -> p.toString().endsWith(".o")).toList()) {
+                Files.setLastModifiedTime(p, FileTime.fromMillis(now - 60_000));
+            }
+        }
+        // a hit marks "used" as recently used, so "old" goes when "new" needs room
+        assertNotNull(cache.getCached("used"));
+        cache.cache("new", new byte[100]);
+        assertEquals(2, objectFiles());
+        assertNull(cache.getCached("old"));
+        assertNotNull(cache.getCached("used"));
+        assertNotNull(cache.getCached("new"));
+        assertEquals(1, cache.stats().evictions());
+    }
+
+    @Test
+    public void evictionKeepsOtherFiles() throws Exception {
+        Files.writeString(folder.resolve("vmlinux.h"), "x".repeat(500));
+        var cache = new CompilationCache(folder, 150);
+        cache.cache("a", new byte[100]);
+        cache.cache("b", new byte[100]);
+        assertTrue(Files.exists(folder.resolve("vmlinux.h")));
+        assertEquals(1, objectFiles());
+    }
+
+    @Test
+    public void precompiledHeadersCountTowardsTheSizeLimit() throws Exception {
+        var cache = new CompilationCache(folder, 250);
+        var pchFolder = Files.createDirectories(cache.pchFolder());
+        var pch = Files.write(pchFolder.resolve("old.pch"), new byte[200]);
+        var header = Files.writeString(pchFolder.resolve("old.h"), "#include <vmlinux.h>\n");
+        Files.setLastModifiedTime(pch, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+        cache.cache("a", new byte[100]);
+        assertFalse(Files.exists(pch), "the least recently used header makes room");
+        assertFalse(Files.exists(header), "its header goes with it");
+        assertEquals(1, objectFiles());
+        assertEquals(1, cache.stats().evictions());
+    }
+
+    @Test
+    public void sharedCacheFollowsProperty() {
+        String before = System.getProperty("ebpf.cache.dir");
+        System.setProperty("ebpf.cache.dir", folder.toString());
+        try {
+            assertEquals(folder, CompilationCache.sharedFolder());
+            assertSame(CompilationCache.shared(), CompilationCache.shared());
+            assertEquals(folder, CompilationCache.shared().getCacheFolder());
+        } finally {
+            if (before == null) {
+                System.clearProperty("ebpf.cache.dir");
+            } else {
+                System.setProperty("ebpf.cache.dir", before);
+            }
+        }
+    }
+}
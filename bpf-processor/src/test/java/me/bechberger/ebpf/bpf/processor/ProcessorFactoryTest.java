@@ -0,0 +1,155 @@
+package me.bechberger.ebpf.bpf.processor;
+
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.JavaFile;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.TypeSpec;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.lang.model.element.Modifier;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Array;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the generated {@code ImplFactory} and the service index listing it; the factory is
+ * compiled against minimal stand-ins of {@code BPFProgram} and {@code BPFProgramFactory}.
+ */
+public class ProcessorFactoryTest {
+
+    private static final String BPF_PROGRAM = """
+            package me.bechberger.ebpf.bpf;
+            public abstract class BPFProgram {}
+            """;
+
+    private static final String BPF_PROGRAM_FACTORY = """
+            package me.bechberger.ebpf.bpf;
+            public interface BPFProgramFactory {
+                Class<? extends BPFProgram> programClass();
+                Class<? extends BPFProgram> implClass();
+                String code();
+                BPFProgram create(BPFProgram... producers);
+            }
+            """;
+
+    private static final String PROGRAMS = """
+            package demo;
+            import me.bechberger.ebpf.bpf.BPFProgram;
+            public class Programs {
+                public abstract static class Producer extends BPFProgram {}
+                public static class ProducerImpl extends Producer {}
+                public static class Other extends BPFProgram {}
+                public abstract static class Consumer extends BPFProgram {}
+            }
+            """;
+
+    /** Compile {@code ConsumerImpl} with a constructor taking the producers, like the processor. */
+    private static Class<?> compileImpl(Path folder, List<String> producers) throws Exception {
+        var name = "Programs$ConsumerImpl";
+        var constructor = MethodSpec.constructorBuilder().addModifiers(Modifier.PUBLIC);
+        for (int i = 0; i < producers.size(); i++) {
+            constructor.addParameter(ClassName.bestGuess(producers.get(i)), "p" + i);
+        }
+        var impl = TypeSpec.classBuilder(name)
+                .addModifiers(Modifier.PUBLIC, Modifier.FINAL)
+                .superclass(ClassName.get("demo", "Programs", "Consumer"))
+                .addField(FieldSpec.builder(String.class, "CODE", Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+                        .initializer("$S", "int x;").build())
+                .addMethod(constructor.build())
+                .addType(Processor.factoryType(name, ClassName.get("demo", "Programs", "Consumer"), producers))
+                .build();
+        var sources = new ArrayList<Path>();
+        sources.add(write(folder, "me/bechberger/ebpf/bpf/BPFProgram.java", BPF_PROGRAM));
+        sources.add(write(folder, "me/bechberger/ebpf/bpf/BPFProgramFactory.java", BPF_PROGRAM_FACTORY));
+        sources.add(write(folder, "demo/Programs.java", PROGRAMS));
+        sources.add(write(folder, "demo/" + name + ".java", JavaFile.builder("demo", impl).build().toString()));
+        var classes = folder.resolve("classes");
+        var errors = new ByteArrayOutputStream();
+        var args = new ArrayList<>(List.of("-d", classes.toString()));
+        sources.forEach(source -> args.add(source.toString()));
+        int rc = ToolProvider.getSystemJavaCompiler().run(null, errors, errors, args.toArray(String[]::new));
+        assertEquals(0, rc, errors::toString);
+        var loader = new URLClassLoader(new URL[]{classes.toUri().toURL()}, null);
+        return loader.loadClass("demo." + name + "$ImplFactory");
+    }
+
+    private static Path write(Path folder, String file, String content) throws Exception {
+        var path = folder.resolve("src").resolve(file);
+        Files.createDirectories(path.getParent());
+        Files.writeString(path, content);
+        return path;
+    }
+
+    private static Object create(Object factory, Object... producers) throws Exception {
+        var programClass = factory.getClass().getClassLoader().loadClass("me.bechberger.ebpf.bpf.BPFProgram");
+        var array = Array.newInstance(programClass, producers.length);
+        for (int i = 0; i < producers.length; i++) {
+            Array.set(array, i, producers[i]);
+        }
+        var method = factory.getClass().getMethod("create", array.getClass());
+        return method.invoke(factory, array);
+    }
+
+    private static Object instance(Class<?> factoryClass, String name) throws Exception {
+        return factoryClass.getClassLoader().loadClass(name).getConstructor().newInstance();
+    }
+
+    @Test
+    public void factoryDescribesTheImplClass(@TempDir Path folder) throws Exception {
+        var factoryClass = compileImpl(folder, List.of());
+        var factory = factoryClass.getConstructor().newInstance();
+        assertEquals("demo.Programs$Consumer",
+                ((Class<?>) factoryClass.getMethod("programClass").invoke(factory)).getName());
+        assertEquals("demo.Programs$ConsumerImpl",
+                ((Class<?>) factoryClass.getMethod("implClass").invoke(factory)).getName());
+        assertEquals("int x;", factoryClass.getMethod("code").invoke(factory));
+        assertEquals("demo.Programs$ConsumerImpl", create(factory).getClass().getName());
+    }
+
+    @Test
+    public void factoryPassesMatchingProducers(@TempDir Path folder) throws Exception {
+        var factoryClass = compileImpl(folder, List.of("demo.Programs.Producer"));
+        var factory = factoryClass.getConstructor().newInstance();
+        var program = create(factory, instance(factoryClass, "demo.Programs$ProducerImpl"));
+        assertNotNull(program);
+        assertEquals("demo.Programs$ConsumerImpl", program.getClass().getName());
+    }
+
+    @Test
+    public void factoryReturnsNullForMismatchingProducers(@TempDir Path folder) throws Exception {
+        var factoryClass = compileImpl(folder, List.of("demo.Programs.Producer"));
+        var factory = factoryClass.getConstructor().newInstance();
+        assertNull(create(factory));
+        assertNull(create(factory, instance(factoryClass, "demo.Programs$Other")));
+        assertNull(create(factory, instance(factoryClass, "demo.Programs$ProducerImpl"),
+                instance(factoryClass, "demo.Programs$ProducerImpl")));
+        assertNull(create(factory, (Object) null));
+    }
+
+    @Test
+    public void factoryIndexDropsEntriesOfDeletedPrograms() {
+        var names = Processor.mergeFactoryIndex(List.of("demo.AImpl$ImplFactory"),
+                List.of("# generated", "demo.BImpl$ImplFactory", "", "demo.GoneImpl$ImplFactory",
+                        "  demo.Outer$InnerImpl$ImplFactory  ", "demo.NotAFactory", "demo.AImpl$ImplFactory"),
+                Set.of("demo.BImpl", "demo.Outer$InnerImpl", "demo.NotAFactory")::contains);
+        assertEquals(List.of("demo.AImpl$ImplFactory", "demo.BImpl$ImplFactory", "demo.Outer$InnerImpl$ImplFactory"),
+                List.copyOf(names));
+    }
+
+    @Test
+    public void factoryIndexWithoutEarlierEntries() {
+        assertEquals(List.of("demo.AImpl$ImplFactory"),
+                List.copyOf(Processor.mergeFactoryIndex(Set.of("demo.AImpl$ImplFactory"), List.of(), name -> false)));
+    }
+}
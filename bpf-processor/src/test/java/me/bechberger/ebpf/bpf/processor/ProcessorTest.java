@@ -3,9 +3,11 @@ package me.bechberger.ebpf.bpf.processor;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.condition.EnabledOnOs;
 import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -69,4 +71,60 @@ public class ProcessorTest {
         assertTrue(Files.exists(unistd),
                 "asm/unistd.h not found under " + p + " — clang will fail to compile any program with #include <unistd.h>");
     }
+
+    @Test
+    public void clangJobs_defaultsAndClamps() {
+        assertEquals(8, Clang.parseJobs(null, 8));
+        assertEquals(8, Clang.parseJobs(" ", 8));
+        assertEquals(3, Clang.parseJobs("3", 8));
+        assertEquals(1, Clang.parseJobs("0", 8));
+        assertEquals(8, Clang.parseJobs("many", 8));
+    }
+
+    @Test
+    public void cacheDigest_followsFileContent() throws Exception {
+        Path file = Files.createTempFile("vmlinux", ".h");
+        try {
+            Files.writeString(file, "struct a { int x; };");
+            String first = CompilationCache.digest(file);
+            assertEquals(first, CompilationCache.digest(file));
+            Files.writeString(file, "struct a { long x; };");
+            Files.setLastModifiedTime(file, java.nio.file.attribute.FileTime.fromMillis(
+                    Files.getLastModifiedTime(file).toMillis() + 2000));
+            assertNotEquals(first, CompilationCache.digest(file));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void precompiledHeaders_splitKeepsLineNumbers() {
+        String code = """
+                #include "vmlinux.h"
+                // helpers
+                #include <bpf/bpf_helpers.h>
+
+                #define X 1
+                int x = X;
+                """;
+        var split = PrecompiledHeaders.split(code);
+        assertNotNull(split);
+        assertEquals("#include \"vmlinux.h\"\n// helpers\n#include <bpf/bpf_helpers.h>\n", split.includes());
+        assertEquals("\n\n\n\n#define X 1\nint x = X;\n", split.rest());
+        assertEquals(code.lines().count(), split.rest().lines().count());
+    }
+
+    @Test
+    public void precompiledHeaders_splitNeedsLeadingInclude() {
+        assertNull(PrecompiledHeaders.split("#define BPF_NO_GLOBAL_DATA\n#include <bpf/bpf_helpers.h>\n"));
+        assertNull(PrecompiledHeaders.split("int x;"));
+    }
+
+    @Test
+    public void precompiledHeaders_unwritableFolderBuildsNoHeader(@TempDir Path tempDir) throws Exception {
+        // a file where the pch folder should be, like a folder we may not write to
+        Path folder = Files.writeString(tempDir.resolve("pch"), "");
+        assertNull(PrecompiledHeaders.build(new Clang("clang", "clang version 20"), "#include <x.h>\n",
+                List.of(), folder, "key"));
+    }
 }
@@ -0,0 +1,26 @@
+package me.bechberger.ebpf.bpf.processor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RuntimeDefinitionsTest {
+
+    @Test
+    void missingTypesAreTheUnresolvedRuntimeImports() {
+        var imports = List.of(
+                "me.bechberger.ebpf.runtime.TaskDefinitions.task_struct",
+                "me.bechberger.ebpf.runtime.BpfDefinitions.bpf_map",
+                "me.bechberger.ebpf.runtime.ScxDefinitions.scx_exit_kind.SCX_EXIT_NONE",
+                "me.bechberger.ebpf.runtime.NetDefinitions.*",
+                "me.bechberger.ebpf.runtime.helpers.BPFHelpers",
+                "me.bechberger.ebpf.type.Ptr",
+                "java.util.List");
+        var names = RuntimeDefinitions.missingTypes(imports,
+                name -> name.equals("me.bechberger.ebpf.runtime.BpfDefinitions.bpf_map"));
+        assertEquals(Set.of("task_struct", "scx_exit_kind"), names);
+    }
+}
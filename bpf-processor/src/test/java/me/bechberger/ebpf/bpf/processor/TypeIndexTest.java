@@ -0,0 +1,83 @@
+package me.bechberger.ebpf.bpf.processor;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TypeIndexTest {
+
+    /**
+     * {@code struct point { int x; int y; }}, a typedef and pointer to it, an unrelated enum,
+     * and a kfunc {@code void use(struct point *)} with its {@code bpf_kfunc} tag.
+     */
+    static final List<Map<String, Object>> TYPES = List.of(
+            object("id", 1, "kind", "INT", "name", "int", "size", 4, "bits_offset", 0, "nr_bits", 32,
+                    "encoding", "SIGNED"),
+            object("id", 2, "kind", "STRUCT", "name", "point", "size", 8, "vlen", 2, "members", List.of(
+                    object("name", "x", "type_id", 1, "bits_offset", 0),
+                    object("name", "y", "type_id", 1, "bits_offset", 32))),
+            object("id", 3, "kind", "TYPEDEF", "name", "point_t", "type_id", 2),
+            object("id", 4, "kind", "PTR", "name", "(anon)", "type_id", 2),
+            object("id", 5, "kind", "ENUM64", "name", "big", "size", 8, "vlen", 2, "encoding", "UNSIGNED",
+                    "values", List.of(
+                            object("name", "SMALL", "val", -3),
+                            object("name", "HUGE", "val", new BigInteger("18446744073709551615")))),
+            object("id", 7, "kind", "FUNC_PROTO", "name", "(anon)", "ret_type_id", 0, "vlen", 1, "params",
+                    List.of(object("name", "p", "type_id", 4))),
+            object("id", 8, "kind", "FUNC", "name", "use", "type_id", 7, "linkage", "static"),
+            object("id", 9, "kind", "DECL_TAG", "name", "bpf_kfunc", "type_id", 8, "component_idx", -1));
+
+    private static Map<String, Object> object(Object... keysAndValues) {
+        Map<String, Object> object = new LinkedHashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            object.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return object;
+    }
+
+    private static TypeIndex index() {
+        return TypeIndex.of(TypeIndex.create(TYPES));
+    }
+
+    @Test
+    void roundTripsEveryType() {
+        var index = index();
+        assertEquals(10, index.size());
+        assertNull(index.type(0));
+        assertNull(index.type(6));
+        for (var type : TYPES) {
+            assertEquals(type, index.type((Integer) type.get("id")));
+        }
+        assertEquals(TYPES, index.types(bits(1, 2, 3, 4, 5, 7, 8, 9)));
+        assertEquals(TYPES, index.types());
+    }
+
+    @Test
+    void closureFollowsReferencesAndTags() {
+        var index = index();
+        assertEquals(List.of(3), index.idsByName("point_t"));
+        assertEquals(bits(1, 2, 3), index.closure(List.of("point_t")));
+        assertEquals(bits(5), index.closure(List.of("big")));
+        assertEquals(bits(1, 2, 4, 7, 8, 9), index.closure(List.of("use")));
+        assertThrows(IllegalArgumentException.class, () -> index.closure(List.of("missing")));
+    }
+
+    @Test
+    void rejectsOtherFiles() {
+        assertThrows(IllegalArgumentException.class, () -> TypeIndex.of(new byte[]{'{', '}', 0, 0}));
+    }
+
+    private static BitSet bits(int... ids) {
+        var set = new BitSet();
+        for (int id : ids) {
+            set.set(id);
+        }
+        return set;
+    }
+}
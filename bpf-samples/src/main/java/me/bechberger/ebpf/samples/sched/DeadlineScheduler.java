@@ -1,6 +1,7 @@
 // SPDX-License-Identifier: GPL-2.0
 package me.bechberger.ebpf.samples.sched;
 
+import me.bechberger.ebpf.annotations.Type;
 import me.bechberger.ebpf.annotations.Unsigned;
 import me.bechberger.ebpf.annotations.bpf.BPF;
 import me.bechberger.ebpf.annotations.bpf.BPFMapDefinition;
@@ -12,8 +13,12 @@ import me.bechberger.ebpf.bpf.SchedulerBase;
 import me.bechberger.ebpf.bpf.map.BPFHashMap;
 import me.bechberger.ebpf.bpf.sched.DispatchQueue;
 import me.bechberger.ebpf.bpf.sched.EnqFlags;
+import me.bechberger.ebpf.bpf.sched.RbTree;
 import me.bechberger.ebpf.type.Ptr;
 
+import static me.bechberger.ebpf.runtime.BpfDefinitions.bpf_rb_node;
+import static me.bechberger.ebpf.runtime.BpfDefinitions.bpf_task_from_pid;
+import static me.bechberger.ebpf.runtime.BpfDefinitions.bpf_task_release;
 import static me.bechberger.ebpf.runtime.ScxDefinitions.*;
 import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_public_consts.SCX_SLICE_DFL;
 import static me.bechberger.ebpf.runtime.TaskDefinitions.task_struct;
@@ -29,9 +34,12 @@ import static me.bechberger.ebpf.runtime.TaskDefinitions.task_struct;
  * {@code weight} is the task's scheduling weight (nice-0 == 100).  Heavier
  * (higher-priority) tasks get shorter deadlines and thus run sooner.
  *
- * <p>Tasks are inserted into a vtime-ordered DSQ using their deadline as the
- * vtime key, so the BPF DSQ dequeues the task with the earliest (smallest)
- * deadline first — exactly EDF ordering.
+ * <p>Runnable tasks are kept in an in-kernel red-black tree ({@link RbTree})
+ * keyed by their deadline. {@code dispatch} pops the node with the earliest
+ * (smallest) deadline and inserts that task into the shared FIFO DSQ right
+ * before moving it to the local CPU — exactly EDF ordering, with the tree
+ * rather than a vtime DSQ holding the order. If a tree node cannot be
+ * allocated the task goes straight into the shared DSQ.
  *
  * <p>A global clock ({@code scx_bpf_now()}) is used so that sleeping tasks
  * do not accumulate deadline debt.  Their deadline is clamped to
@@ -41,10 +49,9 @@ import static me.bechberger.ebpf.runtime.TaskDefinitions.task_struct;
  * <p>This is an original Java/sched_ext EDF implementation.  The EDF concept
  * is described in
  * <a href="https://en.wikipedia.org/wiki/Earliest_deadline_first_scheduling">
- * Earliest deadline first scheduling</a>.  The vtime-ordered DSQ approach is
- * inspired by
- * <a href="https://github.com/torvalds/linux/blob/6712c4fefca0422851b71d1a58a32ea03f69310f/tools/sched_ext/scx_simple.bpf.c">
- * {@code scx_simple.bpf.c}</a> (vtime mode).
+ * Earliest deadline first scheduling</a>.  The in-kernel tree follows the
+ * {@code bpf_rbtree_*} usage in the kernel's
+ * {@code tools/testing/selftests/bpf/progs/rbtree.c}.
  *
  * <p>Run with:
  * <pre>
@@ -72,12 +79,23 @@ public abstract class DeadlineScheduler extends SchedulerBase implements Schedul
     @BPFMapDefinition(maxEntries = 65536)
     BPFHashMap<Integer, @Unsigned Long> deadlines;
 
+    /** Tree node: one runnable task, ordered by {@code key} (its absolute deadline). */
+    @Type
+    static class DeadlineNode {
+        bpf_rb_node node;
+        @Unsigned long key;
+        int pid;
+    }
+
+    /** Runnable tasks ordered by deadline. */
+    final RbTree<DeadlineNode> queue = new RbTree<>();
+
     final DispatchQueue shared = DispatchQueue.attach(SHARED_DSQ_ID);
 
     @Override
     public int selectCPU(Ptr<task_struct> p, int prev_cpu, long wake_flags) {
-        // Don't insert into local DSQ here — all insertions go through insertVtime in enqueue()
-        // so the vtime-ordered DSQ is never mixed with FIFO insertions.
+        // Don't insert into local DSQ here — every task goes through the deadline tree
+        // in enqueue() so that no task bypasses EDF ordering.
         boolean is_idle = false;
         return scx_bpf_select_cpu_dfl(p, prev_cpu, wake_flags, Ptr.of(is_idle));
     }
@@ -104,7 +122,35 @@ public abstract class DeadlineScheduler extends SchedulerBase implements Schedul
         }
         deadlines.put(pid, deadline);
 
-        shared.insertVtime(p, SCX_SLICE_DFL.value(), deadline, EnqFlags.passThrough(enq_flags));
+        Ptr<DeadlineNode> node = queue.newNode();
+        if (node == null) {
+            // Out of memory for tree nodes: fall back to plain FIFO for this task
+            shared.insert(p, SCX_SLICE_DFL.value(), EnqFlags.passThrough(enq_flags));
+            return;
+        }
+        node.val().key = deadline;
+        node.val().pid = pid;
+        queue.lock();
+        queue.add(node);
+        queue.unlock();
+    }
+
+    @Override
+    public void dispatch(int cpu, Ptr<task_struct> prev) {
+        queue.lock();
+        Ptr<DeadlineNode> head = queue.pollFirst();
+        queue.unlock();
+        if (head != null) {
+            int pid = head.val().pid;
+            queue.drop(head);
+            // The task may have exited since it was enqueued; then there is nothing to run
+            Ptr<task_struct> p = bpf_task_from_pid(pid);
+            if (p != null) {
+                scx_bpf_dsq_insert(p, SHARED_DSQ_ID, SCX_SLICE_DFL.value(), 0);
+                bpf_task_release(p);
+            }
+        }
+        shared.moveToLocal();
     }
 
     @Override
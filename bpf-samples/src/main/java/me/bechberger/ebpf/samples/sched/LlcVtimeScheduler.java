@@ -0,0 +1,37 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.samples.sched;
+
+import me.bechberger.ebpf.annotations.bpf.BPF;
+import me.bechberger.ebpf.annotations.bpf.Property;
+import me.bechberger.ebpf.bpf.BPFProgram;
+import me.bechberger.ebpf.bpf.LlcVtimeSchedulerBase;
+import me.bechberger.ebpf.bpf.userspace.CpuTopology;
+
+/**
+ * Minimal demonstration of {@link LlcVtimeSchedulerBase}: a weighted vtime scheduler with one
+ * DSQ per last-level cache and work stealing between them, all inherited from the base.
+ *
+ * <p>On exit it prints where dispatched tasks came from — the own LLC, a stolen one, or the
+ * shared fallback — which shows how much cross-LLC migration the workload caused.
+ *
+ * <p>Run with:
+ * <pre>
+ *   sudo ./run.sh LlcVtimeScheduler
+ * </pre>
+ */
+@BPF(license = "GPL")
+@Property(name = "sched_name", value = "llc_vtime_scheduler")
+@Property(name = "timeout_ms", value = "10000")
+public abstract class LlcVtimeScheduler extends LlcVtimeSchedulerBase {
+
+    public static void main(String[] args) {
+        try (var program = BPFProgram.load(LlcVtimeScheduler.class)) {
+            CpuTopology topo = CpuTopology.detect();
+            System.out.println("LLC domains: " + topo.nrDomains() + " over " + topo.nrCpus() + " CPUs");
+            program.configureTopology(topo);
+            program.runSchedulerLoop();
+            System.out.printf("dispatched: local=%d stolen=%d shared=%d%n",
+                    program.localDispatches(), program.stolenDispatches(), program.sharedDispatches());
+        }
+    }
+}
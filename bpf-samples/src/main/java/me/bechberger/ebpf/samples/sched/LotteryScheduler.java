@@ -1,19 +1,39 @@
 package me.bechberger.ebpf.samples.sched;
 
+import me.bechberger.ebpf.annotations.BoundedBy;
+import me.bechberger.ebpf.annotations.Type;
 import me.bechberger.ebpf.annotations.Unsigned;
 import me.bechberger.ebpf.annotations.bpf.*;
 import me.bechberger.ebpf.bpf.BPFProgram;
+import me.bechberger.ebpf.bpf.GlobalVariable;
 import me.bechberger.ebpf.bpf.Scheduler;
 import me.bechberger.ebpf.bpf.sched.DispatchQueue;
 import me.bechberger.ebpf.bpf.sched.EnqFlags;
+import me.bechberger.ebpf.bpf.sched.ListHead;
 import me.bechberger.ebpf.runtime.TaskDefinitions;
 import me.bechberger.ebpf.type.Ptr;
 
+import static me.bechberger.ebpf.runtime.BpfDefinitions.bpf_list_node;
+import static me.bechberger.ebpf.runtime.BpfDefinitions.bpf_task_from_pid;
+import static me.bechberger.ebpf.runtime.BpfDefinitions.bpf_task_release;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_bpf_dsq_insert;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_public_consts.SCX_SLICE_DFL;
 import static me.bechberger.ebpf.runtime.helpers.BPFHelpers.bpf_get_prandom_u32;
 
 /**
- * A lottery scheduler: each task receives a random time slice, simulating
- * lottery scheduling by biasing dispatch order through slice length.
+ * A lottery scheduler: every runnable task holds tickets in proportion to its
+ * scheduling weight, and each dispatch draws a winning ticket.
+ *
+ * <p>Runnable tasks sit in an in-kernel list ({@link ListHead}) together with
+ * their ticket count; {@code totalTickets} tracks the sum. To keep the loops
+ * verifier-bounded, {@code dispatch} holds the lottery among the first
+ * {@link #DRAW_WINDOW} entries: it sums their tickets, draws a number below that
+ * sum and picks the entry whose tickets cover it, so within the window a task
+ * wins in proportion to its tickets. Winners leave the pool and re-enter at the
+ * tail when they become runnable again, so with more tasks than the window the
+ * window slides over the whole pool. The winner is inserted into the shared DSQ
+ * right before it is moved to the local CPU. If a list node cannot be allocated
+ * the task goes straight into the shared DSQ.
  *
  * <p>This is an original Java/sched_ext implementation.  The lottery scheduling
  * concept is described in
@@ -26,6 +46,23 @@ public abstract class LotteryScheduler extends BPFProgram implements Scheduler {
 
     private static final long SHARED_DSQ_ID = 0;
 
+    /** Maximum number of list entries examined per draw (keeps the loop verifier-bounded). */
+    static final int DRAW_WINDOW = 16;
+
+    /** List entry: one runnable task and its tickets. */
+    @Type
+    static class Ticket {
+        bpf_list_node node;
+        int pid;
+        @Unsigned int tickets;
+    }
+
+    /** Runnable tasks in draw order. */
+    final ListHead<Ticket> pool = new ListHead<>();
+
+    /** Sum of the tickets of all entries in {@link #pool}. */
+    final GlobalVariable<@Unsigned Long> totalTickets = new GlobalVariable<>(0L);
+
     // scx_bpf_create_dsq(SHARED_DSQ_ID, -1) is lifted into init() by the compiler plugin.
     final DispatchQueue shared = new DispatchQueue(SHARED_DSQ_ID);
 
@@ -38,30 +75,85 @@ public abstract class LotteryScheduler extends BPFProgram implements Scheduler {
     }
 
     /**
-     * Assign each task a random time slice proportional to its lottery ticket.
-     * Tasks with more tickets (higher random value) get more CPU time — simulating
-     * a lottery by biasing the scheduling order via slice length.
+     * Add the task to the pool with as many tickets as its scheduling weight
+     * (nice-0 == 100), so heavier tasks win proportionally more often.
      */
     @Override
     public void enqueue(Ptr<TaskDefinitions.task_struct> p, long enq_flags) {
-        int nr = shared.nrQueued();
-        // Random slice: up to 10ms, scaled down if queue is large to avoid starvation.
-        int maxSlice = 10_000_000;
-        int sliceLength = nr > 0 ? ((@Unsigned int) (bpf_get_prandom_u32() % maxSlice)) / nr
-                                 : ((@Unsigned int) (bpf_get_prandom_u32() % maxSlice));
-        if (sliceLength == 0) {
-            sliceLength = 1_000_000;
+        Ptr<Ticket> t = pool.newNode();
+        if (t == null) {
+            // Out of memory for list nodes: fall back to plain FIFO for this task
+            shared.insert(p, SCX_SLICE_DFL.value(), EnqFlags.passThrough(enq_flags));
+            return;
         }
-        shared.insert(p, sliceLength, EnqFlags.passThrough(enq_flags));
+        @Unsigned int tickets = p.val().scx.weight;
+        t.val().pid = p.val().pid;
+        t.val().tickets = tickets;
+        pool.lock();
+        pool.pushBack(t);
+        pool.unlock();
+        totalTickets.addAndGet((long) tickets);
     }
 
     /**
-     * Move the next eligible task from the shared DSQ to the local CPU queue.
+     * Draw a winner among the first {@link #DRAW_WINDOW} entries of the pool,
+     * proportionally to their tickets, insert it into the shared DSQ and move the
+     * next eligible task from there to the local CPU queue.
      * {@code scx_bpf_dsq_move_to_local} respects CPU affinity, so constrained
      * tasks (kworkers, isolated CPUs) are skipped automatically.
      */
     @Override
     public void dispatch(int cpu, Ptr<TaskDefinitions.task_struct> prev) {
+        if (totalTickets.get() > 0) {
+            // Helpers may not run under the lock, so take the random number before it
+            @Unsigned long random = bpf_get_prandom_u32();
+            Ptr<Ticket> winner = null;
+            pool.lock();
+            // Sum the window's tickets, rotating its entries to the tail in order
+            @Unsigned long windowTickets = 0;
+            int window = 0;
+            for (@BoundedBy(DRAW_WINDOW) int i = 0; i < DRAW_WINDOW; i++) {
+                Ptr<Ticket> t = pool.popFront();
+                if (t == null) {
+                    break;
+                }
+                windowTickets += t.val().tickets;
+                window++;
+                pool.pushBack(t);
+            }
+            if (windowTickets > 0) {
+                // Walk the window back from the tail until the draw is covered; passed entries return to the head
+                @Unsigned long draw = random % windowTickets;
+                @Unsigned long acc = 0;
+                for (@BoundedBy(DRAW_WINDOW) int i = 0; i < DRAW_WINDOW; i++) {
+                    if (i >= window) {
+                        break;
+                    }
+                    Ptr<Ticket> t = pool.popBack();
+                    if (t == null) {
+                        break;
+                    }
+                    acc += t.val().tickets;
+                    if (acc > draw) {
+                        winner = t;
+                        break;
+                    }
+                    pool.pushFront(t);
+                }
+            }
+            pool.unlock();
+            if (winner != null) {
+                int pid = winner.val().pid;
+                totalTickets.addAndGet(-(long) winner.val().tickets);
+                pool.drop(winner);
+                // The task may have exited since it was enqueued; then there is nothing to run
+                Ptr<TaskDefinitions.task_struct> p = bpf_task_from_pid(pid);
+                if (p != null) {
+                    scx_bpf_dsq_insert(p, SHARED_DSQ_ID, SCX_SLICE_DFL.value(), 0);
+                    bpf_task_release(p);
+                }
+            }
+        }
         shared.moveToLocal();
     }
 
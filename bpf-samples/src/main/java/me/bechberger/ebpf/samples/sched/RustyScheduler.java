@@ -2,8 +2,8 @@
 package me.bechberger.ebpf.samples.sched;
 
 import me.bechberger.ebpf.bpf.QueuedTask;
+import me.bechberger.ebpf.bpf.userspace.CpuSet;
 import me.bechberger.ebpf.bpf.userspace.CpuTopology;
-import me.bechberger.ebpf.bpf.userspace.Domain;
 import me.bechberger.ebpf.bpf.userspace.DomainLoadBalancer;
 import me.bechberger.ebpf.bpf.userspace.RustyLoadTracker;
 import me.bechberger.ebpf.bpf.userspace.UserspaceScheduler;
@@ -19,16 +19,17 @@ import java.util.List;
 import java.util.Map;
 
 /**
- * A Java port of scx_rusty's userspace domain load balancer (single-NUMA scope).
+ * A Java port of scx_rusty's userspace load balancer.
  *
- * <p>Each task is assigned a {@link Domain} (default: one per last-level cache). On enqueue the
+ * <p>Each task is assigned a domain (default: one per last-level cache). On enqueue the
  * task is dispatched to an idle CPU inside its domain; if none is idle it goes to {@code ANY_CPU}.
- * Every ~1s {@code tick()} reads each task's decayed load, buckets by domain, runs rusty's
- * push/pull balancer ({@link DomainLoadBalancer}) and re-assigns migrated tasks' target domain
- * — faithful to rusty, which only sets {@code target_dom} and lets the next enqueue act on it.
+ * Every ~1s {@code tick()} reports each task's decayed load to a long-lived
+ * {@link DomainLoadBalancer}, which balances across NUMA nodes and then within each node, and
+ * re-assigns migrated tasks' target domain — faithful to rusty, which only sets
+ * {@code target_dom} and lets the next enqueue act on it.
  *
  * <p>Task load in {@code tick()} is computed as {@code dutyCycle * weight} with a fixed weight of
- * 100 (the default); per-pid weight tracking is out of scope for this single-NUMA port.
+ * 100 (the default); per-pid weight tracking is out of scope for this port.
  *
  * <p>See {@code docs/sched-ext/userspace.md} "Porting scx_rusty: domain load balancing".
  */
@@ -38,8 +39,12 @@ public class RustyScheduler extends UserspaceScheduler {
 
     private final CpuTopology topo;
     private final RustyLoadTracker load;
-    private final boolean skipKworkers;
     private final int stalePidTicks;
+    private final DomainLoadBalancer balancer;
+    /** Every domain; tasks may be balanced anywhere (affinity modeling simplified). */
+    private final CpuSet allDoms;
+    /** {@code preferred[d]} = {d}: a task is cache-affine to the domain it last ran in. */
+    private final CpuSet[] preferred;
 
     /** pid -> assigned domain id. */
     private final Map<Integer, Integer> assignedDom = new HashMap<>();
@@ -52,12 +57,16 @@ public class RustyScheduler extends UserspaceScheduler {
     public RustyScheduler(CpuTopology topo, long halfLifeNs, boolean skipKworkers, int stalePidTicks) {
         this.topo = topo;
         this.load = new RustyLoadTracker(halfLifeNs);
-        this.skipKworkers = skipKworkers;
         this.stalePidTicks = stalePidTicks;
         if (topo.nrDomains() < 1) {
             throw new IllegalStateException("CpuTopology reported " + topo.nrDomains()
                     + " domains; need >= 1");
         }
+        int nrDom = topo.nrDomains();
+        this.balancer = new DomainLoadBalancer(topo, new DomainLoadBalancer.Options(skipKworkers));
+        this.allDoms = CpuSet.range(nrDom, 0, nrDom).freeze();
+        this.preferred = new CpuSet[nrDom];
+        for (int d = 0; d < nrDom; d++) preferred[d] = CpuSet.of(nrDom, d).freeze();
     }
 
     @Override
@@ -90,11 +99,9 @@ public class RustyScheduler extends UserspaceScheduler {
         // Fall back: scan the domain's mask ourselves against the idle view.
         MemorySegment idle = idleMaskView();
         if (idle == null) return -1;
-        long m = topo.cpuMask(dom);
-        while (m != 0) {
-            int c = Long.numberOfTrailingZeros(m);
-            m &= (m - 1);
-            if (c < cpuCount() && isIdle(idle, c)) return c;
+        CpuSet m = topo.cpuMask(dom);
+        for (int c = m.nextSetBit(0); c >= 0 && c < cpuCount(); c = m.nextSetBit(c + 1)) {
+            if (isIdle(idle, c)) return c;
         }
         return -1;
     }
@@ -120,34 +127,21 @@ public class RustyScheduler extends UserspaceScheduler {
             load.forget(pid);
             idleTicks.remove(pid);
             assignedDom.remove(pid);
+            balancer.removeTask(pid);
         }
 
-        int nrDom = topo.nrDomains();
-        if (nrDom < 2) return; // nothing to balance with a single domain
+        if (topo.nrDomains() < 2) return; // nothing to balance with a single domain
 
-        // 2. Build Domains from tracked load, bucketed by assigned domain.
-        Domain[] doms = new Domain[nrDom];
-        for (int d = 0; d < nrDom; d++) doms[d] = new Domain(d, topo.cpuMask(d));
-        double total = 0;
+        // 2. Report current load and placement; the balancer keeps its sorted state across ticks.
         for (int pid : load.trackedPids()) {
             Integer dom = assignedDom.get(pid);
             if (dom == null) continue;
-            double taskLoad = load.load(pid, /*weight*/100, now);
-            // domMask: default all domains (affinity modeling simplified). preferredDomMask:
-            // the assigned domain (where it last ran) -> cache affinity.
-            long allDoms = nrDom >= 64 ? -1L : ((1L << nrDom) - 1);
-            long preferred = 1L << dom;
-            doms[dom].addTask(new DomainLoadBalancer.TaskLoad(pid, taskLoad, allDoms, preferred, false));
-            total += taskLoad;
+            balancer.updateTask(pid, dom, load.load(pid, /*weight*/100, now), allDoms, preferred[dom], false);
         }
-        double loadAvg = total / nrDom;
-
-        // 3. Run the balancer.
-        var migrations = DomainLoadBalancer.balance(java.util.Arrays.asList(doms), loadAvg,
-                new DomainLoadBalancer.Options(skipKworkers));
 
-        // 4. Apply: reassign target domain. Next enqueue dispatches into the new domain.
-        for (var m : migrations) {
+        // 3. Balance across NUMA nodes, then within each node, and apply: reassign target domain.
+        // Next enqueue dispatches into the new domain.
+        for (var m : balancer.balance()) {
             assignedDom.put(m.pid(), m.toDom());
         }
     }
@@ -159,8 +153,8 @@ public class RustyScheduler extends UserspaceScheduler {
     // ── CLI ──
     @Command(name = "RustyScheduler",
             description = {
-                "scx_rusty-style domain load balancer (Java port, single-NUMA).",
-                "Assigns tasks to LLC domains; balances load across domains every tick."
+                "scx_rusty-style domain load balancer (Java port).",
+                "Assigns tasks to LLC domains; balances load across NUMA nodes and domains every tick."
             },
             mixinStandardHelpOptions = true)
     static final class Cli implements Runnable {
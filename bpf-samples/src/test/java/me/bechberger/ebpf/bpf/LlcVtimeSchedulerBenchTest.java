@@ -0,0 +1,111 @@
+package me.bechberger.ebpf.bpf;
+
+import me.bechberger.ebpf.samples.sched.LlcVtimeScheduler;
+import me.bechberger.ebpf.samples.sched.PerCpuSchedulerSample;
+import me.bechberger.ebpf.samples.sched.SimpleScheduler;
+import me.bechberger.ebpf.samples.sched.VTimeScheduler;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Scalability benchmark of {@link LlcVtimeScheduler} against the shared-DSQ
+ * ({@link SimpleScheduler}, {@link VTimeScheduler}) and per-CPU-DSQ
+ * ({@link PerCpuSchedulerSample}) samples.
+ *
+ * <p>The workload is wakeup-bound: each worker spins for a few microseconds and then sleeps
+ * briefly, so every iteration is one enqueue and one dispatch. It runs with 1, {@code nCpus}
+ * and {@code 4 * nCpus} workers; with many workers on a multi-LLC machine the shared DSQ lock
+ * is the bottleneck the per-LLC queues avoid. Iterations per second are printed as a table.
+ *
+ * <p>Skipped unless {@code BENCH=1} is set in the environment — numbers depend heavily on the
+ * host, so the only assertions are that every scheduler stayed attached and made progress.
+ */
+class LlcVtimeSchedulerBenchTest {
+
+    private static final long RUN_MS = 2_000;
+    private static final long SPIN_NS = 20_000;
+    private static final long SLEEP_NS = 50_000;
+
+    private static final List<Class<? extends BPFProgram>> SCHEDULERS = List.of(
+            SimpleScheduler.class, VTimeScheduler.class, PerCpuSchedulerSample.class, LlcVtimeScheduler.class);
+
+    @Test
+    @Timeout(180)
+    void wakeupThroughputScalesWithThreads() throws Exception {
+        Assumptions.assumeTrue("1".equals(System.getenv("BENCH")),
+                "BENCH=1 not set; skipping scalability benchmark");
+
+        int nCpus = Runtime.getRuntime().availableProcessors();
+        int[] threadCounts = {1, nCpus, 4 * nCpus};
+        Map<String, long[]> results = new LinkedHashMap<>();
+
+        for (Class<? extends BPFProgram> cls : SCHEDULERS) {
+            long[] opsPerSec = new long[threadCounts.length];
+            try (BPFProgram program = BPFProgram.load(cls)) {
+                Scheduler sched = (Scheduler) program;
+                sched.attachScheduler();
+                for (int i = 0; i < threadCounts.length; i++) {
+                    opsPerSec[i] = run(threadCounts[i]);
+                    assertTrue(sched.isSchedulerAttachedProperly(),
+                            cls.getSimpleName() + " detached during the run with " + threadCounts[i] + " threads");
+                }
+                if (program instanceof LlcVtimeScheduler llc) {
+                    System.err.printf("BENCH %s: LLCs=%d local=%d stolen=%d shared=%d%n", cls.getSimpleName(),
+                            llc.topology().nrDomains(), llc.localDispatches(), llc.stolenDispatches(),
+                            llc.sharedDispatches());
+                }
+            }
+            results.put(cls.getSimpleName(), opsPerSec);
+        }
+
+        StringBuilder table = new StringBuilder(String.format("BENCH %-24s", "iterations/s"));
+        for (int t : threadCounts) table.append(String.format("%14s", t + " threads"));
+        for (var e : results.entrySet()) {
+            table.append(String.format("%nBENCH %-24s", e.getKey()));
+            for (long ops : e.getValue()) table.append(String.format("%14d", ops));
+        }
+        System.err.println(table);
+
+        for (var e : results.entrySet()) {
+            for (long ops : e.getValue()) {
+                assertTrue(ops > 0, e.getKey() + " made no progress");
+            }
+        }
+    }
+
+    /** Runs {@code threads} spin-then-sleep workers for {@link #RUN_MS}; returns iterations per second. */
+    private static long run(int threads) throws InterruptedException {
+        LongAdder iterations = new LongAdder();
+        long end = System.nanoTime() + RUN_MS * 1_000_000;
+        List<Thread> workers = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread w = new Thread(() -> {
+                while (System.nanoTime() < end) {
+                    long spinEnd = System.nanoTime() + SPIN_NS;
+                    while (System.nanoTime() < spinEnd) {
+                        Thread.onSpinWait();
+                    }
+                    LockSupport.parkNanos(SLEEP_NS);
+                    iterations.increment();
+                }
+            }, "llc-bench-" + i);
+            w.setDaemon(true);
+            workers.add(w);
+            w.start();
+        }
+        for (Thread w : workers) {
+            w.join(RUN_MS + 10_000);
+        }
+        return iterations.sum() * 1000 / RUN_MS;
+    }
+}
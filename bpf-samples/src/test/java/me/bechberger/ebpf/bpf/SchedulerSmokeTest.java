@@ -8,6 +8,7 @@ import me.bechberger.ebpf.samples.sched.FlowScheduler;
 import me.bechberger.ebpf.samples.sched.CentralScheduler;
 import me.bechberger.ebpf.samples.sched.DeadlineScheduler;
 import me.bechberger.ebpf.samples.sched.FCFSScheduler;
+import me.bechberger.ebpf.samples.sched.LlcVtimeScheduler;
 import me.bechberger.ebpf.samples.sched.LotteryScheduler;
 import me.bechberger.ebpf.samples.sched.MinimalScheduler;
 import me.bechberger.ebpf.samples.sched.NestScheduler;
@@ -240,6 +241,23 @@ class SchedulerSmokeTest {
                 "PerCpuSchedulerSample should remain attached 300 ms after start");
     }
 
+    /**
+     * {@link LlcVtimeScheduler} configures the detected LLC topology in {@code attachScheduler()};
+     * every dispatch must come from some LLC DSQ, not the empty shared fallback.
+     */
+    @Test
+    @Timeout(15)
+    @TestScheduler(LlcVtimeScheduler.class)
+    void llcVtimeSchedulerAttachesAndRuns(LlcVtimeScheduler sched) throws Exception {
+        Thread.sleep(300);
+        assertTrue(sched.isSchedulerAttachedProperly(),
+                "LlcVtimeScheduler should remain attached 300 ms after start");
+        assertTrue(sched.topology() != null, "attachScheduler() should have configured a topology");
+        assertTrue(sched.localDispatches() + sched.stolenDispatches() > 0,
+                "LLC DSQs should have dispatched tasks after 300 ms of activity");
+        assertEquals(0, sched.sharedDispatches(), "nothing is inserted into the shared DSQ");
+    }
+
     /**
      * Verifies that {@link BoostedScheduler} attaches and stays attached in boost mode.
      * Boosts the current JVM process tree so enqueue() takes the boosted path.
@@ -17,7 +17,8 @@ public final class BPFEvents {
     private BPFEvents() {}
 
     /**
-     * Fired once per BPF object load (i.e. per {@link BPFProgram#load}).
+     * Fired once per BPF object load (i.e. per {@link BPFProgram#load}), with the time spent
+     * in each phase, see {@link BPFProgram.LoadTimings}.
      */
     @Name("me.bechberger.ebpf.ProgramLoad")
     @Label("BPF Program Load")
@@ -30,10 +31,39 @@ public final class BPFEvents {
 
         @Label("Duration (ms)")
         public long durationMs;
+
+        @Label("Checks")
+        @Description("Kernel version and feature requirement checks")
+        @Timespan(Timespan.NANOSECONDS)
+        public long checks;
+
+        @Label("Open")
+        @Description("Writing and opening the object file")
+        @Timespan(Timespan.NANOSECONDS)
+        public long open;
+
+        @Label("Object Load")
+        @Description("bpf_object__load: BTF upload, map creation, relocation and verifier")
+        @Timespan(Timespan.NANOSECONDS)
+        public long objectLoad;
+
+        @Label("Global Init")
+        @Timespan(Timespan.NANOSECONDS)
+        public long globals;
+
+        @Label("Struct Ops")
+        @Description("Attaching the struct_ops maps")
+        @Timespan(Timespan.NANOSECONDS)
+        public long structOps;
+
+        @Label("Via Factory")
+        @Description("Created by the generated BPFProgramFactory, false if via reflection")
+        public boolean factory;
     }
 
     /**
-     * Fired when a BPF entry point is attached (e.g. via {@link BPFProgram#autoAttachProgram}).
+     * Fired when a BPF entry point is attached (e.g. via {@link BPFProgram#autoAttachProgram});
+     * the event's duration is the time the attach took.
      */
     @Name("me.bechberger.ebpf.ProgramAttach")
     @Label("BPF Program Attach")
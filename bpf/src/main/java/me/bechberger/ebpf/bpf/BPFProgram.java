@@ -37,6 +37,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
@@ -131,9 +132,46 @@ public abstract class BPFProgram implements AutoCloseable {
         }
     }
 
+    /**
+     * Generated factories by program class, from the {@link BPFProgramFactory} service entries
+     * of the class's loader; empty for classes compiled without one.
+     */
+    private static final ClassValue<Optional<BPFProgramFactory>> FACTORIES = new ClassValue<>() {
+        @Override
+        protected Optional<BPFProgramFactory> computeValue(Class<?> clazz) {
+            String factoryName = Processor.classToImplName(clazz).fullyQualifiedClassName() + "$ImplFactory";
+            // iterate entry by entry: the iterator moves past an entry it can't load, a stream would stop
+            var iterator = ServiceLoader.load(BPFProgramFactory.class, clazz.getClassLoader()).iterator();
+            while (true) {
+                try {
+                    if (!iterator.hasNext()) {
+                        return Optional.empty();
+                    }
+                    var factory = iterator.next();
+                    if (factory.getClass().getName().equals(factoryName)) {
+                        return Optional.of(factory);
+                    }
+                } catch (ServiceConfigurationError e) {
+                    // e.g. an entry of a class deleted since, from a stale jar or class folder
+                    System.getLogger(BPFProgram.class.getName()).log(System.Logger.Level.WARNING,
+                            "Skipping broken BPFProgramFactory entry: {0}", e.getMessage());
+                }
+            }
+        }
+    };
+
+    /** The generated factory for {@code clazz}, or null if it has none. */
+    static @Nullable BPFProgramFactory factory(Class<?> clazz) {
+        return FACTORIES.get(clazz).orElse(null);
+    }
+
     /** Get the class generated by the annotation processor for a giving subclass of {@link BPFProgram} */
     @SuppressWarnings("unchecked")
     public static <T, S extends T> Class<S> getImplClass(Class<T> clazz) {
+        var factory = factory(clazz);
+        if (factory != null) {
+            return (Class<S>) factory.implClass();
+        }
         try {
             var implName = Processor.classToImplName(clazz);
             return (Class<S>) Class.forName(implName.fullyQualifiedClassName());
@@ -148,6 +186,10 @@ public abstract class BPFProgram implements AutoCloseable {
      * Returns the C code for the given BPFProgram subclass
      */
     public static <T extends BPFProgram> String getCode(Class<T> clazz) {
+        var factory = factory(clazz);
+        if (factory != null) {
+            return factory.code();
+        }
         try {
             return getImplClass(clazz).getMethod("getCodeStatic").invoke(null).toString();
         } catch (IllegalAccessException | InvocationTargetException | NoSuchMethodException e) {
@@ -185,42 +227,11 @@ public abstract class BPFProgram implements AutoCloseable {
      * @return instance of the implementation class, created using the default constructor
      */
     public static <T extends BPFProgram, S extends T> S load(Class<T> clazz) {
-        try {
-            if ("1".equals(System.getenv("BPF_PRINT_CODE"))) {
-                printCode(clazz);
-            }
-            KernelFeatures.requireMinimumKernel();
-            KernelFeatures.checkRequirements("Loading BPF program", clazz);
-            enforceFeatureRequirements(clazz);
-            long t0 = System.currentTimeMillis();
-            var program = BPFProgram.<T, S>getImplClass(clazz).getConstructor().newInstance();
-            program.initGlobals();
-            installStructOps(program, clazz);
-            var evt = new BPFEvents.ProgramLoad();
-            if (evt.isEnabled()) {
-                evt.programClass = clazz.getName();
-                evt.durationMs = System.currentTimeMillis() - t0;
-                evt.commit();
-            }
-            System.Logger logger = System.getLogger(BPFProgram.class.getName());
-            if (logger.isLoggable(System.Logger.Level.DEBUG)) {
-                logger.log(System.Logger.Level.DEBUG,
-                        "Loaded {0}: byteCodeHash={1}", clazz.getSimpleName(), program.byteCodeHash());
-            }
-            return program;
-        } catch (BPFError e) {
-            throw e;
-        } catch (InvocationTargetException e) {
-            // Constructor.newInstance() wraps user-thrown exceptions; unwrap so
-            // BPFLoadError / BPFVerifierException propagate to the caller as-is.
-            Throwable cause = e.getCause();
-            if (cause instanceof BPFError be) {
-                throw be;
-            }
-            throw new RuntimeException(cause != null ? cause : e);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        var factory = factory(clazz);
+        if (factory != null) {
+            return loadTimed(clazz, true, () -> BPFProgram.<S>create(factory));
         }
+        return loadTimed(clazz, false, () -> BPFProgram.<T, S>getImplClass(clazz).getConstructor().newInstance());
     }
 
     /**
@@ -247,14 +258,17 @@ public abstract class BPFProgram implements AutoCloseable {
         if (producers == null || producers.length == 0) {
             return load(clazz);
         }
-        try {
-            if ("1".equals(System.getenv("BPF_PRINT_CODE"))) {
-                printCode(clazz);
-            }
-            KernelFeatures.requireMinimumKernel();
-            KernelFeatures.checkRequirements("Loading BPF program", clazz);
-            enforceFeatureRequirements(clazz);
-            long t0 = System.currentTimeMillis();
+        var factory = factory(clazz);
+        if (factory != null) {
+            return loadTimed(clazz, true, () -> {
+                S program = create(factory, producers);
+                for (var producer : producers) {
+                    producer.addDependent(program);
+                }
+                return program;
+            });
+        }
+        return loadTimed(clazz, false, () -> {
             Class<S> implClass = BPFProgram.<T, S>getImplClass(clazz);
             // Find a constructor whose parameter list is assignable from the supplied
             // producers (in order). If multiple match, prefer the one whose parameter
@@ -270,42 +284,140 @@ public abstract class BPFProgram implements AutoCloseable {
                 if (ok) { chosen = ctor; break; }
             }
             if (chosen == null) {
-                var supplied = new StringBuilder();
-                for (int i = 0; i < producers.length; i++) {
-                    if (i > 0) supplied.append(", ");
-                    supplied.append(producers[i].getClass().getSimpleName());
-                }
-                throw new BPFLoadError("No constructor on " + implClass.getSimpleName()
-                        + " matches the supplied producers (" + supplied + "). "
-                        + "Ensure the consumer declares @SharedFrom for each producer "
-                        + "and that the producer order matches the generated constructor signature.");
+                throw noMatchingConstructor(implClass, producers);
             }
             @SuppressWarnings("unchecked")
             S program = (S) chosen.newInstance((Object[]) producers);
             for (var producer : producers) {
                 producer.addDependent(program);
             }
+            return program;
+        });
+    }
+
+    /** Create a program via its generated factory, without reflection. */
+    @SuppressWarnings("unchecked")
+    private static <S extends BPFProgram> S create(BPFProgramFactory factory, BPFProgram... producers) {
+        var program = factory.create(producers);
+        if (program == null) {
+            throw noMatchingConstructor(factory.implClass(), producers);
+        }
+        return (S) program;
+    }
+
+    private static BPFLoadError noMatchingConstructor(Class<?> implClass, BPFProgram... producers) {
+        var supplied = new StringBuilder();
+        for (int i = 0; i < producers.length; i++) {
+            if (i > 0) supplied.append(", ");
+            supplied.append(producers[i].getClass().getSimpleName());
+        }
+        return new BPFLoadError("No constructor on " + implClass.getSimpleName()
+                + " matches the supplied producers (" + supplied + "). "
+                + "Ensure the consumer declares @SharedFrom for each producer "
+                + "and that the producer order matches the generated constructor signature.");
+    }
+
+    /**
+     * Time spent in the phases of {@link #load}, also recorded in the
+     * {@link BPFEvents.ProgramLoad} JFR event.
+     *
+     * @param checks     kernel version and feature requirement checks
+     * @param open       writing the object file and {@code bpf_object__open_file}
+     * @param objectLoad {@code bpf_object__load}: BTF upload, map creation, relocation and the
+     *                   verifier, which libbpf does not time separately
+     * @param globals    {@link #initGlobals()}
+     * @param structOps  attaching the struct_ops maps
+     * @param total      all of it, including the reflective construction of the impl class
+     */
+    public record LoadTimings(Duration checks, Duration open, Duration objectLoad, Duration globals,
+                              Duration structOps, Duration total) {
+        @Override
+        public String toString() {
+            return String.format("checks %.1f ms, open %.1f ms, object load %.1f ms, globals %.1f ms, "
+                            + "struct_ops %.1f ms, total %.1f ms", millis(checks), millis(open), millis(objectLoad),
+                    millis(globals), millis(structOps), millis(total));
+        }
+
+        private static double millis(Duration duration) {
+            return duration.toNanos() / 1e6;
+        }
+    }
+
+    /**
+     * The checks, construction, global initialization and struct_ops install of {@link #load},
+     * timed per phase; {@code construct} creates the impl class instance, which opens and loads
+     * the object, via the generated factory if {@code viaFactory}.
+     */
+    private static <S extends BPFProgram> S loadTimed(Class<? extends BPFProgram> clazz, boolean viaFactory,
+                                                      Callable<S> construct) {
+        try {
+            if ("1".equals(System.getenv("BPF_PRINT_CODE"))) {
+                printCode(clazz);
+            }
+            long start = System.nanoTime();
+            KernelFeatures.requireMinimumKernel();
+            KernelFeatures.checkRequirements("Loading BPF program", clazz);
+            enforceFeatureRequirements(clazz);
+            long checked = System.nanoTime();
+            S program = construct.call();
+            long constructed = System.nanoTime();
             program.initGlobals();
+            long globalsInitialized = System.nanoTime();
             installStructOps(program, clazz);
+            long end = System.nanoTime();
+            BPFProgram loaded = program; // private fields are not accessible via S
+            loaded.loadTimings = new LoadTimings(Duration.ofNanos(checked - start),
+                    Duration.ofNanos(loaded.openNanos), Duration.ofNanos(loaded.objectLoadNanos),
+                    Duration.ofNanos(globalsInitialized - constructed), Duration.ofNanos(end - globalsInitialized),
+                    Duration.ofNanos(end - start));
             var evt = new BPFEvents.ProgramLoad();
             if (evt.isEnabled()) {
                 evt.programClass = clazz.getName();
-                evt.durationMs = System.currentTimeMillis() - t0;
+                evt.durationMs = (end - checked) / 1_000_000;
+                evt.checks = checked - start;
+                evt.open = loaded.openNanos;
+                evt.objectLoad = loaded.objectLoadNanos;
+                evt.globals = globalsInitialized - constructed;
+                evt.structOps = end - globalsInitialized;
+                evt.factory = viaFactory;
                 evt.commit();
             }
+            System.Logger logger = System.getLogger(BPFProgram.class.getName());
+            if (logger.isLoggable(System.Logger.Level.DEBUG)) {
+                logger.log(System.Logger.Level.DEBUG, "Loaded {0}: byteCodeHash={1}, {2}",
+                        clazz.getSimpleName(), program.byteCodeHash(), loaded.loadTimings);
+            }
             return program;
         } catch (BPFError e) {
             throw e;
         } catch (InvocationTargetException e) {
+            // Constructor.newInstance() wraps user-thrown exceptions; unwrap so
+            // BPFLoadError / BPFVerifierException propagate to the caller as-is.
             Throwable cause = e.getCause();
-            if (cause instanceof BPFError be) throw be;
+            if (cause instanceof BPFError be) {
+                throw be;
+            }
             throw new RuntimeException(cause != null ? cause : e);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Time spent in the phases of loading this program. Checks, global initialization and
+     * struct_ops are zero unless the program was loaded via {@link #load}.
+     */
+    public LoadTimings loadTimings() {
+        if (loadTimings != null) {
+            return loadTimings;
+        }
+        return new LoadTimings(Duration.ZERO, Duration.ofNanos(openNanos), Duration.ofNanos(objectLoadNanos),
+                Duration.ZERO, Duration.ZERO, Duration.ofNanos(openNanos + objectLoadNanos));
+    }
 
+    private long openNanos;
+    private long objectLoadNanos;
+    private @Nullable LoadTimings loadTimings;
 
     /**
      * The eBPF object, struct bpf_object *ebpf_object
@@ -319,7 +431,8 @@ public abstract class BPFProgram implements AutoCloseable {
      */
     public record BPFLink(MemorySegment segment) {}
 
-    private final Set<BPFLink> attachedPrograms = new HashSet<>();
+    /** Synchronized, as {@link BPFProgramGroup#autoAttachConcurrently()} attaches from several threads. */
+    private final Set<BPFLink> attachedPrograms = Collections.synchronizedSet(new HashSet<>());
     private final Set<Integer> openedFDs = new HashSet<>();
 
     private final Set<BPFMap> attachedMaps = new HashSet<>();
@@ -415,7 +528,9 @@ public abstract class BPFProgram implements AutoCloseable {
      * preserving the historical "open + load in constructor" behavior.
      */
     public BPFProgram() {
+        long start = System.nanoTime();
         this.ebpf_object = openProgram();
+        this.openNanos = System.nanoTime() - start;
         // Shutdown hook bypasses the dependent-tracking guard: at JVM shutdown
         // the producer's and consumer's hooks run concurrently, so the producer
         // can't reliably observe the consumer disappearing first. The guard is
@@ -578,7 +693,9 @@ public abstract class BPFProgram implements AutoCloseable {
         // discard any prior libbpf chatter so the captured log only contains
         // messages emitted during this bpf_object__load call
         VerifierLogCapture.drainAndReset();
+        long start = System.nanoTime();
         var ret = BPF_OBJECT__LOAD.call(this.ebpf_object);
+        objectLoadNanos = System.nanoTime() - start;
         if (ret.hasError() && ret.result() != 0) {
             String shortMsg = "Failed to load eBPF object: " + Util.errnoString(ret.err());
             String log = VerifierLogCapture.drainAndReset();
@@ -1500,6 +1617,8 @@ public abstract class BPFProgram implements AutoCloseable {
      * @throws BPFAttachError when attaching fails
      */
     public BPFLink autoAttachProgram(ProgramHandle prog) {
+        var evt = new BPFEvents.ProgramAttach();
+        evt.begin();
         var ret = BPF_PROGRAM__ATTACH.call(prog.prog());
         if (ret.result() == MemorySegment.NULL) {
             throw new BPFAttachError(prog.name, ret.err());
@@ -1509,7 +1628,6 @@ public abstract class BPFProgram implements AutoCloseable {
             throw new BPFAttachError(prog.name, ret.err());
         }
         attachedPrograms.add(link);
-        var evt = new BPFEvents.ProgramAttach();
         if (evt.isEnabled()) {
             evt.programName = prog.name;
             evt.section = prog.name;
@@ -1544,8 +1662,18 @@ public abstract class BPFProgram implements AutoCloseable {
      * @return
      */
     public BPFProgram autoAttachPrograms() {
+        autoAttachSteps().forEach(Runnable::run);
+        return this;
+    }
+
+    /**
+     * One step per program that {@link #autoAttachPrograms()} attaches; the steps are
+     * independent, so {@link BPFProgramGroup#autoAttachConcurrently()} may run them at once.
+     */
+    List<Runnable> autoAttachSteps() {
         var lsmNames = getLSMProgramNames();
         var multiNames = getMultiAttachProgramNames();
+        var steps = new ArrayList<Runnable>();
         for (var name : getAllAutoAttachablePrograms()) {
             if (multiNames.contains(name)) {
                 // Multi-attach programs cannot be attached via bpf_program__attach.
@@ -1561,12 +1689,12 @@ public abstract class BPFProgram implements AutoCloseable {
                 continue;
             }
             if (lsmNames.contains(name)) {
-                attachLSMHook(getProgramByName(name));
+                steps.add(() -> attachLSMHook(getProgramByName(name)));
             } else {
-                autoAttachProgram(name);
+                steps.add(() -> autoAttachProgram(name));
             }
         }
-        return this;
+        return steps;
     }
 
     /** Names of programs whose section marks them as multi-attach. */
@@ -0,0 +1,34 @@
+package me.bechberger.ebpf.bpf;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Creates the generated implementation of one {@code @BPF} class without reflection.
+ *
+ * <p>The annotation processor emits an implementation as the nested {@code ImplFactory} class
+ * of every generated {@code ...Impl} class and lists it in
+ * {@code META-INF/services/me.bechberger.ebpf.bpf.BPFProgramFactory}.
+ * {@link BPFProgram#load(Class)} and friends look the factory up there and only fall back to
+ * {@code Class.forName} and reflective constructor calls for classes compiled without it.
+ * GraalVM native-image registers service providers on its own, so loading programs needs no
+ * reflection configuration.
+ */
+public interface BPFProgramFactory {
+
+    /** The abstract {@code @BPF} class. */
+    Class<? extends BPFProgram> programClass();
+
+    /** The generated implementation of {@link #programClass()}. */
+    Class<? extends BPFProgram> implClass();
+
+    /** The generated C code, see {@link BPFProgram#getCode(Class)}. */
+    String code();
+
+    /**
+     * Create (and thereby load) the program; {@code producers} are the programs its
+     * {@code @SharedFrom} maps come from, in the order of the generated constructor.
+     *
+     * @return the program, or null if the producers don't match the generated constructor
+     */
+    @Nullable BPFProgram create(BPFProgram... producers);
+}
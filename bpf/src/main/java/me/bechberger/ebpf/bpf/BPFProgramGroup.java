@@ -5,7 +5,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * Bundle of cooperating {@link BPFProgram} instances that share pinned maps via
@@ -23,6 +29,10 @@ import java.util.concurrent.atomic.AtomicBoolean;
  *     grp.runUntilInterrupted();
  * }
  * }</pre>
+ *
+ * <p>Independent programs load faster together: {@link #loadConcurrently} runs their
+ * verifier passes in parallel, and {@link #autoAttachConcurrently()} attaches all their
+ * entry points at once. {@link BPFProgram#loadTimings()} tells where the load time went.
  */
 public final class BPFProgramGroup implements AutoCloseable {
 
@@ -54,6 +64,94 @@ public final class BPFProgramGroup implements AutoCloseable {
         return new BPFProgramGroup(list);
     }
 
+    /**
+     * Load independent programs concurrently, one thread per program (at most one per
+     * processor), and group them in the given order. If a load fails, the programs loaded so
+     * far are closed and the first failure is thrown, with the others suppressed.
+     *
+     * <p>Consumers with {@code @SharedFrom} need their producers when they load; load them
+     * afterward via {@link BPFProgram#load(Class, BPFProgram...)} and group all with
+     * {@link #of}.
+     */
+    @SafeVarargs
+    public static BPFProgramGroup loadConcurrently(Class<? extends BPFProgram>... classes) {
+        if (classes.length == 0) throw new IllegalArgumentException("at least one program class is required");
+        var loads = new ArrayList<Callable<BPFProgram>>(classes.length);
+        for (var clazz : classes) {
+            if (clazz == null) throw new IllegalArgumentException("program class must not be null");
+            loads.add(() -> BPFProgram.load(clazz));
+        }
+        return new BPFProgramGroup(runConcurrently("load", loads, BPFProgram::close));
+    }
+
+    /**
+     * Auto-attach the entry points of all members at once; same as calling
+     * {@link BPFProgram#autoAttachPrograms()} on each, which attaches one after the other.
+     * Useful for programs with many kprobes or tracepoints, whose attach calls each take a
+     * syscall round trip or more. On failure the attached entry points stay attached until
+     * their program is closed, and the first failure is thrown with the others suppressed.
+     */
+    public BPFProgramGroup autoAttachConcurrently() {
+        var steps = new ArrayList<Callable<Void>>();
+        for (var p : members) {
+            for (var step : p.autoAttachSteps()) {
+                steps.add(() -> {
+                    step.run();
+                    return null;
+                });
+            }
+        }
+        runConcurrently("attach", steps, ignored -> {});
+        return this;
+    }
+
+    /**
+     * Run {@code tasks} on up to one thread per processor and return their results in order.
+     * If any fails, {@code undo} is applied to the results of the others and the first
+     * failure is thrown.
+     */
+    private static <T> List<T> runConcurrently(String what, List<Callable<T>> tasks, Consumer<T> undo) {
+        var counter = new AtomicInteger();
+        int threads = Math.max(1, Math.min(tasks.size(), Runtime.getRuntime().availableProcessors()));
+        var futures = new ArrayList<Future<T>>(tasks.size());
+        try (var executor = Executors.newFixedThreadPool(threads, r -> {
+            var thread = new Thread(r, "bpf-" + what + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        })) {
+            for (var task : tasks) {
+                futures.add(executor.submit(task));
+            }
+        }
+        List<T> results = new ArrayList<>(tasks.size());
+        List<Throwable> failures = new ArrayList<>();
+        for (var future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                failures.add(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failures.add(e);
+            }
+        }
+        if (failures.isEmpty()) {
+            return results;
+        }
+        for (var result : results) {
+            try {
+                undo.accept(result);
+            } catch (Throwable t) {
+                failures.add(t);
+            }
+        }
+        var first = failures.get(0);
+        RuntimeException re = first instanceof RuntimeException r ? r
+                : new RuntimeException("BPFProgramGroup " + what + " failed", first);
+        for (int i = 1; i < failures.size(); i++) re.addSuppressed(failures.get(i));
+        throw re;
+    }
+
     /** Members in load order (producers first). */
     public List<BPFProgram> members() {
         return Collections.unmodifiableList(members);
@@ -0,0 +1,467 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf;
+
+import me.bechberger.ebpf.annotations.BoundedBy;
+import me.bechberger.ebpf.annotations.Unsigned;
+import me.bechberger.ebpf.annotations.bpf.BPF;
+import me.bechberger.ebpf.annotations.bpf.BPFFunction;
+import me.bechberger.ebpf.annotations.bpf.BPFMapDefinition;
+import me.bechberger.ebpf.bpf.map.BPFArray;
+import me.bechberger.ebpf.bpf.map.BPFHashMap;
+import me.bechberger.ebpf.bpf.map.BPFPerCpuArray;
+import me.bechberger.ebpf.bpf.sched.DispatchQueue;
+import me.bechberger.ebpf.bpf.sched.EnqFlags;
+import me.bechberger.ebpf.bpf.userspace.CpuTopology;
+import me.bechberger.ebpf.runtime.runtime.cpumask;
+import me.bechberger.ebpf.type.Ptr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static me.bechberger.ebpf.runtime.BpfDefinitions.bpf_cpumask_test_cpu;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_bpf_create_dsq;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_bpf_get_idle_smtmask;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_bpf_pick_idle_cpu;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_bpf_put_idle_cpumask;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_bpf_select_cpu_dfl;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_bpf_task_cpu;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_bpf_test_and_clear_cpu_idle;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_public_consts.SCX_SLICE_DFL;
+import static me.bechberger.ebpf.runtime.TaskDefinitions.task_struct;
+
+/**
+ * Convenience base class for weighted-vtime sched-ext schedulers with one DSQ per last-level
+ * cache (LLC) and work stealing between them.
+ *
+ * <p>{@link SchedulerBase} funnels every CPU through one shared DSQ, whose lock becomes the
+ * bottleneck on large machines; {@link PerCpuSchedulerBase} removes the lock but never moves
+ * work between CPUs. This base sits in between: CPUs sharing an LLC share a vtime-ordered DSQ,
+ * and a CPU whose own LLC queue is empty steals from the nearest non-empty one.
+ *
+ * <p>Layout:
+ * <ul>
+ *   <li>DSQ {@code LLC_DSQ_BASE + llc} — vtime-ordered queue of each LLC domain
+ *       ({@link CpuTopology} domain ids).</li>
+ *   <li>DSQ {@link #SHARED_DSQ_ID} ({@code 0}) — last-resort fallback; empty unless a subclass
+ *       inserts into it.</li>
+ * </ul>
+ *
+ * <p>Callbacks:
+ * <ul>
+ *   <li>{@link #enqueue} — inserts into the DSQ of the LLC of the task's CPU, clamped against that
+ *       LLC's vtime clock so a long sleeper cannot bank more than one slice of credit.</li>
+ *   <li>{@link #dispatch} — drains the own LLC first, then walks the steal order (LLCs on the
+ *       same NUMA node first, then the rest), skipping empty DSQs without taking their lock.</li>
+ *   <li>{@link #running}/{@link #stopping} — advance the per-LLC clock and charge the used slice
+ *       scaled by the inverse of the task's weight.</li>
+ * </ul>
+ *
+ * <p>The clocks of different LLCs are independent; a stolen task keeps its vtime and is clamped
+ * against its new LLC's clock on the next enqueue.
+ *
+ * <p>On SMT machines {@link #selectCPU} is core-aware: it prefers the previous CPU if its whole
+ * core is idle, then any fully idle core, and keeps tasks for which {@link #isNoisy} holds off
+ * cores whose sibling is busy, and quiet tasks off siblings of noisy ones. By default a task is
+ * noisy when its process was marked with {@link #markNoisy(int)}; override {@link #isNoisy} to
+ * classify differently. User-space schedulers get the same rules from {@code SmtPlacement}.
+ *
+ * <p>The topology is pushed into BPF maps by {@link #configureTopology(CpuTopology)}, which
+ * {@link #attachScheduler()} calls with {@link CpuTopology#detect()} unless a topology was
+ * configured before. Without cache information every CPU lands in LLC 0 and the scheduler
+ * degenerates to a single global vtime queue.
+ *
+ * <pre>{@code
+ * @BPF(license = "GPL")
+ * @Property(name = "sched_name", value = "my_llc_sched")
+ * public abstract class MyScheduler extends LlcVtimeSchedulerBase {
+ *     // enqueue/dispatch/running/stopping are inherited; override to customise
+ * }
+ * }</pre>
+ */
+@BPF(license = "GPL")
+public abstract class LlcVtimeSchedulerBase extends SchedulerBase implements Scheduler {
+
+    /** DSQ IDs for per-LLC queues start at this offset. LLC {@code n} uses {@code LLC_DSQ_BASE + n}. */
+    public static final long LLC_DSQ_BASE = 1L;
+
+    /** Maximum number of CPUs supported. Must be at least as large as the host CPU count. */
+    public static final int MAX_CPUS = 512;
+
+    /** Maximum number of LLC domains supported; also bounds the steal loop. */
+    public static final int MAX_LLCS = 64;
+
+    /** Maximum SMT siblings per core besides the CPU itself tracked in {@code cpuSiblings}. */
+    public static final int MAX_SIBLINGS = 7;
+
+    /** {@code cpuOccupant} values: idle, running a quiet task, running a noisy task. */
+    public static final int OCCUPANT_NONE = 0;
+    public static final int OCCUPANT_QUIET = 1;
+    public static final int OCCUPANT_NOISY = 2;
+
+    /** {@code scx_pick_idle_cpu_flags.SCX_PICK_IDLE_CORE}: only pick CPUs of fully idle cores. */
+    private static final long PICK_IDLE_CORE = 1;
+
+    /** {@link #selectCpuSmt} results besides a CPU: use the kernel default, or queue without picking. */
+    private static final int SMT_FALLBACK = -1;
+    private static final int SMT_QUEUE = -2;
+
+    /** Per-CPU dispatch counter indices in {@code llcDispatchCounts}. */
+    public static final int DISPATCH_LOCAL = 0;
+    public static final int DISPATCH_STOLEN = 1;
+    public static final int DISPATCH_SHARED = 2;
+
+    /** Number of LLC domains; set by {@link #configureTopology(CpuTopology)} before attaching. */
+    final GlobalVariable<Integer> nrLlcs = new GlobalVariable<>(1);
+
+    /** {@code cpuToLlc[cpu]} is the LLC domain of {@code cpu}; unset CPUs map to LLC 0. */
+    @BPFMapDefinition(maxEntries = MAX_CPUS)
+    protected BPFArray<Integer> cpuToLlc;
+
+    /**
+     * Row {@code llc} ({@code MAX_LLCS} entries starting at {@code llc * MAX_LLCS}) lists the
+     * other LLCs in the order an idle CPU of {@code llc} steals from them.
+     */
+    @BPFMapDefinition(maxEntries = MAX_LLCS * MAX_LLCS)
+    protected BPFArray<Integer> llcStealOrder;
+
+    /** Virtual clock of each LLC: the largest vtime of a task that started running there. */
+    @BPFMapDefinition(maxEntries = MAX_LLCS)
+    protected BPFArray<@Unsigned Long> llcVtimeNow;
+
+    /** Hardware threads of the largest core; SMT-aware selection is off when it is 1. */
+    final GlobalVariable<Integer> smtThreads = new GlobalVariable<>(1);
+
+    /**
+     * Row {@code cpu} ({@code MAX_SIBLINGS} entries starting at {@code cpu * MAX_SIBLINGS})
+     * lists the other SMT siblings of {@code cpu}, terminated by -1 if shorter.
+     */
+    @BPFMapDefinition(maxEntries = MAX_CPUS * MAX_SIBLINGS)
+    protected BPFArray<Integer> cpuSiblings;
+
+    /** What each CPU runs: {@link #OCCUPANT_NONE}, {@link #OCCUPANT_QUIET} or {@link #OCCUPANT_NOISY}. */
+    @BPFMapDefinition(maxEntries = MAX_CPUS)
+    protected BPFArray<Integer> cpuOccupant;
+
+    /** Processes (tgids) whose tasks the default {@link #isNoisy} reports; value is ignored. */
+    @BPFMapDefinition(maxEntries = 4096)
+    protected BPFHashMap<Integer, Byte> noisyTgids;
+
+    /** Per-CPU dispatch sources, indexed by {@link #DISPATCH_LOCAL} and friends. */
+    @BPFMapDefinition(maxEntries = 3)
+    protected BPFPerCpuArray<Long> llcDispatchCounts;
+
+    private volatile CpuTopology topology;
+
+    /**
+     * Creates the shared DSQ and one vtime DSQ per LLC. Subclasses that override
+     * {@code init()} should call {@code super.init()} first and propagate a
+     * non-zero return value.
+     */
+    @Override
+    @me.bechberger.ebpf.annotations.bpf.Sleepable
+    public int init() {
+        int ret = scx_bpf_create_dsq(SHARED_DSQ_ID, -1);
+        if (ret < 0) return ret;
+        int n = nrLlcs.get();
+        for (@BoundedBy(MAX_LLCS) int llc = 0; llc < n; llc++) {
+            ret = scx_bpf_create_dsq(LLC_DSQ_BASE + llc, -1);
+            if (ret < 0) return ret;
+        }
+        return 0;
+    }
+
+    /** LLC domain of {@code cpu}. */
+    @BPFFunction
+    protected int llcOf(int cpu) {
+        Ptr<Integer> llc = cpuToLlc.bpf_get(cpu);
+        if (llc == null) return 0;
+        return llc.val();
+    }
+
+    /** Current virtual clock of {@code llc}. */
+    @BPFFunction
+    protected @Unsigned long llcVtime(int llc) {
+        Ptr<@Unsigned Long> now = llcVtimeNow.bpf_get(llc);
+        if (now == null) return 0;
+        return now.val();
+    }
+
+    /**
+     * Whether {@code p} interferes with tasks on its SMT sibling (or suffers from them being
+     * busy). Default: its process was marked with {@link #markNoisy(int)}.
+     */
+    @BPFFunction
+    protected boolean isNoisy(Ptr<task_struct> p) {
+        int tgid = p.val().tgid;
+        return noisyTgids.bpf_get(tgid) != null;
+    }
+
+    /**
+     * Whether a sibling of {@code cpu} runs a task that conflicts with the one to place: any
+     * task if that one is {@code noisy}, otherwise only a noisy task.
+     */
+    @BPFFunction
+    protected boolean siblingConflict(int cpu, boolean noisy) {
+        for (@BoundedBy(MAX_SIBLINGS) int i = 0; i < MAX_SIBLINGS; i++) {
+            int slot = cpu * MAX_SIBLINGS + i;
+            Ptr<Integer> sibling = cpuSiblings.bpf_get(slot);
+            if (sibling == null || sibling.val() < 0) break;
+            int s = sibling.val();
+            Ptr<Integer> occupant = cpuOccupant.bpf_get(s);
+            if (occupant != null && (occupant.val() == OCCUPANT_NOISY
+                    || (noisy && occupant.val() != OCCUPANT_NONE))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Core-aware pick: {@code prev_cpu} if its whole core is idle, any CPU of a fully idle
+     * core, then {@code prev_cpu} if idle without a conflicting sibling. Claims the CPU it
+     * returns. Otherwise {@link #SMT_QUEUE} for a noisy task, which then waits in its LLC queue
+     * rather than landing next to a busy sibling, or {@link #SMT_FALLBACK} for a quiet one.
+     */
+    @BPFFunction
+    protected int selectCpuSmt(Ptr<task_struct> p, int prev_cpu) {
+        boolean noisy = isNoisy(p);
+        boolean allowed = bpf_cpumask_test_cpu(prev_cpu, p.directVal().cpus_ptr);
+        Ptr<cpumask> idleCores = scx_bpf_get_idle_smtmask();
+        boolean prevCoreIdle = bpf_cpumask_test_cpu(prev_cpu, idleCores);
+        scx_bpf_put_idle_cpumask(idleCores);
+        if (allowed && prevCoreIdle && scx_bpf_test_and_clear_cpu_idle(prev_cpu)) {
+            return prev_cpu;
+        }
+        int cpu = scx_bpf_pick_idle_cpu(p.directVal().cpus_ptr, PICK_IDLE_CORE);
+        if (cpu >= 0) {
+            return cpu;
+        }
+        if (allowed && !siblingConflict(prev_cpu, noisy) && scx_bpf_test_and_clear_cpu_idle(prev_cpu)) {
+            return prev_cpu;
+        }
+        if (noisy) {
+            return SMT_QUEUE;
+        }
+        return SMT_FALLBACK;
+    }
+
+    /**
+     * On SMT machines tries {@link #selectCpuSmt} first; otherwise picks an idle CPU via the
+     * kernel default. Dispatches straight to the chosen CPU if it was idle.
+     */
+    @Override
+    public int selectCPU(Ptr<task_struct> p, int prev_cpu, long wake_flags) {
+        if (smtThreads.get() > 1) {
+            int picked = selectCpuSmt(p, prev_cpu);
+            if (picked >= 0) {
+                DispatchQueue.local().insert(p, SCX_SLICE_DFL.value(), EnqFlags.empty());
+                return picked;
+            }
+            if (picked == SMT_QUEUE) {
+                return prev_cpu;
+            }
+        }
+        boolean is_idle = false;
+        int cpu = scx_bpf_select_cpu_dfl(p, prev_cpu, wake_flags, Ptr.of(is_idle));
+        DispatchQueue.insertToLocalIfIdle(p, is_idle, SCX_SLICE_DFL.value());
+        return cpu;
+    }
+
+    /** Inserts {@code p} into the vtime DSQ of the LLC of the CPU it last ran on. */
+    @Override
+    public void enqueue(Ptr<task_struct> p, long enq_flags) {
+        int llc = llcOf(scx_bpf_task_cpu(p));
+        @Unsigned long now = llcVtime(llc);
+        DispatchQueue.attach(LLC_DSQ_BASE + llc).insertVtimeClamped(p, now, EnqFlags.passThrough(enq_flags));
+    }
+
+    /**
+     * Drains the DSQ of {@code cpu}'s LLC; if that is empty, steals from the first non-empty
+     * LLC in the steal order, and finally falls back to {@link #SHARED_DSQ_ID}.
+     */
+    @Override
+    public void dispatch(int cpu, Ptr<task_struct> prev) {
+        int llc = llcOf(cpu);
+        if (DispatchQueue.attach(LLC_DSQ_BASE + llc).moveToLocal()) {
+            SchedulerStats.incrementDispatchedAt(llcDispatchCounts, DISPATCH_LOCAL);
+            return;
+        }
+        int others = nrLlcs.get() - 1;
+        for (@BoundedBy(MAX_LLCS) int i = 0; i < others; i++) {
+            int slot = llc * MAX_LLCS + i;
+            Ptr<Integer> victim = llcStealOrder.bpf_get(slot);
+            if (victim == null) break;
+            long dsq = LLC_DSQ_BASE + victim.val();
+            // The queue length is read without the DSQ lock: only contend for queues with work
+            if (DispatchQueue.attach(dsq).nonEmpty() && DispatchQueue.attach(dsq).moveToLocal()) {
+                SchedulerStats.incrementDispatchedAt(llcDispatchCounts, DISPATCH_STOLEN);
+                return;
+            }
+        }
+        if (DispatchQueue.attach(SHARED_DSQ_ID).moveToLocal()) {
+            SchedulerStats.incrementDispatchedAt(llcDispatchCounts, DISPATCH_SHARED);
+        }
+    }
+
+    /**
+     * Advances the LLC clock to {@code p}'s vtime; racy across CPUs of one LLC, which is harmless.
+     * On SMT machines also records whether the CPU now runs a noisy task.
+     */
+    @Override
+    public void running(Ptr<task_struct> p) {
+        int cpu = scx_bpf_task_cpu(p);
+        if (smtThreads.get() > 1) {
+            Ptr<Integer> occupant = cpuOccupant.bpf_get(cpu);
+            if (occupant != null) {
+                occupant.set(isNoisy(p) ? OCCUPANT_NOISY : OCCUPANT_QUIET);
+            }
+        }
+        int llc = llcOf(cpu);
+        Ptr<@Unsigned Long> now = llcVtimeNow.bpf_get(llc);
+        @Unsigned long vtime = p.val().scx.dsq_vtime;
+        if (now != null && isSmaller(now.val(), vtime)) {
+            now.set(vtime);
+        }
+    }
+
+    /** Charges the consumed part of the slice, scaled by the inverse of {@code p}'s weight. */
+    @Override
+    public void stopping(Ptr<task_struct> p, boolean runnable) {
+        if (smtThreads.get() > 1) {
+            int cpu = scx_bpf_task_cpu(p);
+            Ptr<Integer> occupant = cpuOccupant.bpf_get(cpu);
+            if (occupant != null) {
+                occupant.set(OCCUPANT_NONE);
+            }
+        }
+        vtimeCharge(p);
+    }
+
+    /** Starts a new task at the clock of its LLC. */
+    @Override
+    public void enable(Ptr<task_struct> p) {
+        p.val().scx.dsq_vtime = llcVtime(llcOf(scx_bpf_task_cpu(p)));
+    }
+
+    // ---- Java-side API ----
+
+    /**
+     * Writes {@code topo}'s LLC domains, steal order and SMT siblings into the BPF maps. Must be called before
+     * the scheduler is attached, as {@code init()} creates the DSQs from it.
+     *
+     * @throws IllegalArgumentException if {@code topo} exceeds {@link #MAX_CPUS} or {@link #MAX_LLCS},
+     *                                  or has cores of more than {@code MAX_SIBLINGS + 1} threads
+     */
+    public void configureTopology(CpuTopology topo) {
+        if (topo.nrCpus() > MAX_CPUS || topo.nrDomains() > MAX_LLCS) {
+            throw new IllegalArgumentException("topology of " + topo.nrCpus() + " CPUs and "
+                    + topo.nrDomains() + " LLCs exceeds " + MAX_CPUS + " CPUs / " + MAX_LLCS + " LLCs");
+        }
+        if (topo.maxThreadsPerCore() > MAX_SIBLINGS + 1) {
+            throw new IllegalArgumentException("cores of " + topo.maxThreadsPerCore()
+                    + " threads exceed " + (MAX_SIBLINGS + 1));
+        }
+        for (int cpu = 0; cpu < topo.nrCpus(); cpu++) {
+            cpuToLlc.set(cpu, topo.domainOfCpu(cpu));
+        }
+        int[][] order = stealOrder(topo);
+        for (int llc = 0; llc < order.length; llc++) {
+            for (int i = 0; i < order[llc].length; i++) {
+                llcStealOrder.set(llc * MAX_LLCS + i, order[llc][i]);
+            }
+        }
+        for (int cpu = 0; cpu < topo.nrCpus(); cpu++) {
+            int[] row = siblingRow(topo, cpu);
+            for (int i = 0; i < row.length; i++) {
+                cpuSiblings.set(cpu * MAX_SIBLINGS + i, row[i]);
+            }
+        }
+        nrLlcs.set(topo.nrDomains());
+        smtThreads.set(topo.maxThreadsPerCore());
+        topology = topo;
+    }
+
+    /** Topology passed to {@link #configureTopology(CpuTopology)}, or {@code null} before. */
+    public CpuTopology topology() {
+        return topology;
+    }
+
+    /**
+     * For each LLC, the other LLCs in steal order: those on the same NUMA node first, then the
+     * rest, each group starting after the LLC itself and wrapping around so that different LLCs
+     * do not all probe the same victim first.
+     */
+    public static int[][] stealOrder(CpuTopology topo) {
+        int n = topo.nrDomains();
+        int[] node = new int[n];
+        for (int d = 0; d < n; d++) {
+            node[d] = topo.nodeOfCpu(topo.cpuMask(d).nextSetBit(0));
+        }
+        int[][] order = new int[n][];
+        for (int d = 0; d < n; d++) {
+            List<Integer> near = new ArrayList<>();
+            List<Integer> far = new ArrayList<>();
+            for (int k = 1; k < n; k++) {
+                int other = (d + k) % n;
+                (node[other] == node[d] ? near : far).add(other);
+            }
+            near.addAll(far);
+            order[d] = near.stream().mapToInt(Integer::intValue).toArray();
+        }
+        return order;
+    }
+
+    /**
+     * Row of {@code cpuSiblings} for {@code cpu}: its other SMT siblings, followed by -1 if
+     * there are fewer than {@link #MAX_SIBLINGS}.
+     */
+    public static int[] siblingRow(CpuTopology topo, int cpu) {
+        int[] siblings = topo.siblingsOf(cpu);
+        if (siblings.length >= MAX_SIBLINGS) return siblings;
+        int[] row = Arrays.copyOf(siblings, siblings.length + 1);
+        row[siblings.length] = -1;
+        return row;
+    }
+
+    /** Marks the tasks of process {@code tgid} as noisy for the default {@link #isNoisy}. */
+    public void markNoisy(int tgid) {
+        noisyTgids.put(tgid, (byte) 1);
+    }
+
+    /** Undoes {@link #markNoisy(int)}. */
+    public void unmarkNoisy(int tgid) {
+        noisyTgids.delete(tgid);
+    }
+
+    /** Configures the detected topology unless one was configured explicitly, then attaches. */
+    @Override
+    public void attachScheduler() {
+        if (topology == null) {
+            configureTopology(CpuTopology.detect());
+        }
+        Scheduler.super.attachScheduler();
+    }
+
+    /** Attaches (if not done yet) and blocks until the scheduler detaches. */
+    @Override
+    public void runSchedulerLoop() {
+        attachScheduler();
+        super.runSchedulerLoop();
+    }
+
+    /** Tasks dispatched from their own LLC's DSQ, summed over all CPUs. */
+    public long localDispatches() {
+        return SchedulerStats.totalDispatchedAt(llcDispatchCounts, DISPATCH_LOCAL);
+    }
+
+    /** Tasks stolen from another LLC's DSQ, summed over all CPUs. */
+    public long stolenDispatches() {
+        return SchedulerStats.totalDispatchedAt(llcDispatchCounts, DISPATCH_STOLEN);
+    }
+
+    /** Tasks dispatched from the shared fallback DSQ, summed over all CPUs. */
+    public long sharedDispatches() {
+        return SchedulerStats.totalDispatchedAt(llcDispatchCounts, DISPATCH_SHARED);
+    }
+}
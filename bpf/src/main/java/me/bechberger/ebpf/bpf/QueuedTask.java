@@ -97,6 +97,31 @@ public final class QueuedTask {
         }
     }
 
+    /**
+     * Inverse of {@link #fillFromSegment}: serialize {@code in} into the wire layout of BPF's
+     * {@code queued_task_ctx}. Writes the extension tail too when {@code seg} has room for it.
+     * Used by the trace recorder for tasks that did not arrive as a raw ring record.
+     *
+     * @param in  task to serialize
+     * @param seg target segment; must be at least 88 bytes
+     */
+    public static void writeToSegment(QueuedTask in, MemorySegment seg) {
+        seg.set(ValueLayout.JAVA_INT,  QT_PID,           in.pid);
+        seg.set(ValueLayout.JAVA_INT,  QT_PREV_CPU,      in.prevCpu);
+        seg.set(ValueLayout.JAVA_LONG, QT_NR_CPUS_ALLOW, in.nrCpusAllowed);
+        seg.set(ValueLayout.JAVA_LONG, QT_FLAGS,         in.flags);
+        seg.set(ValueLayout.JAVA_LONG, QT_START_TS,      in.startTs);
+        seg.set(ValueLayout.JAVA_LONG, QT_STOP_TS,       in.stopTs);
+        seg.set(ValueLayout.JAVA_LONG, QT_EXEC_RUNTIME,  in.execRuntime);
+        seg.set(ValueLayout.JAVA_LONG, QT_WEIGHT,        in.weight);
+        seg.set(ValueLayout.JAVA_LONG, QT_VTIME,         in.vtime);
+        seg.set(ValueLayout.JAVA_LONG, QT_ENQ_CNT,       in.enqCnt);
+        MemorySegment.copy(in.comm, 0, seg, ValueLayout.JAVA_BYTE, QT_COMM, 16);
+        if (seg.byteSize() >= QT_SIZEOF + EXT_CAP) {
+            MemorySegment.copy(in.extBytes, 0, seg, ValueLayout.JAVA_BYTE, QT_SIZEOF, EXT_CAP);
+        }
+    }
+
     /**
      * Returns a deep copy of this task that is safe to retain across batch boundaries.
      *
@@ -55,18 +55,24 @@ import static me.bechberger.ebpf.runtime.TaskDefinitions.task_struct;
                 	scx_bpf_error_bstr(___fmt, ___param, sizeof(___param));			\\
                 })
 
-                /* Linux PF_KTHREAD flag, referenced by hasSchedulingConstraints() below.
+                /* Linux PF_KTHREAD flag, referenced by hasSchedulingConstraints() below,
+                 * and PF_KSWAPD, referenced by UserspaceSchedulerBase.initTask().
                  * Emitted here (rather than relying on plugin constant emission from the
                  * PerProcessFlags inner class) so it precedes the first use in the file. */
                 #ifndef PF_KTHREAD
                 #define PF_KTHREAD 0x00200000
                 #endif
+                #ifndef PF_KSWAPD
+                #define PF_KSWAPD 0x00020000
+                #endif
                 """
 )
 public interface SchedulerHelpers {
 
     /** Subset of Linux {@code PF_*} process flags actually referenced by hello-ebpf schedulers. */
     final class PerProcessFlags {
+        /** I am kswapd. */
+        public static final int PF_KSWAPD = 0x00020000;
         /** I am a kernel thread. */
         public static final int PF_KTHREAD = 0x00200000;
     }
@@ -1,6 +1,7 @@
 // SPDX-License-Identifier: GPL-2.0
 package me.bechberger.ebpf.bpf;
 
+import me.bechberger.ebpf.annotations.BoundedBy;
 import me.bechberger.ebpf.annotations.InArena;
 import me.bechberger.ebpf.annotations.Size;
 import me.bechberger.ebpf.annotations.Type;
@@ -14,14 +15,19 @@ import me.bechberger.ebpf.bpf.map.BPFArray;
 import me.bechberger.ebpf.bpf.map.BPFArena;
 import me.bechberger.ebpf.bpf.map.BPFHashMap;
 import me.bechberger.ebpf.bpf.map.BPFHistogram;
+import me.bechberger.ebpf.bpf.map.BPFMmapArray;
 import me.bechberger.ebpf.bpf.map.BPFRingBuffer;
 import me.bechberger.ebpf.bpf.map.BPFTaskStorage;
 import me.bechberger.ebpf.bpf.map.BPFUserRingBuffer;
 import me.bechberger.ebpf.bpf.sched.DispatchQueue;
 import me.bechberger.ebpf.bpf.sched.EnqFlags;
+import me.bechberger.ebpf.bpf.probe.ProbeContext;
 import me.bechberger.ebpf.bpf.sched.KickFlags;
+import me.bechberger.ebpf.bpf.userspace.Signal.SignalKind;
 import me.bechberger.ebpf.runtime.BpfDefinitions.bpf_timer;
 import me.bechberger.ebpf.runtime.MmConstants;
+import me.bechberger.ebpf.runtime.PtDefinitions.pt_regs;
+import me.bechberger.ebpf.runtime.ScxDefinitions.scx_exit_task_args;
 import me.bechberger.ebpf.runtime.ScxDefinitions.scx_init_task_args;
 import me.bechberger.ebpf.type.Ptr;
 
@@ -29,16 +35,20 @@ import java.lang.foreign.MemorySegment;
 import java.lang.foreign.ValueLayout;
 import java.util.Map;
 
+import static me.bechberger.ebpf.bpf.BPFJ.bpf_get_attach_cookie;
 import static me.bechberger.ebpf.bpf.BPFJ.bpf_probe_read_kernel_str;
 import static me.bechberger.ebpf.bpf.BPFJ.bpfArenaAllocPages;
+import static me.bechberger.ebpf.bpf.BPFJ.currentCpuId;
 import static me.bechberger.ebpf.bpf.BPFJ.currentNs;
 import static me.bechberger.ebpf.bpf.BPFJ.sync_fetch_and_add;
 import static me.bechberger.ebpf.runtime.BpfDefinitions.bpf_cpumask_test_cpu;
 import static me.bechberger.ebpf.runtime.BpfDefinitions.bpf_task_from_pid;
+import static me.bechberger.ebpf.runtime.helpers.BPFHelpers.bpf_get_current_pid_tgid;
 import static me.bechberger.ebpf.runtime.helpers.BPFHelpers.bpf_timer_init;
 import static me.bechberger.ebpf.runtime.helpers.BPFHelpers.bpf_timer_start;
 import static me.bechberger.ebpf.runtime.BpfDefinitions.bpf_task_release;
 import static me.bechberger.ebpf.runtime.ScxDefinitions.*;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_dsq_id_flags.SCX_DSQ_GLOBAL;
 import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_dsq_id_flags.SCX_DSQ_LOCAL;
 import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_dsq_id_flags.SCX_DSQ_LOCAL_ON;
 import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_public_consts.SCX_SLICE_DFL;
@@ -54,11 +64,12 @@ import static me.bechberger.ebpf.runtime.TaskDefinitions.task_struct;
  * <ul>
  *   <li>{@link #selectCPU} — idle short-circuit; increments {@code STAT_IDLE_FAST_PATH}.</li>
  *   <li>{@link #enqueue} — framework-PID fast path; kthread fast path (Task 5);
- *       ring-buf publish with wake-suppress (Task 6).</li>
+ *       kernel-handled classifier rules; ring-buf publish with wake-suppress (Task 6).</li>
  *   <li>{@link #dispatch} — drain framework DSQ, user ring-buf, stall fallback (Task 5/6).</li>
  *   <li>{@link #updateIdle} — keeps the mmap'd idle-CPU bitmap current.</li>
  *   <li>{@link #running}/{@link #stopping} — populate per-task timestamps.</li>
- *   <li>{@link #initTask} — allocates per-task storage.</li>
+ *   <li>{@link #initTask}/{@link #exitTask} — per-task storage; event-driven
+ *       framework-thread and mm-kthread classification.</li>
  *   <li>{@link #heartbeatTick} — periodic timer (Task 7).</li>
  * </ul>
  *
@@ -83,13 +94,16 @@ public abstract class UserspaceSchedulerBase extends SchedulerBase implements Sc
     static final int  BITMAP_WORDS      = MAX_CPUS / 64;  // 16
     /** Heartbeat timer period — matches rustland's bpf_timer period. */
     static final long HEARTBEAT_NS      = 1_000_000_000L; // 1 s
+    /** Counter slots per CPU row of {@link #stats}; rows are 256 B so appended slots keep the layout. */
+    public static final int STATS_ROW_SLOTS   = 32;
 
     // ─── Stat slot constants (BPF↔Java ABI — append only, never reorder) ────
     /**
-     * Slot indices for {@link SchedStats}. Numbering is load-bearing: both the
-     * {@code @Type} field order in {@link SchedStats} and every {@link #incStat}/
-     * {@link #decStat} call site reference these integers. New counters are
-     * <em>appended only</em> — never reorder, never reuse a retired slot.
+     * Slot indices into a {@link StatsRow}. Numbering is load-bearing: every
+     * {@link #incStat}/{@link #decStat} call site and the Java readers reference
+     * these integers; slot {@code s} is {@code StatsRow.slots[s - 1]}. New counters
+     * are <em>appended only</em> (up to {@link #STATS_ROW_SLOTS}) — never reorder,
+     * never reuse a retired slot.
      */
     public static final class Stats {
         /** Slot 1: current online CPU count. */
@@ -161,8 +175,16 @@ public abstract class UserspaceSchedulerBase extends SchedulerBase implements Sc
         public @Unsigned long startTs;
         public @Unsigned long stopTs;
         public @Unsigned long execRuntime;
+        public @Unsigned long kind;     // TASK_KIND_*, classified once in initTask
     }
 
+    /** {@link TaskCtx#kind}: routed to Java like any other task. */
+    static final long TASK_KIND_NORMAL    = 0;
+    /** {@link TaskCtx#kind}: thread of the scheduler process ({@link #schedulerTgid}). */
+    static final long TASK_KIND_FRAMEWORK = 1;
+    /** {@link TaskCtx#kind}: kswapd or khugepaged — kthread fast path. */
+    static final long TASK_KIND_MM_KTHREAD = 2;
+
     /**
      * Kernel→user ring-buf record. Wire-layout-equivalent to
      * {@code scx_rustland_core}'s {@code queued_task_ctx}. The Java side surfaces
@@ -231,6 +253,32 @@ public abstract class UserspaceSchedulerBase extends SchedulerBase implements Sc
         public @Unsigned long ts;        // bpf_ktime_get_ns at emit
     }
 
+    /** Capacity of {@link #classRules}; MUST equal {@code TaskClassifier.MAX_KERNEL_RULES}. */
+    public static final int MAX_CLASS_RULES = 16;
+
+    /**
+     * One lowered {@code TaskClassifier} rule, evaluated by {@link #enqueue} on the freshly filled
+     * {@link QueuedTaskCtx}. All conditions are ANDed; an {@code extOffset} of -1 disables the
+     * extension-tail check. {@code action} is {@code KernelPlacement.wire()}: 0 = publish to
+     * userspace, 1 = global DSQ, 2 = previous CPU. {@code hits} is bumped by BPF.
+     */
+    @Type
+    public static class ClassRuleCtx {
+        public @Size(16) byte[] commPrefix;
+        public int commLen;
+        public int action;
+        public @Unsigned long minWeight;
+        public @Unsigned long maxWeight;
+        public @Unsigned long minCpusAllowed;
+        public @Unsigned long maxCpusAllowed;
+        public int extOffset;
+        public int _pad;                 // explicit pad so extMask is 8-byte aligned
+        public @Unsigned long extMask;
+        public @Unsigned long extValue;
+        public @Unsigned long sliceNs;   // 0 = DEFAULT_SLICE_NS
+        public @Unsigned long hits;
+    }
+
     // ControlCtx wire offsets — pinned by ControlDispatchedMarshallingTest.
     public static final long CTL_KIND   = 0;
     public static final long CTL_CPU    = 4;
@@ -256,31 +304,15 @@ public abstract class UserspaceSchedulerBase extends SchedulerBase implements Sc
     }
 
     /**
-     * Shared stats arena, mmap'd from Java. 18 counters; slot numbering is
-     * part of the BPF↔Java ABI — see {@link Stats}. BPF increments via
-     * {@code __sync_fetch_and_add}; Java reads via {@code VarHandle.getOpaque()}.
+     * One CPU's row of framework counters in {@link #stats}. Slot numbering is
+     * part of the BPF↔Java ABI — see {@link Stats}. Only the owning CPU writes
+     * its row, so rows never share a cache line between writers; Java sums a
+     * slot over all rows with plain loads from the mmap'd array.
      */
     @Type
-    public record SchedStats(
-        @Unsigned long onlineCpus,
-        @Unsigned long runningTasks,
-        @Unsigned long nrQueued,
-        @Unsigned long nrScheduled,
-        @Unsigned long userDispatches,
-        @Unsigned long kernelDispatches,
-        @Unsigned long bouncedDispatches,
-        @Unsigned long cancelledDispatches,
-        @Unsigned long congestionEvents,
-        @Unsigned long frameworkEnqueues,
-        @Unsigned long policyExceptions,
-        @Unsigned long idleFastPath,
-        @Unsigned long heartbeatKicks,
-        @Unsigned long signalsDropped,
-        @Unsigned long signalsDelivered,
-        @Unsigned long preemptsIssued,
-        @Unsigned long kicksIssued,
-        @Unsigned long preemptUnresolved
-    ) {}
+    public static class StatsRow {
+        public @Size(STATS_ROW_SLOTS) long[] slots;
+    }
 
     // ─── Per-task storage ─────────────────────────────────────────
     /**
@@ -340,12 +372,14 @@ public abstract class UserspaceSchedulerBase extends SchedulerBase implements Sc
     protected Ptr<Long> idleMaskBase;
 
     /**
-     * Scheduler stats array. Single entry of type {@link SchedStats} at index 0.
-     * BPF writes counters atomically via {@link #incStat}/{@link #decStat};
-     * Java reads via {@code bpf_map_lookup_elem} syscall (acceptable: cold path).
+     * Framework counters, one {@link StatsRow} per CPU (index = CPU id), mmap'd from
+     * Java: {@link #readStat} and {@code KernelStats} aggregate the rows with plain
+     * loads, so polling the counters costs no syscalls. An mmap-able array rather than
+     * an arena because {@link #incStat} also runs in non-{@code struct_ops} programs
+     * (e.g. {@link #emitSignal} from probes), which have no arena association.
      */
-    @BPFMapDefinition(maxEntries = 1)   // single SchedStats slot
-    protected BPFArray<SchedStats> stats;
+    @BPFMapDefinition(maxEntries = MAX_CPUS)   // 256 B × 1 024 CPUs = 64 pages
+    protected BPFMmapArray<StatsRow> stats;
 
     // ─── Hash and array maps ──────────────────────────────────────
 
@@ -361,6 +395,13 @@ public abstract class UserspaceSchedulerBase extends SchedulerBase implements Sc
     @BPFMapDefinition(maxEntries = 1)
     protected BPFArray<HeartbeatVal> heartbeat;
 
+    /**
+     * Kernel-handled classification rules, uploaded by Java before attach; the first
+     * {@link #nrClassRules} entries are evaluated in order by {@link #enqueue}.
+     */
+    @BPFMapDefinition(maxEntries = MAX_CLASS_RULES)
+    protected BPFArray<ClassRuleCtx> classRules;
+
     // ─── Observability histograms (Task 14) ──────────────────────────────────
     // All five histograms use 64 buckets (BCC log2_hist layout: bucket i counts
     // values in [2^(i-1), 2^i)).  BPF-side recording via hist.record(value);
@@ -484,8 +525,10 @@ public abstract class UserspaceSchedulerBase extends SchedulerBase implements Sc
     // ─── Global variables ─────────────────────────────────────────
     /**
      * TGID of the Java scheduler process. Written by the framework before
-     * {@code attachScheduler()}, read by {@link #enqueue} to gate the
-     * framework-PID fast path, and by the {@code onFork} tracepoint (Task 7).
+     * {@code attachScheduler()}; {@link #initTask} compares every task's tgid against
+     * it — at attach for existing threads, at fork for new ones — so the
+     * framework-PID fast path needs no {@code /proc} scan. Also read by the
+     * {@code onFork} tracepoint (Task 7).
      */
     protected final GlobalVariable<Integer> schedulerTgid = new GlobalVariable<>(0);
 
@@ -508,24 +551,13 @@ public abstract class UserspaceSchedulerBase extends SchedulerBase implements Sc
      */
     protected final GlobalVariable<Integer> schedulerCpu = new GlobalVariable<>(0);
 
-    /**
-     * PID of {@code kswapd}; 0 means not found. Populated by Java at startup via
-     * {@code /proc} scan. The kthread fast path in {@link #enqueue} routes it to
-     * {@code SCX_DSQ_LOCAL_ON} to avoid latency from the userspace round-trip
-     * (Task 5).
-     */
-    protected final GlobalVariable<Integer> kswapdPid = new GlobalVariable<>(0);
-
-    /**
-     * PID of {@code khugepaged}; 0 means not found. Same role as
-     * {@link #kswapdPid} (Task 5).
-     */
-    protected final GlobalVariable<Integer> khugepageDPid = new GlobalVariable<>(0);
+    /** Number of valid entries in {@link #classRules}; 0 disables rule evaluation. */
+    protected final GlobalVariable<Integer> nrClassRules = new GlobalVariable<>(0);
 
     // ─── Java-side testability seams ─────────────────────────────
     //
     // These protected methods are the ONLY way UserspaceScheduler should touch
-    // frameworkPids, kswapdPid, and khugepageDPid. Tests override them with
+    // frameworkPids and the scheduler globals. Tests override them with
     // in-heap fakes so the real UserspaceScheduler logic runs without a live
     // BPF file descriptor.
 
@@ -561,20 +593,40 @@ public abstract class UserspaceSchedulerBase extends SchedulerBase implements Sc
      * {@link me.bechberger.ebpf.bpf.userspace.UserspaceScheduler}, which holds
      * a {@code UserspaceSchedulerBase} reference and is not a subclass.
      */
-    public void setKswapdPid(int pid) {
-        kswapdPid.set(pid);
+    public void setSchedulerTgid(int tgid) {
+        schedulerTgid.set(tgid);
     }
 
     /**
-     * Test seam. Production code routes BPF global writes through this method so
-     * tests can override it with an in-heap fake. Not part of the user-facing API.
+     * Test seam. Writes one lowered classification rule; call {@link #setNrClassRules}
+     * afterwards to publish the table. Not part of the user-facing API.
      *
      * <p>Public to allow cross-package access from
-     * {@link me.bechberger.ebpf.bpf.userspace.UserspaceScheduler}, which holds
-     * a {@code UserspaceSchedulerBase} reference and is not a subclass.
+     * {@link me.bechberger.ebpf.bpf.userspace.UserspaceScheduler}.
+     */
+    public void putClassRule(int index, ClassRuleCtx rule) {
+        classRules.put(index, rule);
+    }
+
+    /**
+     * Test seam. Sets how many {@link #classRules} entries {@link #enqueue} evaluates.
+     *
+     * <p>Public to allow cross-package access from
+     * {@link me.bechberger.ebpf.bpf.userspace.UserspaceScheduler}.
+     */
+    public void setNrClassRules(int n) {
+        nrClassRules.set(n);
+    }
+
+    /**
+     * Test seam. Number of tasks BPF placed via rule {@code index}; 0 if the slot is empty.
+     *
+     * <p>Public to allow cross-package access from
+     * {@link me.bechberger.ebpf.bpf.userspace.UserspaceScheduler}.
      */
-    public void setKhugepageDPid(int pid) {
-        khugepageDPid.set(pid);
+    public long readClassRuleHits(int index) {
+        ClassRuleCtx r = classRules.get(index);
+        return r == null ? 0 : r.hits;
     }
 
     // ─── sched_ext ops ───────────────────────────────────────────
@@ -630,12 +682,16 @@ public abstract class UserspaceSchedulerBase extends SchedulerBase implements Sc
      * <p>Framework threads (PIDs in {@link #frameworkPids}) go straight to
      * {@link #framework} with priority. Per-CPU kthreads and well-known mm
      * helpers (kswapd, khugepaged) bypass userspace via the kthread fast path.
-     * All other tasks are published to Java via the {@link #queued} ring-buf.
+     * All other tasks are published to Java via the {@link #queued} ring-buf —
+     * unless the filled record matches a kernel-handled {@link #classRules} entry,
+     * in which case the record is discarded and the task placed here directly.
      */
     @Override
     public void enqueue(Ptr<task_struct> p, long enq_flags) {
         int pid = p.val().pid;
-        if (frameworkPids.bpf_get(pid) != null) {
+        Ptr<TaskCtx> tctx = taskCtx.bpf_get(p);
+        long kind = tctx != null ? tctx.val().kind : TASK_KIND_NORMAL;
+        if (kind == TASK_KIND_FRAMEWORK || frameworkPids.bpf_get(pid) != null) {
             framework.insertScaled(p, EnqFlags.passThrough(enq_flags));
             incStat(STAT_FRAMEWORK_ENQUEUES, 1);
             return;
@@ -649,23 +705,27 @@ public abstract class UserspaceSchedulerBase extends SchedulerBase implements Sc
         boolean isPerCpuKthread = (p.val().flags & PerProcessFlags.PF_KTHREAD) != 0
                                   && p.val().nr_cpus_allowed == 1;
         boolean isMigrationDisabled = p.val().migration_disabled != 0;
-        if (isPerCpuKthread || isMigrationDisabled
-                || pid == kswapdPid.get() || pid == khugepageDPid.get()) {
+        if (isPerCpuKthread || isMigrationDisabled || kind == TASK_KIND_MM_KTHREAD) {
             scx_bpf_dsq_insert(p, SCX_DSQ_LOCAL_ON.value() | scx_bpf_task_cpu(p),
                                SCX_SLICE_DFL.value(), enq_flags);
             return;
         }
-        lastEnqueueNs.set(currentNs());
-        Ptr<TaskCtx> tctx = taskCtx.bpf_get(p);
         if (tctx != null) tctx.val().enqCnt += 1;
         Ptr<QueuedTaskCtx> evt = queued.reserve();
         if (evt == null) {
+            lastEnqueueNs.set(currentNs());
             incStat(STAT_CONGESTION_EVENTS, 1);
             shared.insertScaled(p, EnqFlags.passThrough(enq_flags));
             return;
         }
         fillQueuedCtx(evt, p, enq_flags);     // copies enqCnt from tctx
         fillExtension(evt, p);
+        // Rules see the same record Java would, so they run after fillExtension.
+        if (nrClassRules.get() > 0 && placeByRule(evt, p, enq_flags)) {
+            queued.discard(evt);
+            return;
+        }
+        lastEnqueueNs.set(currentNs());
         if (nrUserPending.get() > 0) queued.submitNoWakeup(evt);
         else                         queued.submit(evt);
         incStat(STAT_NR_QUEUED, 1);
@@ -709,6 +769,52 @@ public abstract class UserspaceSchedulerBase extends SchedulerBase implements Sc
         // default: no extension
     }
 
+    /**
+     * Evaluate {@link #classRules} in order on {@code evt}; on the first match with a non-userspace
+     * action, insert {@code p} accordingly and return {@code true}. A match with action 0 stops
+     * the search and returns {@code false}, so earlier userspace rules shadow later ones.
+     */
+    @BPFFunction
+    boolean placeByRule(Ptr<QueuedTaskCtx> evt, Ptr<task_struct> p, long enq_flags) {
+        int n = nrClassRules.get();
+        for (@BoundedBy(MAX_CLASS_RULES) int i = 0; i < MAX_CLASS_RULES; i++) {
+            if (i >= n) return false;
+            Ptr<ClassRuleCtx> r = classRules.bpf_get(i);
+            if (r == null) return false;
+            if (!ruleMatches(r, evt)) continue;
+            int action = r.val().action;
+            if (action == 0) return false;
+            long slice = r.val().sliceNs == 0 ? DEFAULT_SLICE_NS : r.val().sliceNs;
+            int cpu = scx_bpf_task_cpu(p);
+            if (action == 2 && bpf_cpumask_test_cpu(cpu, p.directVal().cpus_ptr)) {
+                scx_bpf_dsq_insert(p, SCX_DSQ_LOCAL_ON.value() | cpu, slice, enq_flags);
+            } else {
+                scx_bpf_dsq_insert(p, SCX_DSQ_GLOBAL.value(), slice, enq_flags);
+            }
+            sync_fetch_and_add(Ptr.of(r.val().hits), 1L);
+            return true;
+        }
+        return false;
+    }
+
+    /** Conjunction of one rule's conditions; mirrors {@code TaskMatch.test} on the Java side. */
+    @BPFFunction
+    boolean ruleMatches(Ptr<ClassRuleCtx> r, Ptr<QueuedTaskCtx> evt) {
+        if (evt.val().weight < r.val().minWeight || evt.val().weight > r.val().maxWeight) return false;
+        if (evt.val().nrCpusAllowed < r.val().minCpusAllowed
+                || evt.val().nrCpusAllowed > r.val().maxCpusAllowed) return false;
+        int len = r.val().commLen;
+        for (@BoundedBy(16) int j = 0; j < 16; j++) {
+            if (j >= len) break;
+            if (evt.val().comm[j] != r.val().commPrefix[j]) return false;
+        }
+        int off = r.val().extOffset;
+        if (off < 0) return true;
+        // Masked word index keeps the read provably inside ext[EXT_CAP].
+        long v = Ptr.of(evt.val().ext).<Long>cast().add((off >> 3) & 7).val();
+        return (v & r.val().extMask) == r.val().extValue;
+    }
+
     /**
      * Drain decisions from Java and dispatch tasks.
      *
@@ -824,6 +930,26 @@ public abstract class UserspaceSchedulerBase extends SchedulerBase implements Sc
         incStat(Stats.SIGNALS_DELIVERED, 1);
     }
 
+    /**
+     * JVM signal probe: one program, attached by {@code UserspaceScheduler.watchJvm} as uprobe or
+     * uretprobe to the safepoint, GC and JIT entry points of a target JVM's {@code libjvm.so}. The
+     * attach cookie is the {@code SignalKind} to emit; the subject pid is the calling thread (VM
+     * thread or compiler thread) and the payload carries the JVM's tgid in the low 32 bits and,
+     * for {@code JVM_GC_BEGIN}, the {@code full} argument of {@code notify_gc_begin} in bit 32.
+     * {@code notify_gc_begin} is a member function, so {@code full} is its second argument after
+     * {@code this}.
+     */
+    @BPFFunction(section = "uprobe/jvm_signal", autoAttach = false)
+    public void jvmSignalProbe(Ptr<pt_regs> ctx) {
+        int kind = (int) bpf_get_attach_cookie(ctx);
+        @Unsigned long pidTgid = bpf_get_current_pid_tgid();
+        @Unsigned long payload = pidTgid >> 32;
+        if (kind == SignalKind.JVM_GC_BEGIN && (ProbeContext.of(ctx).arg1() & 1) != 0) {
+            payload = payload | (1L << 32);
+        }
+        emitSignal(kind, (int) pidTgid, payload);
+    }
+
     /**
      * Keep the idle-CPU bitmap ({@link #idleMask}) current.
      * Also tracks the {@code runningTasks} stat counter (gauge).
@@ -838,8 +964,14 @@ public abstract class UserspaceSchedulerBase extends SchedulerBase implements Sc
     // ─── Per-task lifecycle ops ──────────────────────────────────
 
     /**
-     * Allocate per-task storage. Returns {@code -12} ({@code -ENOMEM}) on failure,
-     * which causes the kernel to refuse to admit the task to this scheduler.
+     * Allocate per-task storage and classify the task once. Returns {@code -12}
+     * ({@code -ENOMEM}) on failure, which causes the kernel to refuse to admit the
+     * task to this scheduler.
+     *
+     * <p>The kernel calls this for every existing task at attach and for every new
+     * task at fork, so scheduler-process threads (tgid == {@link #schedulerTgid}) are
+     * entered into {@link #frameworkPids} before they can first be enqueued — a new
+     * GC or JIT thread never takes the userspace path. {@link #exitTask} removes them.
      */
     @Override
     public int initTask(Ptr<task_struct> p, Ptr<scx_init_task_args> args) {
@@ -849,9 +981,40 @@ public abstract class UserspaceSchedulerBase extends SchedulerBase implements Sc
         t.val().startTs     = 0;
         t.val().stopTs      = 0;
         t.val().execRuntime = 0;
+        t.val().kind        = classifyTask(p);
+        if (t.val().kind == TASK_KIND_FRAMEWORK) {
+            byte one = 1;
+            frameworkPids.bpf_put(p.val().pid, one);
+        }
         return 0;
     }
 
+    /** Drop exited scheduler threads from {@link #frameworkPids} so recycled PIDs are not misrouted. */
+    @Override
+    public void exitTask(Ptr<task_struct> p, Ptr<scx_exit_task_args> args) {
+        Ptr<TaskCtx> t = taskCtx.bpf_get(p);
+        if (t != null && t.val().kind == TASK_KIND_FRAMEWORK) {
+            frameworkPids.bpf_delete(p.val().pid);
+        }
+    }
+
+    /** {@code TASK_KIND_*} for a task entering the scheduler; see {@link #initTask}. */
+    @BPFFunction
+    long classifyTask(Ptr<task_struct> p) {
+        int tgid = schedulerTgid.get();
+        if (tgid != 0 && p.val().tgid == tgid) return TASK_KIND_FRAMEWORK;
+        if ((p.val().flags & PerProcessFlags.PF_KTHREAD) == 0) return TASK_KIND_NORMAL;
+        if ((p.val().flags & PerProcessFlags.PF_KSWAPD) != 0) return TASK_KIND_MM_KTHREAD;
+        // "khugepaged\0" — no task flag identifies it, so compare comm.
+        if (p.val().comm[0] == 'k' && p.val().comm[1] == 'h' && p.val().comm[2] == 'u'
+                && p.val().comm[3] == 'g' && p.val().comm[4] == 'e' && p.val().comm[5] == 'p'
+                && p.val().comm[6] == 'a' && p.val().comm[7] == 'g' && p.val().comm[8] == 'e'
+                && p.val().comm[9] == 'd' && p.val().comm[10] == 0) {
+            return TASK_KIND_MM_KTHREAD;
+        }
+        return TASK_KIND_NORMAL;
+    }
+
     /**
      * Task became runnable but is not yet on a CPU. No-op in the base class;
      * subclasses can override to receive "task is now eligible" notifications
@@ -890,9 +1053,6 @@ public abstract class UserspaceSchedulerBase extends SchedulerBase implements Sc
         }
     }
 
-    // exitTask: task_storage maps are freed automatically by the kernel
-    // on task exit, so no manual cleanup is required.
-
     // ─── Heartbeat timer ─────────────────────────────────────────
 
     /**
@@ -982,42 +1142,45 @@ public abstract class UserspaceSchedulerBase extends SchedulerBase implements Sc
     // ─── BPF-side stat and bitmap helpers ────────────────────────
 
     /**
-     * Atomically increment {@code stats} counter at {@code slot} by {@code delta}.
+     * Add {@code delta} to counter {@code slot} in the current CPU's {@link StatsRow}.
      *
      * <p>Slot indices are defined in {@link Stats}; slot numbering is an ABI contract.
-     * Lowers to a {@code __sync_fetch_and_add} on the corresponding {@code long} field
-     * of the single {@link SchedStats} record at index 0 of the {@link #stats} array.
+     * Lowers to a {@code __sync_fetch_and_add} on the slot of row
+     * {@code bpf_get_smp_processor_id()} of {@link #stats}. The row is only written by
+     * its own CPU, so the atomic stays in the local cache; it only guards against a
+     * nested program (e.g. a probe) hitting the same slot on that CPU.
      *
-     * <p>Spec §"BPF-side stat and bitmap helpers" lines 1341-1347.
+     * <p>Gauges such as {@link Stats#RUNNING_TASKS} may go negative in a single row
+     * (a task starts on one CPU and stops on another); only the sum over all rows is
+     * meaningful.
      *
-     * @param slot  counter slot (1–12, see {@link Stats})
+     * @param slot  counter slot (1–{@link #STATS_ROW_SLOTS}, see {@link Stats})
      * @param delta amount to add (typically 1)
      */
     @BPFFunction
     void incStat(int slot, long delta) {
-        Ptr<SchedStats> s = stats.bpf_get(0);
-        if (s == null) return;
-        // slot is 1-based; field offset = (slot - 1) * 8 bytes (all longs, tightly packed)
+        if (slot < 1 || slot > STATS_ROW_SLOTS) return;
+        int cpu = currentCpuId();
+        if (cpu < 0 || cpu >= MAX_CPUS) return;
+        Ptr<StatsRow> row = stats.bpf_get(cpu);
+        if (row == null) return;
+        // slot is 1-based; offset = (slot - 1) * 8 bytes (all longs, tightly packed)
         long offset = (long)(slot - 1) * 8L;
-        Ptr<Long> fieldPtr = s.<Byte>cast().add(offset).<Long>cast();
+        Ptr<Long> fieldPtr = row.<Byte>cast().add(offset).<Long>cast();
         sync_fetch_and_add(fieldPtr, delta);
     }
 
     /**
-     * Atomically decrement {@code stats} counter at {@code slot} by {@code delta}.
+     * Subtract {@code delta} from counter {@code slot} in the current CPU's row.
      *
      * <p>See {@link #incStat} for the slot numbering contract.
      *
-     * @param slot  counter slot (1–12, see {@link Stats})
+     * @param slot  counter slot (1–{@link #STATS_ROW_SLOTS}, see {@link Stats})
      * @param delta amount to subtract (typically 1)
      */
     @BPFFunction
     void decStat(int slot, long delta) {
-        Ptr<SchedStats> s = stats.bpf_get(0);
-        if (s == null) return;
-        long offset = (long)(slot - 1) * 8L;
-        Ptr<Long> fieldPtr = s.<Byte>cast().add(offset).<Long>cast();
-        sync_fetch_and_add(fieldPtr, -delta);
+        incStat(slot, -delta);
     }
 
     /**
@@ -1148,36 +1311,22 @@ public abstract class UserspaceSchedulerBase extends SchedulerBase implements Sc
     // ─── Java-side stat readers ───────────────────────────────────
 
     /**
-     * Read a single {@link SchedStats} counter by 1-based slot index.
-     * Performs a {@code bpf_map_lookup_elem} syscall — acceptable on the cold path only.
+     * Read a single framework counter by 1-based slot index, summed over all CPU rows.
+     * Plain loads from the mmap'd {@link #stats} array — no syscall; use a reused
+     * {@code KernelStats} to read every counter in one pass.
      *
      * @param statSlot 1-based slot index (see {@link Stats})
-     * @return counter value, or 0 if the stats array is unavailable
+     * @return counter value, or 0 for an unknown slot
      */
     public long readStat(int statSlot) {
-        SchedStats s = stats.get(0);
-        if (s == null) return 0L;
-        return switch (statSlot) {
-            case Stats.ONLINE_CPUS          -> s.onlineCpus();
-            case Stats.RUNNING_TASKS        -> s.runningTasks();
-            case Stats.NR_QUEUED            -> s.nrQueued();
-            case Stats.NR_SCHEDULED         -> s.nrScheduled();
-            case Stats.USER_DISPATCHES      -> s.userDispatches();
-            case Stats.KERNEL_DISPATCHES    -> s.kernelDispatches();
-            case Stats.BOUNCED_DISPATCHES   -> s.bouncedDispatches();
-            case Stats.CANCELLED_DISPATCHES -> s.cancelledDispatches();
-            case Stats.CONGESTION_EVENTS    -> s.congestionEvents();
-            case Stats.FRAMEWORK_ENQUEUES   -> s.frameworkEnqueues();
-            case Stats.POLICY_EXCEPTIONS    -> s.policyExceptions();
-            case Stats.IDLE_FAST_PATH       -> s.idleFastPath();
-            case Stats.HEARTBEAT_KICKS      -> s.heartbeatKicks();
-            case Stats.SIGNALS_DROPPED      -> s.signalsDropped();
-            case Stats.SIGNALS_DELIVERED    -> s.signalsDelivered();
-            case Stats.PREEMPTS_ISSUED      -> s.preemptsIssued();
-            case Stats.KICKS_ISSUED         -> s.kicksIssued();
-            case Stats.PREEMPT_UNRESOLVED   -> s.preemptUnresolved();
-            default -> 0L;
-        };
+        if (statSlot < 1 || statSlot > STATS_ROW_SLOTS) return 0L;
+        MemorySegment rows = statsView();
+        long off = (long) (statSlot - 1) * Long.BYTES;
+        long sum = 0;
+        for (long row = 0; row < rows.byteSize(); row += stats.stride()) {
+            sum += rows.get(ValueLayout.JAVA_LONG, row + off);
+        }
+        return sum;
     }
 
     /** Cumulative tasks enqueued by BPF into the kernel→user ring buffer. */
@@ -1209,4 +1358,13 @@ public abstract class UserspaceSchedulerBase extends SchedulerBase implements Sc
     public MemorySegment idleMaskView() {
         return idleMask.userView();
     }
+
+    /**
+     * Return a read-only view of the per-CPU {@link StatsRow}s mmap'd from {@link #stats}.
+     * Row {@code cpu} starts at byte {@code cpu * STATS_ROW_SLOTS * 8}; slot {@code s} is the
+     * {@code long} at offset {@code (s - 1) * 8} within the row.
+     */
+    public MemorySegment statsView() {
+        return stats.userView();
+    }
 }
@@ -15,6 +15,10 @@ import java.util.concurrent.ConcurrentHashMap;
  * <p>Results are cached for the lifetime of the JVM. First call fires the
  * probe (one or two syscalls); every subsequent call hits the in-memory
  * cache. Cache reset is test-only.
+ *
+ * <p>Definite results are also kept on disk per kernel in a {@link ProbeCache}
+ * and read before probing, so later JVMs on the same kernel skip the probes
+ * (and the vmlinux BTF parse of kfunc and struct_ops probes) entirely.
  */
 public final class Features {
 
@@ -28,6 +32,9 @@ public final class Features {
     private static volatile Dispatcher dispatcher = defaultDispatcher();
     private static final ConcurrentHashMap<ProbeKey, ProbeResult> CACHE =
             new ConcurrentHashMap<>();
+    private static volatile @Nullable ProbeCache persistent = ProbeCache.forRunningKernel();
+    /** Set while {@link #snapshot()} probes, which writes the on-disk cache once at the end. */
+    private static final ThreadLocal<Boolean> DEFER_WRITES = ThreadLocal.withInitial(() -> false);
 
     private static Dispatcher defaultDispatcher() {
         return key -> switch (key) {
@@ -108,41 +115,86 @@ public final class Features {
      */
     public static Map<String, ProbeResult> snapshot() {
         Map<String, ProbeResult> out = new LinkedHashMap<>();
-        for (var t : BPFProgramType.values()) {
-            out.put("prog:" + t.name(), probeProgramType(t));
-        }
-        for (var t : MapTypeId.values()) {
-            out.put("map:" + t.name(), probeMapType(t));
-        }
-        for (var h : BPFHelper.values()) {
-            out.put("helper:" + h.name(), probeHelper(h));
-        }
-        for (var a : BPFAttachType.values()) {
-            out.put("attach:" + a.name(), probeAttachType(a));
+        boolean outer = !DEFER_WRITES.get();
+        DEFER_WRITES.set(true);
+        try {
+            for (var t : BPFProgramType.values()) {
+                out.put("prog:" + t.name(), probeProgramType(t));
+            }
+            for (var t : MapTypeId.values()) {
+                out.put("map:" + t.name(), probeMapType(t));
+            }
+            for (var h : BPFHelper.values()) {
+                out.put("helper:" + h.name(), probeHelper(h));
+            }
+            for (var a : BPFAttachType.values()) {
+                out.put("attach:" + a.name(), probeAttachType(a));
+            }
+        } finally {
+            if (outer) {
+                DEFER_WRITES.remove();
+                var disk = persistent;
+                if (disk != null) {
+                    disk.flush();
+                }
+            }
         }
         return Collections.unmodifiableMap(out);
     }
 
-    /** Clear the cache. Test-only. */
+    /** Clear the cache and stop using the on-disk cache. Test-only. */
     static void resetCacheForTest() {
         CACHE.clear();
+        persistent = null;
         CACHED_VERSION = null;
         me.bechberger.ebpf.bpf.features.probes.BtfLoader.resetForTest();
     }
 
-    /** Substitute the dispatcher. Test-only. Pass {@code null} to restore the default. */
+    /**
+     * Substitute the dispatcher. Test-only. Pass {@code null} to restore the default.
+     * A stub also disables the on-disk cache, which only holds real results.
+     */
     static void setDispatcherForTest(Dispatcher d) {
         dispatcher = d == null ? defaultDispatcher() : d;
+        if (d != null) {
+            persistent = null;
+        }
+    }
+
+    /** Use the given on-disk cache, or none for {@code null}. */
+    static void setPersistentCache(@Nullable ProbeCache cache) {
+        persistent = cache;
     }
 
     private static ProbeResult cached(ProbeKey key) {
-        return CACHE.computeIfAbsent(key, k -> {
+        var result = CACHE.get(key);
+        if (result != null) {
+            return result;
+        }
+        var disk = persistent;
+        var probed = new boolean[1];
+        result = CACHE.computeIfAbsent(key, k -> {
+            if (disk != null) {
+                var stored = disk.get(k);
+                if (stored != null) {
+                    return stored;
+                }
+            }
             Dispatcher d = dispatcher;
             if (d == null) {
                 return new ProbeResult.ProbeUnavailable(
                         "no probe dispatcher wired (running on non-Linux?)");
             }
+            probed[0] = true;
             return d.probe(k);
         });
+        // write outside the mapping function, which blocks other lookups of the same bin
+        if (probed[0] && disk != null) {
+            disk.put(key, result);
+            if (!DEFER_WRITES.get()) {
+                disk.flush();
+            }
+        }
+        return result;
     }
 }
@@ -0,0 +1,343 @@
+package me.bechberger.ebpf.bpf.features;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * On-disk cache of {@link Features} probe results, shared by all JVMs on a host, so that
+ * short-lived tools and test forks neither re-run the probe syscalls nor re-parse the vmlinux
+ * BTF on every start.
+ *
+ * <p>There is one properties file per kernel, named after the kernel release and the GNU build
+ * id from {@code /sys/kernel/notes} (or the size of the vmlinux BTF if the notes are not
+ * readable), so a new or rebuilt kernel starts with an empty cache. Only
+ * {@link ProbeResult.Supported} and definite {@link ProbeResult.Unsupported} results are stored:
+ * a {@link ProbeResult.ProbeUnavailable} depends on the probing process (capabilities, lockdown),
+ * not on the kernel, and an unexpected errno may be transient. A missing kfunc of a kernel
+ * module is not stored either, as the module may simply not be loaded yet.
+ *
+ * <p>The folder is {@code ebpf.features.cacheDir} (system property),
+ * {@code EBPF_FEATURES_CACHE_DIR}, or {@code $XDG_CACHE_HOME/hello-ebpf/features} (falling
+ * back to {@code ~/.cache/hello-ebpf/features}). Entries missing there are looked up in
+ * {@value #SYSTEM_FOLDER}, which {@link #main} fills when run as root, e.g. from a boot-time
+ * unit, which also probes the kfuncs and {@code sched_ext_ops} the schedulers need:
+ * <pre>{@code
+ * java -cp hello-ebpf.jar me.bechberger.ebpf.bpf.features.ProbeCache [--dir <folder>] [--clear]
+ * }</pre>
+ * {@link #put} only collects results; {@link #flush} re-reads the file, merges and renames a
+ * temp file into place, so concurrent JVMs at worst re-probe a feature. Set
+ * {@code ebpf.features.cache=false} to disable the cache.
+ */
+public final class ProbeCache {
+
+    static final String SYSTEM_FOLDER = "/var/cache/hello-ebpf/features";
+    /** Bump when the file format changes. */
+    private static final String FORMAT = "1";
+    private static final int NT_GNU_BUILD_ID = 3;
+    /** struct_ops kinds that {@link #main} probes in addition to {@link Features#snapshot()}. */
+    static final List<String> FRAMEWORK_STRUCT_OPS = List.of("sched_ext_ops");
+    /** kfuncs called by the sched_ext schedulers of this library, probed by {@link #main}. */
+    static final List<String> FRAMEWORK_KFUNCS = List.of(
+            "scx_bpf_create_dsq", "scx_bpf_destroy_dsq", "scx_bpf_dsq_insert", "scx_bpf_dsq_insert_vtime",
+            "scx_bpf_dsq_move_to_local", "scx_bpf_dsq_move", "scx_bpf_dsq_move_vtime",
+            "scx_bpf_dsq_move_set_slice", "scx_bpf_dsq_move_set_vtime", "scx_bpf_dsq_nr_queued",
+            "scx_bpf_dispatch_nr_slots", "scx_bpf_dispatch_cancel", "scx_bpf_reenqueue_local",
+            "scx_bpf_select_cpu_dfl", "scx_bpf_pick_idle_cpu", "scx_bpf_pick_any_cpu",
+            "scx_bpf_test_and_clear_cpu_idle", "scx_bpf_kick_cpu", "scx_bpf_task_cpu", "scx_bpf_now",
+            "scx_bpf_nr_cpu_ids", "scx_bpf_nr_node_ids", "scx_bpf_cpu_node", "scx_bpf_cpuperf_cap",
+            "scx_bpf_cpuperf_cur", "scx_bpf_cpuperf_set", "scx_bpf_get_idle_cpumask",
+            "scx_bpf_get_idle_cpumask_node", "scx_bpf_get_idle_smtmask", "scx_bpf_put_idle_cpumask",
+            "scx_bpf_get_online_cpumask", "scx_bpf_get_possible_cpumask", "scx_bpf_put_cpumask",
+            "scx_bpf_error_bstr", "scx_bpf_dump_bstr",
+            "bpf_cpumask_test_cpu", "bpf_cpumask_set_cpu", "bpf_cpumask_clear_cpu", "bpf_cpumask_first",
+            "bpf_cpumask_first_zero", "bpf_cpumask_empty", "bpf_cpumask_weight", "bpf_cpumask_intersects");
+
+    private final Path file;
+    private final @Nullable Path fallbackFile;
+    private @Nullable Map<String, ProbeResult> entries;
+    /** Results put since the last {@link #flush}, by name. */
+    private final Map<String, ProbeResult> pending = new TreeMap<>();
+    private int writes;
+
+    ProbeCache(Path folder, @Nullable Path fallbackFolder, String kernelId) {
+        var name = "probes-v" + FORMAT + "-" + kernelId + ".properties";
+        this.file = folder.resolve(name);
+        this.fallbackFile = fallbackFolder == null ? null : fallbackFolder.resolve(name);
+    }
+
+    /** The cache for the running kernel, or null if disabled or not on Linux. */
+    static @Nullable ProbeCache forRunningKernel() {
+        if ("false".equals(System.getProperty("ebpf.features.cache"))) {
+            return null;
+        }
+        var kernelId = kernelId();
+        if (kernelId == null) {
+            return null;
+        }
+        var folder = userFolder();
+        var system = Path.of(SYSTEM_FOLDER);
+        return new ProbeCache(folder, folder.equals(system) ? null : system, kernelId);
+    }
+
+    private static Path userFolder() {
+        var configured = System.getProperty("ebpf.features.cacheDir", System.getenv("EBPF_FEATURES_CACHE_DIR"));
+        if (configured != null && !configured.isBlank()) {
+            return Path.of(configured);
+        }
+        var xdg = System.getenv("XDG_CACHE_HOME");
+        var base = xdg != null && !xdg.isBlank() ? Path.of(xdg) : Path.of(System.getProperty("user.home"), ".cache");
+        return base.resolve("hello-ebpf").resolve("features");
+    }
+
+    /** Release plus build id of the running kernel, e.g. {@code 6.17.0-5-generic-4e0bf38b...}. */
+    static @Nullable String kernelId() {
+        try {
+            var release = Files.readString(Path.of("/proc/sys/kernel/osrelease")).trim();
+            String build = null;
+            try {
+                build = buildId(Files.readAllBytes(Path.of("/sys/kernel/notes")));
+            } catch (IOException e) {
+                // not readable in some containers
+            }
+            if (build == null) {
+                build = "btf" + Files.size(Path.of("/sys/kernel/btf/vmlinux"));
+            }
+            return (release + "-" + build).replaceAll("[^A-Za-z0-9._-]", "_");
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** Hex GNU build id from ELF notes in native byte order, or null if there is none. */
+    static @Nullable String buildId(byte[] notes) {
+        var buffer = ByteBuffer.wrap(notes).order(ByteOrder.nativeOrder());
+        while (buffer.remaining() >= 12) {
+            int nameSize = buffer.getInt();
+            int descSize = buffer.getInt();
+            int type = buffer.getInt();
+            int nameStart = buffer.position();
+            int descStart = nameStart + align4(nameSize);
+            if (nameSize < 0 || descSize < 0 || descStart + descSize > notes.length) {
+                return null;
+            }
+            if (type == NT_GNU_BUILD_ID && nameSize == 4
+                    && new String(notes, nameStart, 3, StandardCharsets.US_ASCII).equals("GNU")) {
+                var id = new byte[descSize];
+                buffer.get(descStart, id);
+                return HexFormat.of().formatHex(id);
+            }
+            buffer.position(descStart + align4(descSize));
+        }
+        return null;
+    }
+
+    private static int align4(int size) {
+        return (size + 3) & ~3;
+    }
+
+    /** Name of a probe in the cache file, the same as in {@link Features#snapshot()}. */
+    static String name(ProbeKey key) {
+        return switch (key) {
+            case ProbeKey.ProgramTypeKey k -> "prog:" + k.t().name();
+            case ProbeKey.MapTypeKey k -> "map:" + k.t().name();
+            case ProbeKey.HelperKey k -> "helper:" + k.h().name();
+            case ProbeKey.KfuncKey k -> "kfunc:" + (k.mod() == null ? "" : k.mod() + ":") + k.name();
+            case ProbeKey.StructOpsKey k -> "struct_ops:" + k.name();
+            case ProbeKey.AttachTypeKey k -> "attach:" + k.t().name();
+        };
+    }
+
+    Path file() {
+        return file;
+    }
+
+    /**
+     * Whether the result is stored: not for {@link ProbeResult.ProbeUnavailable}, not for a
+     * missing kfunc of a module ({@code kfunc:<module>:<name>}) that might be loaded later, and
+     * of the {@link ProbeResult.Unsupported} results only the {@linkplain #definite definite} ones.
+     */
+    static boolean storable(String name, ProbeResult result) {
+        return switch (result) {
+            case ProbeResult.Supported s -> true;
+            case ProbeResult.Unsupported u -> definite(u)
+                    && !(name.startsWith("kfunc:") && name.indexOf(':', "kfunc:".length()) >= 0);
+            case ProbeResult.ProbeUnavailable u -> false;
+        };
+    }
+
+    /**
+     * Whether the kernel itself lacks the feature: the probe syscall failed with {@code EINVAL}
+     * ("unknown prog_type", "unknown attach_type"), libbpf's probe returned 0 ("libbpf reports
+     * ... not supported") or the name is missing from the vmlinux BTF. Other errnos, such as
+     * {@code ENOMEM} from a low memlock limit, may be transient and are only cached in memory.
+     */
+    static boolean definite(ProbeResult.Unsupported result) {
+        var reason = result.reason();
+        return reason.startsWith("unknown ")
+                || reason.startsWith("libbpf reports ")
+                || reason.endsWith("not present in vmlinux BTF");
+    }
+
+    /** Stored result of the probe, or null if it has not been stored for this kernel. */
+    synchronized @Nullable ProbeResult get(ProbeKey key) {
+        if (entries == null) {
+            entries = new LinkedHashMap<>();
+            if (fallbackFile != null) {
+                entries.putAll(read(fallbackFile));
+            }
+            entries.putAll(read(file));
+        }
+        return entries.get(name(key));
+    }
+
+    /**
+     * Remember a probe result for the next {@link #flush}; results that are not
+     * {@linkplain #storable storable} are ignored.
+     */
+    void put(ProbeKey key, ProbeResult result) {
+        putAll(Map.of(name(key), result));
+    }
+
+    /** Remember probe results by {@linkplain #name(ProbeKey) name} for the next {@link #flush}. */
+    synchronized void putAll(Map<String, ProbeResult> results) {
+        results.forEach((name, result) -> {
+            if (storable(name, result)) {
+                pending.put(name, result);
+            }
+        });
+    }
+
+    /** Write the results put since the last flush in one go; a no-op if there are none. */
+    synchronized void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        var stored = new TreeMap<>(read(file));
+        stored.putAll(pending);
+        pending.clear();
+        writes++;
+        if (entries != null) {
+            entries.putAll(stored);
+        }
+        var properties = new Properties();
+        stored.forEach((name, result) -> properties.setProperty(name, switch (result) {
+            case ProbeResult.Supported s -> "supported";
+            case ProbeResult.Unsupported u -> "unsupported:" + u.reason();
+            case ProbeResult.ProbeUnavailable u -> throw new AssertionError();
+        }));
+        try {
+            Files.createDirectories(file.getParent());
+            var temp = Files.createTempFile(file.getParent(), "probes", ".tmp");
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                properties.store(writer, "hello-ebpf feature probes");
+            }
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // read-only home or full disk: the results stay cached in memory
+        }
+    }
+
+    /** Number of file writes by {@link #flush}, for tests. */
+    synchronized int writes() {
+        return writes;
+    }
+
+    /** Forget everything stored for this kernel, e.g. after loading a kernel module. */
+    synchronized void invalidate() throws IOException {
+        entries = null;
+        pending.clear();
+        Files.deleteIfExists(file);
+    }
+
+    private static Map<String, ProbeResult> read(Path file) {
+        var properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (IOException | IllegalArgumentException e) { // mostly NoSuchFileException
+            return Map.of();
+        }
+        var results = new LinkedHashMap<String, ProbeResult>();
+        for (var name : properties.stringPropertyNames()) {
+            var value = properties.getProperty(name);
+            ProbeResult result = null;
+            if (value.equals("supported")) {
+                result = new ProbeResult.Supported();
+            } else if (value.startsWith("unsupported:")) {
+                result = new ProbeResult.Unsupported(value.substring("unsupported:".length()));
+            }
+            if (result != null && storable(name, result)) { // files written by older versions
+                results.put(name, result);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Pre-warm the cache for the running kernel with the probes of {@link Features#snapshot()}.
+     * Writes to {@value #SYSTEM_FOLDER} when run as root, else to the user's cache folder.
+     */
+    /**
+     * Everything {@link Features#snapshot()} probes, plus the kfuncs and struct_ops kinds the
+     * schedulers use, whose probes would otherwise make the first check of each JVM parse the
+     * vmlinux BTF.
+     */
+    static Map<String, ProbeResult> prewarm() {
+        var results = new LinkedHashMap<>(Features.snapshot());
+        for (var kfunc : FRAMEWORK_KFUNCS) {
+            results.put(name(new ProbeKey.KfuncKey(kfunc, null)), Features.probeKfunc(kfunc, null));
+        }
+        for (var struct : FRAMEWORK_STRUCT_OPS) {
+            results.put(name(new ProbeKey.StructOpsKey(struct)), Features.probeStructOps(struct));
+        }
+        return results;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path folder = null;
+        boolean clear = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--dir" -> folder = Path.of(args[++i]);
+                case "--clear" -> clear = true;
+                default -> {
+                    System.err.println("Usage: ProbeCache [--dir <folder>] [--clear]");
+                    System.exit(1);
+                }
+            }
+        }
+        var kernelId = kernelId();
+        if (kernelId == null) {
+            System.err.println("Not running on Linux, nothing to probe");
+            System.exit(1);
+        }
+        if (folder == null) {
+            folder = "root".equals(System.getProperty("user.name")) ? Path.of(SYSTEM_FOLDER) : userFolder();
+        }
+        var cache = new ProbeCache(folder, null, kernelId);
+        if (clear) {
+            cache.invalidate();
+        }
+        // probe for real, without reading an older file
+        Features.setPersistentCache(null);
+        var snapshot = prewarm();
+        cache.putAll(snapshot);
+        cache.flush();
+        long stored = snapshot.entrySet().stream().filter(e -> storable(e.getKey(), e.getValue())).count();
+        System.out.println("Stored " + stored + " of " + snapshot.size() + " probe results in " + cache.file());
+    }
+}
@@ -0,0 +1,84 @@
+package me.bechberger.ebpf.bpf.map;
+
+import me.bechberger.ebpf.annotations.bpf.BPFMapClass;
+import me.bechberger.ebpf.bpf.BPFError;
+import me.bechberger.ebpf.shared.LibC;
+import me.bechberger.ebpf.shared.PanamaUtil.ResultAndErr;
+import me.bechberger.ebpf.type.BPFType;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+
+/**
+ * eBPF array map created with {@code BPF_F_MMAPABLE}: a {@link BPFArray} whose values can
+ * additionally be read from user space through a shared mapping, without a
+ * {@code bpf_map_lookup_elem} syscall per read.
+ * <p>
+ * Unlike a {@link BPFArena}, the values are ordinary map values: any program type can update
+ * them, including with atomic instructions, and no arena association is needed. Value {@code i}
+ * starts at byte {@code i * stride()} of {@link #userView()}.
+ * <p>
+ * Use it for counters that user space polls often; keep one value per CPU (indexed by
+ * {@code bpf_get_smp_processor_id()}) to avoid cache-line contention between writers.
+ */
+@BPFMapClass(
+        cTemplate = """
+        struct {
+            __uint (type, BPF_MAP_TYPE_ARRAY);
+            __uint (map_flags, BPF_F_MMAPABLE);
+            __type (key, u32);
+            __type (value, $c1);
+            __uint (max_entries, $maxEntries);
+        } $field SEC(".maps");
+        """,
+        javaTemplate = """
+        new $class<>($fd, $b1, $maxEntries)
+        """)
+public class BPFMmapArray<V> extends BPFArray<V> {
+
+    private final long stride;
+    private MemorySegment userView;
+    private final Arena lifetime = Arena.ofShared();
+
+    public BPFMmapArray(FileDescriptor fd, BPFType<V> valueType, int size) {
+        super(fd, valueType, size);
+        this.stride = (getInfo().valueSize() + 7L) & ~7L;  // kernel rounds array values to 8 B
+    }
+
+    /** Distance in bytes between consecutive values in {@link #userView()}. */
+    public long stride() {
+        return stride;
+    }
+
+    /**
+     * mmap the array values read-only and return a read-only {@link MemorySegment} covering all
+     * of them; writes to it throw {@link UnsupportedOperationException}.
+     * Cached after the first call; the mapping lives until {@link #close()}.
+     */
+    public synchronized MemorySegment userView() {
+        if (userView != null) {
+            return userView;
+        }
+        long size = stride * size();
+        long mapped = (size + BPFArena.PAGE_SIZE - 1) / BPFArena.PAGE_SIZE * BPFArena.PAGE_SIZE;
+        ResultAndErr<MemorySegment> r = LibC.mmap(MemorySegment.NULL, mapped,
+                LibC.PROT_READ, LibC.MAP_SHARED, fd.fd(), 0);
+        MemorySegment raw = r.result();
+        if (raw == null || raw.address() == -1L) {
+            throw new BPFError("BPFMmapArray mmap failed", r.err());
+        }
+        // PROT_READ: a read-only segment makes stray writes throw instead of crashing the JVM
+        userView = raw.reinterpret(mapped, lifetime, seg -> LibC.munmap(seg, mapped)).asSlice(0, size).asReadOnly();
+        return userView;
+    }
+
+    @Override
+    public void close() {
+        try {
+            lifetime.close();
+        } catch (RuntimeException ignored) {
+            // already closed or never opened — fine
+        }
+        super.close();
+    }
+}
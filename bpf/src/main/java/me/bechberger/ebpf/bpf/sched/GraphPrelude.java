@@ -0,0 +1,46 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.sched;
+
+/**
+ * C prelude shared by the {@code global} templates of {@link RbTree} and {@link ListHead}: the
+ * {@code private()} / {@code __contains()} / {@code container_of()} macros and the
+ * {@code __ksym} declarations of the graph kfuncs, as in the kernel's {@code bpf_experimental.h}.
+ *
+ * <p>The declarations are emitted via the templates rather than collected per call because the
+ * templates call the kfuncs from inside C text the compiler plugin cannot see through. The guard
+ * keeps the prelude to one copy when a program declares several trees or lists.
+ */
+final class GraphPrelude {
+
+    private GraphPrelude() {}
+
+    static final String PRELUDE = """
+            #ifndef HELLO_EBPF_GRAPH_PRELUDE
+            #define HELLO_EBPF_GRAPH_PRELUDE
+            #ifndef private
+            #define private(name) SEC(".data." #name) __hidden __attribute__((aligned(8)))
+            #endif
+            #ifndef __contains
+            #define __contains(name, node) __attribute__((btf_decl_tag("contains:" #name ":" #node)))
+            #endif
+            #ifndef container_of
+            #define container_of(ptr, type, member) \\
+                ({ void *__mptr = (void *)(ptr); ((type *)(__mptr - __builtin_offsetof(type, member))); })
+            #endif
+            extern void *bpf_obj_new_impl(__u64 local_type_id, void *meta) __ksym;
+            extern void bpf_obj_drop_impl(void *kptr, void *meta) __ksym;
+            extern int bpf_rbtree_add_impl(struct bpf_rb_root *root, struct bpf_rb_node *node,
+                    bool (less)(struct bpf_rb_node *a, const struct bpf_rb_node *b), void *meta, __u64 off) __ksym;
+            extern struct bpf_rb_node *bpf_rbtree_first(struct bpf_rb_root *root) __ksym;
+            extern struct bpf_rb_node *bpf_rbtree_remove(struct bpf_rb_root *root, struct bpf_rb_node *node) __ksym;
+            extern int bpf_list_push_front_impl(struct bpf_list_head *head, struct bpf_list_node *node,
+                    void *meta, __u64 off) __ksym;
+            extern int bpf_list_push_back_impl(struct bpf_list_head *head, struct bpf_list_node *node,
+                    void *meta, __u64 off) __ksym;
+            extern struct bpf_list_node *bpf_list_pop_front(struct bpf_list_head *head) __ksym;
+            extern struct bpf_list_node *bpf_list_pop_back(struct bpf_list_head *head) __ksym;
+            #define bpf_obj_new(type) ((type *)bpf_obj_new_impl(bpf_core_type_id_local(type), NULL))
+            #define bpf_obj_drop(kptr) bpf_obj_drop_impl(kptr, NULL)
+            #endif
+            """;
+}
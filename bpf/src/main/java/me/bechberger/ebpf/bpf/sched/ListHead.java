@@ -0,0 +1,94 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.sched;
+
+import me.bechberger.ebpf.annotations.bpf.BPFAbstraction;
+import me.bechberger.ebpf.annotations.bpf.BuiltinBPFFunction;
+import me.bechberger.ebpf.annotations.bpf.MethodIsBPFRelatedFunction;
+import me.bechberger.ebpf.annotations.bpf.NotUsableInJava;
+import me.bechberger.ebpf.type.Ptr;
+
+/**
+ * In-kernel doubly linked list of {@code N} nodes, built on the {@code bpf_list_*} kfuncs and
+ * guarded by its own {@code bpf_spin_lock} — the list counterpart of {@link RbTree}.
+ *
+ * <p>Like {@link RbTree} this is a compile-time abstraction that must be declared as a field of a
+ * {@code @BPF} class; it emits {@code <field>_head} and {@code <field>_lock} at file scope.
+ * {@code N} is a {@code @Type} class with a {@code bpf_list_node node} field. The ownership and
+ * locking rules are those of {@link RbTree}: push and pop only while holding {@link #lock()},
+ * allocate and drop only while not, and every popped node must be pushed again or dropped.
+ *
+ * <pre>{@code
+ * @Type
+ * static class Ticket {
+ *     bpf_list_node node;
+ *     int pid;
+ * }
+ *
+ * final ListHead<Ticket> tickets = new ListHead<>();
+ *
+ * tickets.lock();
+ * Ptr<Ticket> t = tickets.popFront();
+ * tickets.unlock();
+ * }</pre>
+ *
+ * @param <N> node type
+ */
+@BPFAbstraction(constructorPrependTo = "")
+public final class ListHead<N> {
+
+    /** Declare the list; no code runs at the declaration, the list starts empty. */
+    @BuiltinBPFFunction(value = "", carrier = "$field", global = GraphPrelude.PRELUDE + """
+            private($field) struct bpf_spin_lock $field_lock;
+            private($field) struct bpf_list_head $field_head __contains($N1, node);
+            """)
+    @NotUsableInJava
+    public ListHead() {}
+
+    // ── Locking ───────────────────────────────────────────────────────────────
+
+    /** Acquire this list's lock. Only one lock may be held at a time. */
+    @BuiltinBPFFunction("bpf_spin_lock(&$this_lock)")
+    @NotUsableInJava
+    public void lock() { throw new MethodIsBPFRelatedFunction(); }
+
+    /** Release this list's lock; required on every path before the program returns. */
+    @BuiltinBPFFunction("bpf_spin_unlock(&$this_lock)")
+    @NotUsableInJava
+    public void unlock() { throw new MethodIsBPFRelatedFunction(); }
+
+    // ── Allocation (lock not held) ────────────────────────────────────────────
+
+    /** Allocate a zeroed node ({@code bpf_obj_new}); {@code null} when out of memory. */
+    @BuiltinBPFFunction("bpf_obj_new($C1)")
+    @NotUsableInJava
+    public Ptr<N> newNode() { throw new MethodIsBPFRelatedFunction(); }
+
+    /** Free an owned node ({@code bpf_obj_drop}). */
+    @BuiltinBPFFunction("bpf_obj_drop($arg1)")
+    @NotUsableInJava
+    public void drop(Ptr<N> node) { throw new MethodIsBPFRelatedFunction(); }
+
+    // ── List operations (lock held) ───────────────────────────────────────────
+
+    /** Insert an owned node at the head; ownership passes to the list. Returns 0. */
+    @BuiltinBPFFunction("bpf_list_push_front_impl(&$this_head, &($arg1)->node, NULL, 0)")
+    @NotUsableInJava
+    public int pushFront(Ptr<N> node) { throw new MethodIsBPFRelatedFunction(); }
+
+    /** Insert an owned node at the tail; ownership passes to the list. Returns 0. */
+    @BuiltinBPFFunction("bpf_list_push_back_impl(&$this_head, &($arg1)->node, NULL, 0)")
+    @NotUsableInJava
+    public int pushBack(Ptr<N> node) { throw new MethodIsBPFRelatedFunction(); }
+
+    /** Unlink and return the head node, owned; {@code null} if empty. */
+    @BuiltinBPFFunction("({ struct bpf_list_node *__ln = bpf_list_pop_front(&$this_head); "
+            + "__ln ? container_of(__ln, $C1, node) : NULL; })")
+    @NotUsableInJava
+    public Ptr<N> popFront() { throw new MethodIsBPFRelatedFunction(); }
+
+    /** Unlink and return the tail node, owned; {@code null} if empty. */
+    @BuiltinBPFFunction("({ struct bpf_list_node *__ln = bpf_list_pop_back(&$this_head); "
+            + "__ln ? container_of(__ln, $C1, node) : NULL; })")
+    @NotUsableInJava
+    public Ptr<N> popBack() { throw new MethodIsBPFRelatedFunction(); }
+}
@@ -0,0 +1,131 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.sched;
+
+import me.bechberger.ebpf.annotations.bpf.BPFAbstraction;
+import me.bechberger.ebpf.annotations.bpf.BuiltinBPFFunction;
+import me.bechberger.ebpf.annotations.bpf.MethodIsBPFRelatedFunction;
+import me.bechberger.ebpf.annotations.bpf.NotUsableInJava;
+import me.bechberger.ebpf.type.Ptr;
+
+/**
+ * In-kernel red-black tree of {@code N} nodes ordered by their {@code key}, built on the
+ * {@code bpf_rbtree_*} kfuncs and guarded by its own {@code bpf_spin_lock}.
+ *
+ * <p>This is a pure compile-time abstraction ({@link BPFAbstraction}). Each {@code RbTree} field
+ * of a {@code @BPF} class emits a file-scope {@code bpf_rb_root}, the lock guarding it and a
+ * {@code less} callback, all named after the field ({@code <field>_root}, {@code <field>_lock},
+ * {@code <field>_less}); the carrier is the field name. It therefore has to be a field — a local
+ * {@code RbTree} is rejected at compile time.
+ *
+ * <h2>Node type</h2>
+ * {@code N} is a {@code @Type} class with a {@code bpf_rb_node node} field and an unsigned
+ * {@code long key} field; nodes with smaller keys come first, equal keys in insertion order:
+ * <pre>{@code
+ * @Type
+ * static class Entry {
+ *     bpf_rb_node node;
+ *     @Unsigned long key;     // e.g. an absolute deadline
+ *     int pid;
+ * }
+ *
+ * final RbTree<Entry> queue = new RbTree<>();
+ * }</pre>
+ *
+ * <h2>Ownership and locking</h2>
+ * The verifier tracks every node:
+ * <ul>
+ *   <li>{@link #newNode()} returns an <em>owning</em> reference (or {@code null}), which must
+ *       either be {@linkplain #add added} or {@linkplain #drop dropped}.</li>
+ *   <li>{@link #add}, {@link #first}, {@link #remove} and {@link #pollFirst} must run between
+ *       {@link #lock()} and {@link #unlock()}. {@link #first} returns a <em>non-owning</em>
+ *       reference valid only until {@link #unlock()}; {@link #remove} and {@link #pollFirst}
+ *       return an owning one that must be re-added or dropped after unlocking.</li>
+ *   <li>No helper or other kfunc may be called while the lock is held — including
+ *       {@link #newNode()} and {@link #drop}.</li>
+ * </ul>
+ * The compiler plugin checks this lock discipline per method (category {@code lock.discipline}).
+ *
+ * <pre>{@code
+ * Ptr<Entry> e = queue.newNode();
+ * if (e == null) return;
+ * e.val().key = deadline;
+ * e.val().pid = pid;
+ * queue.lock();
+ * queue.add(e);
+ * queue.unlock();
+ *
+ * queue.lock();
+ * Ptr<Entry> head = queue.pollFirst();
+ * queue.unlock();
+ * if (head != null) {
+ *     int pid = head.val().pid;
+ *     queue.drop(head);
+ * }
+ * }</pre>
+ *
+ * @param <N> node type
+ */
+@BPFAbstraction(constructorPrependTo = "")
+public final class RbTree<N> {
+
+    /** Declare the tree; no code runs at the declaration, the root starts empty. */
+    @BuiltinBPFFunction(value = "", carrier = "$field", global = GraphPrelude.PRELUDE + """
+            private($field) struct bpf_spin_lock $field_lock;
+            private($field) struct bpf_rb_root $field_root __contains($N1, node);
+            static bool $field_less(struct bpf_rb_node *a, const struct bpf_rb_node *b) {
+                return container_of(a, $C1, node)->key < container_of(b, $C1, node)->key;
+            }
+            """)
+    @NotUsableInJava
+    public RbTree() {}
+
+    // ── Locking ───────────────────────────────────────────────────────────────
+
+    /** Acquire this tree's lock. Only one lock may be held at a time. */
+    @BuiltinBPFFunction("bpf_spin_lock(&$this_lock)")
+    @NotUsableInJava
+    public void lock() { throw new MethodIsBPFRelatedFunction(); }
+
+    /** Release this tree's lock; required on every path before the program returns. */
+    @BuiltinBPFFunction("bpf_spin_unlock(&$this_lock)")
+    @NotUsableInJava
+    public void unlock() { throw new MethodIsBPFRelatedFunction(); }
+
+    // ── Allocation (lock not held) ────────────────────────────────────────────
+
+    /** Allocate a zeroed node ({@code bpf_obj_new}); {@code null} when out of memory. */
+    @BuiltinBPFFunction("bpf_obj_new($C1)")
+    @NotUsableInJava
+    public Ptr<N> newNode() { throw new MethodIsBPFRelatedFunction(); }
+
+    /** Free an owned node ({@code bpf_obj_drop}). */
+    @BuiltinBPFFunction("bpf_obj_drop($arg1)")
+    @NotUsableInJava
+    public void drop(Ptr<N> node) { throw new MethodIsBPFRelatedFunction(); }
+
+    // ── Tree operations (lock held) ───────────────────────────────────────────
+
+    /** Insert an owned node; ownership passes to the tree. Always returns 0. */
+    @BuiltinBPFFunction("bpf_rbtree_add_impl(&$this_root, &($arg1)->node, $this_less, NULL, 0)")
+    @NotUsableInJava
+    public int add(Ptr<N> node) { throw new MethodIsBPFRelatedFunction(); }
+
+    /** Node with the smallest key as a non-owning reference, or {@code null} if empty. */
+    @BuiltinBPFFunction("({ struct bpf_rb_node *__rb = bpf_rbtree_first(&$this_root); "
+            + "__rb ? container_of(__rb, $C1, node) : NULL; })")
+    @NotUsableInJava
+    public Ptr<N> first() { throw new MethodIsBPFRelatedFunction(); }
+
+    /** Unlink {@code node} (e.g. from {@link #first}) and return it owned; {@code null} if not in the tree. */
+    @BuiltinBPFFunction("({ struct bpf_rb_node *__rb = bpf_rbtree_remove(&$this_root, &($arg1)->node); "
+            + "__rb ? container_of(__rb, $C1, node) : NULL; })")
+    @NotUsableInJava
+    public Ptr<N> remove(Ptr<N> node) { throw new MethodIsBPFRelatedFunction(); }
+
+    /** Unlink and return the node with the smallest key, owned; {@code null} if empty. */
+    @BuiltinBPFFunction("({ struct bpf_rb_node *__rb = bpf_rbtree_first(&$this_root); "
+            + "if (__rb) __rb = bpf_rbtree_remove(&$this_root, __rb); "
+            + "__rb ? container_of(__rb, $C1, node) : NULL; })")
+    @NotUsableInJava
+    public Ptr<N> pollFirst() { throw new MethodIsBPFRelatedFunction(); }
+}
@@ -0,0 +1,156 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.userspace;
+
+import me.bechberger.ebpf.bpf.QueuedTask;
+
+/**
+ * {@link SliceController} that sizes slices from load, in the spirit of scx_bpfland/lavd:
+ *
+ * <ol>
+ *   <li><b>Budget from load.</b> The runnable tasks per CPU, {@code r}, is the larger of the
+ *       tracker's summed duty cycles per CPU and the batch's tasks beyond the idle CPUs per CPU,
+ *       plus one when no CPU is idle (duty cycles measure CPU received, not demanded, so they
+ *       cannot see a queue forming behind busy CPUs). Like CFS's {@code sched_latency / nr_running}, a budget of
+ *       {@code targetLatency / max(1, r)} lets every runnable task run within about the target
+ *       latency. When nothing waits and {@code r <= 1}, the budget is the maximum slice —
+ *       nobody benefits from preemption.</li>
+ *   <li><b>Share by duty cycle.</b> A task gets {@code 0.25 + 0.75 * dutyCycle} of the budget,
+ *       with the duty cycle from a {@link RustyLoadTracker}: CPU-bound tasks (duty ≈ 1) keep
+ *       the whole budget and avoid needless round trips, interactive ones (duty ≈ 0) get a
+ *       quarter, so one that suddenly spins cannot hold a CPU for long.</li>
+ *   <li><b>Scale by weight</b> ({@code weight / 100}), then clamp to {@code [min, max]}.</li>
+ * </ol>
+ *
+ * <p>The controller feeds the tracker itself on every call (a repeated sample at the same
+ * timestamp is a no-op, so sharing the tracker with a policy that also feeds it is fine) and
+ * forgets pids not seen for {@link #STALE_NS}. With {@link Opts#workerThreads} {@code > 1} it
+ * keeps one tracker per worker, for the pids {@link UserspaceScheduler#workerForPid} assigns to
+ * it, so workers never wait for each other; the load is the sum of the trackers' duty cycles,
+ * each refreshed by its own worker. {@link #tracker()} then holds the pids of the first worker.
+ */
+public final class AdaptiveSliceController implements SliceController {
+
+    public static final long DEFAULT_MIN_SLICE_NS = 250_000L;          // 250 us
+    public static final long DEFAULT_MAX_SLICE_NS = 20_000_000L;       // 20 ms
+    public static final long DEFAULT_TARGET_LATENCY_NS = 10_000_000L;  // 10 ms
+    /** Tracker entries idle this long are dropped. */
+    static final long STALE_NS = 10_000_000_000L;                      // 10 s
+    /** How often the summed duty cycle is recomputed (it is O(tracked pids)). */
+    static final long LOAD_REFRESH_NS = 10_000_000L;                   // 10 ms
+
+    private final RustyLoadTracker tracker;
+    private long minSliceNs = DEFAULT_MIN_SLICE_NS;
+    private long maxSliceNs = DEFAULT_MAX_SLICE_NS;
+    private long targetLatencyNs = DEFAULT_TARGET_LATENCY_NS;
+    /** One per worker thread; replaced when the number of workers changes. */
+    private volatile Shard[] shards;
+
+    /** The tracker of one worker's pids, locked only by that worker. */
+    private static final class Shard {
+        final RustyLoadTracker tracker;
+        long lastPruneNs;
+        long lastLoadNs = Long.MIN_VALUE;
+        /** The tracker's summed duty cycle, read by the other workers without locking. */
+        volatile double load;
+
+        Shard(RustyLoadTracker tracker) {
+            this.tracker = tracker;
+        }
+    }
+
+    public AdaptiveSliceController(RustyLoadTracker tracker) {
+        this.tracker = tracker;
+        this.shards = new Shard[]{new Shard(tracker)};
+    }
+
+    public AdaptiveSliceController withBounds(long minNs, long maxNs) {
+        if (minNs <= 0 || maxNs < minNs) {
+            throw new IllegalArgumentException("need 0 < min <= max: " + minNs + ", " + maxNs);
+        }
+        this.minSliceNs = minNs;
+        this.maxSliceNs = maxNs;
+        return this;
+    }
+
+    /** Wait a queued task should see when all CPUs are busy; the contention budget's numerator. */
+    public AdaptiveSliceController withTargetLatency(long ns) {
+        if (ns <= 0) throw new IllegalArgumentException("target latency must be > 0: " + ns);
+        this.targetLatencyNs = ns;
+        return this;
+    }
+
+    public RustyLoadTracker tracker() { return tracker; }
+
+    @Override
+    public long sliceNs(QueuedTask t, Context ctx) {
+        long now = ctx.nowNs();
+        Shard[] all = shards(ctx.workerThreads());
+        Shard shard = all[UserspaceScheduler.workerForPid(t.pid, all.length)];
+        double duty;
+        // only this pid's worker takes the lock, it guards against policies dispatching elsewhere
+        synchronized (shard) {
+            RustyLoadTracker tr = shard.tracker;
+            tr.onEnqueue(t.pid, t.execRuntime, now);
+            duty = tr.dutyCycle(t.pid, now);
+            if (shard.lastLoadNs == Long.MIN_VALUE || now - shard.lastLoadNs >= LOAD_REFRESH_NS) {
+                shard.lastLoadNs = now;
+                shard.load = tr.totalDutyCycle(now);
+            }
+            if (now - shard.lastPruneNs >= STALE_NS) {
+                shard.lastPruneNs = now;
+                for (int pid : tr.trackedPids()) {
+                    if (tr.nanosSinceSeen(pid, now) > STALE_NS) tr.forget(pid);
+                }
+            }
+        }
+        double load = 0;
+        for (Shard s : all) load += s.load;
+        return sliceFor(duty, t.weight, load / ctx.nrCpus(), ctx);
+    }
+
+    /** The shards for {@code workers} worker threads; the first keeps {@link #tracker()}. */
+    private Shard[] shards(int workers) {
+        Shard[] all = shards;
+        if (all.length == workers) return all;
+        synchronized (this) {
+            all = shards;
+            if (all.length != workers) {
+                // pids move between workers: the other trackers start over
+                Shard[] resized = new Shard[Math.max(1, workers)];
+                resized[0] = all[0];
+                for (int i = 1; i < resized.length; i++) {
+                    resized[i] = new Shard(new RustyLoadTracker(tracker.halfLifeNs()));
+                }
+                synchronized (resized[0]) {
+                    for (int pid : tracker.trackedPids()) {
+                        if (UserspaceScheduler.workerForPid(pid, resized.length) != 0) tracker.forget(pid);
+                    }
+                }
+                shards = all = resized;
+            }
+            return all;
+        }
+    }
+
+    /** The tracker holding {@code pid} with {@code workers} worker threads; for tests. */
+    RustyLoadTracker trackerFor(int pid, int workers) {
+        Shard[] all = shards(workers);
+        return all[UserspaceScheduler.workerForPid(pid, all.length)].tracker;
+    }
+
+    /**
+     * The slice for a task with {@code dutyCycle} and {@code weight} when the tracked load is
+     * {@code loadPerCpu}; package-private for tests.
+     */
+    long sliceFor(double dutyCycle, long weight, double loadPerCpu, Context ctx) {
+        int waiting = Math.max(0, ctx.queueDepth() - ctx.idleCpus());
+        double runnable = Math.max(loadPerCpu, (double) waiting / ctx.nrCpus());
+        if (ctx.idleCpus() == 0) runnable += 1.0;       // every CPU busy: the batch queues behind them
+        double budget = waiting == 0 && runnable <= 1.0
+                ? maxSliceNs
+                : targetLatencyNs / Math.max(1.0, runnable);
+        double share = 0.25 + 0.75 * Math.min(1.0, Math.max(0.0, dutyCycle));
+        double slice = budget * share * (weight > 0 ? weight / 100.0 : 1.0);
+        return Math.max(minSliceNs, Math.min(maxSliceNs, (long) slice));
+    }
+}
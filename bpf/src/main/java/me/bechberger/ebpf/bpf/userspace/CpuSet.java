@@ -0,0 +1,298 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.userspace;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+
+/**
+ * Fixed-capacity bitset of CPU (or domain) ids — the userspace counterpart of the kernel's
+ * {@code struct cpumask}. Replaces the single-{@code long} masks that capped topologies at 64
+ * CPUs; the capacity is chosen at construction, up to
+ * {@code UserspaceSchedulerBase.MAX_CPUS} and beyond.
+ *
+ * <p>Storage is a {@code long[]} in the kernel's layout: bit {@code cpu & 63} of word
+ * {@code cpu >> 6}, little-endian words. {@link #copyFrom(MemorySegment)} and
+ * {@link #copyTo(MemorySegment)} therefore mirror a kernel cpumask (or the mmapped idle mask)
+ * word for word. The word array is padded to whole 64-byte cache lines (8 words) so the bulk
+ * operations are straight, branch-free loops that the JIT can vectorise.
+ *
+ * <p>All operations after construction are allocation-free; the binary ones
+ * ({@link #and}, {@link #or}, {@link #andNot}) mutate {@code this} in place and return it.
+ * Operands of different capacity are treated as zero-extended. Sets handed out by
+ * {@link CpuTopology} are {@linkplain #frozen() frozen}; mutating one throws
+ * {@link UnsupportedOperationException} — {@link #copy()} it first.
+ *
+ * <pre>{@code
+ * CpuSet candidates = topo.cpuMask(dom).copy().and(allowed);
+ * for (int cpu = candidates.nextSetBit(0); cpu >= 0; cpu = candidates.nextSetBit(cpu + 1)) { ... }
+ * }</pre>
+ */
+public final class CpuSet {
+
+    private static final int WORDS_PER_LINE = 8;
+
+    private final int capacity;
+    private final long[] words;
+    private boolean frozen;
+
+    /** Empty set able to hold ids {@code 0..capacity-1}. */
+    public CpuSet(int capacity) {
+        if (capacity < 0) throw new IllegalArgumentException("negative capacity: " + capacity);
+        this.capacity = capacity;
+        int nWords = (capacity + 63) >>> 6;
+        this.words = new long[Math.max(WORDS_PER_LINE,
+                (nWords + WORDS_PER_LINE - 1) / WORDS_PER_LINE * WORDS_PER_LINE)];
+    }
+
+    public static CpuSet of(int capacity, int... cpus) {
+        CpuSet s = new CpuSet(capacity);
+        for (int cpu : cpus) s.set(cpu);
+        return s;
+    }
+
+    /** Ids {@code from} (inclusive) to {@code to} (exclusive). */
+    public static CpuSet range(int capacity, int from, int to) {
+        CpuSet s = new CpuSet(capacity);
+        for (int cpu = from; cpu < to; cpu++) s.set(cpu);
+        return s;
+    }
+
+    /** The low 64 ids from a legacy single-word mask. */
+    public static CpuSet ofWord(long mask) {
+        CpuSet s = new CpuSet(64);
+        s.words[0] = mask;
+        return s;
+    }
+
+    /**
+     * Read a kernel-layout cpumask of {@code capacity} bits from {@code seg}; bits beyond
+     * {@code capacity} are dropped.
+     */
+    public static CpuSet fromSegment(MemorySegment seg, int capacity) {
+        return new CpuSet(capacity).copyFrom(seg);
+    }
+
+    public int capacity() { return capacity; }
+
+    public boolean test(int cpu) {
+        if (cpu < 0 || cpu >= capacity) return false;
+        return (words[cpu >>> 6] & (1L << cpu)) != 0;
+    }
+
+    public CpuSet set(int cpu) {
+        checkWritable();
+        checkIndex(cpu);
+        words[cpu >>> 6] |= 1L << cpu;
+        return this;
+    }
+
+    public CpuSet clear(int cpu) {
+        checkWritable();
+        checkIndex(cpu);
+        words[cpu >>> 6] &= ~(1L << cpu);
+        return this;
+    }
+
+    public CpuSet clearAll() {
+        checkWritable();
+        Arrays.fill(words, 0L);
+        return this;
+    }
+
+    public boolean isEmpty() {
+        long acc = 0;
+        for (long w : words) acc |= w;
+        return acc == 0;
+    }
+
+    public int cardinality() {
+        int n = 0;
+        for (long w : words) n += Long.bitCount(w);
+        return n;
+    }
+
+    /** Lowest set id {@code >= from}, or -1 — like {@link java.util.BitSet#nextSetBit}. */
+    public int nextSetBit(int from) {
+        if (from < 0) from = 0;
+        if (from >= capacity) return -1;
+        int i = from >>> 6;
+        long w = words[i] & (-1L << from);
+        while (true) {
+            if (w != 0) {
+                int cpu = (i << 6) + Long.numberOfTrailingZeros(w);
+                return cpu < capacity ? cpu : -1;
+            }
+            if (++i >= words.length) return -1;
+            w = words[i];
+        }
+    }
+
+    /** Lowest clear id {@code >= from}, or -1 if every id up to the capacity is set. */
+    public int nextClearBit(int from) {
+        if (from < 0) from = 0;
+        if (from >= capacity) return -1;
+        int i = from >>> 6;
+        long w = ~words[i] & (-1L << from);
+        while (true) {
+            if (w != 0) {
+                int cpu = (i << 6) + Long.numberOfTrailingZeros(w);
+                return cpu < capacity ? cpu : -1;
+            }
+            if (++i >= words.length) return -1;
+            w = ~words[i];
+        }
+    }
+
+    /** Lowest id set in both {@code this} and {@code other} {@code >= from}, or -1. No allocation. */
+    public int nextSetBitAnd(CpuSet other, int from) {
+        if (from < 0) from = 0;
+        int cap = Math.min(capacity, other.capacity);
+        if (from >= cap) return -1;
+        int n = Math.min(words.length, other.words.length);
+        int i = from >>> 6;
+        long w = words[i] & other.words[i] & (-1L << from);
+        while (true) {
+            if (w != 0) {
+                int cpu = (i << 6) + Long.numberOfTrailingZeros(w);
+                return cpu < cap ? cpu : -1;
+            }
+            if (++i >= n) return -1;
+            w = words[i] & other.words[i];
+        }
+    }
+
+    public boolean intersects(CpuSet other) {
+        int n = Math.min(words.length, other.words.length);
+        long acc = 0;
+        for (int i = 0; i < n; i++) acc |= words[i] & other.words[i];
+        return acc != 0;
+    }
+
+    /** {@code true} if every id in {@code other} is also in {@code this}. */
+    public boolean containsAll(CpuSet other) {
+        int n = Math.min(words.length, other.words.length);
+        long acc = 0;
+        for (int i = 0; i < n; i++) acc |= other.words[i] & ~words[i];
+        for (int i = n; i < other.words.length; i++) acc |= other.words[i];
+        return acc == 0;
+    }
+
+    public CpuSet and(CpuSet other) {
+        checkWritable();
+        int n = Math.min(words.length, other.words.length);
+        for (int i = 0; i < n; i++) words[i] &= other.words[i];
+        for (int i = n; i < words.length; i++) words[i] = 0;
+        return this;
+    }
+
+    public CpuSet or(CpuSet other) {
+        checkWritable();
+        int n = Math.min(words.length, other.words.length);
+        for (int i = 0; i < n; i++) words[i] |= other.words[i];
+        trimTail();
+        return this;
+    }
+
+    public CpuSet andNot(CpuSet other) {
+        checkWritable();
+        int n = Math.min(words.length, other.words.length);
+        for (int i = 0; i < n; i++) words[i] &= ~other.words[i];
+        return this;
+    }
+
+    /** Replace the contents with {@code other}'s (zero-extended or truncated to this capacity). */
+    public CpuSet copyFrom(CpuSet other) {
+        checkWritable();
+        int n = Math.min(words.length, other.words.length);
+        System.arraycopy(other.words, 0, words, 0, n);
+        for (int i = n; i < words.length; i++) words[i] = 0;
+        trimTail();
+        return this;
+    }
+
+    /** Replace the contents with the kernel-layout cpumask in {@code seg}. */
+    public CpuSet copyFrom(MemorySegment seg) {
+        checkWritable();
+        int n = (int) Math.min((capacity + 63) >>> 6, seg.byteSize() / 8);
+        for (int i = 0; i < n; i++) words[i] = seg.get(ValueLayout.JAVA_LONG_UNALIGNED, i * 8L);
+        for (int i = n; i < words.length; i++) words[i] = 0;
+        trimTail();
+        return this;
+    }
+
+    /** Write this set in kernel cpumask layout; {@code seg} must hold {@code ceil(capacity / 64)} words. */
+    public void copyTo(MemorySegment seg) {
+        int n = (capacity + 63) >>> 6;
+        for (int i = 0; i < n; i++) seg.set(ValueLayout.JAVA_LONG_UNALIGNED, i * 8L, words[i]);
+    }
+
+    /** Word {@code i} of the kernel layout (bits {@code 64*i .. 64*i+63}); 0 past the end. */
+    public long word(int i) {
+        return i >= 0 && i < words.length ? words[i] : 0L;
+    }
+
+    public CpuSet copy() {
+        CpuSet s = new CpuSet(capacity);
+        System.arraycopy(words, 0, s.words, 0, words.length);
+        return s;
+    }
+
+    /** Make this set read-only and return it. */
+    public CpuSet freeze() {
+        frozen = true;
+        return this;
+    }
+
+    public boolean frozen() { return frozen; }
+
+    private void trimTail() {
+        int last = capacity >>> 6;
+        if (last < words.length) {
+            if ((capacity & 63) != 0) words[last] &= (1L << capacity) - 1;
+            else words[last] = 0;
+            for (int i = last + 1; i < words.length; i++) words[i] = 0;
+        }
+    }
+
+    private void checkIndex(int cpu) {
+        if (cpu < 0 || cpu >= capacity) {
+            throw new IndexOutOfBoundsException("cpu " + cpu + " outside [0, " + capacity + ")");
+        }
+    }
+
+    private void checkWritable() {
+        if (frozen) throw new UnsupportedOperationException("CpuSet is frozen; copy() it first");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CpuSet other)) return false;
+        int n = Math.max(words.length, other.words.length);
+        for (int i = 0; i < n; i++) if (word(i) != other.word(i)) return false;
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        long h = 1234;
+        for (int i = words.length; --i >= 0; ) h ^= words[i] * (i + 1);
+        return (int) ((h >> 32) ^ h);
+    }
+
+    /** Kernel cpulist format, e.g. {@code "0-3,8,10-11"}. */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        int cpu = nextSetBit(0);
+        while (cpu >= 0) {
+            int end = nextClearBit(cpu);
+            if (end < 0) end = capacity;
+            if (sb.length() > 0) sb.append(',');
+            sb.append(cpu);
+            if (end - 1 > cpu) sb.append('-').append(end - 1);
+            cpu = nextSetBit(end);
+        }
+        return sb.toString();
+    }
+}
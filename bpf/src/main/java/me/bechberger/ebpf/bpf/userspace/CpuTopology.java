@@ -6,6 +6,7 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -19,7 +20,12 @@ import java.util.logging.Logger;
  * online CPUs — {@link #detect} never throws.
  *
  * <p>Domains are numbered 0..nrDomains-1. A CPU's domain is {@link #domainOfCpu(int)}; a
- * domain's CPU set is the bitmask {@link #cpuMask(int)}.
+ * domain's CPU set is {@link #cpuMask(int)}, a {@link CpuSet} sized to {@link #nrCpus()} — there is
+ * no 64-CPU limit.
+ *
+ * <p>Two more levels bracket the domain: the physical core (SMT siblings, from
+ * {@code cpuN/topology/thread_siblings_list}) and the NUMA node (from the {@code cpuN/nodeK}
+ * link). Without that information every CPU is its own core and all CPUs share node 0.
  */
 public final class CpuTopology {
 
@@ -29,13 +35,43 @@ public final class CpuTopology {
     private final int nrCpus;
     private final int nrDomains;
     private final int[] cpuToDomain;   // index = cpu, value = domain id
-    private final long[] domainMask;   // index = domain id, value = cpu bitmask
+    private final CpuSet[] domainMask; // index = domain id, value = frozen cpu set
+    private final int[] cpuToCore;
+    private final CpuSet[] coreMask;
+    private final int[] cpuToNode;
+    private final CpuSet[] nodeMask;
+    private final CpuSet allCpus;
 
-    private CpuTopology(int nrCpus, int nrDomains, int[] cpuToDomain, long[] domainMask) {
+    private CpuTopology(int nrCpus, int nrDomains, int[] cpuToDomain, CpuSet[] domainMask,
+                        int[] cpuToCore, int[] cpuToNode) {
         this.nrCpus = nrCpus;
         this.nrDomains = nrDomains;
         this.cpuToDomain = cpuToDomain;
         this.domainMask = domainMask;
+        this.cpuToCore = cpuToCore;
+        this.coreMask = masks(cpuToCore, nrCpus);
+        this.cpuToNode = cpuToNode;
+        this.nodeMask = masks(cpuToNode, nrCpus);
+        CpuSet all = new CpuSet(nrCpus);
+        for (CpuSet m : domainMask) all.or(m.freeze());
+        this.allCpus = all.freeze();
+    }
+
+    /** Invert a cpu → group id table into frozen per-group CPU sets. */
+    private static CpuSet[] masks(int[] cpuToGroup, int nrCpus) {
+        int n = 0;
+        for (int g : cpuToGroup) n = Math.max(n, g + 1);
+        CpuSet[] out = new CpuSet[n];
+        for (int g = 0; g < n; g++) out[g] = new CpuSet(nrCpus);
+        for (int cpu = 0; cpu < cpuToGroup.length; cpu++) out[cpuToGroup[cpu]].set(cpu);
+        for (CpuSet m : out) m.freeze();
+        return out;
+    }
+
+    private static int[] identity(int n) {
+        int[] a = new int[n];
+        for (int i = 0; i < n; i++) a[i] = i;
+        return a;
     }
 
     public int nrCpus() { return nrCpus; }
@@ -46,15 +82,94 @@ public final class CpuTopology {
         return cpuToDomain[cpu];
     }
 
-    public long cpuMask(int domain) {
+    /** CPUs of {@code domain}; frozen — {@link CpuSet#copy()} before mutating. */
+    public CpuSet cpuMask(int domain) {
         if (domain < 0 || domain >= domainMask.length) {
             throw new IllegalStateException("no such domain: " + domain);
         }
         return domainMask[domain];
     }
 
+    /** Union of all domains' CPUs; frozen. */
+    public CpuSet cpus() { return allCpus; }
+
+    public int nrCores() { return coreMask.length; }
+    public int nrNodes() { return nodeMask.length; }
+
+    public int coreOfCpu(int cpu) {
+        if (cpu < 0 || cpu >= cpuToCore.length) return 0;
+        return cpuToCore[cpu];
+    }
+
+    public int nodeOfCpu(int cpu) {
+        if (cpu < 0 || cpu >= cpuToNode.length) return 0;
+        return cpuToNode[cpu];
+    }
+
+    /** SMT siblings of {@code core}, including itself; frozen. */
+    public CpuSet coreMask(int core) {
+        if (core < 0 || core >= coreMask.length) throw new IllegalStateException("no such core: " + core);
+        return coreMask[core];
+    }
+
+    /** The other SMT siblings of {@code cpu} in ascending order; empty without SMT. */
+    public int[] siblingsOf(int cpu) {
+        CpuSet core = coreMask(coreOfCpu(cpu));
+        int[] out = new int[Math.max(0, core.cardinality() - 1)];
+        int n = 0;
+        for (int s = core.nextSetBit(0); s >= 0; s = core.nextSetBit(s + 1)) {
+            if (s != cpu && n < out.length) out[n++] = s;
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    /** Largest number of hardware threads of any core; 1 without SMT. */
+    public int maxThreadsPerCore() {
+        int max = 1;
+        for (CpuSet core : coreMask) max = Math.max(max, core.cardinality());
+        return max;
+    }
+
+    /** CPUs of NUMA node {@code node}; frozen. */
+    public CpuSet nodeMask(int node) {
+        if (node < 0 || node >= nodeMask.length) throw new IllegalStateException("no such node: " + node);
+        return nodeMask[node];
+    }
+
     public static CpuTopology detect() { return detect(DEFAULT_ROOT); }
 
+    /**
+     * Synthetic topology of {@code nrCpus} CPUs split into consecutive domains of
+     * {@code cpusPerDomain} CPUs (the last one may be smaller). For simulations and tests of
+     * machines other than the host.
+     */
+    public static CpuTopology uniform(int nrCpus, int cpusPerDomain) {
+        return uniform(nrCpus, 1, cpusPerDomain, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Synthetic topology with SMT and NUMA: consecutive CPUs form cores of
+     * {@code threadsPerCore} siblings, consecutive CPUs form domains of {@code cpusPerDomain},
+     * and consecutive domains form nodes of {@code domainsPerNode}.
+     */
+    public static CpuTopology uniform(int nrCpus, int threadsPerCore, int cpusPerDomain, int domainsPerNode) {
+        if (nrCpus < 1 || threadsPerCore < 1 || cpusPerDomain < 1 || domainsPerNode < 1) {
+            throw new IllegalArgumentException("need >= 1 CPU and >= 1 per level: " + nrCpus
+                    + ", " + threadsPerCore + ", " + cpusPerDomain + ", " + domainsPerNode);
+        }
+        int nrDomains = (nrCpus + cpusPerDomain - 1) / cpusPerDomain;
+        int[] cpuToDomain = new int[nrCpus];
+        int[] cpuToCore = new int[nrCpus];
+        int[] cpuToNode = new int[nrCpus];
+        for (int cpu = 0; cpu < nrCpus; cpu++) {
+            cpuToDomain[cpu] = cpu / cpusPerDomain;
+            cpuToCore[cpu] = cpu / threadsPerCore;
+            cpuToNode[cpu] = cpuToDomain[cpu] / domainsPerNode;
+        }
+        return new CpuTopology(nrCpus, nrDomains, cpuToDomain, masks(cpuToDomain, nrCpus),
+                cpuToCore, cpuToNode);
+    }
+
     public static CpuTopology detect(Path sysfsRoot) {
         try {
             return detectOrThrow(sysfsRoot);
@@ -94,14 +209,17 @@ public final class CpuTopology {
 
         int nrDomains = llcGroups.size();
         int[] cpuToDomain = new int[nrCpus];
-        long[] domainMask = new long[nrDomains];
+        int[] cpuToCore = coresOf(root, cpus, nrCpus);
+        int[] cpuToNode = nodesOf(root, cpus, nrCpus);
+        CpuSet[] domainMask = new CpuSet[nrDomains];
         int dom = 0;
         for (var e : llcGroups.entrySet()) {
+            domainMask[dom] = new CpuSet(nrCpus);
             for (int cpu : e.getValue()) {
                 cpuToDomain[cpu] = dom;
-                domainMask[dom] |= (1L << cpu);
+                domainMask[dom].set(cpu);
             }
-            if (domainMask[dom] == 0L) {
+            if (domainMask[dom].isEmpty()) {
                 throw new IllegalStateException("empty cpuMask for domain " + dom);
             }
             dom++;
@@ -110,7 +228,53 @@ public final class CpuTopology {
             throw new IllegalStateException("more domains (" + nrDomains
                     + ") than CPUs (" + nrCpus + ")");
         }
-        return new CpuTopology(nrCpus, nrDomains, cpuToDomain, domainMask);
+        return new CpuTopology(nrCpus, nrDomains, cpuToDomain, domainMask, cpuToCore, cpuToNode);
+    }
+
+    /**
+     * Core id per CPU, grouping CPUs with the same {@code thread_siblings_list}; a CPU without
+     * that file (or absent from {@code cpus}) is its own core.
+     */
+    private static int[] coresOf(Path root, List<Integer> cpus, int nrCpus) {
+        Map<String, Integer> ids = new LinkedHashMap<>();
+        int[] out = new int[nrCpus];
+        Arrays.fill(out, -1);
+        for (int cpu : cpus) {
+            Path p = root.resolve("cpu" + cpu).resolve("topology").resolve("thread_siblings_list");
+            String key;
+            try {
+                key = Files.readString(p).trim();
+            } catch (IOException e) {
+                key = "cpu" + cpu;
+            }
+            out[cpu] = ids.computeIfAbsent(key, k -> ids.size());
+        }
+        for (int cpu = 0; cpu < nrCpus; cpu++) if (out[cpu] < 0) out[cpu] = ids.size() + cpu;
+        return compact(out);
+    }
+
+    /** NUMA node per CPU from its {@code nodeK} link; 0 when absent. */
+    private static int[] nodesOf(Path root, List<Integer> cpus, int nrCpus) {
+        int[] out = new int[nrCpus];
+        for (int cpu : cpus) {
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(root.resolve("cpu" + cpu), "node[0-9]*")) {
+                for (Path p : ds) {
+                    out[cpu] = Integer.parseInt(p.getFileName().toString().substring("node".length()));
+                    break;
+                }
+            } catch (IOException | NumberFormatException e) {
+                // no node link -> node 0
+            }
+        }
+        return compact(out);
+    }
+
+    /** Renumber group ids densely (0..n-1) in order of first appearance. */
+    private static int[] compact(int[] ids) {
+        Map<Integer, Integer> dense = new LinkedHashMap<>();
+        int[] out = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) out[i] = dense.computeIfAbsent(ids[i], k -> dense.size());
+        return out;
     }
 
     /** Return the shared_cpu_list of the highest-level cache for {@code cpu}, or null. */
@@ -160,7 +324,7 @@ public final class CpuTopology {
 
     private static CpuTopology singleDomainFallback(int nrCpus) {
         int[] cpuToDomain = new int[nrCpus];   // all zeros
-        long mask = nrCpus >= 64 ? -1L : ((1L << nrCpus) - 1);
-        return new CpuTopology(nrCpus, 1, cpuToDomain, new long[]{mask});
+        return new CpuTopology(nrCpus, 1, cpuToDomain, new CpuSet[]{CpuSet.range(nrCpus, 0, nrCpus)},
+                identity(nrCpus), new int[nrCpus]);
     }
 }
@@ -1,17 +1,29 @@
 // SPDX-License-Identifier: GPL-2.0
 package me.bechberger.ebpf.bpf.userspace;
 
+import java.lang.invoke.VarHandle;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Bounded, live ring of the last N scheduling decisions — answers "what did the scheduler
  * just do and why" without enabling JFR. Backed by pre-allocated parallel arrays (no
  * per-decision allocation), matching the hot-path discipline. Opt-in: capacity 0 disables it.
  *
- * <p>Not lock-free: {@link #recentDecisions()} copies out under {@code synchronized}; the run
- * loop's {@link #record} is a cheap array write under the same lock. Contention is negligible
- * at scheduling rates because reads are operator-initiated (a dashboard poll), not per-decision.
+ * <p>Lock-free: every recording thread (the run loop, or each sharded policy worker) writes
+ * into its own ring, stamping each slot with that ring's own counter, so writers share no
+ * cache line. {@link #recentDecisions()} merges the rings by timestamp (ties broken by the
+ * ring counter) and keeps the newest {@code capacity} entries. Each slot is a small seqlock
+ * (counter cleared, fields written, counter published with release semantics), so a reader
+ * racing a writer skips a half-written slot instead of returning a torn entry.
+ *
+ * <p>The ring of a thread that has exited is handed to the next thread that starts recording,
+ * so the number of rings is bounded by the number of recording threads alive at once; the
+ * dead thread's entries stay visible until the new owner overwrites them.
  */
 public final class DecisionTrace {
 
@@ -23,45 +35,102 @@ public final class DecisionTrace {
     private static final Kind[] KINDS = Kind.values();
 
     private final int capacity;
-    private final long[] tsNs;
-    private final int[]  pid;
-    private final int[]  cpu;
-    private final byte[] kind;    // ordinal
-    private final int[]  reason;
-    private int head;             // next write index
-    private int size;             // number of valid entries (<= capacity)
+    /** All rings, one per live recording thread. Appended rarely, iterated on read. */
+    private final List<Ring> rings = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Ring> localRing = ThreadLocal.withInitial(this::acquireRing);
+
+    /** Single-writer ring owned by one thread. */
+    private static final class Ring {
+        /** Per-slot ring counter; 0 is reserved for "slot empty or being written". */
+        final AtomicLongArray seq;
+        final long[] tsNs;
+        final int[]  pid;
+        final int[]  cpu;
+        final byte[] kind;    // ordinal
+        final int[]  reason;
+        int head;             // next write index; only touched by the owning thread
+        long count;           // last counter handed out; only touched by the owning thread
+        WeakReference<Thread> owner;   // guarded by rings
+
+        Ring(int capacity) {
+            this.seq    = new AtomicLongArray(capacity);
+            this.tsNs   = new long[capacity];
+            this.pid    = new int[capacity];
+            this.cpu    = new int[capacity];
+            this.kind   = new byte[capacity];
+            this.reason = new int[capacity];
+        }
+    }
 
     public DecisionTrace(int capacity) {
         this.capacity = Math.max(0, capacity);
-        this.tsNs   = new long[this.capacity];
-        this.pid    = new int[this.capacity];
-        this.cpu    = new int[this.capacity];
-        this.kind   = new byte[this.capacity];
-        this.reason = new int[this.capacity];
     }
 
     public boolean enabled() { return capacity > 0; }
 
+    /**
+     * Take over the ring of an exited thread, or create a new one. The owner's termination
+     * happens-before {@link Thread#isAlive()} returning false, so the new owner sees the
+     * ring's {@code head} and {@code count} as the old owner left them.
+     */
+    private Ring acquireRing() {
+        Thread self = Thread.currentThread();
+        synchronized (rings) {
+            for (Ring r : rings) {
+                Thread owner = r.owner.get();
+                if (owner == null || !owner.isAlive()) {
+                    r.owner = new WeakReference<>(self);
+                    return r;
+                }
+            }
+            Ring r = new Ring(capacity);
+            r.owner = new WeakReference<>(self);
+            rings.add(r);
+            return r;
+        }
+    }
+
+    /** Number of rings, for tests. */
+    int ringCount() {
+        return rings.size();
+    }
+
     /** Record one decision. No-op when capacity is 0. */
-    public synchronized void record(long tsNs, int pid, int cpu, Kind kind, int reason) {
+    public void record(long tsNs, int pid, int cpu, Kind kind, int reason) {
         if (capacity == 0) return;
-        this.tsNs[head]   = tsNs;
-        this.pid[head]    = pid;
-        this.cpu[head]    = cpu;
-        this.kind[head]   = (byte) kind.ordinal();
-        this.reason[head] = reason;
-        head = (head + 1) % capacity;
-        if (size < capacity) size++;
+        Ring r = localRing.get();
+        int i = r.head;
+        long s = ++r.count;
+        r.seq.setOpaque(i, 0);      // open the slot: readers skip it until republished
+        VarHandle.storeStoreFence();   // ... and the field stores below may not move above it
+        r.tsNs[i]   = tsNs;
+        r.pid[i]    = pid;
+        r.cpu[i]    = cpu;
+        r.kind[i]   = (byte) kind.ordinal();
+        r.reason[i] = reason;
+        r.seq.setRelease(i, s);     // publish
+        r.head = i + 1 == capacity ? 0 : i + 1;
     }
 
     /** Snapshot of the most recent decisions, oldest to newest. */
-    public synchronized List<TraceEntry> recentDecisions() {
-        List<TraceEntry> out = new ArrayList<>(size);
-        int start = (head - size + capacity) % Math.max(1, capacity);
-        for (int i = 0; i < size; i++) {
-            int idx = (start + i) % capacity;
-            out.add(new TraceEntry(tsNs[idx], pid[idx], cpu[idx], KINDS[kind[idx]], reason[idx]));
+    public List<TraceEntry> recentDecisions() {
+        if (capacity == 0) return new ArrayList<>(0);
+        record Seen(long seq, TraceEntry entry) {}
+        List<Seen> all = new ArrayList<>();
+        for (Ring r : rings) {
+            for (int i = 0; i < capacity; i++) {
+                long before = r.seq.get(i);
+                if (before == 0) continue;
+                var e = new TraceEntry(r.tsNs[i], r.pid[i], r.cpu[i], KINDS[r.kind[i]], r.reason[i]);
+                VarHandle.acquireFence();
+                if (r.seq.get(i) != before) continue;   // overwritten while we copied it
+                all.add(new Seen(before, e));
+            }
         }
+        all.sort(Comparator.comparingLong((Seen e) -> e.entry().tsNs()).thenComparingLong(Seen::seq));
+        int from = Math.max(0, all.size() - capacity);
+        List<TraceEntry> out = new ArrayList<>(all.size() - from);
+        for (int i = from; i < all.size(); i++) out.add(all.get(i).entry());
         return out;
     }
 }
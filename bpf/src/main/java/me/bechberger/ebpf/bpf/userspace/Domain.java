@@ -25,17 +25,17 @@ public final class Domain {
     public enum BalanceState { NEEDS_PUSH, NEEDS_PULL, BALANCED }
 
     private final int id;
-    private final long cpuMask;
+    private final CpuSet cpuMask;
     private double loadSum;
     private final List<DomainLoadBalancer.TaskLoad> tasks = new ArrayList<>();
 
-    public Domain(int id, long cpuMask) {
+    public Domain(int id, CpuSet cpuMask) {
         this.id = id;
         this.cpuMask = cpuMask;
     }
 
     public int id() { return id; }
-    public long cpuMask() { return cpuMask; }
+    public CpuSet cpuMask() { return cpuMask; }
     public double loadSum() { return loadSum; }
     public void setLoadSum(double v) { this.loadSum = v; }
     public List<DomainLoadBalancer.TaskLoad> tasks() { return tasks; }
@@ -2,141 +2,427 @@
 package me.bechberger.ebpf.bpf.userspace;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
- * Pure push/pull load-balancing engine ported from scx_rusty's {@code balance_within_node}
- * ({@code /tmp/rusty_lb.rs}). No BPF, no I/O — fully unit-testable.
+ * Hierarchical push/pull load balancer ported from scx_rusty's {@code LoadBalancer}
+ * ({@code balance_between_nodes} + {@code balance_within_node}). No BPF, no I/O — fully
+ * unit-testable.
  *
- * <p>The outer loop processes each overloaded (push) domain once, popping it from the
- * most-overloaded end. For each push domain it pulls into underloaded (pull) domains, ordered
- * least-loaded first, transferring at most {@code push_cutoff = pushImbal * PUSH_MAX_RATIO} total
- * load out of that domain. For each (push, pull) pair the transfer target is
- * {@code xfer = min(pushImbal, pullImbal) * XFER_RATIO}; among the push domain's tasks that
- * (a) are allowed in the pull domain ({@code domMask} bit set), (b) are not a skipped kworker,
- * and (c) have not already been migrated, it picks the task whose load is closest to {@code xfer}
- * — preferring tasks cache-affine to the pull domain ({@code preferredDomMask} bit set) — but only
- * if the move reduces the pair's total imbalance. Migrations are recorded (no I/O).
+ * <p><b>State.</b> An instance keeps its tasks across rounds: {@link #updateTask} updates a task's
+ * load and domain in place, {@link #removeTask} forgets it, and {@link #balance()} runs one round
+ * and applies the resulting migrations to its own state. Each domain holds its tasks in a list
+ * sorted by load; loads move little between ticks, so the in-place re-sort at the start of a round
+ * is close to linear and a steady-state round allocates only its {@link Migration} list.
  *
- * <p><b>Documented simplifications vs upstream rusty</b> (this is a faithful <em>core</em> port,
- * not a bit-for-bit one — see the design doc's "Out of scope" section):
- * <ol>
- *   <li><b>One transfer per (push, pull) pair per round.</b> Upstream re-inserts the pull domain
- *       after each transfer and keeps pulling into the least-loaded domain (recomputing
- *       {@code pull_imbal}/{@code xfer}) until it leaves {@code NeedsPull} or hits
- *       {@code push_cutoff}. This port moves at most one task per pair per round; the
- *       {@code pushed >= pushCutoff} cap still bounds the push side. Balance converges over
- *       repeated {@code tick()}s, but a single round's migration count/targets can differ from
- *       upstream.</li>
- *   <li><b>{@code toPush}/{@code toPull}/{@code xfer} are recomputed from live domain load</b>
- *       each iteration, whereas upstream freezes {@code push_imbal}/{@code pull_imbal} at pop time.
- *       Harmless given (1), but noted for faithfulness.</li>
- *   <li><b>The "already migrated" guard is implicit:</b> a task is removed from its push domain's
- *       list on migration, so it cannot move twice. (Upstream uses an explicit {@code migrated}
- *       flag.)</li>
- * </ol>
+ * <p><b>Round.</b> With more than one NUMA node, nodes are balanced first: each overloaded node
+ * (most overloaded first) pushes into underloaded nodes (least loaded first), moving one task at a
+ * time from its most-loaded domain to the pull node's least-loaded domain that admits it. Then the
+ * domains of each node are balanced — in parallel when {@link Options#parallel()} is set, since
+ * nodes share no domains or tasks. Both levels run rusty's full multi-transfer loop:
+ * <ul>
+ *   <li>A push entity sheds at most {@code push_cutoff = imbal * PUSH_MAX_RATIO}, frozen when it is
+ *       popped.</li>
+ *   <li>Pull entities are popped least-loaded first; after a transfer a pull entity that still
+ *       needs load is re-inserted in load order, so the push entity keeps feeding the currently
+ *       least-loaded one until it is balanced or hits its cutoff.</li>
+ *   <li>Each transfer aims at {@code xfer = min(|pushImbal|, |pullImbal|) * XFER_RATIO} from the
+ *       live imbalances. Among the push side's tasks that (a) are allowed in the pull domain
+ *       ({@code domMask} bit set), (b) are not a skipped kworker and (c) have not been migrated this
+ *       round, it considers the largest with load {@code <= xfer} and the smallest with load
+ *       {@code >= xfer} — cache-affine tasks ({@code preferredDomMask} bit set) first — and moves
+ *       whichever leaves the lower pair imbalance, if that does not increase it.</li>
+ * </ul>
+ *
+ * <p>Not thread-safe: call all methods from one thread (the scheduler's tick thread).
  */
 public final class DomainLoadBalancer {
 
-    public record TaskLoad(int pid, double load, long domMask, long preferredDomMask,
+    /**
+     * @param domMask          domain ids the task may run in
+     * @param preferredDomMask domain ids the task is cache-affine to
+     */
+    public record TaskLoad(int pid, double load, CpuSet domMask, CpuSet preferredDomMask,
                            boolean isKworker) {}
 
     public record Migration(int pid, int fromDom, int toDom) {}
 
-    /** @param skipKworkers when true, kernel worker threads are never migrated. */
-    public record Options(boolean skipKworkers) {}
+    /**
+     * @param skipKworkers when true, kernel worker threads are never migrated.
+     * @param parallel     when true, the per-node domain balancing of a multi-node round runs on
+     *                     the common fork-join pool
+     */
+    public record Options(boolean skipKworkers, boolean parallel) {
+        public Options(boolean skipKworkers) { this(skipKworkers, true); }
+    }
+
+    private static final Comparator<Task> TASK_ORDER =
+            Comparator.comparingDouble((Task t) -> t.load).thenComparingInt(t -> t.pid);
+    private static final Comparator<Dom> DOM_BY_LOAD = Comparator.comparingDouble(d -> d.load);
 
-    private DomainLoadBalancer() {}
+    /** A tracked task, mutated in place across rounds. */
+    private static final class Task {
+        final int pid;
+        Dom dom;
+        double load;
+        CpuSet domMask;
+        CpuSet preferredDomMask;
+        boolean isKworker;
+        long migratedRound = -1;
+
+        Task(int pid) { this.pid = pid; }
+    }
+
+    private static final class Dom {
+        final int id;
+        final Node node;
+        double load;
+        /** Sorted by {@link #TASK_ORDER} unless {@link #dirty}. */
+        final ArrayList<Task> tasks = new ArrayList<>();
+        boolean dirty;
+
+        Dom(int id, Node node) { this.id = id; this.node = node; }
+    }
+
+    private static final class Node {
+        final int id;
+        final List<Dom> doms = new ArrayList<>();
+        double load;
+        // Per-node scratch, reused across rounds; touched only by the thread balancing this node.
+        final List<Dom> push = new ArrayList<>();
+        final List<Dom> pull = new ArrayList<>();
+        final List<Dom> unmatched = new ArrayList<>();
+        final List<Migration> migrations = new ArrayList<>();
+
+        Node(int id) { this.id = id; }
+    }
+
+    private final Options opts;
+    private final Dom[] doms;     // index = domain index (== domain id for public constructors)
+    private final Node[] nodes;
+    private final Map<Integer, Task> tasks = new HashMap<>();
+    private final List<Node> pushNodes = new ArrayList<>();
+    private final List<Node> pullNodes = new ArrayList<>();
+    private final List<Node> unmatchedNodes = new ArrayList<>();
+    private long round;
+
+    /** Balancer over {@code topo}'s domains, grouped by the NUMA node of each domain's first CPU. */
+    public DomainLoadBalancer(CpuTopology topo, Options opts) {
+        this(identity(topo.nrDomains()), nodesOf(topo), opts);
+    }
+
+    /** Balancer over domains {@code 0..domainToNode.length-1}; {@code domainToNode[d]} is d's node. */
+    public DomainLoadBalancer(int[] domainToNode, Options opts) {
+        this(identity(domainToNode.length), domainToNode, opts);
+    }
 
+    private DomainLoadBalancer(int[] domIds, int[] domainToNode, Options opts) {
+        this.opts = opts;
+        Map<Integer, Node> byId = new TreeMap<>();
+        this.doms = new Dom[domIds.length];
+        for (int i = 0; i < domIds.length; i++) {
+            Node node = byId.computeIfAbsent(domainToNode[i], Node::new);
+            doms[i] = new Dom(domIds[i], node);
+            node.doms.add(doms[i]);
+        }
+        this.nodes = byId.values().toArray(Node[]::new);
+    }
+
+    private static int[] identity(int n) {
+        int[] a = new int[n];
+        for (int i = 0; i < n; i++) a[i] = i;
+        return a;
+    }
+
+    private static int[] nodesOf(CpuTopology topo) {
+        int[] out = new int[topo.nrDomains()];
+        for (int d = 0; d < out.length; d++) out[d] = topo.nodeOfCpu(topo.cpuMask(d).nextSetBit(0));
+        return out;
+    }
+
+    /**
+     * One-shot, single-node round over a snapshot: balances {@code domains} (ids as given by
+     * {@link Domain#id()}, starting from their {@link Domain#loadSum()}) and returns the
+     * migrations. The caller's {@code Domain}s are not mutated.
+     */
     public static List<Migration> balance(List<Domain> domains, double loadAvg, Options opts) {
-        List<Migration> migrations = new ArrayList<>();
-        // Mutable working copy so the caller's Domains aren't mutated.
-        List<MutableDom> doms = new ArrayList<>(domains.size());
-        for (Domain d : domains) {
-            doms.add(new MutableDom(d.id(), d.loadSum(), new ArrayList<>(d.tasks())));
+        int[] ids = new int[domains.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = domains.get(i).id();
+        var lb = new DomainLoadBalancer(ids, new int[ids.length], opts);
+        for (int i = 0; i < ids.length; i++) {
+            for (TaskLoad t : domains.get(i).tasks()) {
+                lb.track(i, t.pid(), t.load(), t.domMask(), t.preferredDomMask(), t.isKworker());
+            }
+            lb.doms[i].load = domains.get(i).loadSum();
         }
+        return lb.run(loadAvg);
+    }
 
-        double band = loadAvg * Domain.COST_RATIO;
+    // ── Incremental state ───────────────────────────────────────────────────
+
+    /** Record {@code pid}'s current load and domain, adding the task if it is new. */
+    public void updateTask(int pid, int dom, double load, CpuSet domMask, CpuSet preferredDomMask,
+                           boolean isKworker) {
+        if (dom < 0 || dom >= doms.length) {
+            throw new IllegalArgumentException("no such domain: " + dom);
+        }
+        track(dom, pid, load, domMask, preferredDomMask, isKworker);
+    }
+
+    private void track(int domIndex, int pid, double load, CpuSet domMask,
+                       CpuSet preferredDomMask, boolean isKworker) {
+        Dom d = doms[domIndex];
+        Task t = tasks.get(pid);
+        if (t == null) {
+            t = new Task(pid);
+            tasks.put(pid, t);
+            t.dom = d;
+            d.tasks.add(t);
+            d.dirty = true;
+        } else if (t.dom != d) {
+            t.dom.tasks.remove(t);
+            t.dom = d;
+            d.tasks.add(t);
+            d.dirty = true;
+        } else if (t.load != load) {
+            d.dirty = true;
+        }
+        t.load = load;
+        t.domMask = domMask;
+        t.preferredDomMask = preferredDomMask;
+        t.isKworker = isKworker;
+    }
+
+    /** Forget {@code pid}; no-op if it is not tracked. */
+    public void removeTask(int pid) {
+        Task t = tasks.remove(pid);
+        if (t != null) t.dom.tasks.remove(t);
+    }
+
+    /** Domain the balancer currently places {@code pid} in, or -1 if it is not tracked. */
+    public int domainOf(int pid) {
+        Task t = tasks.get(pid);
+        return t == null ? -1 : t.dom.id;
+    }
+
+    /** Sum of the loads of the tasks in {@code dom} as of the last update or round. */
+    public double domainLoad(int dom) {
+        double sum = 0;
+        for (Task t : doms[dom].tasks) sum += t.load;
+        return sum;
+    }
 
-        // Outer loop: each push domain is processed once (rusty pops from the most-overloaded end).
-        // We iterate over a snapshot of domains sorted most-overloaded-first.
-        List<MutableDom> pushOrder = new ArrayList<>(doms);
-        pushOrder.sort((a, b) -> Double.compare(b.load, a.load));
+    public int nrTasks() { return tasks.size(); }
 
-        for (MutableDom push : pushOrder) {
-            double pushImbal = push.load - loadAvg;
-            if (pushImbal <= band) continue; // not overloaded beyond the tolerance band
+    // ── Balancing ───────────────────────────────────────────────────────────
 
-            double pushCutoff = pushImbal * Domain.PUSH_MAX_RATIO;
+    /** Run one round against the mean domain load and apply its migrations to this balancer. */
+    public List<Migration> balance() {
+        double total = 0;
+        for (Dom d : doms) {
+            d.load = 0;
+            for (Task t : d.tasks) d.load += t.load;
+            total += d.load;
+        }
+        return run(doms.length == 0 ? 0 : total / doms.length);
+    }
+
+    private List<Migration> run(double loadAvg) {
+        round++;
+        for (Dom d : doms) {
+            if (d.dirty) {
+                d.tasks.sort(TASK_ORDER);
+                d.dirty = false;
+            }
+        }
+        for (Node n : nodes) {
+            n.load = 0;
+            for (Dom d : n.doms) n.load += d.load;
+        }
+
+        List<Migration> out = new ArrayList<>();
+        if (nodes.length > 1) {
+            balanceBetweenNodes(loadAvg, out);
+            if (opts.parallel()) {
+                Arrays.stream(nodes).parallel().forEach(n -> balanceWithinNode(n, loadAvg));
+            } else {
+                for (Node n : nodes) balanceWithinNode(n, loadAvg);
+            }
+        } else if (nodes.length == 1) {
+            balanceWithinNode(nodes[0], loadAvg);
+        }
+        for (Node n : nodes) {
+            out.addAll(n.migrations);
+            n.migrations.clear();
+        }
+        return out;
+    }
+
+    /** rusty {@code balance_between_nodes}: node averages scale with the node's domain count. */
+    private void balanceBetweenNodes(double loadAvg, List<Migration> out) {
+        pushNodes.clear();
+        pullNodes.clear();
+        for (Node n : nodes) {
+            double imbal = nodeImbal(n, loadAvg);
+            double band = nodeAvg(n, loadAvg) * Domain.COST_RATIO;
+            if (imbal > band) pushNodes.add(n);
+            else if (imbal < -band) pullNodes.add(n);
+        }
+        if (pushNodes.isEmpty() || pullNodes.isEmpty()) return;
+        pushNodes.sort((a, b) -> Double.compare(nodeImbal(b, loadAvg), nodeImbal(a, loadAvg)));
+        pullNodes.sort((a, b) -> Double.compare(nodeImbal(a, loadAvg), nodeImbal(b, loadAvg)));
+
+        for (Node push : pushNodes) {
+            double pushCutoff = nodeImbal(push, loadAvg) * Domain.PUSH_MAX_RATIO;
             double pushed = 0.0;
+            unmatchedNodes.clear();
+            while (!pullNodes.isEmpty()) {
+                Node pull = pullNodes.removeFirst();
+                double pushImbal = nodeImbal(push, loadAvg);
+                double pullImbal = nodeImbal(pull, loadAvg);
+                double xfer = Math.min(Math.abs(pushImbal), Math.abs(pullImbal)) * Domain.XFER_RATIO;
+                double moved = moveBetweenNodes(push, pull, xfer, pushImbal, pullImbal, out);
+                if (moved < 0) {
+                    unmatchedNodes.add(pull);
+                    continue;
+                }
+                pushed += moved;
+                if (nodeImbal(pull, loadAvg) < -nodeAvg(pull, loadAvg) * Domain.COST_RATIO) {
+                    insertSorted(pullNodes, pull, (a, b) ->
+                            Double.compare(nodeImbal(a, loadAvg), nodeImbal(b, loadAvg)));
+                }
+                if (nodeImbal(push, loadAvg) <= nodeAvg(push, loadAvg) * Domain.COST_RATIO
+                        || pushed >= pushCutoff) {
+                    break;
+                }
+            }
+            pullNodes.addAll(unmatchedNodes);
+            pullNodes.sort((a, b) -> Double.compare(nodeImbal(a, loadAvg), nodeImbal(b, loadAvg)));
+        }
+    }
+
+    private static double nodeAvg(Node n, double loadAvg) { return loadAvg * n.doms.size(); }
 
-            // Pull domains ordered least-loaded first.
-            List<MutableDom> pullOrder = new ArrayList<>();
-            for (MutableDom d : doms) {
-                if (d != push) pullOrder.add(d);
+    private static double nodeImbal(Node n, double loadAvg) { return n.load - nodeAvg(n, loadAvg); }
+
+    /**
+     * Move one task from {@code push}'s domains (most loaded first) to {@code pull}'s (least loaded
+     * first), judged against the node imbalances. Returns the moved load, or -1 if none qualifies.
+     */
+    private double moveBetweenNodes(Node push, Node pull, double xfer, double pushImbal,
+                                    double pullImbal, List<Migration> out) {
+        push.doms.sort(DOM_BY_LOAD);
+        pull.doms.sort(DOM_BY_LOAD);
+        for (int i = push.doms.size() - 1; i >= 0; i--) {
+            Dom from = push.doms.get(i);
+            for (Dom to : pull.doms) {
+                Task t = pickTask(from, to.id, xfer, pushImbal, pullImbal);
+                if (t != null) {
+                    move(t, to, out);
+                    return t.load;
+                }
             }
-            pullOrder.sort((a, b) -> Double.compare(a.load, b.load));
+        }
+        return -1;
+    }
 
-            for (MutableDom pull : pullOrder) {
-                if (pushed >= pushCutoff) break;
-                double pullImbal = loadAvg - pull.load;
-                if (pullImbal <= band) continue; // not underloaded beyond the band
+    /** rusty {@code balance_within_node}. Touches only {@code node}'s domains, tasks and scratch. */
+    private void balanceWithinNode(Node node, double loadAvg) {
+        if (node.doms.size() < 2) return;
+        double band = loadAvg * Domain.COST_RATIO;
+        node.push.clear();
+        node.pull.clear();
+        for (Dom d : node.doms) {
+            if (d.load - loadAvg > band) node.push.add(d);
+            else if (d.load - loadAvg < -band) node.pull.add(d);
+        }
+        if (node.push.isEmpty() || node.pull.isEmpty()) return;
+        node.push.sort(DOM_BY_LOAD.reversed());
+        node.pull.sort(DOM_BY_LOAD);
 
-                // to_push / to_pull are the pair's imbalances at the start of this transfer.
+        for (Dom push : node.push) {
+            double pushImbalAtPop = push.load - loadAvg;
+            if (pushImbalAtPop <= band) continue;
+            double pushCutoff = pushImbalAtPop * Domain.PUSH_MAX_RATIO;
+            double pushed = 0.0;
+            node.unmatched.clear();
+            while (!node.pull.isEmpty()) {
+                Dom pull = node.pull.removeFirst();
                 double toPush = push.load - loadAvg;
-                double toPull = Math.abs(loadAvg - pull.load);
+                double toPull = pull.load - loadAvg;
                 double xfer = Math.min(Math.abs(toPush), Math.abs(toPull)) * Domain.XFER_RATIO;
-
-                TaskLoad chosen = pickTask(push, pull, xfer, toPush, toPull, opts);
-                if (chosen == null) continue;
-
-                push.tasks.remove(chosen);
-                push.load -= chosen.load();
-                pull.load += chosen.load();
-                pushed += chosen.load();
-                migrations.add(new Migration(chosen.pid(), push.id, pull.id));
+                Task t = pickTask(push, pull.id, xfer, toPush, toPull);
+                if (t == null) {
+                    node.unmatched.add(pull);
+                    continue;
+                }
+                move(t, pull, node.migrations);
+                pushed += t.load;
+                if (pull.load - loadAvg < -band) insertSorted(node.pull, pull, DOM_BY_LOAD);
+                if (push.load - loadAvg <= band || pushed >= pushCutoff) break;
             }
+            node.pull.addAll(node.unmatched);
+            node.pull.sort(DOM_BY_LOAD);
         }
-        return migrations;
+    }
+
+    private static <T> void insertSorted(List<T> list, T e, Comparator<? super T> order) {
+        int i = 0;
+        while (i < list.size() && order.compare(list.get(i), e) <= 0) i++;
+        list.add(i, e);
+    }
+
+    /** Move {@code t} to {@code to}, keeping both task lists sorted, and record the migration. */
+    private void move(Task t, Dom to, List<Migration> out) {
+        Dom from = t.dom;
+        int at = Collections.binarySearch(from.tasks, t, TASK_ORDER);
+        from.tasks.remove(at);
+        int ins = Collections.binarySearch(to.tasks, t, TASK_ORDER);
+        to.tasks.add(ins < 0 ? -ins - 1 : ins, t);
+        from.load -= t.load;
+        to.load += t.load;
+        from.node.load -= t.load;
+        to.node.load += t.load;
+        t.dom = to;
+        t.migratedRound = round;
+        out.add(new Migration(t.pid, from.id, to.id));
     }
 
     /**
-     * Pick the task from {@code push} whose load is closest to {@code xfer} and reduces the pair's
-     * imbalance, preferring cache-affine tasks (two-pass: preferred filter first, then any task).
-     * Mirrors rusty's {@code try_find_move_task}. Returns null if no beneficial move exists.
+     * Pick the task from {@code push} whose load is closest to {@code xfer} and does not increase
+     * the pair's imbalance, preferring cache-affine tasks (two-pass: preferred filter first, then
+     * any task). Mirrors rusty's {@code try_find_move_task}. Returns null if no such move exists.
      */
-    private static TaskLoad pickTask(MutableDom push, MutableDom pull, double xfer,
-                                     double toPush, double toPull, Options opts) {
-        long pullBit = 1L << pull.id;
+    private Task pickTask(Dom push, int pullDom, double xfer, double toPush, double toPull) {
         double oldImbal = Math.abs(toPush) + Math.abs(toPull);
-
-        // First pass: only cache-affine (preferred) tasks. Second pass: any feasible task.
-        TaskLoad pref = pickClosest(push, pullBit, xfer, toPush, toPull, oldImbal, opts, true);
+        Task pref = pickClosest(push, pullDom, xfer, toPush, toPull, oldImbal, true);
         if (pref != null) return pref;
-        return pickClosest(push, pullBit, xfer, toPush, toPull, oldImbal, opts, false);
-    }
-
-    private static TaskLoad pickClosest(MutableDom push, long pullBit, double xfer,
-                                        double toPush, double toPull, double oldImbal,
-                                        Options opts, boolean preferredOnly) {
-        // Mirror rusty's try_find_move_task: among feasible tasks, consider only the two that
-        // bracket the transfer target — the largest task with load <= xfer and the smallest with
-        // load >= xfer — then pick whichever yields the lower resulting pair imbalance.
-        TaskLoad left = null;  // largest load <= xfer
-        TaskLoad right = null; // smallest load >= xfer
-        for (TaskLoad t : push.tasks) {
-            if (opts.skipKworkers() && t.isKworker()) continue;
-            if ((t.domMask() & pullBit) == 0) continue; // not allowed in pull domain
-            if (preferredOnly && (t.preferredDomMask() & pullBit) == 0) continue;
-            if (t.load() <= xfer) {
-                if (left == null || t.load() > left.load()) left = t;
-            }
-            if (t.load() >= xfer) {
-                if (right == null || t.load() < right.load()) right = t;
-            }
+        return pickClosest(push, pullDom, xfer, toPush, toPull, oldImbal, false);
+    }
+
+    private Task pickClosest(Dom push, int pullDom, double xfer, double toPush, double toPull,
+                             double oldImbal, boolean preferredOnly) {
+        // Only the two feasible tasks bracketing the transfer target are candidates — the largest
+        // with load <= xfer and the smallest with load >= xfer — found by scanning outwards from
+        // xfer's position in the sorted list.
+        List<Task> ts = push.tasks;
+        int firstAbove = firstIndex(ts, xfer, true);
+        Task left = null;
+        for (int i = firstAbove - 1; i >= 0; i--) {
+            if (feasible(ts.get(i), pullDom, preferredOnly)) { left = ts.get(i); break; }
+        }
+        Task right = null;
+        for (int i = firstIndex(ts, xfer, false); i < ts.size(); i++) {
+            if (feasible(ts.get(i), pullDom, preferredOnly)) { right = ts.get(i); break; }
         }
 
-        TaskLoad chosen;
+        Task chosen;
         if (left == null && right == null) {
             return null;
         } else if (left == null) {
@@ -144,26 +430,36 @@ public final class DomainLoadBalancer {
         } else if (right == null) {
             chosen = left;
         } else {
-            double imbalLeft = newImbal(toPush, toPull, left.load());
-            double imbalRight = newImbal(toPush, toPull, right.load());
+            double imbalLeft = newImbal(toPush, toPull, left.load);
+            double imbalRight = newImbal(toPush, toPull, right.load);
             chosen = imbalLeft <= imbalRight ? left : right;
         }
 
-        // Only migrate if the best candidate reduces the pair's total imbalance.
-        if (newImbal(toPush, toPull, chosen.load()) > oldImbal) return null;
+        // Only migrate if the best candidate does not increase the pair's total imbalance.
+        if (newImbal(toPush, toPull, chosen.load) > oldImbal) return null;
         return chosen;
     }
 
-    private static double newImbal(double toPush, double toPull, double load) {
-        return Math.abs(toPush - load) + Math.abs(Math.abs(toPull) - load);
+    /** First index whose load is {@code > xfer} ({@code strict}) or {@code >= xfer}. */
+    private static int firstIndex(List<Task> ts, double xfer, boolean strict) {
+        int lo = 0, hi = ts.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            double l = ts.get(mid).load;
+            if (strict ? l <= xfer : l < xfer) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
     }
 
-    private static final class MutableDom {
-        final int id;
-        double load;
-        final List<TaskLoad> tasks;
-        MutableDom(int id, double load, List<TaskLoad> tasks) {
-            this.id = id; this.load = load; this.tasks = tasks;
-        }
+    private boolean feasible(Task t, int pullDom, boolean preferredOnly) {
+        if (opts.skipKworkers() && t.isKworker) return false;
+        if (t.migratedRound == round) return false;      // at most one move per task per round
+        if (!t.domMask.test(pullDom)) return false;       // not allowed in pull domain
+        return !preferredOnly || t.preferredDomMask.test(pullDom);
+    }
+
+    private static double newImbal(double toPush, double toPull, double load) {
+        return Math.abs(toPush - load) + Math.abs(Math.abs(toPull) - load);
     }
 }
@@ -0,0 +1,127 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.userspace;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+/**
+ * Topology-aware idle-CPU lookup over the idle bitmap that {@code UserspaceSchedulerBase}
+ * keeps current from {@code updateIdle} and exposes mmapped via
+ * {@link UserspaceScheduler#idleMaskView()}.
+ *
+ * <p>{@link #pick(MemorySegment, int)} searches outward from the task's previous CPU: the CPU
+ * itself, its SMT siblings, its LLC domain, its NUMA node, then anywhere. Each level's CPU set is
+ * precomputed from {@link CpuTopology} together with the range of bitmap words it spans, so a
+ * lookup reads only the words of the levels it visits — independent of the machine size for the
+ * near levels — with plain loads and no allocation or syscall.
+ *
+ * <p>The bitmap is read racily, exactly like {@link UserspaceScheduler#pickIdleCpu()}: a CPU
+ * may stop being idle between the read and the dispatch, which only costs placement quality.
+ * Within a level the search starts after the previous CPU and wraps, spreading wakeups instead
+ * of piling onto the lowest-numbered idle CPU. Instances are immutable and thread-safe.
+ */
+public final class IdleCpuIndex {
+
+    /** How far from the previous CPU a pick may go. */
+    public enum Level { CPU, CORE, LLC, NODE, ANY }
+
+    /** Precomputed CPU set of one topology group plus the bitmap words it spans. */
+    record Group(long[] words, int firstWord, int lastWord) {
+        static Group of(CpuSet set) {
+            int first = -1, last = -1;
+            int n = (set.capacity() + 63) >>> 6;
+            long[] w = new long[Math.max(n, 1)];
+            for (int i = 0; i < n; i++) {
+                w[i] = set.word(i);
+                if (w[i] != 0) {
+                    if (first < 0) first = i;
+                    last = i;
+                }
+            }
+            return new Group(w, first, last);
+        }
+    }
+
+    private final CpuTopology topology;
+    private final int nrCpus;
+    private final Group[] cores, llcs, nodes;
+    private final Group all;
+
+    public IdleCpuIndex(CpuTopology topology) {
+        this.topology = topology;
+        this.nrCpus = topology.nrCpus();
+        this.cores = new Group[topology.nrCores()];
+        for (int i = 0; i < cores.length; i++) cores[i] = Group.of(topology.coreMask(i));
+        this.llcs = new Group[topology.nrDomains()];
+        for (int i = 0; i < llcs.length; i++) llcs[i] = Group.of(topology.cpuMask(i));
+        this.nodes = new Group[topology.nrNodes()];
+        for (int i = 0; i < nodes.length; i++) nodes[i] = Group.of(topology.nodeMask(i));
+        this.all = Group.of(topology.cpus());
+    }
+
+    public CpuTopology topology() { return topology; }
+
+    /** Nearest idle CPU to {@code prevCpu} at any distance, or -1 if none is idle. */
+    public int pick(MemorySegment idle, int prevCpu) {
+        return pick(idle, prevCpu, Level.ANY);
+    }
+
+    /**
+     * Nearest idle CPU to {@code prevCpu}, looking no further than {@code widest}; -1 if none.
+     * A {@code prevCpu} outside the topology (e.g. -1 for a task that never ran) searches
+     * {@link Level#ANY} directly when {@code widest} allows it.
+     */
+    public int pick(MemorySegment idle, int prevCpu, Level widest) {
+        if (idle == null) return -1;
+        if (prevCpu < 0 || prevCpu >= nrCpus) {
+            return widest == Level.ANY ? scan(idle, all, 0) : -1;
+        }
+        if (isIdle(idle, prevCpu)) return prevCpu;
+        if (widest == Level.CPU) return -1;
+        int cpu = scan(idle, cores[topology.coreOfCpu(prevCpu)], prevCpu + 1);
+        if (cpu >= 0 || widest == Level.CORE) return cpu;
+        cpu = scan(idle, llcs[topology.domainOfCpu(prevCpu)], prevCpu + 1);
+        if (cpu >= 0 || widest == Level.LLC) return cpu;
+        cpu = scan(idle, nodes[topology.nodeOfCpu(prevCpu)], prevCpu + 1);
+        if (cpu >= 0 || widest == Level.NODE) return cpu;
+        return scan(idle, all, prevCpu + 1);
+    }
+
+    /** The level at which {@code cpu} is reached from {@code prevCpu}; for statistics and tests. */
+    public Level distance(int prevCpu, int cpu) {
+        if (prevCpu < 0 || prevCpu >= nrCpus) return Level.ANY;
+        if (cpu == prevCpu) return Level.CPU;
+        if (topology.coreOfCpu(cpu) == topology.coreOfCpu(prevCpu)) return Level.CORE;
+        if (topology.domainOfCpu(cpu) == topology.domainOfCpu(prevCpu)) return Level.LLC;
+        if (topology.nodeOfCpu(cpu) == topology.nodeOfCpu(prevCpu)) return Level.NODE;
+        return Level.ANY;
+    }
+
+    public static boolean isIdle(MemorySegment idle, int cpu) {
+        long word = idle.get(ValueLayout.JAVA_LONG, (long) (cpu >>> 6) * 8L);
+        return (word & (1L << cpu)) != 0;
+    }
+
+    /** First idle CPU of {@code g} at or after {@code from}, wrapping around; -1 if none. */
+    private static int scan(MemorySegment idle, Group g, int from) {
+        if (g.firstWord < 0) return -1;
+        int start = from >>> 6;
+        if (start < g.firstWord || start > g.lastWord) {
+            start = g.firstWord;
+            from = start << 6;
+        }
+        // Words start..lastWord (first one masked below 'from'), then firstWord..start (wrap).
+        long w = g.words[start] & idle.get(ValueLayout.JAVA_LONG, (long) start * 8L);
+        long head = w & (-1L << from);
+        if (head != 0) return (start << 6) + Long.numberOfTrailingZeros(head);
+        for (int i = start + 1; i <= g.lastWord; i++) {
+            long m = g.words[i] & idle.get(ValueLayout.JAVA_LONG, (long) i * 8L);
+            if (m != 0) return (i << 6) + Long.numberOfTrailingZeros(m);
+        }
+        for (int i = g.firstWord; i < start; i++) {
+            long m = g.words[i] & idle.get(ValueLayout.JAVA_LONG, (long) i * 8L);
+            if (m != 0) return (i << 6) + Long.numberOfTrailingZeros(m);
+        }
+        return w != 0 ? (start << 6) + Long.numberOfTrailingZeros(w) : -1;
+    }
+}
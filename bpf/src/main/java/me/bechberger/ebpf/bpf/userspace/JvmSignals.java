@@ -0,0 +1,265 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.userspace;
+
+import me.bechberger.ebpf.bpf.BPFProgram;
+import me.bechberger.ebpf.bpf.userspace.Signal.SignalKind;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
+import java.util.logging.Logger;
+
+/**
+ * <b>Experimental</b> — API may change without notice.
+ *
+ * <p>JVM-aware scheduling hints: safepoint, GC and JIT compiler activity of selected target JVMs,
+ * pushed into the scheduler's signals ring by uprobes on their {@code libjvm.so} and folded into a
+ * per-JVM state that policies can query.
+ *
+ * <p>Register a JVM with {@link UserspaceScheduler#watchJvm(int)}. Each {@link Probe} is attached
+ * to the single {@code jvmSignalProbe} BPF program with its {@link SignalKind} as attach cookie,
+ * so the JVM kinds arrive through {@link UserspaceScheduler#onSignal(Signal)} like any other
+ * signal. Before {@code onSignal} sees them the run loop feeds them to {@link #accept(Signal)},
+ * so a policy can read {@link #inPause(int)} or {@link #vmThread(int)} directly — e.g. to boost
+ * the VM thread during a stop-the-world pause and hold back batch work until it ends.
+ *
+ * <p>Probes whose symbol is missing from a JVM build are skipped with a warning;
+ * {@link #probes(int)} reports which ones are live. A JVM that exits is forgotten on the next
+ * heartbeat, together with a pause it may have been in. State is updated and read on the policy
+ * thread; {@link #watch} may be called from any thread.
+ */
+public final class JvmSignals {
+
+    private static final Logger LOG = Logger.getLogger(JvmSignals.class.getName());
+
+    /** BPF program every probe is attached to (see {@code UserspaceSchedulerBase.jvmSignalProbe}). */
+    static final String PROGRAM = "jvmSignalProbe";
+
+    /** A {@code libjvm.so} entry point and the signal kind it emits. */
+    public enum Probe {
+        SAFEPOINT_BEGIN("_ZN20SafepointSynchronize5beginEv", false, SignalKind.JVM_SAFEPOINT_BEGIN),
+        /** On return: threads resume once {@code SafepointSynchronize::end} completes. */
+        SAFEPOINT_END("_ZN20SafepointSynchronize3endEv", true, SignalKind.JVM_SAFEPOINT_END),
+        GC_BEGIN("_ZN15VM_GC_Operation15notify_gc_beginEb", false, SignalKind.JVM_GC_BEGIN),
+        GC_END("_ZN15VM_GC_Operation13notify_gc_endEv", true, SignalKind.JVM_GC_END),
+        COMPILE_BEGIN("_ZN13CompileBroker25invoke_compiler_on_methodEP11CompileTask", false,
+                SignalKind.JVM_COMPILE_BEGIN),
+        COMPILE_END("_ZN13CompileBroker25invoke_compiler_on_methodEP11CompileTask", true,
+                SignalKind.JVM_COMPILE_END);
+
+        public final String symbol;
+        public final boolean retprobe;
+        public final int kind;
+
+        Probe(String symbol, boolean retprobe, int kind) {
+            this.symbol = symbol;
+            this.retprobe = retprobe;
+            this.kind = kind;
+        }
+    }
+
+    /** Folded signal state of one watched JVM. Mutated only by {@link #accept(Signal)}. */
+    public static final class JvmState {
+        private final int pid;
+        private final String libjvm;
+        private volatile Set<Probe> probes = Collections.emptySet();
+        private boolean inSafepoint;
+        private boolean inGc;
+        private boolean fullGc;
+        private int vmThread = -1;
+        private long pauseStartNs;
+        private long lastPauseNs;
+        private long pauses;
+        private long gcs;
+        private final Set<Integer> compiling = new HashSet<>();
+
+        JvmState(int pid, String libjvm) {
+            this.pid = pid;
+            this.libjvm = libjvm;
+        }
+
+        public int pid() { return pid; }
+        /** {@code libjvm.so} the probes attach to; {@code null} until resolved. */
+        public String libjvm() { return libjvm; }
+        public Set<Probe> probes() { return probes; }
+        public boolean inSafepoint() { return inSafepoint; }
+        public boolean inGc() { return inGc; }
+        /** Whether the current (or last) GC is a full collection. */
+        public boolean fullGc() { return fullGc; }
+        /** tid of the thread that last began a safepoint or GC (the VM thread); -1 if none yet. */
+        public int vmThread() { return vmThread; }
+        /** Duration of the last completed safepoint in BPF clock ns. */
+        public long lastPauseNs() { return lastPauseNs; }
+        public long pauses() { return pauses; }
+        public long gcs() { return gcs; }
+        /** Compiler threads currently inside {@code invoke_compiler_on_method}. */
+        public Set<Integer> compiling() { return Collections.unmodifiableSet(compiling); }
+    }
+
+    private final Map<Integer, JvmState> jvms = new ConcurrentHashMap<>();
+    /** Safepoints and GCs currently in progress, over all watched JVMs. */
+    private int openPauses;
+
+    /** JVM pid carried in a JVM signal's payload. */
+    public static int jvmPid(Signal s) { return (int) s.payload(); }
+
+    /** Whether a {@link SignalKind#JVM_GC_BEGIN} signal announces a full GC. */
+    public static boolean isFullGc(Signal s) { return (s.payload() & (1L << 32)) != 0; }
+
+    public static boolean isJvmKind(int kind) {
+        return kind >= SignalKind.JVM_SAFEPOINT_BEGIN && kind <= SignalKind.JVM_COMPILE_END;
+    }
+
+    /** Register {@code pid}; its probes are attached by {@link #attach}. */
+    JvmState watch(int pid, String libjvm) {
+        return jvms.computeIfAbsent(pid, p -> new JvmState(p, libjvm));
+    }
+
+    /**
+     * Attach every {@link Probe} for {@code state}'s JVM to {@code prog}. Resolves
+     * {@code libjvm.so} from {@code /proc/<pid>/maps} when none was given. Returns the attached
+     * probes; the links live as long as {@code prog}.
+     */
+    static Set<Probe> attach(BPFProgram prog, JvmState state) {
+        String lib = state.libjvm != null ? state.libjvm : findLibjvm(state.pid);
+        var handle = prog.getProgramByName(PROGRAM);
+        Set<Probe> attached = EnumSet.noneOf(Probe.class);
+        for (Probe p : Probe.values()) {
+            try {
+                prog.attachUprobe(handle, p.retprobe, state.pid, lib, p.symbol, p.kind);
+                attached.add(p);
+            } catch (BPFProgram.BPFAttachError e) {
+                LOG.warning("JVM " + state.pid + ": cannot attach " + p + " (" + p.symbol + ") in "
+                        + lib + ": " + e.getMessage());
+            }
+        }
+        state.probes = Collections.unmodifiableSet(attached);
+        return state.probes;
+    }
+
+    /** Path of the {@code libjvm.so} mapped by {@code pid}. */
+    static String findLibjvm(int pid) {
+        try {
+            for (var line : Files.readAllLines(Path.of("/proc/" + pid + "/maps"))) {
+                var parts = line.split("\\s+");
+                if (parts.length >= 6 && parts[5].endsWith("/libjvm.so")) return parts[5];
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot read /proc/" + pid + "/maps", e);
+        }
+        throw new IllegalStateException("libjvm.so not mapped by pid " + pid + " — is it a HotSpot JVM?");
+    }
+
+    /**
+     * Fold {@code s} into the state of its JVM. Returns {@code false} for non-JVM kinds and for
+     * JVMs that are not watched.
+     */
+    public boolean accept(Signal s) {
+        if (!isJvmKind(s.kind())) return false;
+        JvmState st = jvms.get(jvmPid(s));
+        if (st == null) return false;
+        switch (s.kind()) {
+            case SignalKind.JVM_SAFEPOINT_BEGIN -> {
+                if (!st.inSafepoint) openPauses++;
+                st.inSafepoint = true;
+                st.vmThread = s.pid();
+                st.pauseStartNs = s.tsNs();
+            }
+            case SignalKind.JVM_SAFEPOINT_END -> {
+                if (st.inSafepoint) {
+                    openPauses--;
+                    st.lastPauseNs = s.tsNs() - st.pauseStartNs;
+                    st.pauses++;
+                }
+                st.inSafepoint = false;
+            }
+            case SignalKind.JVM_GC_BEGIN -> {
+                if (!st.inGc) openPauses++;
+                st.inGc = true;
+                st.fullGc = isFullGc(s);
+                st.vmThread = s.pid();
+            }
+            case SignalKind.JVM_GC_END -> {
+                if (st.inGc) {
+                    openPauses--;
+                    st.gcs++;
+                }
+                st.inGc = false;
+            }
+            case SignalKind.JVM_COMPILE_BEGIN -> st.compiling.add(s.pid());
+            case SignalKind.JVM_COMPILE_END -> st.compiling.remove(s.pid());
+            default -> { }
+        }
+        return true;
+    }
+
+    /**
+     * Stop tracking JVM {@code pid}, closing a safepoint or GC it was in. Returns {@code false} if
+     * it was not watched. Called on the policy thread.
+     */
+    boolean forget(int pid) {
+        JvmState st = jvms.remove(pid);
+        if (st == null) return false;
+        if (st.inSafepoint) openPauses--;
+        if (st.inGc) openPauses--;
+        return true;
+    }
+
+    /** {@link #forget} every watched JVM that is no longer {@code alive}; returns how many. */
+    int forgetExited(IntPredicate alive) {
+        int forgotten = 0;
+        for (int pid : jvms.keySet()) {
+            if (!alive.test(pid) && forget(pid)) {
+                LOG.info("JVM " + pid + " exited, no longer watched");
+                forgotten++;
+            }
+        }
+        return forgotten;
+    }
+
+    /** Whether process {@code pid} is still running. */
+    static boolean isAlive(int pid) {
+        return ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+    }
+
+    /** Whether JVM {@code pid} is in a safepoint or GC (its Java threads are stopped). */
+    public boolean inPause(int pid) {
+        JvmState st = jvms.get(pid);
+        return st != null && (st.inSafepoint || st.inGc);
+    }
+
+    /** Whether any watched JVM is in a safepoint or GC. */
+    public boolean anyPause() { return openPauses > 0; }
+
+    /** VM thread tid of JVM {@code pid}, or -1 if unknown. */
+    public int vmThread(int pid) {
+        JvmState st = jvms.get(pid);
+        return st == null ? -1 : st.vmThread;
+    }
+
+    /** Whether {@code tid} is a compiler thread of JVM {@code pid} currently compiling. */
+    public boolean isCompiling(int pid, int tid) {
+        JvmState st = jvms.get(pid);
+        return st != null && st.compiling.contains(tid);
+    }
+
+    /** State of JVM {@code pid}, or {@code null} if it is not watched. */
+    public JvmState state(int pid) { return jvms.get(pid); }
+
+    /** Attached probes of JVM {@code pid}; empty until the scheduler has attached them. */
+    public Set<Probe> probes(int pid) {
+        JvmState st = jvms.get(pid);
+        return st == null ? Set.of() : st.probes;
+    }
+
+    /** Pids of all watched JVMs. */
+    public Set<Integer> watched() { return Collections.unmodifiableSet(jvms.keySet()); }
+}
@@ -0,0 +1,21 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.userspace;
+
+/**
+ * What BPF {@code enqueue} does with a task matched by a kernel-handled
+ * {@link TaskClassifier} rule. Wire values match {@code ClassRuleCtx.action} on the BPF side.
+ */
+public enum KernelPlacement {
+    /** Publish to userspace as usual; lets an earlier rule shadow later kernel-handled ones. */
+    USERSPACE(0),
+    /** Insert into the kernel's global DSQ, consumed by whichever CPU runs out of work first. */
+    GLOBAL_DSQ(1),
+    /** Insert into the local DSQ of the task's previous CPU (global DSQ if no longer allowed). */
+    PREV_CPU(2);
+
+    private final int wire;
+
+    KernelPlacement(int wire) { this.wire = wire; }
+
+    public int wire() { return wire; }
+}
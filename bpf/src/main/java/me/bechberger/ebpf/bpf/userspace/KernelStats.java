@@ -0,0 +1,174 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.userspace;
+
+import me.bechberger.ebpf.bpf.UserspaceSchedulerBase;
+import me.bechberger.ebpf.bpf.UserspaceSchedulerBase.Stats;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Totals of the BPF-side framework counters ({@link Stats} slots).
+ *
+ * <p>The kernel keeps one row of counters per CPU in an mmap'd array (see
+ * {@link UserspaceSchedulerBase#statsView()}). {@link #refresh(MemorySegment)} sums every slot
+ * over the rows of all possible CPUs with plain loads into this instance's preallocated array,
+ * so a caller that owns an instance can refresh it at any frequency without syscalls or
+ * garbage. The totals are not an atomic snapshot across slots — each is at most one refresh
+ * stale — which is fine for diagnostics and rates. {@link #sum} reads a single slot when only
+ * one counter is needed.
+ *
+ * <p>{@link #snapshot()} and {@link #refreshed(MemorySegment)} return immutable copies, which
+ * can be handed to other threads; refreshing one throws. {@link UserspaceScheduler#kernelStats()}
+ * returns such a copy, {@link UserspaceScheduler#kernelStats(KernelStats)} refreshes a
+ * caller-owned instance instead. Refreshing with a {@code null} segment keeps the last totals,
+ * so values survive detach.
+ */
+public final class KernelStats {
+
+    private static final long ROW_BYTES = (long) UserspaceSchedulerBase.STATS_ROW_SLOTS * Long.BYTES;
+
+    private final int nrCpus;
+    private final long[] totals;  // index = slot
+    private final boolean immutable;
+
+    /** Aggregates the rows of all possible CPUs of this machine. */
+    public KernelStats() {
+        this(possibleCpus());
+    }
+
+    /** Aggregates the rows of CPUs {@code 0..nrCpus-1}. */
+    public KernelStats(int nrCpus) {
+        if (nrCpus <= 0) throw new IllegalArgumentException("nrCpus must be > 0, got " + nrCpus);
+        this.nrCpus = Math.min(nrCpus, UserspaceSchedulerBase.MAX_CPUS);
+        this.totals = new long[UserspaceSchedulerBase.STATS_ROW_SLOTS + 1];
+        this.immutable = false;
+    }
+
+    private KernelStats(int nrCpus, long[] totals) {
+        this.nrCpus = nrCpus;
+        this.totals = totals;
+        this.immutable = true;
+    }
+
+    /**
+     * Re-sum all slots from {@code rows}, the mmap'd per-CPU stats array, in place. A
+     * {@code null} segment leaves the current totals unchanged.
+     *
+     * @return this, for chaining
+     * @throws IllegalStateException if this is an immutable snapshot
+     */
+    public KernelStats refresh(MemorySegment rows) {
+        checkMutable();
+        if (rows != null) sumInto(totals, rows, nrCpus);
+        return this;
+    }
+
+    /**
+     * Copy the totals of {@code other} into this instance, without allocating.
+     *
+     * @return this, for chaining
+     * @throws IllegalStateException if this is an immutable snapshot
+     */
+    public KernelStats set(KernelStats other) {
+        checkMutable();
+        System.arraycopy(other.totals, 0, totals, 0, totals.length);
+        return this;
+    }
+
+    /** Immutable copy of the current totals; an immutable instance returns itself. */
+    public KernelStats snapshot() {
+        return immutable ? this : new KernelStats(nrCpus, totals.clone());
+    }
+
+    /**
+     * Immutable snapshot of all slots re-summed from {@code rows}, over the same CPUs as this
+     * instance, which stays unchanged. A {@code null} segment returns {@link #snapshot()}.
+     */
+    public KernelStats refreshed(MemorySegment rows) {
+        if (rows == null) return snapshot();
+        long[] next = new long[totals.length];
+        sumInto(next, rows, nrCpus);
+        return new KernelStats(nrCpus, next);
+    }
+
+    /** Whether this is an immutable snapshot from {@link #snapshot()} or {@link #refreshed}. */
+    public boolean isImmutable() { return immutable; }
+
+    private void checkMutable() {
+        if (immutable) throw new IllegalStateException("KernelStats snapshot is immutable");
+    }
+
+    private static void sumInto(long[] totals, MemorySegment rows, int nrCpus) {
+        for (int slot = 1; slot < totals.length; slot++) {
+            totals[slot] = sum(rows, nrCpus, slot);
+        }
+    }
+
+    /**
+     * Sum of 1-based {@code slot} over the rows of CPUs {@code 0..nrCpus-1} in {@code rows};
+     * 0 for an unknown slot.
+     */
+    public static long sum(MemorySegment rows, int nrCpus, int slot) {
+        if (slot < 1 || slot > UserspaceSchedulerBase.STATS_ROW_SLOTS) return 0L;
+        long end = Math.min(rows.byteSize(), Math.min(nrCpus, UserspaceSchedulerBase.MAX_CPUS) * ROW_BYTES);
+        long off = (long) (slot - 1) * Long.BYTES;
+        long sum = 0;
+        for (long row = 0; row + ROW_BYTES <= end; row += ROW_BYTES) {
+            sum += rows.get(ValueLayout.JAVA_LONG, row + off);
+        }
+        return sum;
+    }
+
+    /** Total of 1-based {@code slot} in this snapshot; 0 for an unknown slot. */
+    public long get(int slot) {
+        return slot >= 1 && slot < totals.length ? totals[slot] : 0L;
+    }
+
+    /** Number of CPU rows summed per slot. */
+    public int nrCpus() { return nrCpus; }
+
+    public long runningTasks()      { return totals[Stats.RUNNING_TASKS]; }
+    public long ringEnqueued()      { return totals[Stats.NR_QUEUED]; }
+    public long userDispatches()    { return totals[Stats.USER_DISPATCHES]; }
+    public long stallFallbacks()    { return totals[Stats.KERNEL_DISPATCHES]; }
+    public long bouncedDispatches() { return totals[Stats.BOUNCED_DISPATCHES]; }
+    public long ringCanceled()      { return totals[Stats.CANCELLED_DISPATCHES]; }
+    public long ringDropped()       { return totals[Stats.CONGESTION_EVENTS]; }
+    public long frameworkEnqueues() { return totals[Stats.FRAMEWORK_ENQUEUES]; }
+    public long idleFastPath()      { return totals[Stats.IDLE_FAST_PATH]; }
+    public long heartbeatKicks()    { return totals[Stats.HEARTBEAT_KICKS]; }
+    public long signalsDropped()    { return totals[Stats.SIGNALS_DROPPED]; }
+    public long signalsDelivered()  { return totals[Stats.SIGNALS_DELIVERED]; }
+    public long preemptsIssued()    { return totals[Stats.PREEMPTS_ISSUED]; }
+    public long kicksIssued()       { return totals[Stats.KICKS_ISSUED]; }
+    public long preemptUnresolved() { return totals[Stats.PREEMPT_UNRESOLVED]; }
+
+    /**
+     * Number of possible CPUs from {@code /sys/devices/system/cpu/possible} (highest id + 1),
+     * which bounds the ids {@code bpf_get_smp_processor_id()} can return. Falls back to
+     * {@link UserspaceSchedulerBase#MAX_CPUS} when the file is unreadable.
+     */
+    static int possibleCpus() {
+        try {
+            return parseCpuListMax(Files.readString(Path.of("/sys/devices/system/cpu/possible"))) + 1;
+        } catch (IOException | RuntimeException e) {
+            return UserspaceSchedulerBase.MAX_CPUS;
+        }
+    }
+
+    /** Highest CPU id in a kernel cpulist such as {@code "0-3,8,10-11"}. */
+    static int parseCpuListMax(String list) {
+        int max = -1;
+        for (String part : list.trim().split(",")) {
+            if (part.isEmpty()) continue;
+            int dash = part.lastIndexOf('-');
+            max = Math.max(max, Integer.parseInt(dash < 0 ? part : part.substring(dash + 1)));
+        }
+        if (max < 0) throw new IllegalArgumentException("empty cpulist");
+        return max;
+    }
+}
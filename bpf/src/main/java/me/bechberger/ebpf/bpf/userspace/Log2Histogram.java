@@ -1,6 +1,8 @@
 // SPDX-License-Identifier: GPL-2.0
 package me.bechberger.ebpf.bpf.userspace;
 
+import java.util.concurrent.atomic.LongAdder;
+
 /**
  * Minimal in-heap log2-bucketed histogram for per-class latency/count metrics.
  *
@@ -9,35 +11,50 @@ package me.bechberger.ebpf.bpf.userspace;
  * can be created per task class without touching the kernel. 64 buckets: bucket {@code i}
  * counts samples in {@code [2^(i-1), 2^i)} (bucket 0 counts {@code 0}).
  *
- * <p>Thread-safe via {@code synchronized}; per-class metrics are opt-in and updated off the
- * hot path only when a classifier is attached, so contention is negligible.
+ * <p>Lock-free: each bucket is a {@link LongAdder}, so concurrent {@link #add} calls from
+ * sharded policy workers stripe across cells instead of contending on a monitor. Reads sum the
+ * buckets on demand; a read racing with writers sees a consistent-enough snapshot for
+ * percentiles (each bucket is read once per call), but not a linearizable one.
  */
 public final class Log2Histogram {
 
-    private final long[] buckets = new long[64];
-    private long count;
+    private final LongAdder[] buckets = new LongAdder[64];
+
+    public Log2Histogram() {
+        for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+    }
 
     /** Record one sample (a latency in some unit, or 1 for a plain count). */
-    public synchronized void add(long value) {
+    public void add(long value) {
         int b = value <= 0 ? 0 : Math.min(63, 64 - Long.numberOfLeadingZeros(value));
-        buckets[b]++;
-        count++;
+        buckets[b].increment();
     }
 
-    public synchronized long totalCount() { return count; }
+    public long totalCount() {
+        long count = 0;
+        for (LongAdder b : buckets) count += b.sum();
+        return count;
+    }
 
     /**
      * Approximate percentile as the upper bound of the bucket containing the p-th sample.
      * @param p fraction in [0,1]
      * @return {@code 2^bucket} upper bound, or 0 if empty
      */
-    public synchronized long percentile(double p) {
+    public long percentile(double p) {
+        // Snapshot once so the total and the cumulative walk agree under concurrent adds.
+        long[] snap = new long[buckets.length];
+        long count = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            snap[i] = buckets[i].sum();
+            count += snap[i];
+        }
         if (count == 0) return 0;
         long target = (long) Math.ceil(p * count);
         if (target < 1) target = 1;
         long cum = 0;
-        for (int i = 0; i < buckets.length; i++) {
-            cum += buckets[i];
+        for (int i = 0; i < snap.length; i++) {
+            cum += snap[i];
             if (cum >= target) return i == 0 ? 0 : (1L << i);
         }
         return 1L << 63;
@@ -1,7 +1,11 @@
 // SPDX-License-Identifier: GPL-2.0
 package me.bechberger.ebpf.bpf.userspace;
 
+import me.bechberger.ebpf.bpf.QueuedTask;
+
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.function.Predicate;
 
 /**
  * Tunables for {@code UserspaceScheduler}. All fields have safe defaults — override only
@@ -20,9 +24,16 @@ public final class Opts {
     /** Warn (don't fail) if ZGC isn't detected at start. Recommend ZGC for sub-ms pauses. */
     public boolean verifyZgcOnStart = true;
 
-    /** How often to refresh /proc/self/task and re-pin framework PIDs. */
+    /** Minimum interval between /proc/self/task rescans that re-pin framework PIDs. */
     public Duration frameworkPidRescan = Duration.ofSeconds(5);
 
+    /**
+     * Repeat the /proc/self/task rescan from the run loop's once-per-second tick. Off by
+     * default: BPF {@code initTask} already adds every new scheduler thread to the
+     * framework-PID set at fork, so the periodic walk is only a safety net.
+     */
+    public boolean frameworkPidRescanFallback = false;
+
     /** Soft policy() exception budget per second — if exceeded, log loudly and continue. */
     public int policyExceptionBudgetPerSec = 100;
 
@@ -32,5 +43,53 @@ public final class Opts {
     /** Decision-trace ring capacity. 0 (default) = disabled, zero cost. */
     public int decisionTraceCapacity = 0;
 
+    /**
+     * Record every drained batch into this file for offline replay ({@link TraceReplayer}).
+     * {@code null} (default) = disabled. Costs one record copy per drained task.
+     */
+    public Path traceRecordPath = null;
+
+    /**
+     * Size cap of the {@link #traceRecordPath} file in bytes. Once reached, recording stops with
+     * a warning and the scheduler keeps running. Default 1 GiB.
+     */
+    public long traceRecordMaxBytes = 1L << 30;
+
+    /**
+     * Topology for {@code ANY_CPU} idle selection: pick an idle CPU nearest the task's previous
+     * one (core, LLC, node, anywhere) via {@link IdleCpuIndex}. {@code null} (default) = the
+     * round-robin scan of the idle bitmap. Typically {@code CpuTopology.detect()}.
+     */
+    public CpuTopology idleTopology = null;
+
+    /**
+     * Make {@code ANY_CPU} selection SMT-aware via {@link SmtPlacement}: prefer CPUs of fully
+     * idle cores and keep {@link #noisyTasks} off busy siblings. Needs {@link #idleTopology};
+     * {@code false} (default) = plain nearest-idle lookup.
+     */
+    public boolean smtPlacement = false;
+
+    /**
+     * Tasks that interfere with their SMT sibling (e.g. batch or vector-heavy work), for
+     * {@link #smtPlacement}. {@code null} (default) = no task is noisy, so placement only
+     * prefers idle cores.
+     */
+    public Predicate<QueuedTask> noisyTasks = null;
+
+    /**
+     * Per-task time slices, e.g. an {@link AdaptiveSliceController}. {@code null} (default) =
+     * every dispatch gets the BPF side's fixed 5 ms slice.
+     */
+    public SliceController sliceController = null;
+
+    /**
+     * Emit a {@code hellobpf.userspace.Dispatch} JFR event for one in this many dispatches.
+     * 1 (default) = every dispatch; values &lt; 1 count as 1. The per-batch
+     * {@code hellobpf.userspace.Batch} event still summarises all dispatches, so e.g. 64 keeps
+     * JFR affordable on a production hot path. {@code -Dhellobpf.userspace.jfr=false} removes
+     * the event code entirely.
+     */
+    public int jfrDispatchSampling = 1;
+
     public static Opts defaults() { return new Opts(); }
 }
@@ -29,6 +29,9 @@ public final class RustyLoadTracker {
         long lastSeenNs;
     }
 
+    /** The half-life this tracker was created with. */
+    public long halfLifeNs() { return halfLifeNs; }
+
     private double decayFactor(long dt) {
         if (dt <= 0) return 1.0;
         return Math.pow(2.0, -((double) dt) / halfLifeNs);
@@ -70,6 +73,17 @@ public final class RustyLoadTracker {
         return dutyCycle(pid, nowNs) * weight;
     }
 
+    /**
+     * Sum of all tracked duty cycles, decayed to {@code nowNs} — the number of CPUs' worth of
+     * runnable work. Read-only (it does not move any pid's sample point), allocation-free,
+     * O(tracked pids).
+     */
+    public double totalDutyCycle(long nowNs) {
+        double sum = 0;
+        for (State s : byPid.values()) sum += s.ewmaDutyCycle * decayFactor(nowNs - s.lastSeenNs);
+        return sum;
+    }
+
     /** Remove a pid's state (e.g. when it has been dormant past the stale threshold). */
     public void forget(int pid) { byPid.remove(pid); }
 
@@ -31,8 +31,17 @@ import java.util.List;
  */
 public final class SchedulerHarness {
 
-    /** A captured dispatch decision. */
-    public record Dispatch(int targetCpu, int pid) {}
+    /**
+     * A captured dispatch decision.
+     *
+     * @param sliceNs slice chosen by {@link Opts#sliceController}; 0 = BPF default
+     */
+    public record Dispatch(int targetCpu, int pid, long sliceNs) {
+        /** A dispatch with the BPF default slice. */
+        public Dispatch(int targetCpu, int pid) {
+            this(targetCpu, pid, 0L);
+        }
+    }
 
     private final UserspaceScheduler sched;
     private final List<Dispatch> dispatches = new ArrayList<>();
@@ -43,7 +52,7 @@ public final class SchedulerHarness {
 
     private SchedulerHarness(UserspaceScheduler sched) {
         this.sched = sched;
-        sched.offlineDispatchSink = arr -> dispatches.add(new Dispatch(arr[0], arr[1]));
+        sched.offlineDispatchSink = (cpu, pid, slice) -> dispatches.add(new Dispatch(cpu, pid, slice));
     }
 
     public static SchedulerHarness forScheduler(UserspaceScheduler sched) {
@@ -63,6 +72,15 @@ public final class SchedulerHarness {
         return this;
     }
 
+    /**
+     * Run batches with {@code opts} instead of the defaults — e.g. to exercise an
+     * {@link Opts#sliceController}. Only the options the offline path reads take effect.
+     */
+    public SchedulerHarness withOpts(Opts opts) {
+        sched.opts = opts;
+        return this;
+    }
+
     /**
      * Install a virtual clock starting at {@code startNs}, replacing the scheduler's
      * {@code System.nanoTime()} reads (via {@link UserspaceScheduler#nanoTime()}). Time only
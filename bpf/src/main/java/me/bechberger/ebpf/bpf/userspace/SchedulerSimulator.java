@@ -0,0 +1,440 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.userspace;
+
+import me.bechberger.ebpf.bpf.QueuedTask;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Discrete-event simulator for {@link UserspaceScheduler} policies on a modelled machine — predicts
+ * wakeup latency, fairness and utilisation without root or a sched_ext kernel. Where
+ * {@link SchedulerHarness} checks <em>which</em> decisions a policy makes, this runs the policy
+ * against a model of CPUs, dispatch queues and task runtimes to see what those decisions
+ * <em>cost</em>.
+ *
+ * <p>The model mirrors the BPF transport of {@code UserspaceSchedulerBase}:
+ * <ul>
+ *   <li>A task that wakes up (or whose slice expires) is queued for userspace; queued tasks are
+ *       drained in batches of up to {@link Opts#batchSize} after a fixed user round trip
+ *       ({@link #withRoundTripNanos}) and handed to {@code schedule} through the offline hooks.</li>
+ *   <li>A dispatch to a CPU goes to that CPU's local queue; {@code ANY_CPU} goes to a shared
+ *       FIFO and wakes an idle CPU, preferring the task's previous CPU, then its domain.</li>
+ *   <li>A task runs for {@code min(remaining burst, slice)}, where the slice is the one its
+ *       dispatch carried ({@link #withSliceController}) or {@link #withSliceNanos}; on slice
+ *       expiry it is re-queued for userspace. A task the policy never dispatches is moved to the
+ *       shared FIFO after the 50 ms stall fallback.</li>
+ *   <li>The modelled idle bitmap stands in for the mmapped one, so {@code pickIdleCpu} and the
+ *       slice controller see the simulated machine's idle CPUs.</li>
+ *   <li>{@code tick()} runs once per simulated second; {@code nanoTime()} reads simulated time.</li>
+ * </ul>
+ * Not modelled: preempt/kick control records, kernel-side idle fast paths, per-task affinity.
+ *
+ * <pre>{@code
+ * var sim = SchedulerSimulator.forTopology(CpuTopology.uniform(16, 8))
+ *         .withDuration(Duration.ofSeconds(5)).withSeed(42);
+ * SimReport r = sim.run(MyScheduler::new, workload);
+ *
+ * // parameter sweep across all cores
+ * List<SimReport> all = SchedulerSimulator.runAll(List.of(
+ *         new SchedulerSimulator.Job("slice=1ms", sim, () -> new MyScheduler(1), workload),
+ *         new SchedulerSimulator.Job("slice=4ms", sim, () -> new MyScheduler(4), workload)),
+ *     Runtime.getRuntime().availableProcessors());
+ * }</pre>
+ *
+ * <p>Configure before running; a configured simulator is read-only while it runs, so one instance
+ * can back many parallel jobs. Each run gets a fresh scheduler from its supplier and a random
+ * stream derived from the seed, so results are reproducible.
+ */
+public final class SchedulerSimulator {
+
+    /** Slice used when the policy does not choose one; matches the BPF side's default. */
+    public static final long DEFAULT_SLICE_NS = 5_000_000L;
+    /** Matches {@code UserspaceSchedulerBase.STALL_FALLBACK_NS}. */
+    static final long STALL_FALLBACK_NS = 50_000_000L;
+    private static final long TICK_PERIOD_NS = 1_000_000_000L;
+    private static final int PID_BASE = 1000;
+
+    /** One simulation of a parameter sweep. */
+    public record Job(String label, SchedulerSimulator sim,
+                      Supplier<? extends UserspaceScheduler> scheduler, SimWorkload workload) {}
+
+    private final CpuTopology topology;
+    private long durationNs = 1_000_000_000L;
+    private long roundTripNs = 20_000L;
+    private long sliceNs = DEFAULT_SLICE_NS;
+    private int batchSize = Opts.defaults().batchSize;
+    private long seed = 1;
+    private Supplier<? extends SliceController> sliceController;
+
+    private SchedulerSimulator(CpuTopology topology) {
+        this.topology = topology;
+    }
+
+    public static SchedulerSimulator forTopology(CpuTopology topology) {
+        return new SchedulerSimulator(topology);
+    }
+
+    /** Model {@code n} CPUs in a single domain. */
+    public static SchedulerSimulator withCpus(int n) {
+        return new SchedulerSimulator(CpuTopology.uniform(n, n));
+    }
+
+    public SchedulerSimulator withDuration(Duration d) {
+        if (d.isNegative() || d.isZero()) throw new IllegalArgumentException("duration must be > 0: " + d);
+        this.durationNs = d.toNanos();
+        return this;
+    }
+
+    /** Delay between a task being queued for userspace and the batch that contains it. */
+    public SchedulerSimulator withRoundTripNanos(long ns) {
+        if (ns < 0) throw new IllegalArgumentException("negative round trip: " + ns);
+        this.roundTripNs = ns;
+        return this;
+    }
+
+    public SchedulerSimulator withSliceNanos(long ns) {
+        if (ns <= 0) throw new IllegalArgumentException("slice must be > 0: " + ns);
+        this.sliceNs = ns;
+        return this;
+    }
+
+    /**
+     * Give every run a fresh controller from {@code controller} as its {@link Opts#sliceController};
+     * the slices it returns override {@link #withSliceNanos} per dispatch. {@code null} = off.
+     */
+    public SchedulerSimulator withSliceController(Supplier<? extends SliceController> controller) {
+        this.sliceController = controller;
+        return this;
+    }
+
+    public SchedulerSimulator withBatchSize(int n) {
+        if (n < 1) throw new IllegalArgumentException("batch size must be >= 1: " + n);
+        this.batchSize = n;
+        return this;
+    }
+
+    public SchedulerSimulator withSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public CpuTopology topology() { return topology; }
+
+    /** Simulate {@code workload} under a fresh scheduler from {@code scheduler}. */
+    public SimReport run(Supplier<? extends UserspaceScheduler> scheduler, SimWorkload workload) {
+        return run(workload.name(), scheduler, workload);
+    }
+
+    SimReport run(String label, Supplier<? extends UserspaceScheduler> scheduler, SimWorkload workload) {
+        return new Run(label, scheduler.get(), workload).execute();
+    }
+
+    /**
+     * Run all {@code jobs} on a pool of {@code parallelism} threads; results are in job order.
+     *
+     * @throws IllegalStateException if a job's scheduler throws out of the simulation
+     */
+    public static List<SimReport> runAll(List<Job> jobs, int parallelism) {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, parallelism), r -> {
+            Thread th = new Thread(r, "sched-sim");
+            th.setDaemon(true);
+            return th;
+        });
+        try {
+            List<Future<SimReport>> futures = new ArrayList<>(jobs.size());
+            for (Job j : jobs) futures.add(pool.submit(() -> j.sim().run(j.label(), j.scheduler(), j.workload())));
+            List<SimReport> out = new ArrayList<>(jobs.size());
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    out.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("simulation job '" + jobs.get(i).label() + "' failed", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("interrupted while waiting for simulation jobs", e);
+                }
+            }
+            return out;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // ── one simulation ───────────────────────────────────────────────────────
+
+    private static final int EV_WAKE = 0, EV_DRAIN = 1, EV_CPU_DONE = 2, EV_STALL = 3, EV_TICK = 4;
+
+    private record Event(long t, long seq, int type, int arg, long aux) {}
+
+    private enum State { SLEEPING, AWAITING_USER, QUEUED, RUNNING }
+
+    private final class Run {
+        final String label;
+        final UserspaceScheduler sched;
+        final SplittableRandom rnd = new SplittableRandom(seed);
+        final int nrCpus = topology.nrCpus();
+
+        // per task
+        final int n;
+        final SimWorkload.TaskGroup[] group;
+        final byte[][] comm;
+        final State[] state;
+        final long[] remaining, enqTs, execRuntime, stopTs, enqCnt, taskSlice;
+        final int[] lastCpu;
+
+        // per cpu
+        final int[] running;
+        final long[] runStart, busyNs;
+        final MemorySegment idleMask;
+        final List<ArrayDeque<Integer>> local = new ArrayList<>();
+        final ArrayDeque<Integer> shared = new ArrayDeque<>();
+        final ArrayDeque<Integer> pending = new ArrayDeque<>();
+
+        final PriorityQueue<Event> events = new PriorityQueue<>((a, b) ->
+                a.t != b.t ? Long.compare(a.t, b.t) : Long.compare(a.seq, b.seq));
+        final QueuedTask[] pool;
+        final Log2Histogram latency = new Log2Histogram();
+        long now, seq;
+        boolean drainScheduled;
+        long bursts, dispatches, stale, stalls;
+
+        Run(String label, UserspaceScheduler sched, SimWorkload w) {
+            this.label = label;
+            this.sched = sched;
+            this.n = w.taskCount();
+            group = new SimWorkload.TaskGroup[n];
+            comm = new byte[n][];
+            state = new State[n];
+            remaining = new long[n];
+            enqTs = new long[n];
+            execRuntime = new long[n];
+            stopTs = new long[n];
+            enqCnt = new long[n];
+            taskSlice = new long[n];
+            lastCpu = new int[n];
+            int i = 0;
+            for (SimWorkload.TaskGroup g : w.groups()) {
+                byte[] c = g.comm().getBytes(StandardCharsets.UTF_8);
+                for (int k = 0; k < g.count(); k++, i++) {
+                    group[i] = g;
+                    comm[i] = c;
+                    lastCpu[i] = -1;
+                    state[i] = State.SLEEPING;
+                }
+            }
+            running = new int[nrCpus];
+            Arrays.fill(running, -1);
+            runStart = new long[nrCpus];
+            busyNs = new long[nrCpus];
+            idleMask = MemorySegment.ofArray(new long[(nrCpus + 63) >>> 6]);
+            for (int c = 0; c < nrCpus; c++) setIdle(c, true);
+            for (int c = 0; c < nrCpus; c++) local.add(new ArrayDeque<>());
+            pool = new QueuedTask[batchSize];
+            for (int k = 0; k < pool.length; k++) pool[k] = new QueuedTask();
+        }
+
+        void at(long t, int type, int arg, long aux) {
+            events.add(new Event(t, seq++, type, arg, aux));
+        }
+
+        SimReport execute() {
+            sched.nanoClock = () -> now;
+            sched.nrCpus = nrCpus;
+            sched.offlineDispatchSink = this::onDispatch;
+            sched.offlineIdleMask = idleMask;
+            if (sliceController != null) {
+                Opts o = Opts.defaults();
+                o.batchSize = batchSize;
+                o.sliceController = sliceController.get();
+                sched.opts = o;
+            }
+            for (int t = 0; t < n; t++) {
+                remaining[t] = Math.max(1, group[t].runtime().sample(rnd));
+                at(group[t].sleep().sample(rnd), EV_WAKE, t, 0);
+            }
+            at(TICK_PERIOD_NS, EV_TICK, 0, 0);
+            while (!events.isEmpty() && events.peek().t <= durationNs) {
+                Event e = events.poll();
+                now = e.t;
+                switch (e.type) {
+                    case EV_WAKE -> enqueueForUser(e.arg);
+                    case EV_DRAIN -> drain();
+                    case EV_CPU_DONE -> cpuDone(e.arg);
+                    case EV_STALL -> stall(e.arg, e.aux);
+                    case EV_TICK -> {
+                        try {
+                            sched.tick();
+                        } catch (Throwable th) {
+                            System.err.println("[sched] sim: tick() threw: " + th);
+                        }
+                        at(now + TICK_PERIOD_NS, EV_TICK, 0, 0);
+                    }
+                    default -> throw new IllegalStateException("unknown event " + e.type);
+                }
+            }
+            now = durationNs;
+            long busy = 0;
+            for (int c = 0; c < nrCpus; c++) {
+                busy += busyNs[c];
+                if (running[c] >= 0) {
+                    busy += now - runStart[c];
+                    execRuntime[running[c]] += now - runStart[c];
+                }
+            }
+            double util = (double) busy / ((double) nrCpus * durationNs);
+            return new SimReport(label, durationNs, nrCpus, bursts, dispatches, stale, stalls,
+                    latency, Math.min(1.0, util), jainFairness());
+        }
+
+        double jainFairness() {
+            double sum = 0, sumSq = 0;
+            for (int t = 0; t < n; t++) {
+                double x = (double) execRuntime[t] / group[t].weight();
+                sum += x;
+                sumSq += x * x;
+            }
+            return sumSq == 0 ? 1.0 : (sum * sum) / (n * sumSq);
+        }
+
+        void enqueueForUser(int t) {
+            state[t] = State.AWAITING_USER;
+            enqTs[t] = now;
+            enqCnt[t]++;
+            pending.add(t);
+            if (!drainScheduled) {
+                drainScheduled = true;
+                at(now + roundTripNs, EV_DRAIN, 0, 0);
+            }
+        }
+
+        void drain() {
+            int count = 0;
+            while (count < pool.length && !pending.isEmpty()) {
+                int t = pending.poll();
+                QueuedTask q = pool[count++];
+                q.pid = PID_BASE + t;
+                q.prevCpu = lastCpu[t];
+                q.nrCpusAllowed = nrCpus;
+                q.flags = 0;
+                q.startTs = 0;
+                q.stopTs = stopTs[t];
+                q.execRuntime = execRuntime[t];
+                q.weight = group[t].weight();
+                q.vtime = 0;
+                q.enqCnt = enqCnt[t];
+                Arrays.fill(q.comm, (byte) 0);
+                System.arraycopy(comm[t], 0, q.comm, 0, Math.min(15, comm[t].length));
+            }
+            sched.runBatchOffline(pool, count);
+            for (int i = 0; i < count; i++) {
+                int t = pool[i].pid - PID_BASE;
+                if (state[t] == State.AWAITING_USER) at(now + STALL_FALLBACK_NS, EV_STALL, t, enqCnt[t]);
+            }
+            if (pending.isEmpty()) drainScheduled = false;
+            else at(now + roundTripNs, EV_DRAIN, 0, 0);
+        }
+
+        void onDispatch(int cpu, int pid, long slice) {
+            // dispatchTask checks this too, but submitDispatch overrides and ANY_CPU placement
+            // reach the sink without it
+            if (cpu != UserspaceScheduler.ANY_CPU && (cpu < 0 || cpu >= nrCpus)) {
+                throw new IllegalArgumentException(
+                        "simulated dispatch: cpu " + cpu + " is out of range for pid " + pid
+                        + " — must be ANY_CPU (" + UserspaceScheduler.ANY_CPU + ") or in [0, " + nrCpus + ")");
+            }
+            int t = pid - PID_BASE;
+            if (t < 0 || t >= n || state[t] != State.AWAITING_USER) { stale++; return; }
+            dispatches++;
+            state[t] = State.QUEUED;
+            taskSlice[t] = slice > 0 ? slice : sliceNs;
+            if (cpu == UserspaceScheduler.ANY_CPU) {
+                shared.add(t);
+                int idle = pickIdle(lastCpu[t]);
+                if (idle >= 0) startNext(idle);
+            } else {
+                local.get(cpu).add(t);
+                if (running[cpu] < 0) startNext(cpu);
+            }
+        }
+
+        void stall(int t, long cnt) {
+            if (state[t] != State.AWAITING_USER || enqCnt[t] != cnt) return;
+            stalls++;
+            state[t] = State.QUEUED;
+            taskSlice[t] = sliceNs;
+            shared.add(t);
+            int idle = pickIdle(lastCpu[t]);
+            if (idle >= 0) startNext(idle);
+        }
+
+        /** Idle CPU preferring {@code prev}, then its domain, then the lowest-numbered one. */
+        int pickIdle(int prev) {
+            if (prev >= 0 && running[prev] < 0) return prev;
+            if (prev >= 0) {
+                int dom = topology.domainOfCpu(prev);
+                for (int c = 0; c < nrCpus; c++) {
+                    if (running[c] < 0 && topology.domainOfCpu(c) == dom) return c;
+                }
+            }
+            for (int c = 0; c < nrCpus; c++) if (running[c] < 0) return c;
+            return -1;
+        }
+
+        void startNext(int cpu) {
+            if (running[cpu] >= 0) return;
+            Integer next = local.get(cpu).poll();
+            if (next == null) next = shared.poll();
+            if (next == null) return;
+            int t = next;
+            latency.add(now - enqTs[t]);
+            state[t] = State.RUNNING;
+            running[cpu] = t;
+            setIdle(cpu, false);
+            runStart[cpu] = now;
+            lastCpu[t] = cpu;
+            at(now + Math.min(remaining[t], taskSlice[t]), EV_CPU_DONE, cpu, 0);
+        }
+
+        void setIdle(int cpu, boolean idle) {
+            long off = (long) (cpu >>> 6) * 8L;
+            long w = idleMask.get(ValueLayout.JAVA_LONG, off);
+            idleMask.set(ValueLayout.JAVA_LONG, off, idle ? w | (1L << cpu) : w & ~(1L << cpu));
+        }
+
+        void cpuDone(int cpu) {
+            int t = running[cpu];
+            long ran = now - runStart[cpu];
+            busyNs[cpu] += ran;
+            execRuntime[t] += ran;
+            remaining[t] -= ran;
+            stopTs[t] = now;
+            running[cpu] = -1;
+            setIdle(cpu, true);
+            if (remaining[t] > 0) {
+                enqueueForUser(t);                       // slice expired: back through userspace
+            } else {
+                bursts++;
+                state[t] = State.SLEEPING;
+                remaining[t] = Math.max(1, group[t].runtime().sample(rnd));
+                long sleep = group[t].sleep().sample(rnd);
+                if (sleep <= 0) enqueueForUser(t);
+                else at(now + sleep, EV_WAKE, t, 0);
+            }
+            startNext(cpu);
+        }
+    }
+}
@@ -18,6 +18,17 @@ public record Signal(int kind, int pid, long payload, long tsNs) {
         public static final int CPU_RELEASED = 1;
         public static final int CPU_IDLE     = 2;
         public static final int TASK_EXIT    = 3;
+        /**
+         * JVM signals from {@link UserspaceScheduler#watchJvm(int)}: {@code pid} is the JVM thread
+         * that hit the probe, {@code payload} the JVM's pid (see {@link JvmSignals#jvmPid}).
+         */
+        public static final int JVM_SAFEPOINT_BEGIN = 4;
+        public static final int JVM_SAFEPOINT_END   = 5;
+        /** Bit 32 of {@code payload} is set for a full GC (see {@link JvmSignals#isFullGc}). */
+        public static final int JVM_GC_BEGIN        = 6;
+        public static final int JVM_GC_END          = 7;
+        public static final int JVM_COMPILE_BEGIN   = 8;
+        public static final int JVM_COMPILE_END     = 9;
         /** Authors define domain kinds at or above this value. */
         public static final int FIRST_USER_KIND = 1000;
     }
@@ -0,0 +1,44 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.userspace;
+
+/**
+ * Outcome of one {@link SchedulerSimulator} run. Latencies are in nanoseconds of simulated time.
+ *
+ * @param label            job label (workload name unless set explicitly)
+ * @param simulatedNs      simulated wall time
+ * @param nrCpus           modelled CPUs
+ * @param bursts           CPU bursts that ran to completion
+ * @param dispatches       dispatch decisions the policy made
+ * @param staleDispatches  dispatches for a task that was no longer waiting (already placed)
+ * @param stallFallbacks   tasks the policy never dispatched, rescued by the 50 ms fallback
+ * @param wakeupLatency    enqueue→first-run latency of every placement
+ * @param utilisation      busy CPU time / (nrCpus * simulatedNs), in [0, 1]
+ * @param fairness         Jain's index over per-task runtime/weight, in (0, 1]; 1 = perfectly fair
+ */
+public record SimReport(
+    String label,
+    long simulatedNs,
+    int nrCpus,
+    long bursts,
+    long dispatches,
+    long staleDispatches,
+    long stallFallbacks,
+    Log2Histogram wakeupLatency,
+    double utilisation,
+    double fairness
+) {
+    public long latencyP50() { return wakeupLatency.percentile(0.50); }
+    public long latencyP99() { return wakeupLatency.percentile(0.99); }
+
+    /** Completed bursts per simulated second. */
+    public double throughputPerSec() {
+        return simulatedNs == 0 ? 0 : bursts * 1e9 / simulatedNs;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: util=%.3f fair=%.3f bursts/s=%.1f lat p50=%dns p99=%dns disp=%d stale=%d stall=%d",
+                label, utilisation, fairness, throughputPerSec(), latencyP50(), latencyP99(),
+                dispatches, staleDispatches, stallFallbacks);
+    }
+}
@@ -0,0 +1,61 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.userspace;
+
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * A synthetic task population for {@link SchedulerSimulator}: groups of identical tasks that
+ * alternate between running a CPU burst and sleeping.
+ *
+ * <pre>{@code
+ * var w = SimWorkload.of("mixed",
+ *     new SimWorkload.TaskGroup("web",   64, Dist.exponential(200_000), Dist.exponential(2_000_000), 100),
+ *     new SimWorkload.TaskGroup("batch",  8, Dist.fixed(50_000_000),    Dist.fixed(0),             100));
+ * }</pre>
+ */
+public record SimWorkload(String name, List<TaskGroup> groups) {
+
+    /**
+     * {@code count} tasks named {@code comm} (truncated to 15 bytes), each repeatedly running for
+     * a {@code runtime} sample and then sleeping for a {@code sleep} sample (0 = immediately
+     * runnable again).
+     */
+    public record TaskGroup(String comm, int count, Dist runtime, Dist sleep, long weight) {
+        public TaskGroup {
+            if (count < 0) throw new IllegalArgumentException("negative task count: " + count);
+            if (weight < 1) throw new IllegalArgumentException("weight must be >= 1: " + weight);
+        }
+    }
+
+    /** A non-negative duration distribution in nanoseconds. */
+    @FunctionalInterface
+    public interface Dist {
+        long sample(SplittableRandom rnd);
+
+        static Dist fixed(long ns) { return rnd -> ns; }
+
+        static Dist uniform(long loNs, long hiNs) {
+            if (hiNs < loNs) throw new IllegalArgumentException("hi < lo: " + hiNs + " < " + loNs);
+            return rnd -> loNs == hiNs ? loNs : rnd.nextLong(loNs, hiNs + 1);
+        }
+
+        static Dist exponential(long meanNs) {
+            return rnd -> (long) (-Math.log(1.0 - rnd.nextDouble()) * meanNs);
+        }
+    }
+
+    public SimWorkload {
+        groups = List.copyOf(groups);
+    }
+
+    public static SimWorkload of(String name, TaskGroup... groups) {
+        return new SimWorkload(name, List.of(groups));
+    }
+
+    public int taskCount() {
+        int n = 0;
+        for (TaskGroup g : groups) n += g.count();
+        return n;
+    }
+}
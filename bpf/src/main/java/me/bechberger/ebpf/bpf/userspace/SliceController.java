@@ -0,0 +1,81 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.userspace;
+
+import me.bechberger.ebpf.bpf.QueuedTask;
+
+/**
+ * Chooses the time slice each dispatched task gets, installed via {@link Opts#sliceController}.
+ * Without one every dispatch submits {@code sliceNs = 0} and BPF applies its fixed 5 ms default.
+ *
+ * <p>Called once per dispatch from the thread that dispatches, so with
+ * {@link Opts#workerThreads} {@code > 1} an implementation must be thread-safe. The
+ * {@link Context} is refreshed once per drained batch and reused — read it, don't keep it.
+ *
+ * <pre>{@code
+ * opts.sliceController = new AdaptiveSliceController(new RustyLoadTracker(100_000_000L));
+ * opts.sliceController = SliceController.fixed(2_000_000L);
+ * }</pre>
+ */
+@FunctionalInterface
+public interface SliceController {
+
+    /** Slice for {@code t} in nanoseconds; 0 (or negative) = the BPF default. */
+    long sliceNs(QueuedTask t, Context ctx);
+
+    /** Every task gets {@code sliceNs}. */
+    static SliceController fixed(long sliceNs) {
+        if (sliceNs <= 0) throw new IllegalArgumentException("slice must be > 0: " + sliceNs);
+        return (t, ctx) -> sliceNs;
+    }
+
+    /**
+     * Machine state sampled at the start of the current batch: a mutable, reused view so the
+     * dispatch path allocates nothing.
+     */
+    final class Context {
+        long nowNs;
+        int queueDepth;
+        int idleCpus;
+        int nrCpus = 1;
+        int workerThreads = 1;
+
+        Context() {}
+
+        /** Test/benchmark factory; the scheduler keeps its own instance up to date. */
+        public static Context of(long nowNs, int queueDepth, int idleCpus, int nrCpus) {
+            return of(nowNs, queueDepth, idleCpus, nrCpus, 1);
+        }
+
+        /** Like {@link #of(long, int, int, int)}, for a scheduler with {@code workerThreads}. */
+        public static Context of(long nowNs, int queueDepth, int idleCpus, int nrCpus, int workerThreads) {
+            Context c = new Context();
+            c.update(nowNs, queueDepth, idleCpus, nrCpus, workerThreads);
+            return c;
+        }
+
+        void update(long nowNs, int queueDepth, int idleCpus, int nrCpus, int workerThreads) {
+            this.nowNs = nowNs;
+            this.queueDepth = queueDepth;
+            this.idleCpus = idleCpus;
+            this.nrCpus = Math.max(1, nrCpus);
+            this.workerThreads = Math.max(1, workerThreads);
+        }
+
+        /** {@link UserspaceScheduler#nanoTime()} at the start of the batch. */
+        public long nowNs() { return nowNs; }
+
+        /** Tasks in the current batch, i.e. waiting for a placement decision. */
+        public int queueDepth() { return queueDepth; }
+
+        /** CPUs idle in the BPF idle bitmap at the start of the batch; 0 if unknown. */
+        public int idleCpus() { return idleCpus; }
+
+        public int nrCpus() { return nrCpus; }
+
+        /**
+         * {@link Opts#workerThreads}: tasks are dispatched from this many threads, each owning
+         * the pids {@link UserspaceScheduler#workerForPid} assigns to it.
+         */
+        public int workerThreads() { return workerThreads; }
+    }
+}
@@ -0,0 +1,168 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.userspace;
+
+import me.bechberger.ebpf.bpf.userspace.IdleCpuIndex.Group;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * SMT-aware idle-CPU placement over the same idle bitmap as {@link IdleCpuIndex}: prefers CPUs
+ * whose whole physical core is idle and keeps tasks marked noisy away from busy siblings.
+ *
+ * <p>{@link #pick(MemorySegment, int, boolean)} tries, each time searching the previous CPU
+ * first and then its LLC, NUMA node and the whole machine:
+ * <ol>
+ *   <li>a CPU of a fully idle core;</li>
+ *   <li>an idle CPU with no <em>conflicting</em> busy sibling — for a noisy task any busy
+ *       sibling conflicts, for a quiet task only a sibling running a noisy task does;</li>
+ *   <li>any idle CPU, like {@link IdleCpuIndex#pick(MemorySegment, int)}.</li>
+ * </ol>
+ * Which CPUs run noisy tasks is learned from {@link #noteDispatch(int, boolean)}; a mark only
+ * counts while the CPU is busy in the bitmap, so it expires by itself when the CPU goes idle.
+ *
+ * <p>{@link #idleCores(MemorySegment, CpuSet)} exposes the core-level idle mask — CPUs whose
+ * siblings are all idle too — for policies that want to place by hand. Like
+ * {@link IdleCpuIndex}, lookups read the bitmap racily with plain loads and allocate nothing.
+ * The noisy marks are per-CPU opaque writes, so sharded workers may call {@link #noteDispatch}
+ * and {@link #pick} concurrently. Two workers dispatching to the same CPU at once leave the
+ * mark of either task, and a pick may see a mark one dispatch stale; both only cost placement
+ * quality.
+ */
+public final class SmtPlacement {
+
+    private static final int WHOLE_CORE = 0, NO_CONFLICT = 1, ANY = 2;
+
+    private final CpuTopology topology;
+    private final int nrCpus;
+    private final Group[] cores, llcs, nodes;
+    private final Group all;
+    private final int[][] siblings;
+    private final AtomicIntegerArray noisy;  // 1 = busy with a noisy task, per CPU
+
+    public SmtPlacement(CpuTopology topology) {
+        this.topology = topology;
+        this.nrCpus = topology.nrCpus();
+        this.cores = new Group[topology.nrCores()];
+        for (int i = 0; i < cores.length; i++) cores[i] = Group.of(topology.coreMask(i));
+        this.llcs = new Group[topology.nrDomains()];
+        for (int i = 0; i < llcs.length; i++) llcs[i] = Group.of(topology.cpuMask(i));
+        this.nodes = new Group[topology.nrNodes()];
+        for (int i = 0; i < nodes.length; i++) nodes[i] = Group.of(topology.nodeMask(i));
+        this.all = Group.of(topology.cpus());
+        this.siblings = new int[nrCpus][];
+        for (int cpu = 0; cpu < nrCpus; cpu++) siblings[cpu] = topology.siblingsOf(cpu);
+        this.noisy = new AtomicIntegerArray(nrCpus);
+    }
+
+    public CpuTopology topology() { return topology; }
+
+    /** Record that a task of the given kind was dispatched to {@code cpu}. */
+    public void noteDispatch(int cpu, boolean noisyTask) {
+        if (cpu >= 0 && cpu < nrCpus) noisy.setOpaque(cpu, noisyTask ? 1 : 0);
+    }
+
+    /** Whether {@code cpu} is busy with a task last noted as noisy. */
+    public boolean runsNoisy(MemorySegment idle, int cpu) {
+        return cpu >= 0 && cpu < nrCpus && noisy.getOpaque(cpu) != 0 && !IdleCpuIndex.isIdle(idle, cpu);
+    }
+
+    /** Whether {@code cpu} and all its SMT siblings are idle. */
+    public boolean isCoreIdle(MemorySegment idle, int cpu) {
+        if (cpu < 0 || cpu >= nrCpus) return false;
+        Group core = cores[topology.coreOfCpu(cpu)];
+        for (int i = core.firstWord(); i <= core.lastWord(); i++) {
+            long w = core.words()[i];
+            if ((w & idle.get(ValueLayout.JAVA_LONG, (long) i * 8L)) != w) return false;
+        }
+        return core.firstWord() >= 0;
+    }
+
+    /**
+     * Fill {@code out} with the CPUs of fully idle cores and return it. {@code out} must hold
+     * at least {@link CpuTopology#nrCpus()} ids.
+     */
+    public CpuSet idleCores(MemorySegment idle, CpuSet out) {
+        out.clearAll();
+        if (idle == null) return out;
+        for (Group core : cores) {
+            if (core.firstWord() < 0) continue;
+            boolean whole = true;
+            for (int i = core.firstWord(); i <= core.lastWord() && whole; i++) {
+                long w = core.words()[i];
+                whole = (w & idle.get(ValueLayout.JAVA_LONG, (long) i * 8L)) == w;
+            }
+            if (!whole) continue;
+            for (int i = core.firstWord(); i <= core.lastWord(); i++) {
+                for (long w = core.words()[i]; w != 0; w &= w - 1) {
+                    out.set((i << 6) + Long.numberOfTrailingZeros(w));
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Best idle CPU for a task that last ran on {@code prevCpu}; -1 if none is idle. A
+     * {@code prevCpu} outside the topology searches the whole machine.
+     */
+    public int pick(MemorySegment idle, int prevCpu, boolean noisyTask) {
+        if (idle == null) return -1;
+        for (int mode = WHOLE_CORE; mode <= ANY; mode++) {
+            int cpu = pickAt(idle, prevCpu, noisyTask, mode);
+            if (cpu >= 0) return cpu;
+        }
+        return -1;
+    }
+
+    private int pickAt(MemorySegment idle, int prevCpu, boolean noisyTask, int mode) {
+        if (prevCpu < 0 || prevCpu >= nrCpus) return scan(idle, all, 0, noisyTask, mode);
+        if (matches(idle, prevCpu, noisyTask, mode)) return prevCpu;
+        int cpu = scan(idle, llcs[topology.domainOfCpu(prevCpu)], prevCpu + 1, noisyTask, mode);
+        if (cpu >= 0) return cpu;
+        cpu = scan(idle, nodes[topology.nodeOfCpu(prevCpu)], prevCpu + 1, noisyTask, mode);
+        if (cpu >= 0) return cpu;
+        return scan(idle, all, prevCpu + 1, noisyTask, mode);
+    }
+
+    private boolean matches(MemorySegment idle, int cpu, boolean noisyTask, int mode) {
+        if (!IdleCpuIndex.isIdle(idle, cpu)) return false;
+        return switch (mode) {
+            case WHOLE_CORE -> isCoreIdle(idle, cpu);
+            case NO_CONFLICT -> !conflicts(idle, cpu, noisyTask);
+            default -> true;
+        };
+    }
+
+    private boolean conflicts(MemorySegment idle, int cpu, boolean noisyTask) {
+        for (int s : siblings[cpu]) {
+            if (!IdleCpuIndex.isIdle(idle, s) && (noisyTask || noisy.getOpaque(s) != 0)) return true;
+        }
+        return false;
+    }
+
+    /** First CPU of {@code g} at or after {@code from} (wrapping) that {@link #matches}; -1 if none. */
+    private int scan(MemorySegment idle, Group g, int from, boolean noisyTask, int mode) {
+        if (g.firstWord() < 0) return -1;
+        int start = from >>> 6;
+        if (start < g.firstWord() || start > g.lastWord()) {
+            start = g.firstWord();
+            from = start << 6;
+        }
+        int span = g.lastWord() - g.firstWord() + 1;
+        // Words start..lastWord, then firstWord..start; the start word is visited twice, first
+        // for the bits at or above 'from', at the end for those below.
+        for (int k = 0; k <= span; k++) {
+            int i = g.firstWord() + (start - g.firstWord() + k) % span;
+            long m = g.words()[i] & idle.get(ValueLayout.JAVA_LONG, (long) i * 8L);
+            if (k == 0) m &= -1L << from;
+            else if (k == span) m &= ~(-1L << from);
+            for (; m != 0; m &= m - 1) {
+                int cpu = (i << 6) + Long.numberOfTrailingZeros(m);
+                if (cpu < nrCpus && matches(idle, cpu, noisyTask, mode)) return cpu;
+            }
+        }
+        return -1;
+    }
+}
@@ -3,7 +3,9 @@ package me.bechberger.ebpf.bpf.userspace;
 
 import me.bechberger.ebpf.bpf.QueuedTask;
 
-import java.util.EnumMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
 import java.util.function.ToIntFunction;
@@ -20,23 +22,73 @@ import java.util.function.ToIntFunction;
  *     .build();
  * // in a scheduler: protected int policy(QueuedTask t) { return c.decide(t); }
  * }</pre>
+ *
+ * <p>Classes can also be defined by declarative {@link TaskMatch} rules (first match wins,
+ * checked before the {@code classify} function). A class whose tasks never need Java can be
+ * marked {@linkplain Builder#kernelHandled kernel-handled}: its rules are lowered into BPF
+ * {@code enqueue} via {@link UserspaceScheduler#setKernelClassifier}, and matching tasks go
+ * straight to a DSQ without the ring round trip.
+ * <pre>{@code
+ * var c = TaskClassifier.<Tier>builder()
+ *     .rule(Tier.BATCH, TaskMatch.any().commPrefix("worker-").weightBetween(1, 100))
+ *     .kernelHandled(Tier.BATCH, KernelPlacement.PREV_CPU)
+ *     .otherwise(Tier.INTERACTIVE)
+ *     .policy(Tier.INTERACTIVE, t -> ANY_CPU)
+ *     .build();
+ * }</pre>
  */
 public final class TaskClassifier<C extends Enum<C>> {
 
+    /** Max rules {@link #kernelRules()} may lower; matches {@code UserspaceSchedulerBase.MAX_CLASS_RULES}. */
+    public static final int MAX_KERNEL_RULES = 16;
+
+    /** One declarative rule: tasks matching {@code match} belong to {@code cls}. */
+    public record Rule<C extends Enum<C>>(C cls, TaskMatch match) {}
+
+    /**
+     * A rule as lowered into BPF {@code enqueue}, in evaluation order.
+     *
+     * @param sliceNs slice for the kernel-side insert; 0 = framework default
+     */
+    public record KernelRule(Enum<?> cls, TaskMatch match, KernelPlacement placement, long sliceNs) {}
+
+    private record KernelSpec(KernelPlacement placement, long sliceNs) {}
+
     private final Function<QueuedTask, C> classifier;
     private final Map<C, ToIntFunction<QueuedTask>> policies;
+    private final List<Rule<C>> rules;
+    private final List<KernelRule> kernelRules;
 
-    private TaskClassifier(Function<QueuedTask, C> classifier, Map<C, ToIntFunction<QueuedTask>> policies) {
+    private TaskClassifier(Function<QueuedTask, C> classifier, Map<C, ToIntFunction<QueuedTask>> policies,
+                           List<Rule<C>> rules, List<KernelRule> kernelRules) {
         this.classifier = classifier;
         this.policies = policies;
+        this.rules = rules;
+        this.kernelRules = kernelRules;
     }
 
-    /** The class this task falls into. */
-    public C classOf(QueuedTask t) { return classifier.apply(t); }
+    /** The class this task falls into: the first matching rule, else the {@code classify} function. */
+    public C classOf(QueuedTask t) {
+        for (int i = 0; i < rules.size(); i++) {
+            Rule<C> r = rules.get(i);
+            if (r.match().test(t)) return r.cls();
+        }
+        return classifier.apply(t);
+    }
+
+    /** Declarative rules in evaluation order. */
+    public List<Rule<C>> rules() { return rules; }
+
+    /**
+     * The rule table to upload to BPF: every rule up to the last kernel-handled one, with
+     * non-kernel-handled classes lowered to {@link KernelPlacement#USERSPACE} so they keep
+     * shadowing later rules. Empty when no class is kernel-handled.
+     */
+    public List<KernelRule> kernelRules() { return kernelRules; }
 
     /** Classify {@code t} and apply its class's placement policy; returns the target cpu (or ANY_CPU). */
     public int decide(QueuedTask t) {
-        C c = classifier.apply(t);
+        C c = classOf(t);
         ToIntFunction<QueuedTask> p = policies.get(c);
         if (p == null) throw new IllegalStateException("no policy registered for class " + c);
         return p.applyAsInt(t);
@@ -46,18 +98,66 @@ public final class TaskClassifier<C extends Enum<C>> {
 
     public static final class Builder<C extends Enum<C>> {
         private Function<QueuedTask, C> classifier;
-        private final Map<C, ToIntFunction<QueuedTask>> policies = new java.util.HashMap<>();
+        private final Map<C, ToIntFunction<QueuedTask>> policies = new HashMap<>();
+        private final List<Rule<C>> rules = new ArrayList<>();
+        private final Map<C, KernelSpec> kernel = new HashMap<>();
 
         public Builder<C> classify(Function<QueuedTask, C> fn) { this.classifier = fn; return this; }
 
+        /** Class for tasks no rule matches; shorthand for {@code classify(t -> cls)}. */
+        public Builder<C> otherwise(C cls) { this.classifier = t -> cls; return this; }
+
+        /** Append a declarative rule; rules are checked in order before {@code classify}. */
+        public Builder<C> rule(C cls, TaskMatch match) {
+            rules.add(new Rule<>(cls, match));
+            return this;
+        }
+
+        /**
+         * Handle tasks matched by {@code cls}'s rules in BPF {@code enqueue} with
+         * {@code placement}; they never reach Java. Only rule-matched tasks qualify — tasks the
+         * {@code classify} function assigns to {@code cls} still round-trip.
+         */
+        public Builder<C> kernelHandled(C cls, KernelPlacement placement) {
+            return kernelHandled(cls, placement, 0L);
+        }
+
+        public Builder<C> kernelHandled(C cls, KernelPlacement placement, long sliceNs) {
+            if (placement == KernelPlacement.USERSPACE) {
+                throw new IllegalArgumentException("USERSPACE is not a kernel placement");
+            }
+            if (sliceNs < 0) throw new IllegalArgumentException("negative slice: " + sliceNs);
+            kernel.put(cls, new KernelSpec(placement, sliceNs));
+            return this;
+        }
+
         public Builder<C> policy(C cls, ToIntFunction<QueuedTask> placement) {
             policies.put(cls, placement);
             return this;
         }
 
         public TaskClassifier<C> build() {
-            if (classifier == null) throw new IllegalStateException("classify(...) is required");
-            return new TaskClassifier<>(classifier, Map.copyOf(policies));
+            if (classifier == null) throw new IllegalStateException("classify(...) or otherwise(...) is required");
+            int last = -1;
+            for (int i = 0; i < rules.size(); i++) if (kernel.containsKey(rules.get(i).cls())) last = i;
+            for (C cls : kernel.keySet()) {
+                if (rules.stream().noneMatch(r -> r.cls() == cls)) {
+                    throw new IllegalStateException("kernel-handled class " + cls + " has no rule(...)");
+                }
+            }
+            if (last + 1 > MAX_KERNEL_RULES) {
+                throw new IllegalStateException("kernel rule table needs " + (last + 1)
+                        + " entries; at most " + MAX_KERNEL_RULES + " are supported");
+            }
+            List<KernelRule> lowered = new ArrayList<>(last + 1);
+            for (int i = 0; i <= last; i++) {
+                Rule<C> r = rules.get(i);
+                KernelSpec k = kernel.get(r.cls());
+                lowered.add(k == null
+                        ? new KernelRule(r.cls(), r.match(), KernelPlacement.USERSPACE, 0L)
+                        : new KernelRule(r.cls(), r.match(), k.placement(), k.sliceNs()));
+            }
+            return new TaskClassifier<>(classifier, Map.copyOf(policies), List.copyOf(rules), List.copyOf(lowered));
         }
     }
 }
@@ -0,0 +1,90 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.userspace;
+
+import me.bechberger.ebpf.bpf.QueuedTask;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.Predicate;
+
+/**
+ * Declarative task predicate for {@link TaskClassifier.Builder#rule}: a conjunction of simple
+ * conditions on the fields of the kernel→user record. Because it is data rather than a lambda, the
+ * same rule can be evaluated in Java ({@link #test}) and, for classes marked
+ * {@linkplain TaskClassifier.Builder#kernelHandled kernel-handled}, uploaded to
+ * {@code UserspaceSchedulerBase}'s {@code enqueue}, which evaluates it on the record it just
+ * filled — so both sides see exactly the same fields.
+ *
+ * <pre>{@code
+ * TaskMatch.any().commPrefix("pool-").weightBetween(1, 100)
+ * TaskMatch.any().cpusAllowedBetween(1, 1)
+ * TaskMatch.any().extEquals(0, cgroupId)     // cgroup id written into the tail by fillExtension
+ * }</pre>
+ *
+ * @param commPrefix       required {@code comm} prefix, at most 15 bytes; "" = any
+ * @param minWeight        inclusive lower bound on {@code weight}
+ * @param maxWeight        inclusive upper bound on {@code weight}
+ * @param minCpusAllowed   inclusive lower bound on {@code nrCpusAllowed}
+ * @param maxCpusAllowed   inclusive upper bound on {@code nrCpusAllowed}
+ * @param extOffset        8-byte-aligned offset of a {@code long} in the extension tail, or -1
+ * @param extMask          bits of that {@code long} to compare
+ * @param extValue         required value of the masked bits
+ */
+public record TaskMatch(String commPrefix, long minWeight, long maxWeight,
+                        long minCpusAllowed, long maxCpusAllowed,
+                        int extOffset, long extMask, long extValue) implements Predicate<QueuedTask> {
+
+    private static final TaskMatch ANY = new TaskMatch("", 0, Long.MAX_VALUE, 0, Long.MAX_VALUE, -1, 0, 0);
+
+    public TaskMatch {
+        if (commPrefix.getBytes(StandardCharsets.UTF_8).length > 15) {
+            throw new IllegalArgumentException("comm prefix longer than 15 bytes: " + commPrefix);
+        }
+        if (extOffset != -1 && (extOffset < 0 || extOffset > QueuedTask.EXT_CAP - 8 || (extOffset & 7) != 0)) {
+            throw new IllegalArgumentException("ext offset must be 8-aligned in [0, "
+                    + (QueuedTask.EXT_CAP - 8) + "]: " + extOffset);
+        }
+    }
+
+    /** Matches every task; narrow it with the {@code with}-style methods below. */
+    public static TaskMatch any() { return ANY; }
+
+    public TaskMatch commPrefix(String prefix) {
+        return new TaskMatch(prefix, minWeight, maxWeight, minCpusAllowed, maxCpusAllowed, extOffset, extMask, extValue);
+    }
+
+    public TaskMatch weightBetween(long min, long max) {
+        return new TaskMatch(commPrefix, min, max, minCpusAllowed, maxCpusAllowed, extOffset, extMask, extValue);
+    }
+
+    public TaskMatch cpusAllowedBetween(long min, long max) {
+        return new TaskMatch(commPrefix, minWeight, maxWeight, min, max, extOffset, extMask, extValue);
+    }
+
+    /** The {@code long} at {@code offset} in the extension tail, masked by {@code mask}, equals {@code value}. */
+    public TaskMatch extMasked(int offset, long mask, long value) {
+        return new TaskMatch(commPrefix, minWeight, maxWeight, minCpusAllowed, maxCpusAllowed, offset, mask, value);
+    }
+
+    public TaskMatch extEquals(int offset, long value) {
+        return extMasked(offset, -1L, value);
+    }
+
+    /** {@code comm} prefix as the NUL-free bytes compared on both sides. */
+    byte[] commPrefixBytes() {
+        return commPrefix.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean test(QueuedTask t) {
+        if (Long.compareUnsigned(t.weight, minWeight) < 0 || Long.compareUnsigned(t.weight, maxWeight) > 0) {
+            return false;
+        }
+        if (Long.compareUnsigned(t.nrCpusAllowed, minCpusAllowed) < 0
+                || Long.compareUnsigned(t.nrCpusAllowed, maxCpusAllowed) > 0) {
+            return false;
+        }
+        byte[] p = commPrefixBytes();
+        for (int i = 0; i < p.length; i++) if (t.comm[i] != p[i]) return false;
+        return extOffset < 0 || (t.extLong(extOffset) & extMask) == extValue;
+    }
+}
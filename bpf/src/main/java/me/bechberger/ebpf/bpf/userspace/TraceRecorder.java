@@ -0,0 +1,245 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.userspace;
+
+import me.bechberger.ebpf.bpf.QueuedTask;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/**
+ * Records every drained {@link QueuedTask} batch into a compact, memory-mapped binary trace
+ * file, so production scheduler traffic can be replayed offline with {@link TraceReplayer}.
+ * Enabled in the run loop via {@link Opts#traceRecordPath}.
+ *
+ * <p>Records are stored raw, exactly as BPF wrote them into the {@code queued} ring: the 88-byte
+ * rustland-compatible prefix plus the {@link QueuedTask#EXT_CAP}-byte extension tail. Layout
+ * (little-endian, like the ring records themselves):
+ * <pre>
+ * header (32 B):  long magic | int version | int recordSize | int nrCpus | int pad | long reserved
+ * batch  (16 B):  long tsNs  | int count   | int pad
+ *                 count * recordSize raw queued_task_ctx records
+ * </pre>
+ * The file is mapped in growing windows; {@link #close()} truncates it to the written length.
+ * Empty batches are not written.
+ *
+ * <p>Recording never fails the run loop: once the file would exceed its size cap, or growing the
+ * mapping fails, the recorder logs a warning, closes the open batch with the records it already
+ * holds and ignores everything after ({@link #recording()} turns false). The file stays a valid,
+ * shorter trace.
+ *
+ * <p>Not thread-safe: owned by the run-loop thread, which is the only thread that drains.
+ */
+public final class TraceRecorder implements AutoCloseable {
+
+    /** "HEBPFTRC" as a little-endian long. */
+    static final long MAGIC = 0x4352_5446_5042_4548L;
+    static final int VERSION = 1;
+    /** Size of one stored record: the 88-byte prefix plus the extension tail. */
+    static final int RECORD_SIZE = (int) QueuedTask.QT_SIZEOF + QueuedTask.EXT_CAP;
+    static final int HEADER_SIZE = 32;
+    static final int BATCH_HEADER_SIZE = 16;
+
+    private static final long INITIAL_WINDOW = 16L * 1024 * 1024;
+    private static final Logger LOG = Logger.getLogger(TraceRecorder.class.getName());
+
+    private final Path file;
+    private final FileChannel channel;
+    private final long maxBytes;
+    private Arena arena;
+    private MemorySegment map;
+    private long pos;
+    private long batchStart = -1;   // offset of the open batch header, -1 when none
+    private int batchCount;
+    private long batches;
+    private long records;
+    private String stopReason;      // non-null once recording stopped
+
+    private TraceRecorder(Path file, FileChannel channel, int nrCpus, long maxBytes, long initialWindow)
+            throws IOException {
+        this.file = file;
+        this.channel = channel;
+        this.maxBytes = maxBytes;
+        remap(Math.min(initialWindow, maxBytes));
+        map.set(ValueLayout.JAVA_LONG, 0, MAGIC);
+        map.set(ValueLayout.JAVA_INT, 8, VERSION);
+        map.set(ValueLayout.JAVA_INT, 12, RECORD_SIZE);
+        map.set(ValueLayout.JAVA_INT, 16, nrCpus);
+        map.set(ValueLayout.JAVA_INT, 20, 0);
+        map.set(ValueLayout.JAVA_LONG, 24, 0L);
+        pos = HEADER_SIZE;
+    }
+
+    /**
+     * Create (or truncate) {@code file} and start a trace for a machine with {@code nrCpus}
+     * CPUs. The CPU count is stored so a replay validates dispatch targets against the recorded
+     * machine rather than the replaying host.
+     */
+    public static TraceRecorder create(Path file, int nrCpus) throws IOException {
+        return create(file, nrCpus, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #create(Path, int)}, but stop recording once the file would grow beyond
+     * {@code maxBytes}.
+     */
+    public static TraceRecorder create(Path file, int nrCpus, long maxBytes) throws IOException {
+        return create(file, nrCpus, maxBytes, INITIAL_WINDOW);
+    }
+
+    static TraceRecorder create(Path file, int nrCpus, long maxBytes, long initialWindow) throws IOException {
+        if (maxBytes < HEADER_SIZE) {
+            throw new IllegalArgumentException("maxBytes " + maxBytes + " < header size " + HEADER_SIZE);
+        }
+        FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            return new TraceRecorder(file, ch, nrCpus, maxBytes, initialWindow);
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    /** Open a batch stamped with {@code tsNs}. A batch left open is closed first. */
+    public void beginBatch(long tsNs) {
+        if (batchStart >= 0) endBatch();
+        if (!ensure(BATCH_HEADER_SIZE)) return;
+        batchStart = pos;
+        batchCount = 0;
+        map.set(ValueLayout.JAVA_LONG, pos, tsNs);
+        map.set(ValueLayout.JAVA_INT, pos + 8, 0);
+        map.set(ValueLayout.JAVA_INT, pos + 12, 0);
+        pos += BATCH_HEADER_SIZE;
+    }
+
+    /**
+     * Append one raw ring record to the open batch. Shorter records (no extension tail) are
+     * zero-padded to {@link #RECORD_SIZE}.
+     */
+    public void append(MemorySegment record) {
+        if (stopReason != null) return;
+        requireBatch();
+        if (!ensure(RECORD_SIZE)) return;
+        long n = Math.min(record.byteSize(), RECORD_SIZE);
+        MemorySegment.copy(record, 0, map, pos, n);
+        if (n < RECORD_SIZE) map.asSlice(pos + n, RECORD_SIZE - n).fill((byte) 0);
+        pos += RECORD_SIZE;
+        batchCount++;
+    }
+
+    /** Append a task that did not come from the ring (offline feeds, test seams). */
+    public void append(QueuedTask t) {
+        if (stopReason != null) return;
+        requireBatch();
+        if (!ensure(RECORD_SIZE)) return;
+        MemorySegment slot = map.asSlice(pos, RECORD_SIZE);
+        slot.fill((byte) 0);
+        QueuedTask.writeToSegment(t, slot);
+        pos += RECORD_SIZE;
+        batchCount++;
+    }
+
+    /** Close the open batch; an empty batch is discarded. No-op if no batch is open. */
+    public void endBatch() {
+        if (batchStart < 0) return;
+        if (batchCount == 0) {
+            pos = batchStart;
+        } else {
+            map.set(ValueLayout.JAVA_INT, batchStart + 8, batchCount);
+            batches++;
+            records += batchCount;
+        }
+        batchStart = -1;
+    }
+
+    /** Number of non-empty batches written so far. */
+    public long batches() { return batches; }
+
+    /** Number of task records written so far. */
+    public long records() { return records; }
+
+    /** Bytes written so far, including the file header. */
+    public long bytesWritten() { return pos; }
+
+    /** False once recording stopped at the size cap or on an I/O error. */
+    public boolean recording() { return stopReason == null; }
+
+    /** Why recording stopped, or null while it is still recording. */
+    public String stopReason() { return stopReason; }
+
+    @Override
+    public void close() throws IOException {
+        endBatch();
+        try {
+            map.force();
+        } finally {
+            arena.close();
+            try {
+                channel.truncate(pos);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private void requireBatch() {
+        if (batchStart < 0) throw new IllegalStateException("append outside beginBatch/endBatch");
+    }
+
+    /** Make room for {@code bytes} more; false (and recording stopped) if that is not possible. */
+    private boolean ensure(long bytes) {
+        if (stopReason != null) return false;
+        if (pos + bytes <= map.byteSize()) return true;
+        if (pos + bytes > maxBytes) {
+            stop("size cap of " + maxBytes + " bytes reached");
+            return false;
+        }
+        long size = map.byteSize();
+        while (size < pos + bytes) size *= 2;
+        size = Math.min(size, maxBytes);
+        try {
+            remap(size);
+            return true;
+        } catch (IOException | UncheckedIOException e) {
+            stop("growing the mapping to " + size + " bytes failed: " + e);
+            return false;
+        }
+    }
+
+    private void stop(String reason) {
+        endBatch();
+        stopReason = reason;
+        LOG.warning("TraceRecorder: stopped recording to " + file + " after " + records
+                + " tasks: " + reason);
+    }
+
+    /** Map {@code size} bytes; on failure the current mapping stays usable. */
+    private void remap(long size) throws IOException {
+        Arena next = Arena.ofShared();
+        MemorySegment grown;
+        try {
+            grown = channel.map(FileChannel.MapMode.READ_WRITE, 0, size, next);
+        } catch (IOException | RuntimeException e) {
+            next.close();
+            throw e;
+        }
+        if (arena != null) {
+            map.force();
+            arena.close();
+        }
+        arena = next;
+        map = grown;
+    }
+
+    /** Close the file underneath the mapping, so the next growth fails. Test-only. */
+    void closeChannelForTest() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,246 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.userspace;
+
+import me.bechberger.ebpf.bpf.QueuedTask;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Streams a trace written by {@link TraceRecorder} through any {@link UserspaceScheduler}
+ * subclass, offline — no BPF file descriptor, no root. Uses the same offline hooks as
+ * {@link SchedulerHarness}: each recorded batch is decoded into a reused flyweight pool (exactly
+ * like the production drain) and handed to {@code schedule}; dispatches are captured.
+ *
+ * <pre>{@code
+ * try (var replay = TraceReplayer.open(Path.of("prod.trace"))) {
+ *     var report = replay.replay(new MyScheduler(), TraceReplayer.Pace.FULL_SPEED);
+ *     System.out.println(report.cpuNsPerTask() + " ns/task, "
+ *             + report.allocatedBytesPerTask() + " B/task");
+ *     var diff = replay.diff(new MyScheduler(), new MyTunedScheduler());
+ * }
+ * }</pre>
+ *
+ * <p>The scheduler's clock ({@link UserspaceScheduler#nanoTime()}) follows the recorded batch
+ * timestamps in both pacing modes, so time-based policies see the recorded timeline. The
+ * scheduler's CPU count is set to the recorded machine's.
+ */
+public final class TraceReplayer implements AutoCloseable {
+
+    /** Replay pacing. */
+    public enum Pace {
+        /** Feed batches back-to-back; measures policy cost, not latency. */
+        FULL_SPEED,
+        /** Sleep between batches to reproduce the recorded inter-batch gaps. */
+        RECORDED
+    }
+
+    /**
+     * Result of one replay.
+     *
+     * @param batches        recorded batches fed
+     * @param tasks          recorded tasks fed
+     * @param dispatches     dispatch decisions the scheduler made
+     * @param policyCpuNs    thread CPU time spent inside {@code schedule}, summed over batches
+     * @param allocatedBytes bytes allocated by the replay thread inside {@code schedule}
+     *                       (-1 if the JVM does not support allocation accounting)
+     * @param wallNs         wall-clock duration of the whole replay
+     */
+    public record ReplayReport(long batches, long tasks, long dispatches,
+                               long policyCpuNs, long allocatedBytes, long wallNs) {
+        public double cpuNsPerTask() { return tasks == 0 ? 0 : (double) policyCpuNs / tasks; }
+        public double allocatedBytesPerTask() {
+            return tasks == 0 || allocatedBytes < 0 ? 0 : (double) allocatedBytes / tasks;
+        }
+        /** Allocation rate while inside {@code schedule}, in bytes per CPU-second. */
+        public double allocationRateBytesPerSec() {
+            return policyCpuNs == 0 || allocatedBytes < 0 ? 0 : allocatedBytes * 1e9 / policyCpuNs;
+        }
+    }
+
+    /**
+     * Per-task comparison of two schedulers over the same trace. Tasks are matched by
+     * (batch, pid); a pid that appears twice in a batch is matched by its last dispatch.
+     *
+     * @param compared  tasks dispatched by both schedulers
+     * @param sameCpu   of those, dispatched to the same target CPU
+     * @param onlyA     tasks only scheduler A dispatched
+     * @param onlyB     tasks only scheduler B dispatched
+     */
+    public record DecisionDiff(long compared, long sameCpu, long onlyA, long onlyB) {
+        public long differentCpu() { return compared - sameCpu; }
+    }
+
+    private final FileChannel channel;
+    private final Arena arena;
+    private final MemorySegment map;
+    private final int nrCpus;
+    private final long batches;
+    private final long tasks;
+
+    private TraceReplayer(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.arena = Arena.ofShared();
+        this.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+        if (map.byteSize() < TraceRecorder.HEADER_SIZE
+                || map.get(ValueLayout.JAVA_LONG, 0) != TraceRecorder.MAGIC) {
+            throw new IOException("not a scheduler trace file");
+        }
+        int version = map.get(ValueLayout.JAVA_INT, 8);
+        int recordSize = map.get(ValueLayout.JAVA_INT, 12);
+        if (version != TraceRecorder.VERSION || recordSize != TraceRecorder.RECORD_SIZE) {
+            throw new IOException("unsupported trace: version " + version + ", record size " + recordSize);
+        }
+        this.nrCpus = map.get(ValueLayout.JAVA_INT, 16);
+        long b = 0, t = 0;
+        long pos = TraceRecorder.HEADER_SIZE;
+        while (pos + TraceRecorder.BATCH_HEADER_SIZE <= map.byteSize()) {
+            int count = map.get(ValueLayout.JAVA_INT, pos + 8);
+            long next = pos + TraceRecorder.BATCH_HEADER_SIZE + (long) count * TraceRecorder.RECORD_SIZE;
+            if (count <= 0 || next > map.byteSize()) {
+                throw new IOException("truncated or corrupt batch at offset " + pos);
+            }
+            b++;
+            t += count;
+            pos = next;
+        }
+        this.batches = b;
+        this.tasks = t;
+    }
+
+    /** Map {@code file} read-only and validate its header and batch framing. */
+    public static TraceReplayer open(Path file) throws IOException {
+        FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new TraceReplayer(ch);
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    public int nrCpus() { return nrCpus; }
+    public long batches() { return batches; }
+    public long tasks() { return tasks; }
+
+    /** Replay the whole trace through {@code sched}. */
+    public ReplayReport replay(UserspaceScheduler sched, Pace pace) {
+        return run(sched, pace, null);
+    }
+
+    /**
+     * Replay the trace through both schedulers at full speed and compare their per-task
+     * placement decisions.
+     */
+    public DecisionDiff diff(UserspaceScheduler a, UserspaceScheduler b) {
+        Decisions da = new Decisions();
+        Decisions db = new Decisions();
+        run(a, Pace.FULL_SPEED, da);
+        run(b, Pace.FULL_SPEED, db);
+        long compared = 0, same = 0, onlyA = 0, onlyB = 0;
+        for (int batch = 0; batch < batches; batch++) {
+            Map<Integer, Integer> ma = da.batch(batch);
+            Map<Integer, Integer> mb = db.batch(batch);
+            for (var e : ma.entrySet()) {
+                Integer cpuB = mb.get(e.getKey());
+                if (cpuB == null) { onlyA++; continue; }
+                compared++;
+                if (cpuB.equals(e.getValue())) same++;
+            }
+            for (Integer pid : mb.keySet()) if (!ma.containsKey(pid)) onlyB++;
+        }
+        return new DecisionDiff(compared, same, onlyA, onlyB);
+    }
+
+    private ReplayReport run(UserspaceScheduler sched, Pace pace, Decisions decisions) {
+        var mx = ManagementFactory.getThreadMXBean();
+        var allocMx = mx instanceof com.sun.management.ThreadMXBean s && s.isThreadAllocatedMemorySupported()
+                ? s : null;
+
+        long[] nowNs = new long[1];
+        var prevClock = sched.nanoClock;
+        var prevSink = sched.offlineDispatchSink;
+        int prevCpus = sched.nrCpus;
+        long[] dispatches = new long[1];
+        int[] currentBatch = new int[1];
+        sched.nanoClock = () -> nowNs[0];
+        sched.nrCpus = nrCpus > 0 ? nrCpus : prevCpus;
+        sched.offlineDispatchSink = (cpu, pid, slice) -> {
+            dispatches[0]++;
+            if (decisions != null) decisions.record(currentBatch[0], pid, cpu);
+        };
+
+        QueuedTask[] pool = new QueuedTask[0];
+        long cpuNs = 0, alloc = allocMx != null ? 0 : -1;
+        long wallStart = System.nanoTime();
+        long firstTs = Long.MIN_VALUE;
+        try {
+            long pos = TraceRecorder.HEADER_SIZE;
+            for (int batch = 0; batch < batches; batch++) {
+                long tsNs = map.get(ValueLayout.JAVA_LONG, pos);
+                int count = map.get(ValueLayout.JAVA_INT, pos + 8);
+                pos += TraceRecorder.BATCH_HEADER_SIZE;
+                if (pool.length < count) {
+                    int old = pool.length;
+                    pool = Arrays.copyOf(pool, Math.max(count, old * 2));
+                    for (int i = old; i < pool.length; i++) pool[i] = new QueuedTask();
+                }
+                for (int i = 0; i < count; i++) {
+                    QueuedTask.fillFromSegment(map.asSlice(pos, TraceRecorder.RECORD_SIZE), pool[i]);
+                    pos += TraceRecorder.RECORD_SIZE;
+                }
+                if (pace == Pace.RECORDED) {
+                    if (firstTs == Long.MIN_VALUE) firstTs = tsNs;
+                    long dueNs = wallStart + (tsNs - firstTs);
+                    long waitNs;
+                    while ((waitNs = dueNs - System.nanoTime()) > 0) LockSupport.parkNanos(waitNs);
+                }
+                nowNs[0] = tsNs;
+                currentBatch[0] = batch;
+
+                long allocBefore = allocMx != null ? allocMx.getCurrentThreadAllocatedBytes() : 0;
+                long cpuBefore = mx.getCurrentThreadCpuTime();
+                sched.runBatchOffline(pool, count);
+                cpuNs += mx.getCurrentThreadCpuTime() - cpuBefore;
+                if (allocMx != null) alloc += allocMx.getCurrentThreadAllocatedBytes() - allocBefore;
+            }
+        } finally {
+            sched.nanoClock = prevClock;
+            sched.offlineDispatchSink = prevSink;
+            sched.nrCpus = prevCpus;
+        }
+        return new ReplayReport(batches, tasks, dispatches[0], cpuNs, alloc, System.nanoTime() - wallStart);
+    }
+
+    /** Per-batch pid → target CPU, for {@link #diff}. */
+    private static final class Decisions {
+        private final Map<Integer, Map<Integer, Integer>> byBatch = new HashMap<>();
+
+        void record(int batch, int pid, int cpu) {
+            byBatch.computeIfAbsent(batch, k -> new HashMap<>()).put(pid, cpu);
+        }
+
+        Map<Integer, Integer> batch(int batch) {
+            return byBatch.getOrDefault(batch, Map.of());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            arena.close();
+        } finally {
+            channel.close();
+        }
+    }
+}
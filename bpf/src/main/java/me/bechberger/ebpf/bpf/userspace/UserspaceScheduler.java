@@ -4,6 +4,7 @@ package me.bechberger.ebpf.bpf.userspace;
 import me.bechberger.ebpf.bpf.BPFProgram;
 import me.bechberger.ebpf.bpf.QueuedTask;
 import me.bechberger.ebpf.bpf.UserspaceSchedulerBase;
+import me.bechberger.ebpf.bpf.UserspaceSchedulerBase.Stats;
 import me.bechberger.ebpf.bpf.map.BPFHistogram;
 import me.bechberger.ebpf.bpf.map.SegmentCallback;
 import me.bechberger.ebpf.bpf.userspace.jfr.BatchEvent;
@@ -44,13 +45,22 @@ public abstract class UserspaceScheduler {
     private static final long BYTES_PER_MIB = 1024L * 1024L;
     private static final long TICK_PERIOD_NS = 1_000_000_000L;
 
+    /**
+     * Master switch for the scheduler's JFR events, read once at class init. Start the JVM with
+     * {@code -Dhellobpf.userspace.jfr=false} and the JIT folds every event site on the drain and
+     * dispatch paths away — zero cost, not even an {@code isEnabled()} check.
+     */
+    static final boolean JFR = !"false".equals(System.getProperty("hellobpf.userspace.jfr"));
+
     private final AtomicBoolean exitRequested = new AtomicBoolean(false);
     private final AtomicBoolean hasExited     = new AtomicBoolean(false);
     /** Set by {@link #runLoop} just before it returns so {@link #runUntilExit} can log why. */
     private volatile ExitCause exitCause = ExitCause.NOT_EXITED;
-    private Opts opts = Opts.defaults();
+    /** Package-private so offline drivers ({@link SchedulerHarness}, the simulator) can set it. */
+    Opts opts = Opts.defaults();
     private DecisionTrace decisionTrace = new DecisionTrace(0);   // disabled until runUntilExit
     private TaskClassifier<?> classMetricsClassifier;             // optional; set via setClassMetrics
+    private TaskClassifier<?> kernelClassifier;                   // optional; set via setKernelClassifier
     private final java.util.Map<Enum<?>, Log2Histogram> perClassHist = new java.util.concurrent.ConcurrentHashMap<>();
 
     /** Why {@link #runLoop} returned. Used by the exit diagnostic in {@link #runUntilExit}. */
@@ -65,28 +75,53 @@ public abstract class UserspaceScheduler {
     private long sRingDrained;     // tasks successfully consumed from kernel→user ringbuf
     private long sDispatched;
     private long sDispatchFailed;
+
+    // Per-batch BatchEvent summary, accumulated by dispatchInternal only while the event is
+    // enabled. Sharded workers each fill their own JfrBatch, merged by commitJfrBatch after
+    // the workers joined; dispatches from the run loop thread go to jfrMain.
+    private boolean jfrBatchActive;
+    private final JfrBatch jfrMain = new JfrBatch();
+    private JfrBatch[] jfrWorkers = new JfrBatch[0];
+    private final ThreadLocal<JfrBatch> jfrWorkerBatch = new ThreadLocal<>();
+
+    /** Dispatch outcomes of one thread in the current batch. */
+    private static final class JfrBatch {
+        int dispatched;
+        int ringFull;
+        int rejected;
+        int anyCpu;
+        int sampled;
+        CpuSet cpus;
+        /** Dispatches left until the next sampled DispatchEvent; see {@link Opts#jfrDispatchSampling}. */
+        int sampleCountdown;
+
+        void reset(int nrCpus) {
+            dispatched = ringFull = rejected = anyCpu = sampled = 0;
+            if (cpus == null || cpus.capacity() < nrCpus) cpus = new CpuSet(nrCpus);
+            else cpus.clearAll();
+        }
+    }
     private volatile long sControlSubmitted;    // successful submitControl() returns (producer side)
     private volatile long sControlSubmitFailed; // submitControl() returns != 0 (ring full / no handle)
 
-    // Cached BPF-side counters, populated by cleanupBpf() before close so that
-    // stats() returns meaningful values after runUntilExit() has returned.
-    private long cachedRingEnqueued;
-    private long cachedRingDropped;
-    private long cachedRingCanceled;
-    private long cachedStallFallbacks;
-    private long cachedHeartbeatKicks;
-    private long cachedSignalsDropped;
-    private long cachedSignalsDelivered;
-    private long cachedPreemptsIssued;
-    private long cachedKicksIssued;
-    private long cachedPreemptUnresolved;
+    // Latest snapshot of the BPF-side counters, summed from the mmap'd per-CPU stats rows. Taken a
+    // last time by cleanupBpf() before close so that stats() returns meaningful values after
+    // runUntilExit().
+    private volatile KernelStats kernelStats = new KernelStats().snapshot();
 
     /** Task pool — package-private so test subclasses can seed fake tasks via {@link #drainRaw()}. */
     QueuedTask[] taskPool;
 
     // ── Offline harness support (package-private; no effect in production) ──────
     java.util.List<QueuedTask> offlineFeed;                                    // set by harness
-    java.util.function.Consumer<int[]> offlineDispatchSink;                    // {targetCpu, pid} sink
+    OfflineDispatchSink offlineDispatchSink;                                   // (targetCpu, pid, sliceNs) sink
+    java.lang.foreign.MemorySegment offlineIdleMask;                           // idle bitmap stand-in; null = none
+
+    /** Receives offline dispatch decisions; primitive so replay allocation stats stay clean. */
+    @FunctionalInterface
+    interface OfflineDispatchSink {
+        void accept(int targetCpu, int pid, long sliceNs);
+    }
 
     /**
      * Monotonic nanosecond clock. Defaults to {@link System#nanoTime()} in production;
@@ -111,8 +146,14 @@ public abstract class UserspaceScheduler {
         int n = offlineFeed.size();
         if (taskPool == null || taskPool.length < n) taskPool = new QueuedTask[Math.max(n, 1)];
         for (int i = 0; i < n; i++) taskPool[i] = offlineFeed.get(i);
+        runBatchOffline(taskPool, n);
+    }
+
+    /** Package-private: run one batch from a caller-owned flyweight pool (trace replay). */
+    void runBatchOffline(QueuedTask[] pool, int n) {
         batchCtx.count = n;
-        schedule(taskPool, n);
+        refreshSliceContext(n);
+        schedule(pool, n);
     }
 
     /** Worker pool for multithreaded ({@code opts.workerThreads > 1}) sharded dispatch; null when single-threaded. */
@@ -137,14 +178,24 @@ public abstract class UserspaceScheduler {
      */
     int nrCpus = Runtime.getRuntime().availableProcessors();
 
+    /** Topology-aware idle lookup for {@link #pickIdleCpu(int)}; null = round-robin only. */
+    IdleCpuIndex idleIndex;
+
+    /** SMT-aware placement for {@code ANY_CPU}, set with {@link Opts#smtPlacement}; else null. */
+    SmtPlacement smtPlacement;
+
     /** Timestamp of the last /proc/self/task rescan (nanoseconds, from System.nanoTime()). */
     private long lastRescanNs;
 
+    /** Traffic recorder; non-null only while running with {@link Opts#traceRecordPath} set. */
+    private TraceRecorder traceRecorder;
+
     // ── hoisted drain callback (avoids lambda allocation on hot path) ─────────
     private final SegmentCallback drainCallback = (seg, size, ctx) -> {
         BatchCtx bc = (BatchCtx) ctx;
         if (bc.count >= opts.batchSize) return 1; // stop — budget exhausted
         QueuedTask.fillFromSegment(seg, taskPool[bc.count++]);
+        if (traceRecorder != null) traceRecorder.append(seg);
         sRingDrained++;
         return 0;
     };
@@ -234,10 +285,17 @@ public abstract class UserspaceScheduler {
     public final void runUntilExit(Opts opts) {
         this.opts = opts;
         this.decisionTrace = new DecisionTrace(opts.decisionTraceCapacity);
-        loadAndAttachBpf();
-        // loadAndAttachBpf has already seeded kernel-thread PIDs and done the
-        // initial /proc/self/task rescan; the next periodic rescan happens on
-        // schedule (opts.frameworkPidRescan after the one done in load).
+        if (opts.idleTopology != null) this.idleIndex = new IdleCpuIndex(opts.idleTopology);
+        if (opts.idleTopology != null && opts.smtPlacement) this.smtPlacement = new SmtPlacement(opts.idleTopology);
+        if (opts.traceRecordPath != null) openTraceRecorder(opts.traceRecordPath);
+        try {
+            loadAndAttachBpf();
+        } catch (RuntimeException e) {
+            closeTraceRecorder();
+            throw e;
+        }
+        // From here on BPF initTask/exitTask keep frameworkPids current; the
+        // /proc/self/task rescan only repeats if opts.frameworkPidRescanFallback.
         // Allocate the task pool after BPF load so the handle is available.
         taskPool = new QueuedTask[opts.batchSize];
         for (int i = 0; i < taskPool.length; i++) taskPool[i] = new QueuedTask();
@@ -247,10 +305,35 @@ public abstract class UserspaceScheduler {
             logExitDiagnostic();
             hasExited.set(true);
             if (workerPool != null) workerPool.shutdownNow();
+            closeTraceRecorder();
             cleanupBpf();
         }
     }
 
+    private void openTraceRecorder(Path file) {
+        try {
+            traceRecorder = TraceRecorder.create(file, nrCpus, opts.traceRecordMaxBytes);
+        } catch (java.io.IOException e) {
+            throw new UserspaceSchedulerStartupException("cannot create trace file " + file, e);
+        }
+    }
+
+    private void closeTraceRecorder() {
+        if (traceRecorder == null) return;
+        try {
+            traceRecorder.close();
+            System.err.printf("[sched] trace: %d batches, %d tasks, %d bytes written to %s%n",
+                    traceRecorder.batches(), traceRecorder.records(), traceRecorder.bytesWritten(),
+                    opts.traceRecordPath);
+            if (!traceRecorder.recording()) {
+                System.err.println("[sched] trace recording stopped early: " + traceRecorder.stopReason());
+            }
+        } catch (Exception e) {
+            System.err.println("[sched] closing trace file failed: " + e);
+        }
+        traceRecorder = null;
+    }
+
     /**
      * Why {@link #runLoop} returned, or {@link ExitCause#NOT_EXITED} if it hasn't.
      * Visible to tests that need to assert on the exit cause.
@@ -269,6 +352,28 @@ public abstract class UserspaceScheduler {
         this.classMetricsClassifier = classifier;
     }
 
+    /**
+     * Let BPF place the classifier's {@linkplain TaskClassifier.Builder#kernelHandled kernel-handled}
+     * classes directly in {@code enqueue}, without a round trip through {@link #schedule}. The
+     * lowered rule table ({@link TaskClassifier#kernelRules()}) is uploaded before attach, so this
+     * must be called before {@link #runUntilExit}. Tasks of other classes still reach
+     * {@link #policy} as before.
+     */
+    public <C extends Enum<C>> void setKernelClassifier(TaskClassifier<C> classifier) {
+        this.kernelClassifier = classifier;
+    }
+
+    /**
+     * Tasks BPF placed per lowered kernel rule, indexed like {@link TaskClassifier#kernelRules()};
+     * empty when no kernel classifier is set or the BPF handle is gone.
+     */
+    public long[] kernelRuleHits() {
+        if (kernelClassifier == null || bpfHandle == null) return new long[0];
+        long[] hits = new long[kernelClassifier.kernelRules().size()];
+        for (int i = 0; i < hits.length; i++) hits[i] = bpfHandle.readClassRuleHits(i);
+        return hits;
+    }
+
     /**
      * Per-class summary keyed by the classifier passed to {@link #setClassMetrics}: dispatch
      * {@code count} and approximate {@code execRuntime} percentiles (ns). {@code null} if no
@@ -323,14 +428,41 @@ public abstract class UserspaceScheduler {
      * only the dispatch seam, or after the run loop returns).
      */
     public SchedStatsSnapshot stats() {
-        long ringEnqueued    = bpfHandle != null ? bpfHandle.readRingEnqueued()    : cachedRingEnqueued;
-        long ringDropped     = bpfHandle != null ? bpfHandle.readRingDropped()     : cachedRingDropped;
-        long ringCanceled    = bpfHandle != null ? bpfHandle.readRingCanceled()    : cachedRingCanceled;
-        long stallFallbacks  = bpfHandle != null ? bpfHandle.readStallFallbacks()  : cachedStallFallbacks;
-        long heartbeatKicks  = bpfHandle != null ? bpfHandle.readHeartbeatKicks()  : cachedHeartbeatKicks;
         return new SchedStatsSnapshot(
-            ringEnqueued, ringDropped, sRingDrained, ringCanceled,
-            sDispatched, sDispatchFailed, stallFallbacks, heartbeatKicks);
+            kernelCounter(Stats.NR_QUEUED), kernelCounter(Stats.CONGESTION_EVENTS), sRingDrained,
+            kernelCounter(Stats.CANCELLED_DISPATCHES), sDispatched, sDispatchFailed,
+            kernelCounter(Stats.KERNEL_DISPATCHES), kernelCounter(Stats.HEARTBEAT_KICKS));
+    }
+
+    /**
+     * All BPF-side framework counters, freshly summed from the mmap'd per-CPU stats rows, as an
+     * immutable {@link KernelStats} snapshot that may be read from any thread. Plain memory
+     * loads and no syscalls, but one small allocation per call; pollers that want none use
+     * {@link #kernelStats(KernelStats)}. Keeps the last values once the BPF handle is closed.
+     */
+    public KernelStats kernelStats() {
+        KernelStats k = kernelStats.refreshed(statsView());
+        kernelStats = k;
+        return k;
+    }
+
+    /**
+     * Refresh the caller-owned {@code dst} in place from the mmap'd per-CPU stats rows, without
+     * syscalls or allocation, so exporters can poll at any rate. Once the BPF handle is closed,
+     * {@code dst} gets the last values. {@code dst} must not be an immutable snapshot.
+     *
+     * @return {@code dst}
+     */
+    public KernelStats kernelStats(KernelStats dst) {
+        MemorySegment rows = statsView();
+        return rows != null ? dst.refresh(rows) : dst.set(kernelStats);
+    }
+
+    /** Current total of {@link Stats} {@code slot}, summing only that slot. */
+    private long kernelCounter(int slot) {
+        MemorySegment rows = statsView();
+        KernelStats last = kernelStats;
+        return rows != null ? KernelStats.sum(rows, last.nrCpus(), slot) : last.get(slot);
     }
 
     // ── hooks (overridable for testing) ──────────────────────────────────────
@@ -372,8 +504,12 @@ public abstract class UserspaceScheduler {
         // If the run-loop thread is not yet in frameworkPids and happens to block
         // on a syscall here (e.g., /proc reads, mmap), the scheduler can dead-lock
         // on itself — the drainer is the very task that needs dispatching.
-        seedKernelThreadPids();
+        // BPF initTask classifies every task at attach (and every later fork) by
+        // tgid, kswapd flag and khugepaged comm; the one-off /proc/self/task seed
+        // below only covers a kernel that enqueues before initTask has run.
+        setSchedulerTgid((int) ProcessHandle.current().pid());
         maybeRescanFrameworkPids();
+        uploadKernelRules();
         try {
             bpf.attachScheduler();
         } catch (Exception e) {
@@ -381,6 +517,13 @@ public abstract class UserspaceScheduler {
             bpf.close();
             throw new UserspaceSchedulerStartupException("attachScheduler failed", e);
         }
+        for (int pid : jvmSignals.watched()) {
+            try {
+                JvmSignals.attach(bpf, jvmSignals.state(pid));
+            } catch (RuntimeException e) {
+                System.err.println("[sched] watchJvm(" + pid + ") failed: " + e.getMessage());
+            }
+        }
     }
 
     /**
@@ -390,16 +533,7 @@ public abstract class UserspaceScheduler {
     protected void cleanupBpf() {
         if (bpfHandle != null) {
             try {
-                cachedRingEnqueued   = bpfHandle.readRingEnqueued();
-                cachedRingDropped    = bpfHandle.readRingDropped();
-                cachedRingCanceled   = bpfHandle.readRingCanceled();
-                cachedStallFallbacks = bpfHandle.readStallFallbacks();
-                cachedHeartbeatKicks = bpfHandle.readHeartbeatKicks();
-                cachedSignalsDropped    = bpfHandle.readSignalsDropped();
-                cachedSignalsDelivered  = bpfHandle.readSignalsDelivered();
-                cachedPreemptsIssued    = bpfHandle.readPreemptsIssued();
-                cachedKicksIssued       = bpfHandle.readKicksIssued();
-                cachedPreemptUnresolved = bpfHandle.readPreemptUnresolved();
+                kernelStats();
             } catch (Exception ignored) {}
             try { bpfHandle.close(); } catch (Exception ignored) {}
             bpfHandle = null;
@@ -428,6 +562,49 @@ public abstract class UserspaceScheduler {
         bpfHandle.putFrameworkPid(pid);
     }
 
+    /**
+     * Write the {@link #setKernelClassifier kernel classifier}'s lowered rules into BPF's
+     * {@code classRules} map, then publish the count. No-op without a kernel classifier.
+     *
+     * <p>Default: delegates to {@link UserspaceSchedulerBase#putClassRule}. Tests override to
+     * capture the lowered records without a live BPF file descriptor.
+     */
+    protected void uploadKernelRules() {
+        if (kernelClassifier == null) return;
+        var rules = kernelClassifier.kernelRules();
+        for (int i = 0; i < rules.size(); i++) bpfHandle.putClassRule(i, toClassRuleCtx(rules.get(i)));
+        bpfHandle.setNrClassRules(rules.size());
+    }
+
+    /** BPF wire form of one lowered rule; package-private for tests. */
+    static UserspaceSchedulerBase.ClassRuleCtx toClassRuleCtx(TaskClassifier.KernelRule r) {
+        var c = new UserspaceSchedulerBase.ClassRuleCtx();
+        byte[] prefix = r.match().commPrefixBytes();
+        c.commPrefix = java.util.Arrays.copyOf(prefix, 16);
+        c.commLen = prefix.length;
+        c.action = r.placement().wire();
+        c.minWeight = r.match().minWeight();
+        c.maxWeight = r.match().maxWeight();
+        c.minCpusAllowed = r.match().minCpusAllowed();
+        c.maxCpusAllowed = r.match().maxCpusAllowed();
+        c.extOffset = r.match().extOffset();
+        c.extMask = r.match().extMask();
+        c.extValue = r.match().extValue();
+        c.sliceNs = r.sliceNs();
+        return c;
+    }
+
+    /**
+     * Publish the scheduler process's tgid to BPF so {@code initTask} can recognise
+     * framework threads without {@code /proc} scans.
+     *
+     * <p>Default: delegates to {@link UserspaceSchedulerBase#setSchedulerTgid}.
+     * Tests override to skip the BPF global write.
+     */
+    protected void setSchedulerTgid(int tgid) {
+        bpfHandle.setSchedulerTgid(tgid);
+    }
+
     /**
      * Return an iterable view of the framework-PID set entries.
      *
@@ -469,6 +646,32 @@ public abstract class UserspaceScheduler {
         return bpfHandle;
     }
 
+    // ── JVM signals ──────────────────────────────────────────────────────────
+
+    private final JvmSignals jvmSignals = new JvmSignals();
+
+    /**
+     * Feed safepoint, GC and JIT compiler activity of the JVM {@code pid} into the signals ring
+     * (kinds {@code JVM_*} in {@link Signal.SignalKind}); {@code libjvm.so} is found via
+     * {@code /proc/<pid>/maps}. Callable before or after the scheduler starts; probes are attached
+     * once the BPF program is loaded. See {@link JvmSignals}.
+     */
+    public final void watchJvm(int pid) {
+        watchJvm(pid, null);
+    }
+
+    /** {@link #watchJvm(int)} with an explicit {@code libjvm.so} path ({@code null} = auto). */
+    public final void watchJvm(int pid, String libjvm) {
+        var state = jvmSignals.watch(pid, libjvm);
+        UserspaceSchedulerBase bpf = bpfHandle;
+        if (bpf != null) JvmSignals.attach(bpf, state);
+    }
+
+    /** Folded JVM signal state, updated on the policy thread before each {@link #onSignal}. */
+    public final JvmSignals jvmSignals() {
+        return jvmSignals;
+    }
+
     // ── internal ─────────────────────────────────────────────────────────────
 
     /** BPF transport — set by {@link #loadAndAttachBpf}, cleared by {@link #cleanupBpf}. */
@@ -481,6 +684,7 @@ public abstract class UserspaceScheduler {
      * can call it directly without spinning up the full run loop.
      */
     protected void emitTickEvent() {
+        if (!JFR) return;
         var ev = new TickEvent();
         ev.begin();
         try {
@@ -569,7 +773,7 @@ public abstract class UserspaceScheduler {
      * Zero if no BPF handle is attached.
      */
     public long preemptsIssued() {
-        return bpfHandle != null ? bpfHandle.readPreemptsIssued() : cachedPreemptsIssued;
+        return kernelCounter(Stats.PREEMPTS_ISSUED);
     }
 
     /**
@@ -577,7 +781,7 @@ public abstract class UserspaceScheduler {
      * Zero if no BPF handle is attached.
      */
     public long kicksIssued() {
-        return bpfHandle != null ? bpfHandle.readKicksIssued() : cachedKicksIssued;
+        return kernelCounter(Stats.KICKS_ISSUED);
     }
 
     /**
@@ -585,7 +789,7 @@ public abstract class UserspaceScheduler {
      * to a live task on the BPF side. Zero if no BPF handle is attached.
      */
     public long preemptUnresolved() {
-        return bpfHandle != null ? bpfHandle.readPreemptUnresolved() : cachedPreemptUnresolved;
+        return kernelCounter(Stats.PREEMPT_UNRESOLVED);
     }
 
     /**
@@ -593,7 +797,7 @@ public abstract class UserspaceScheduler {
      * (submitted to the signals ring). Zero if no BPF handle is attached.
      */
     public long signalsDelivered() {
-        return bpfHandle != null ? bpfHandle.readSignalsDelivered() : cachedSignalsDelivered;
+        return kernelCounter(Stats.SIGNALS_DELIVERED);
     }
 
     /**
@@ -601,7 +805,7 @@ public abstract class UserspaceScheduler {
      * Zero if no BPF handle is attached.
      */
     public long signalsDropped() {
-        return bpfHandle != null ? bpfHandle.readSignalsDropped() : cachedSignalsDropped;
+        return kernelCounter(Stats.SIGNALS_DROPPED);
     }
 
     private void runLoop() {
@@ -609,11 +813,12 @@ public abstract class UserspaceScheduler {
         while (true) {
             if (exitRequested.get()) { exitCause = ExitCause.REQUESTED; break; }
             if (!isAttached())       { exitCause = ExitCause.DETACHED;  break; }
-            maybeRescanFrameworkPids();
             drainBatchOnce();
             if (opts.signalPollBudget > 0) drainSignalsOnce();
             long now = System.nanoTime();
             if (now - lastTickNs >= TICK_PERIOD_NS) {
+                if (opts.frameworkPidRescanFallback) maybeRescanFrameworkPids();
+                jvmSignals.forgetExited(JvmSignals::isAlive);
                 emitTickEvent();
                 try {
                     tick();
@@ -639,8 +844,8 @@ public abstract class UserspaceScheduler {
         if (drained <= 0) return;
 
         recordBatchSize(batchCtx.count);
+        refreshSliceContext(batchCtx.count);
 
-        long dispBefore = sDispatched;
         long nowNs = System.nanoTime();
 
         // Record round-trip latency for all tasks in the batch before handing off
@@ -653,8 +858,12 @@ public abstract class UserspaceScheduler {
             }
         }
 
-        var ev = new BatchEvent();
-        ev.begin();
+        BatchEvent ev = null;
+        if (JFR) {
+            ev = new BatchEvent();
+            beginJfrBatch(ev.isEnabled());
+            ev.begin();
+        }
         try {
             if (opts.workerThreads <= 1) {
                 schedule(taskPool, batchCtx.count);      // unchanged single-threaded path
@@ -662,13 +871,72 @@ public abstract class UserspaceScheduler {
                 dispatchSharded(taskPool, batchCtx.count, opts.workerThreads);
             }
         } finally {
-            ev.end();
-            if (ev.shouldCommit()) {
-                ev.size = batchCtx.count;
-                ev.dispatched = (int) (sDispatched - dispBefore);
-                ev.commit();
+            if (JFR) commitJfrBatch(ev, batchCtx.count);
+        }
+    }
+
+    /** Reset the per-batch summary; dispatches only feed it when the BatchEvent is enabled. */
+    private void beginJfrBatch(boolean enabled) {
+        jfrBatchActive = enabled;
+        int workers = Math.max(0, opts.workerThreads);
+        if (jfrWorkers.length < workers) {
+            var grown = java.util.Arrays.copyOf(jfrWorkers, workers);
+            for (int i = jfrWorkers.length; i < workers; i++) grown[i] = new JfrBatch();
+            jfrWorkers = grown;
+        }
+        if (!enabled) return;
+        jfrMain.reset(nrCpus);
+        for (JfrBatch b : jfrWorkers) b.reset(nrCpus);
+    }
+
+    /** Merge the per-thread summaries; called on the run loop thread after the workers joined. */
+    private void commitJfrBatch(BatchEvent ev, int size) {
+        ev.end();
+        if (jfrBatchActive && ev.shouldCommit()) {
+            CpuSet cpus = jfrMain.cpus;
+            int dispatched = jfrMain.dispatched, ringFull = jfrMain.ringFull, rejected = jfrMain.rejected;
+            int anyCpu = jfrMain.anyCpu, sampled = jfrMain.sampled;
+            for (JfrBatch b : jfrWorkers) {
+                dispatched += b.dispatched;
+                ringFull += b.ringFull;
+                rejected += b.rejected;
+                anyCpu += b.anyCpu;
+                sampled += b.sampled;
+                cpus.or(b.cpus);
             }
+            ev.size = size;
+            ev.dispatched = dispatched;
+            ev.ringFull = ringFull;
+            ev.rejected = rejected;
+            ev.anyCpu = anyCpu;
+            ev.cpus = cpus.cardinality();
+            ev.sampledDispatches = sampled;
+            ev.commit();
         }
+        jfrBatchActive = false;
+    }
+
+    /** The summary of the calling thread: its worker's while sharded, else {@link #jfrMain}. */
+    private JfrBatch jfrBatch() {
+        if (opts.workerThreads <= 1) return jfrMain;
+        JfrBatch b = jfrWorkerBatch.get();
+        return b != null ? b : jfrMain;
+    }
+
+    /** Record one dispatch outcome into the current batch summary. */
+    private void recordJfrDispatch(JfrBatch jfr, int target, int rc) {
+        if (rc == 0) jfr.dispatched++;
+        else if (rc == -1) jfr.ringFull++;
+        else jfr.rejected++;
+        if (target == ANY_CPU) jfr.anyCpu++;
+        else if (target >= 0 && target < jfr.cpus.capacity()) jfr.cpus.set(target);
+    }
+
+    /** Whether this dispatch gets a {@link DispatchEvent}: one in {@link Opts#jfrDispatchSampling}. */
+    private boolean sampleDispatch(JfrBatch jfr) {
+        if (--jfr.sampleCountdown > 0) return false;
+        jfr.sampleCountdown = Math.max(1, opts.jfrDispatchSampling);
+        return true;
     }
 
     /**
@@ -740,9 +1008,15 @@ public abstract class UserspaceScheduler {
         for (int i = 0; i < n; i++) {
             java.util.List<QueuedTask> shard = shards.get(i);
             if (shard.isEmpty()) continue;
+            JfrBatch jfr = JFR ? jfrWorkers[i] : null;
             futures.add(workerPool.submit(() -> {
                 QueuedTask[] arr = shard.toArray(new QueuedTask[0]);
-                schedule(arr, arr.length);   // worker only sees its own pids → per-pid state is lock-free
+                if (JFR) jfrWorkerBatch.set(jfr);
+                try {
+                    schedule(arr, arr.length);   // worker only sees its own pids → per-pid state is lock-free
+                } finally {
+                    if (JFR) jfrWorkerBatch.remove();
+                }
             }));
         }
         for (var f : futures) {
@@ -771,8 +1045,10 @@ public abstract class UserspaceScheduler {
         }
         batchCtx.count = 0;
         long nsBeforeConsume = System.nanoTime();
+        if (traceRecorder != null) traceRecorder.beginBatch(nsBeforeConsume);
         int result = bpfHandle.queued.consumeRaw(drainCallback, batchCtx);
         long nsAfterConsume = System.nanoTime();
+        if (traceRecorder != null) traceRecorder.endBatch();
         recordRingConsume((nsAfterConsume - nsBeforeConsume) / 1_000L);
         return result;
     }
@@ -804,6 +1080,7 @@ public abstract class UserspaceScheduler {
                 seg.get(ValueLayout.JAVA_INT,  4),
                 seg.get(ValueLayout.JAVA_LONG, 8),
                 seg.get(ValueLayout.JAVA_LONG, 16));
+            jvmSignals.accept(s);
             try {
                 onSignal(s);
             } catch (Throwable t) {
@@ -924,27 +1201,41 @@ public abstract class UserspaceScheduler {
      * Route one dispatch decision to the kernel.
      *
      * <p>If {@code cpu == ANY_CPU}, scans the idle-CPU bitmap via
-     * {@link #pickIdleCpu()} for a locality hint before delegating to SHARED_DSQ.
+     * {@link #pickIdleCpu(int)} (or {@link SmtPlacement} with {@link Opts#smtPlacement}) for a
+     * locality hint before delegating to SHARED_DSQ.
      *
      * @param t   task to dispatch
      * @param cpu policy-provided CPU, or {@link #ANY_CPU}
      */
     @SuppressWarnings({"unchecked", "rawtypes"})
     void dispatchInternal(QueuedTask t, int cpu) {
-        var ev = new DispatchEvent();
-        ev.pid = t.pid;
-        ev.begin();
-        int target = (cpu == ANY_CPU) ? pickIdleCpu() : cpu;
+        DispatchEvent ev = null;
+        JfrBatch jfr = JFR ? jfrBatch() : null;
+        if (JFR && sampleDispatch(jfr)) {
+            ev = new DispatchEvent();
+            ev.pid = t.pid;
+            ev.begin();
+        }
+        SmtPlacement smt = smtPlacement;
+        boolean noisy = smt != null && isNoisy(t);
+        int target = cpu != ANY_CPU ? cpu : smt != null ? pickSmtCpu(smt, t.prevCpu, noisy) : pickIdleCpu(t.prevCpu);
+        SliceController sc = opts.sliceController;
+        long slice = sc == null ? 0L : Math.max(0L, sc.sliceNs(t, sliceCtx));
         int rc = -1;
         try {
-            rc = submitDispatch(target, t.pid, t.enqCnt, 0L, t.vtime);
+            rc = submitDispatch(target, t.pid, t.enqCnt, slice, t.vtime);
         } finally {
-            ev.end();
-            if (ev.shouldCommit()) {
-                ev.cpu = target;
-                ev.rc  = rc;
-                ev.commit();
+            if (ev != null) {
+                ev.end();
+                if (ev.shouldCommit()) {
+                    ev.cpu = target;
+                    ev.rc  = rc;
+                    ev.sampleWeight = Math.max(1, opts.jfrDispatchSampling);
+                    ev.commit();
+                    if (jfrBatchActive) jfr.sampled++;
+                }
             }
+            if (JFR && jfrBatchActive) recordJfrDispatch(jfr, target, rc);
         }
         if (decisionTrace.enabled()) {
             decisionTrace.record(System.nanoTime(), t.pid, target, DecisionTrace.Kind.DISPATCH, 0);
@@ -956,8 +1247,38 @@ public abstract class UserspaceScheduler {
             // runtime distribution; totalCount() still counts dispatches per class.
             if (c != null) perClassHist.computeIfAbsent(c, k -> new Log2Histogram()).add(t.execRuntime);
         }
-        if (rc == 0) sDispatched++;
-        else         sDispatchFailed++;
+        if (rc == 0) {
+            sDispatched++;
+            if (smt != null) smt.noteDispatch(target, noisy);
+        } else {
+            sDispatchFailed++;
+        }
+    }
+
+    /** Reused per-batch input of {@link Opts#sliceController}; see {@link #refreshSliceContext}. */
+    final SliceController.Context sliceCtx = new SliceController.Context();
+
+    /**
+     * Sample time, batch size and idle CPUs for the slice controller once per batch, so the
+     * per-dispatch call reads fields only. No-op without a controller.
+     */
+    private void refreshSliceContext(int count) {
+        if (opts.sliceController == null) return;
+        sliceCtx.update(nanoTime(), count, idleCpuCount(), nrCpus, opts.workerThreads);
+    }
+
+    /** Set bits in the idle bitmap below {@link #nrCpus}; 0 without a bitmap. */
+    final int idleCpuCount() {
+        MemorySegment view = idleMaskView();
+        if (view == null) return 0;
+        int n = 0;
+        int words = (nrCpus + 63) >>> 6;
+        for (int i = 0; i < words; i++) {
+            long w = view.get(ValueLayout.JAVA_LONG, (long) i * 8L);
+            if (i == words - 1 && (nrCpus & 63) != 0) w &= (1L << nrCpus) - 1;
+            n += Long.bitCount(w);
+        }
+        return n;
     }
 
     /**
@@ -970,7 +1291,7 @@ public abstract class UserspaceScheduler {
      */
     protected int submitDispatch(int targetCpu, int pid, long enqCnt, long sliceNs, long vtime) {
         if (offlineDispatchSink != null) {          // offline mode
-            offlineDispatchSink.accept(new int[]{ targetCpu, pid });
+            offlineDispatchSink.accept(targetCpu, pid, sliceNs);
             return 0;
         }
         // Sharded workers may submit concurrently; the single dispatch ring is not thread-safe.
@@ -1034,6 +1355,14 @@ public abstract class UserspaceScheduler {
     /** Count of failed {@link #submitControl} calls (ring full, or no BPF handle attached). */
     public long controlSubmitFailed() { return sControlSubmitFailed; }
 
+    /**
+     * Number of CPUs this scheduler targets. Defaults to the host core count; a
+     * {@link SchedulerHarness#withCpus(int)}-configured offline test overrides it. Read this
+     * (instead of {@code Runtime.getRuntime().availableProcessors()}) when computing concrete
+     * CPU targets, so placement respects the modeled machine size under test.
+     */
+    protected final int cpuCount() { return nrCpus; }
+
     /**
      * Round-robin scan of the idle-CPU bitmap.
      *
@@ -1048,14 +1377,6 @@ public abstract class UserspaceScheduler {
      *
      * @return an idle CPU number, or {@link #ANY_CPU} if none is currently idle
      */
-    /**
-     * Number of CPUs this scheduler targets. Defaults to the host core count; a
-     * {@link SchedulerHarness#withCpus(int)}-configured offline test overrides it. Read this
-     * (instead of {@code Runtime.getRuntime().availableProcessors()}) when computing concrete
-     * CPU targets, so placement respects the modeled machine size under test.
-     */
-    protected final int cpuCount() { return nrCpus; }
-
     protected final int pickIdleCpu() {
         MemorySegment view = idleMaskView();
         if (view == null) return ANY_CPU;
@@ -1068,6 +1389,34 @@ public abstract class UserspaceScheduler {
         return ANY_CPU;
     }
 
+    /**
+     * Idle CPU nearest to {@code prevCpu} — same core, then LLC, then node, then anywhere — via
+     * the {@link IdleCpuIndex} built from {@link Opts#idleTopology}. Without a topology, or for
+     * a task that never ran, falls back to the round-robin {@link #pickIdleCpu()}.
+     *
+     * @return an idle CPU number, or {@link #ANY_CPU} if none is currently idle
+     */
+    protected final int pickIdleCpu(int prevCpu) {
+        IdleCpuIndex index = idleIndex;
+        if (index == null || prevCpu < 0) return pickIdleCpu();
+        MemorySegment view = idleMaskView();
+        if (view == null) return ANY_CPU;
+        int cpu = index.pick(view, prevCpu);
+        return cpu >= 0 && cpu < nrCpus ? cpu : ANY_CPU;
+    }
+
+    private int pickSmtCpu(SmtPlacement smt, int prevCpu, boolean noisy) {
+        MemorySegment view = idleMaskView();
+        if (view == null) return ANY_CPU;
+        int cpu = smt.pick(view, prevCpu, noisy);
+        return cpu >= 0 && cpu < nrCpus ? cpu : ANY_CPU;
+    }
+
+    private boolean isNoisy(QueuedTask t) {
+        var p = opts.noisyTasks;
+        return p != null && p.test(t);
+    }
+
     /**
      * Returns the mmap'd idle-CPU bitmap segment, or {@code null} if unavailable.
      *
@@ -1076,10 +1425,20 @@ public abstract class UserspaceScheduler {
      * file descriptor.
      */
     protected MemorySegment idleMaskView() {
-        if (bpfHandle == null) return null;
+        if (bpfHandle == null) return offlineIdleMask;
         return bpfHandle.idleMaskView();
     }
 
+    /**
+     * Returns the mmap'd per-CPU stats rows, or {@code null} if no BPF handle is attached.
+     *
+     * <p>Overridable for tests: return a heap segment laid out like
+     * {@link UserspaceSchedulerBase#statsView()} to drive {@link #kernelStats()}.
+     */
+    protected MemorySegment statsView() {
+        return bpfHandle != null ? bpfHandle.statsView() : null;
+    }
+
     // ── kernel-assisted CPU selection ────────────────────────────────────────
 
     /**
@@ -1100,6 +1459,25 @@ public abstract class UserspaceScheduler {
         return selectCpuFor(pid, prevCpu);
     }
 
+    /**
+     * CPU for {@code t}: with {@link Opts#smtPlacement}, the {@link SmtPlacement} choice from
+     * the idle bitmap (a CPU of a fully idle core, else one without a conflicting busy sibling);
+     * otherwise, or if no CPU is idle, the kernel recommendation of {@link #selectCpu(int, int)}.
+     */
+    public final int selectCpu(QueuedTask t) {
+        SmtPlacement smt = smtPlacement;
+        if (smt != null) {
+            int cpu = pickSmtCpu(smt, t.prevCpu, isNoisy(t));
+            if (cpu != ANY_CPU) return cpu;
+        }
+        return selectCpuFor(t.pid, t.prevCpu);
+    }
+
+    /** The SMT-aware placement engine, or {@code null} unless {@link Opts#smtPlacement} is set. */
+    public SmtPlacement smtPlacement() {
+        return smtPlacement;
+    }
+
     // ── framework-PID rescan ─────────────────────────────────────────────────
 
     /**
@@ -1107,6 +1485,10 @@ public abstract class UserspaceScheduler {
      * {@code frameworkPids} BPF hash map so the BPF enqueue path routes them to
      * the framework DSQ without a userspace round-trip.
      *
+     * <p>Runs once before attach as a seed. BPF {@code initTask} tracks new threads
+     * from then on, so the run loop repeats the scan only when
+     * {@link Opts#frameworkPidRescanFallback} is set.
+     *
      * <p>Only runs if {@code opts.frameworkPidRescan} has elapsed since the last
      * scan. On the first call ({@code lastRescanNs == 0}) the scan always runs.
      *
@@ -1141,40 +1523,4 @@ public abstract class UserspaceScheduler {
         for (var ignored : frameworkPidsIterable()) c++;
         return c;
     }
-
-    // ── kernel-thread PID seeding ────────────────────────────────────────────
-
-    /**
-     * Scan {@code /proc} for kernel threads {@code kswapd*} and {@code khugepaged},
-     * then write their PIDs into the BPF globals {@link UserspaceSchedulerBase#kswapdPid}
-     * and {@link UserspaceSchedulerBase#khugepageDPid}.
-     *
-     * <p>Called once after {@link #loadAndAttachBpf()} so the kthread fast path in
-     * BPF {@code enqueue} is populated before the first task arrives.
-     *
-     * <p>{@code /proc} races (process exits between listing and reading {@code comm})
-     * are silently ignored.
-     */
-    private void seedKernelThreadPids() {
-        if (bpfHandle == null) return;
-        try (var stream = Files.list(Path.of("/proc"))) {
-            stream.forEach(p -> {
-                String name = p.getFileName().toString();
-                int pid;
-                try { pid = Integer.parseInt(name); } catch (NumberFormatException e) { return; }
-                try {
-                    String comm = Files.readString(p.resolve("comm")).trim();
-                    if (comm.startsWith("kswapd")) {
-                        bpfHandle.setKswapdPid(pid);
-                    } else if (comm.equals("khugepaged")) {
-                        bpfHandle.setKhugepageDPid(pid);
-                    }
-                } catch (java.io.IOException ignored) {
-                    // /proc race: pid exited between listing and read — fine
-                }
-            });
-        } catch (Exception e) {
-            System.err.println("[sched] kernel-thread PID seeding failed: " + e);
-        }
-    }
 }
@@ -8,6 +8,11 @@ import jdk.jfr.*;
  *
  * <p>Only emitted when at least one task was drained. Threshold-filtered at 200 us
  * so only slow batches appear in recordings by default.
+ *
+ * <p>Summarises every dispatch of the batch — outcome counts and CPU spread — so a
+ * recording stays complete when per-dispatch {@link DispatchEvent}s are sampled
+ * ({@code Opts.jfrDispatchSampling}). The summary is only accumulated while this event
+ * is enabled.
  */
 @Name("hellobpf.userspace.Batch")
 @Label("Userspace Scheduler Batch")
@@ -17,4 +22,14 @@ import jdk.jfr.*;
 public class BatchEvent extends jdk.jfr.Event {
     @Label("Batch Size") public int size;
     @Label("Dispatched") public int dispatched;
+    @Label("Ring Full") @Description("Dispatches rejected because the user→kernel ring was full (rc -1)")
+    public int ringFull;
+    @Label("Rejected") @Description("Dispatches that failed with any other non-zero rc")
+    public int rejected;
+    @Label("Any CPU") @Description("Dispatches left to BPF to place (no idle CPU hint)")
+    public int anyCpu;
+    @Label("CPUs") @Description("Distinct target CPUs in this batch")
+    public int cpus;
+    @Label("Sampled Dispatches") @Description("DispatchEvents committed for this batch")
+    public int sampledDispatches;
 }
@@ -4,7 +4,9 @@ package me.bechberger.ebpf.bpf.userspace.jfr;
 import jdk.jfr.*;
 
 /**
- * JFR event emitted once per dispatch in {@code UserspaceScheduler.dispatchInternal}.
+ * JFR event emitted for sampled dispatches in {@code UserspaceScheduler.dispatchInternal}:
+ * one in {@code Opts.jfrDispatchSampling} (every dispatch by default). Unsampled dispatches
+ * create no event object; their outcomes still reach the batch's {@link BatchEvent}.
  *
  * <p>Threshold-filtered at 100 us so only slow individual dispatches appear in
  * recordings by default.
@@ -18,4 +20,6 @@ public class DispatchEvent extends jdk.jfr.Event {
     @Label("PID") public int pid;
     @Label("CPU") public int cpu;
     @Label("Return Code") public int rc;
+    @Label("Sample Weight") @Description("Dispatches this event stands for (the sampling interval)")
+    public int sampleWeight;
 }
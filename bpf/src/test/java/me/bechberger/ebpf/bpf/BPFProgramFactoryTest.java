@@ -0,0 +1,115 @@
+package me.bechberger.ebpf.bpf;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import me.bechberger.ebpf.annotations.bpf.BPF;
+import me.bechberger.ebpf.annotations.bpf.BPFFunction;
+import me.bechberger.ebpf.annotations.bpf.BPFMapDefinition;
+import me.bechberger.ebpf.annotations.bpf.Kprobe;
+import me.bechberger.ebpf.annotations.bpf.SharedFrom;
+import me.bechberger.ebpf.bpf.BPFProgram.BPFLoadError;
+import me.bechberger.ebpf.bpf.map.BPFHashMap;
+import me.bechberger.ebpf.bpf.processor.Processor;
+import me.bechberger.ebpf.runtime.PtDefinitions;
+import me.bechberger.ebpf.type.Ptr;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that programs are created through the generated {@link BPFProgramFactory}, not via
+ * reflection.
+ */
+public class BPFProgramFactoryTest {
+
+    @BPF(license = "GPL")
+    public static abstract class FactoryProducer extends BPFProgram {
+        @BPFMapDefinition(maxEntries = 8)
+        BPFHashMap<Integer, Long> shared;
+
+        @Kprobe("do_sys_openat2")
+        int onOpen(Ptr<PtDefinitions.pt_regs> ctx) {
+            return 0;
+        }
+    }
+
+    @BPF(license = "GPL")
+    public static abstract class FactoryConsumer extends BPFProgram {
+        @SharedFrom(FactoryProducer.class)
+        @BPFMapDefinition(maxEntries = 8)
+        BPFHashMap<Integer, Long> shared;
+
+        @BPFFunction(section = "kprobe/do_sys_openat2", autoAttach = false)
+        int neverAttached(Ptr<PtDefinitions.pt_regs> ctx) { return 0; }
+    }
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeEach
+    @AfterEach
+    public void cleanup() {
+        BPFProgram.unpinAllForClass(FactoryProducer.class);
+    }
+
+    @Test
+    public void testFactoryIsRegistered() throws Exception {
+        var factory = BPFProgram.factory(FactoryConsumer.class);
+        assertNotNull(factory, "the processor lists the factory in META-INF/services");
+        var implClass = Class.forName(Processor.classToImplName(FactoryConsumer.class).fullyQualifiedClassName());
+        assertEquals(implClass.getName() + "$ImplFactory", factory.getClass().getName());
+        assertEquals(FactoryConsumer.class, factory.programClass());
+        assertEquals(implClass, factory.implClass());
+        assertEquals(implClass.getMethod("getCodeStatic").invoke(null), factory.code());
+        assertSame(factory, BPFProgram.factory(FactoryConsumer.class), "looked up once per class");
+    }
+
+    @Test
+    public void testFactoryRejectsMismatchingProducers() {
+        var factory = BPFProgram.factory(FactoryConsumer.class);
+        assertNotNull(factory);
+        assertNull(factory.create(), "the consumer needs its producer");
+        assertNull(factory.create((BPFProgram) null));
+    }
+
+    @Test
+    @Timeout(20)
+    public void testLoadGoesThroughFactory() throws Exception {
+        Path dump = tempDir.resolve("load.jfr");
+        try (var r = new Recording()) {
+            r.enable("me.bechberger.ebpf.ProgramLoad").withoutThreshold();
+            r.setDestination(dump);
+            r.start();
+            try (var producer = BPFProgram.load(FactoryProducer.class);
+                 var consumer = BPFProgram.load(FactoryConsumer.class, producer)) {
+                assertEquals(BPFProgram.getImplClass(FactoryConsumer.class), consumer.getClass());
+            }
+            r.stop();
+        }
+        List<RecordedEvent> loads = RecordingFile.readAllEvents(dump).stream()
+                .filter(ev -> List.of(FactoryProducer.class.getName(), FactoryConsumer.class.getName())
+                        .contains(ev.getString("programClass")))
+                .toList();
+        assertEquals(2, loads.size());
+        for (var ev : loads) {
+            assertTrue(ev.getBoolean("factory"), ev.getString("programClass") + " loaded via reflection");
+        }
+    }
+
+    @Test
+    @Timeout(20)
+    public void testLoadWithWrongProducerFails() {
+        try (var producer = BPFProgram.load(FactoryProducer.class)) {
+            var error = assertThrows(BPFLoadError.class, () -> BPFProgram.load(FactoryProducer.class, producer));
+            assertTrue(error.getMessage().contains("No constructor on"), error.getMessage());
+        }
+    }
+}
@@ -48,6 +48,12 @@ public class BPFProgramGroupTest {
         int neverAttached(Ptr<PtDefinitions.pt_regs> ctx) { return 0; }
     }
 
+    @BPF(license = "GPL")
+    public static abstract class GroupIndependent extends BPFProgram {
+        @Kprobe("do_unlinkat")
+        int onUnlink(Ptr<PtDefinitions.pt_regs> ctx) { return 0; }
+    }
+
     @BeforeEach
     @AfterEach
     public void cleanup() {
@@ -105,4 +111,27 @@ public class BPFProgramGroupTest {
     public void rejectsNullPrograms() {
         assertThrows(IllegalArgumentException.class, () -> BPFProgramGroup.of(null));
     }
+
+    @Test
+    @Timeout(20)
+    public void loadsConcurrentlyInOrderWithTimings() {
+        try (var grp = BPFProgramGroup.loadConcurrently(GroupProducer.class, GroupIndependent.class)
+                .autoAttachConcurrently()) {
+            assertEquals(2, grp.members().size());
+            assertInstanceOf(GroupProducer.class, grp.members().get(0));
+            assertInstanceOf(GroupIndependent.class, grp.members().get(1));
+            for (var program : grp.members()) {
+                var timings = program.loadTimings();
+                assertTrue(timings.objectLoad().toNanos() > 0, timings.toString());
+                assertTrue(timings.total().compareTo(timings.objectLoad().plus(timings.open())) >= 0,
+                        timings.toString());
+            }
+        }
+    }
+
+    @Test
+    public void loadConcurrentlyRejectsEmptyAndNull() {
+        assertThrows(IllegalArgumentException.class, BPFProgramGroup::loadConcurrently);
+        assertThrows(IllegalArgumentException.class, () -> BPFProgramGroup.loadConcurrently(GroupProducer.class, null));
+    }
 }
@@ -0,0 +1,65 @@
+package me.bechberger.ebpf.bpf;
+
+import me.bechberger.ebpf.bpf.userspace.CpuTopology;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks the steal order {@link LlcVtimeSchedulerBase} writes into its BPF map: same-node LLCs
+ * first, each group rotated to start after the stealing LLC. No kernel needed.
+ */
+class LlcStealOrderUnitTest {
+
+    @Test
+    void singleLlcHasNoVictims() {
+        int[][] order = LlcVtimeSchedulerBase.stealOrder(CpuTopology.uniform(8, 8));
+        assertEquals(1, order.length);
+        assertEquals(0, order[0].length);
+    }
+
+    @Test
+    void flatTopologyRotatesVictims() {
+        int[][] order = LlcVtimeSchedulerBase.stealOrder(CpuTopology.uniform(12, 4));
+        assertArrayEquals(new int[]{1, 2}, order[0]);
+        assertArrayEquals(new int[]{2, 0}, order[1]);
+        assertArrayEquals(new int[]{0, 1}, order[2]);
+    }
+
+    @Test
+    void sameNodeLlcsComeFirst() {
+        // 4 LLCs of 4 CPUs, 2 LLCs per node: node 0 = {0, 1}, node 1 = {2, 3}
+        int[][] order = LlcVtimeSchedulerBase.stealOrder(CpuTopology.uniform(16, 2, 4, 2));
+        assertArrayEquals(new int[]{1, 2, 3}, order[0]);
+        assertArrayEquals(new int[]{0, 2, 3}, order[1]);
+        assertArrayEquals(new int[]{3, 0, 1}, order[2]);
+        assertArrayEquals(new int[]{2, 0, 1}, order[3]);
+    }
+
+    @Test
+    void everyRowCoversAllOtherLlcsOnce() {
+        int[][] order = LlcVtimeSchedulerBase.stealOrder(CpuTopology.uniform(64, 2, 4, 3));
+        for (int llc = 0; llc < order.length; llc++) {
+            int self = llc;
+            int[] expected = IntStream.range(0, order.length).filter(d -> d != self).toArray();
+            int[] row = order[llc].clone();
+            Arrays.sort(row);
+            assertArrayEquals(expected, row, "row " + llc);
+        }
+    }
+
+    @Test
+    void siblingRowsAreMinusOneTerminated() {
+        var smt2 = CpuTopology.uniform(8, 2, 4, 1);
+        assertArrayEquals(new int[]{1, -1}, LlcVtimeSchedulerBase.siblingRow(smt2, 0));
+        assertArrayEquals(new int[]{6, -1}, LlcVtimeSchedulerBase.siblingRow(smt2, 7));
+        assertArrayEquals(new int[]{-1}, LlcVtimeSchedulerBase.siblingRow(CpuTopology.uniform(8, 4), 3));
+        // a full row needs no terminator
+        var smt8 = CpuTopology.uniform(16, 8, 16, 1);
+        assertArrayEquals(new int[]{8, 9, 10, 11, 12, 13, 15}, LlcVtimeSchedulerBase.siblingRow(smt8, 14));
+    }
+}
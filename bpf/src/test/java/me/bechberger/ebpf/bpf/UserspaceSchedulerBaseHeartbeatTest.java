@@ -7,6 +7,7 @@ import me.bechberger.ebpf.type.Ptr;
 import org.junit.jupiter.api.Test;
 
 import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_bpf_dsq_move_to_local;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
@@ -25,6 +26,7 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
  *   <li>{@code tp/sched/sched_process_fork} — tracepoint section</li>
  *   <li>{@code bpf_map_update_elem} — from {@code frameworkPids.bpf_put}</li>
  *   <li>{@code scx_bpf_kick_cpu} — from {@code DispatchQueue.kickCpu} in tick</li>
+ *   <li>{@code PT_REGS_PARM2} — the {@code full} flag of {@code notify_gc_begin} in the JVM probe</li>
  * </ul>
  */
 public class UserspaceSchedulerBaseHeartbeatTest {
@@ -70,4 +72,28 @@ public class UserspaceSchedulerBaseHeartbeatTest {
         assertTrue(code.contains("scx_bpf_kick_cpu"),
                 "expected scx_bpf_kick_cpu (from DispatchQueue.kickCpu) in generated C:\n" + code);
     }
+
+    /** The live behaviour is covered by {@code userspace.FrameworkPidExitTest}. */
+    @Test
+    public void testExitTaskDropsFrameworkPids() {
+        String code = BPFProgram.getCode(UserspaceSchedulerBase.class);
+        assertTrue(code.contains("bpf_map_delete_elem"),
+                "expected bpf_map_delete_elem (from frameworkPids.bpf_delete in exitTask) in generated C:\n" + code);
+        assertTrue(code.contains("PF_KSWAPD"),
+                "expected PF_KSWAPD check in initTask classification in generated C:\n" + code);
+    }
+
+    @Test
+    public void testJvmSignalProbeReadsFullGcFromSecondArgument() {
+        String code = BPFProgram.getCode(UserspaceSchedulerBase.class);
+        int start = code.indexOf("jvmSignalProbe(");
+        assertTrue(start >= 0, "expected jvmSignalProbe in generated C:\n" + code);
+        String body = code.substring(start, code.indexOf("\n}", start));
+        // notify_gc_begin(bool full) is a member function: arg0 is 'this', 'full' is arg1
+        assertTrue(body.contains("PT_REGS_PARM2"),
+                "expected the full flag to be read from PT_REGS_PARM2 in jvmSignalProbe:\n" + body);
+        assertFalse(body.contains("PT_REGS_PARM1"),
+                "jvmSignalProbe must not read 'this' (PT_REGS_PARM1) as the full flag:\n" + body);
+        assertTrue(body.contains("<< 32"), "expected the full flag to go to payload bit 32:\n" + body);
+    }
 }
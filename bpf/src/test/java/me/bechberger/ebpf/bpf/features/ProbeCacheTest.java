@@ -0,0 +1,155 @@
+package me.bechberger.ebpf.bpf.features;
+
+import me.bechberger.ebpf.bpf.features.probes.ProbeSyscallCounter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProbeCacheTest {
+
+    private static final ProbeKey XDP = new ProbeKey.ProgramTypeKey(BPFProgramType.XDP);
+    private static final ProbeKey KFUNC = new ProbeKey.KfuncKey("bpf_cpumask_create", null);
+
+    @AfterEach
+    void restore() {
+        Features.setDispatcherForTest(null);
+        Features.resetCacheForTest();
+    }
+
+    @Test
+    void storesDefiniteResultsAcrossInstances(@TempDir Path folder) {
+        var cache = new ProbeCache(folder, null, "6.8.0-test");
+        cache.put(XDP, new ProbeResult.Supported());
+        cache.put(KFUNC, new ProbeResult.Unsupported("not present in vmlinux BTF"));
+        cache.put(new ProbeKey.StructOpsKey("sched_ext_ops"), new ProbeResult.ProbeUnavailable("EPERM"));
+        cache.flush();
+
+        var reopened = new ProbeCache(folder, null, "6.8.0-test");
+        assertEquals(new ProbeResult.Supported(), reopened.get(XDP));
+        assertEquals(new ProbeResult.Unsupported("not present in vmlinux BTF"), reopened.get(KFUNC));
+        assertNull(reopened.get(new ProbeKey.StructOpsKey("sched_ext_ops")));
+        assertNull(new ProbeCache(folder, null, "6.9.0-test").get(XDP), "other kernels must not share results");
+    }
+
+    @Test
+    void invalidateForgetsResults(@TempDir Path folder) throws Exception {
+        var cache = new ProbeCache(folder, null, "k");
+        cache.put(XDP, new ProbeResult.Supported());
+        cache.invalidate();
+        assertNull(cache.get(XDP));
+        assertFalse(Files.exists(cache.file()));
+    }
+
+    @Test
+    void missingModuleKfuncsAreNotStored(@TempDir Path folder) {
+        var cache = new ProbeCache(folder, null, "k");
+        var missing = new ProbeKey.KfuncKey("scx_bpf_missing", "sched_ext");
+        var present = new ProbeKey.KfuncKey("scx_bpf_present", "sched_ext");
+        cache.put(missing, new ProbeResult.Unsupported("not present in vmlinux BTF"));
+        cache.put(present, new ProbeResult.Supported());
+        cache.flush();
+
+        var reopened = new ProbeCache(folder, null, "k");
+        assertNull(reopened.get(missing), "the module may be loaded later");
+        assertEquals(new ProbeResult.Supported(), reopened.get(present));
+    }
+
+    @Test
+    void onlyDefiniteNegativesAreStored(@TempDir Path folder) {
+        var cache = new ProbeCache(folder, null, "k");
+        var transientError = new ProbeKey.AttachTypeKey(BPFAttachType.values()[0]);
+        var struct = new ProbeKey.StructOpsKey("sched_ext_ops");
+        cache.put(XDP, new ProbeResult.Unsupported("unknown prog_type"));
+        cache.put(transientError, new ProbeResult.Unsupported("errno=12"));
+        cache.put(struct, new ProbeResult.Unsupported("struct not present in vmlinux BTF"));
+        cache.flush();
+
+        var reopened = new ProbeCache(folder, null, "k");
+        assertEquals(new ProbeResult.Unsupported("unknown prog_type"), reopened.get(XDP));
+        assertNull(reopened.get(transientError), "ENOMEM and the like may be gone in the next JVM");
+        assertEquals(new ProbeResult.Unsupported("struct not present in vmlinux BTF"), reopened.get(struct));
+        assertTrue(ProbeCache.definite(new ProbeResult.Unsupported("libbpf reports map_type not supported")));
+        assertFalse(ProbeCache.definite(new ProbeResult.Unsupported("errno=1")));
+    }
+
+    @Test
+    void putsAreWrittenOnFlush(@TempDir Path folder) {
+        var cache = new ProbeCache(folder, null, "k");
+        cache.put(XDP, new ProbeResult.Supported());
+        cache.put(KFUNC, new ProbeResult.Unsupported("not present in vmlinux BTF"));
+        assertFalse(Files.exists(cache.file()));
+        cache.flush();
+        var reopened = new ProbeCache(folder, null, "k");
+        assertEquals(new ProbeResult.Supported(), reopened.get(XDP));
+        assertEquals(new ProbeResult.Unsupported("not present in vmlinux BTF"), reopened.get(KFUNC));
+    }
+
+    @Test
+    void snapshotWritesTheDiskCacheOnce(@TempDir Path folder) {
+        Features.resetCacheForTest();
+        Features.setDispatcherForTest(new FeaturesCacheTest.StubDispatcher());
+        var cache = new ProbeCache(folder, null, "k");
+        Features.setPersistentCache(cache);
+        var snapshot = Features.snapshot();
+        assertEquals(1, cache.writes());
+        var reopened = new ProbeCache(folder, null, "k");
+        assertEquals(new ProbeResult.Supported(), reopened.get(XDP));
+        assertEquals(new ProbeResult.Supported(), reopened.get(new ProbeKey.AttachTypeKey(BPFAttachType.values()[0])));
+        assertFalse(snapshot.isEmpty());
+    }
+
+    @Test
+    void prewarmAlsoProbesFrameworkKfuncsAndStructOps() {
+        Features.resetCacheForTest();
+        Features.setDispatcherForTest(new FeaturesCacheTest.StubDispatcher());
+        var results = ProbeCache.prewarm();
+        assertTrue(results.keySet().containsAll(Features.snapshot().keySet()));
+        assertEquals(new ProbeResult.Supported(), results.get("struct_ops:sched_ext_ops"));
+        assertEquals(new ProbeResult.Supported(), results.get("kfunc:scx_bpf_dsq_insert"));
+        assertEquals(Features.snapshot().size() + ProbeCache.FRAMEWORK_KFUNCS.size()
+                + ProbeCache.FRAMEWORK_STRUCT_OPS.size(), results.size());
+    }
+
+    @Test
+    void readsPrewarmedSystemFolder(@TempDir Path folder) {
+        var system = folder.resolve("system");
+        var prewarmed = new ProbeCache(system, null, "k");
+        prewarmed.put(XDP, new ProbeResult.Supported());
+        prewarmed.flush();
+        var user = new ProbeCache(folder.resolve("user"), system, "k");
+        assertEquals(new ProbeResult.Supported(), user.get(XDP));
+    }
+
+    @Test
+    void featuresReadTheDiskCacheBeforeProbing(@TempDir Path folder) {
+        Features.resetCacheForTest();
+        ProbeSyscallCounter.reset();
+        Features.setDispatcherForTest(new FeaturesCacheTest.StubDispatcher());
+        var cache = new ProbeCache(folder, null, "k");
+        Features.setPersistentCache(cache);
+        assertTrue(Features.hasProgramType(BPFProgramType.XDP));
+        assertEquals(1, ProbeSyscallCounter.value());
+
+        // a new JVM: empty in-memory cache, same file
+        Features.resetCacheForTest();
+        Features.setPersistentCache(new ProbeCache(folder, null, "k"));
+        assertTrue(Features.hasProgramType(BPFProgramType.XDP));
+        assertEquals(1, ProbeSyscallCounter.value(), "probe must not run again");
+    }
+
+    @Test
+    void parsesGnuBuildIdNote() {
+        var notes = ByteBuffer.allocate(64).order(ByteOrder.nativeOrder());
+        notes.putInt(4).putInt(4).putInt(1).put("Xen\0".getBytes()).putInt(42); // unrelated note
+        notes.putInt(4).putInt(3).putInt(3).put("GNU\0".getBytes()).put(new byte[]{(byte) 0xab, 0x01, 0x02, 0});
+        assertEquals("ab0102", ProbeCache.buildId(notes.array()));
+        assertNull(ProbeCache.buildId(new byte[8]));
+    }
+}
@@ -0,0 +1,69 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.userspace;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.ValueLayout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CpuSetTest {
+
+    @Test
+    void setTestAndIterateAcrossWords() {
+        var s = CpuSet.of(256, 0, 63, 64, 191, 255);
+        assertEquals(5, s.cardinality());
+        assertTrue(s.test(191));
+        assertFalse(s.test(190));
+        assertFalse(s.test(256), "out of range reads as clear");
+        StringBuilder seen = new StringBuilder();
+        for (int c = s.nextSetBit(0); c >= 0; c = s.nextSetBit(c + 1)) seen.append(c).append(' ');
+        assertEquals("0 63 64 191 255 ", seen.toString());
+        assertEquals(1, s.nextClearBit(0));
+        assertEquals(65, s.nextClearBit(63));
+        assertThrows(IndexOutOfBoundsException.class, () -> s.set(256));
+    }
+
+    @Test
+    void bulkOpsMutateInPlace() {
+        var a = CpuSet.range(200, 0, 130);
+        var b = CpuSet.range(200, 100, 200);
+        assertTrue(a.intersects(b));
+        assertEquals(30, a.copy().and(b).cardinality());
+        assertEquals(200, a.copy().or(b).cardinality());
+        assertEquals(100, a.copy().andNot(b).cardinality());
+        assertEquals(100, a.nextSetBitAnd(b, 0));
+        assertEquals(-1, a.nextSetBitAnd(b, 130));
+        assertTrue(CpuSet.range(200, 0, 200).containsAll(a));
+        assertFalse(a.containsAll(b));
+    }
+
+    @Test
+    void mixedCapacitiesZeroExtend() {
+        var small = CpuSet.ofWord(0b1011L);
+        var big = CpuSet.of(1024, 1, 3, 700);
+        assertEquals(CpuSet.of(1024, 0, 1, 3, 700), big.copy().or(small));
+        assertEquals(CpuSet.of(64, 1, 3), small.copy().and(big));
+        assertEquals(CpuSet.of(64, 0, 1, 3), small.copy().or(big), "or() truncates to capacity");
+        assertEquals(small.hashCode(), CpuSet.of(1024, 0, 1, 3).hashCode());
+    }
+
+    @Test
+    void roundTripsKernelLayout() {
+        try (var arena = Arena.ofConfined()) {
+            var seg = arena.allocate(1024 / 8);
+            seg.set(ValueLayout.JAVA_LONG, 0, 0b101L);
+            seg.set(ValueLayout.JAVA_LONG, 8 * 3, 1L << 10);             // cpu 202
+            var s = CpuSet.fromSegment(seg, 1024);
+            assertEquals(CpuSet.of(1024, 0, 2, 202), s);
+            assertEquals("0,2,202", s.toString());
+
+            var out = arena.allocate(1024 / 8);
+            CpuSet.range(1024, 62, 66).copyTo(out);
+            assertEquals(0b11L << 62, out.get(ValueLayout.JAVA_LONG, 0));
+            assertEquals(0b11L, out.get(ValueLayout.JAVA_LONG, 8));
+            assertEquals("62-65", CpuSet.fromSegment(out, 1024).toString());
+        }
+    }
+}
@@ -36,8 +36,8 @@ class CpuTopologyTest {
         assertEquals(topo.domainOfCpu(2), topo.domainOfCpu(3));
         assertNotEquals(topo.domainOfCpu(0), topo.domainOfCpu(2));
         // cpuMask of cpu 0's domain covers exactly {0,1}
-        assertEquals(0b0011L, topo.cpuMask(topo.domainOfCpu(0)));
-        assertEquals(0b1100L, topo.cpuMask(topo.domainOfCpu(2)));
+        assertEquals(CpuSet.ofWord(0b0011L), topo.cpuMask(topo.domainOfCpu(0)));
+        assertEquals(CpuSet.ofWord(0b1100L), topo.cpuMask(topo.domainOfCpu(2)));
     }
 
     @Test
@@ -51,7 +51,7 @@ class CpuTopologyTest {
         assertEquals(1, topo.nrDomains(), "missing cache info -> single all-CPU domain");
         assertEquals(0, topo.domainOfCpu(0));
         assertEquals(0, topo.domainOfCpu(2));
-        assertEquals(0b0111L, topo.cpuMask(0));
+        assertEquals(CpuSet.ofWord(0b0111L), topo.cpuMask(0));
     }
 
     @Test
@@ -59,4 +59,46 @@ class CpuTopologyTest {
         var topo = CpuTopology.detect(Path.of("/definitely/not/here/sysfs"));
         assertTrue(topo.nrDomains() >= 1, "missing root must still yield >= 1 domain");
     }
+
+    @Test
+    void uniformSplitsConsecutiveCpus() {
+        var topo = CpuTopology.uniform(5, 2);
+        assertEquals(5, topo.nrCpus());
+        assertEquals(3, topo.nrDomains(), "last domain holds the remainder");
+        assertEquals(CpuSet.ofWord(0b00011L), topo.cpuMask(0));
+        assertEquals(CpuSet.ofWord(0b01100L), topo.cpuMask(1));
+        assertEquals(CpuSet.ofWord(0b10000L), topo.cpuMask(2));
+        assertEquals(2, topo.domainOfCpu(4));
+        assertThrows(IllegalArgumentException.class, () -> CpuTopology.uniform(0, 1));
+    }
+
+    @Test
+    void domainsBeyondSixtyFourCpus() {
+        var topo = CpuTopology.uniform(256, 64);
+        assertEquals(4, topo.nrDomains());
+        assertEquals(64, topo.cpuMask(3).cardinality());
+        assertTrue(topo.cpuMask(3).test(255));
+        assertEquals(192, topo.cpuMask(3).nextSetBit(0));
+        assertEquals(256, topo.cpus().cardinality());
+        assertThrows(UnsupportedOperationException.class, () -> topo.cpuMask(0).set(1));
+    }
+
+    @Test
+    void detectsCoresAndNodes(@TempDir Path root) throws IOException {
+        for (int cpu = 0; cpu < 4; cpu++) {
+            Path topo = Files.createDirectories(root.resolve("cpu" + cpu).resolve("topology"));
+            Files.writeString(topo.resolve("thread_siblings_list"), cpu < 2 ? "0-1" : "2-3");
+            Files.createDirectories(root.resolve("cpu" + cpu).resolve("node" + (cpu < 2 ? 0 : 1)));
+            Path idx = Files.createDirectories(root.resolve("cpu" + cpu).resolve("cache").resolve("index3"));
+            Files.writeString(idx.resolve("level"), "3");
+            Files.writeString(idx.resolve("shared_cpu_list"), "0-3");
+        }
+        var topo = CpuTopology.detect(root);
+        assertEquals(1, topo.nrDomains());
+        assertEquals(2, topo.nrCores());
+        assertEquals(2, topo.nrNodes());
+        assertEquals(topo.coreOfCpu(0), topo.coreOfCpu(1));
+        assertNotEquals(topo.coreOfCpu(1), topo.coreOfCpu(2));
+        assertEquals(CpuSet.ofWord(0b1100L), topo.nodeMask(topo.nodeOfCpu(3)));
+    }
 }
@@ -2,7 +2,9 @@ package me.bechberger.ebpf.bpf.userspace;
 
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -46,4 +48,62 @@ class DecisionTraceTest {
         trace.record(1, 1, 0, DecisionTrace.Kind.DISPATCH, 0);
         assertTrue(trace.recentDecisions().isEmpty(), "capacity 0 records nothing");
     }
+
+    @Test
+    void concurrentWritersMergeNewestN() throws Exception {
+        var trace = new DecisionTrace(8);
+        int threads = 4, perThread = 1000;
+        var start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int w = 0; w < threads; w++) {
+            int base = w * perThread;
+            Thread t = new Thread(() -> {
+                try { start.await(); } catch (InterruptedException e) { return; }
+                for (int i = 0; i < perThread; i++) {
+                    trace.record(i, base + i, 0, DecisionTrace.Kind.DISPATCH, 0);
+                }
+            });
+            workers.add(t);
+            t.start();
+        }
+        start.countDown();
+        for (Thread t : workers) t.join();
+
+        List<DecisionTrace.TraceEntry> recent = trace.recentDecisions();
+        assertEquals(8, recent.size(), "merged view is still bounded by capacity");
+        // The last record of every writer is globally among its newest, so it must survive
+        // the merge unless a later record of another writer displaced it; at minimum the
+        // newest entry overall is the last record of some writer.
+        int newestPid = recent.get(recent.size() - 1).pid();
+        assertEquals(perThread - 1, newestPid % perThread, "newest entry is some writer's last record");
+    }
+
+    @Test
+    void ringOfExitedThreadIsReused() throws Exception {
+        var trace = new DecisionTrace(4);
+        for (int w = 0; w < 10; w++) {
+            int pid = w;
+            Thread t = new Thread(() -> trace.record(pid, pid, 0, DecisionTrace.Kind.DISPATCH, 0));
+            t.start();
+            t.join();
+        }
+        assertEquals(1, trace.ringCount(), "threads recording one after another share one ring");
+        assertEquals(List.of(6, 7, 8, 9), trace.recentDecisions().stream().map(DecisionTrace.TraceEntry::pid).toList(),
+                "entries of exited threads stay visible until overwritten");
+    }
+
+    @Test
+    void mergesRingsByTimestamp() throws Exception {
+        var trace = new DecisionTrace(4);
+        Thread other = new Thread(() -> {
+            trace.record(20, 2, 0, DecisionTrace.Kind.DISPATCH, 0);
+            trace.record(40, 4, 0, DecisionTrace.Kind.DISPATCH, 0);
+        });
+        trace.record(10, 1, 0, DecisionTrace.Kind.DISPATCH, 0);
+        trace.record(30, 3, 0, DecisionTrace.Kind.DISPATCH, 0);
+        other.start();
+        other.join();
+        assertEquals(2, trace.ringCount());
+        assertEquals(List.of(1, 2, 3, 4), trace.recentDecisions().stream().map(DecisionTrace.TraceEntry::pid).toList());
+    }
 }
@@ -1,6 +1,11 @@
 package me.bechberger.ebpf.bpf.userspace;
 
 import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class DomainLoadBalancerTest {
@@ -10,7 +15,7 @@ class DomainLoadBalancerTest {
     @Test
     void balancedWhenImbalanceWithinCostRatioBand() {
         // load_avg = 100, cost_ratio = 0.05 -> band is +/- 5.0
-        var d = new Domain(0, 0b1L);
+        var d = new Domain(0, CpuSet.ofWord(0b1L));
         d.setLoadSum(103.0);
         assertEquals(Domain.BalanceState.BALANCED, d.state(100.0));
         assertEquals(3.0, d.imbal(100.0), 1e-9);
@@ -18,7 +23,7 @@ class DomainLoadBalancerTest {
 
     @Test
     void needsPushWhenOverloadedBeyondBand() {
-        var d = new Domain(0, 0b1L);
+        var d = new Domain(0, CpuSet.ofWord(0b1L));
         d.setLoadSum(120.0);
         assertEquals(Domain.BalanceState.NEEDS_PUSH, d.state(100.0));
         assertEquals(20.0, d.imbal(100.0), 1e-9);
@@ -26,7 +31,7 @@ class DomainLoadBalancerTest {
 
     @Test
     void needsPullWhenUnderloadedBeyondBand() {
-        var d = new Domain(0, 0b1L);
+        var d = new Domain(0, CpuSet.ofWord(0b1L));
         d.setLoadSum(80.0);
         assertEquals(Domain.BalanceState.NEEDS_PULL, d.state(100.0));
         assertEquals(-20.0, d.imbal(100.0), 1e-9);
@@ -35,15 +40,16 @@ class DomainLoadBalancerTest {
     // ── balancer engine ──
 
     private static DomainLoadBalancer.TaskLoad task(int pid, double load, long domMask) {
-        return new DomainLoadBalancer.TaskLoad(pid, load, domMask, domMask, false);
+        var mask = CpuSet.ofWord(domMask);
+        return new DomainLoadBalancer.TaskLoad(pid, load, mask, mask, false);
     }
 
     /** Build a 2-domain layout: dom0 (mask 0b01) hot, dom1 (mask 0b10) cold. */
     private static java.util.List<Domain> twoDomains(
             java.util.List<DomainLoadBalancer.TaskLoad> hot,
             java.util.List<DomainLoadBalancer.TaskLoad> cold) {
-        var d0 = new Domain(0, 0b01L);
-        var d1 = new Domain(1, 0b10L);
+        var d0 = new Domain(0, CpuSet.ofWord(0b01L));
+        var d1 = new Domain(1, CpuSet.ofWord(0b10L));
         hot.forEach(d0::addTask);
         cold.forEach(d1::addTask);
         return java.util.List.of(d0, d1);
@@ -86,11 +92,11 @@ class DomainLoadBalancerTest {
     @Test
     void prefersCacheAffineTaskOverEqualLoadNonPreferred() {
         // Two equal-load (50) candidates; pid 2 is cache-affine to dom1, pid 1 is not.
-        var d0 = new Domain(0, 0b01L);
-        var d1 = new Domain(1, 0b10L);
-        d0.addTask(new DomainLoadBalancer.TaskLoad(1, 50, 0b11, 0b01, false)); // prefers dom0
-        d0.addTask(new DomainLoadBalancer.TaskLoad(2, 50, 0b11, 0b10, false)); // prefers dom1
-        d0.addTask(new DomainLoadBalancer.TaskLoad(3, 100, 0b11, 0b01, false));
+        var d0 = new Domain(0, CpuSet.ofWord(0b01L));
+        var d1 = new Domain(1, CpuSet.ofWord(0b10L));
+        d0.addTask(new DomainLoadBalancer.TaskLoad(1, 50, CpuSet.ofWord(0b11), CpuSet.ofWord(0b01), false)); // prefers dom0
+        d0.addTask(new DomainLoadBalancer.TaskLoad(2, 50, CpuSet.ofWord(0b11), CpuSet.ofWord(0b10), false)); // prefers dom1
+        d0.addTask(new DomainLoadBalancer.TaskLoad(3, 100, CpuSet.ofWord(0b11), CpuSet.ofWord(0b01), false));
         var migs = DomainLoadBalancer.balance(java.util.List.of(d0, d1), 100.0,
                 new DomainLoadBalancer.Options(false));
         assertEquals(1, migs.size());
@@ -99,14 +105,106 @@ class DomainLoadBalancerTest {
 
     @Test
     void skipsKworkersWhenRequested() {
-        var d0 = new Domain(0, 0b01L);
-        var d1 = new Domain(1, 0b10L);
-        d0.addTask(new DomainLoadBalancer.TaskLoad(1, 60, 0b11, 0b11, true)); // kworker
-        d0.addTask(new DomainLoadBalancer.TaskLoad(2, 140, 0b11, 0b11, false));
+        var d0 = new Domain(0, CpuSet.ofWord(0b01L));
+        var d1 = new Domain(1, CpuSet.ofWord(0b10L));
+        d0.addTask(new DomainLoadBalancer.TaskLoad(1, 60, CpuSet.ofWord(0b11), CpuSet.ofWord(0b11), true)); // kworker
+        d0.addTask(new DomainLoadBalancer.TaskLoad(2, 140, CpuSet.ofWord(0b11), CpuSet.ofWord(0b11), false));
         var migsSkip = DomainLoadBalancer.balance(java.util.List.of(d0, d1), 100.0,
                 new DomainLoadBalancer.Options(true));
         // With kworkers skipped, only pid 2 is feasible; xfer target = 50, only candidate is 140-load pid2.
         assertTrue(migsSkip.stream().noneMatch(m -> m.pid() == 1),
                 "kworker must never be migrated when skipKworkers=true");
     }
+
+    // ── stateful hierarchical balancer ──
+
+    private static final CpuSet ALL = CpuSet.ofWord(0xFFL);
+
+    /** Stateful balancer with {@code pids[i]} of load {@code loads[i]} in domain {@code doms[i]}. */
+    private static DomainLoadBalancer stateful(int[] domainToNode, boolean parallel,
+                                               int[] pids, double[] loads, int[] doms) {
+        var lb = new DomainLoadBalancer(domainToNode, new DomainLoadBalancer.Options(false, parallel));
+        for (int i = 0; i < pids.length; i++) lb.updateTask(pids[i], doms[i], loads[i], ALL, ALL, false);
+        return lb;
+    }
+
+    @Test
+    void oneRoundFeedsSeveralPullDomains() {
+        // dom0 holds 8 x 50 = 400, doms 1-3 are empty; avg = 100, push cutoff = 300 * 0.5 = 150.
+        // The multi-transfer loop keeps pulling into whichever domain is least loaded, so one
+        // round spreads three tasks over the three empty domains instead of moving one.
+        int[] pids = {1, 2, 3, 4, 5, 6, 7, 8};
+        double[] loads = {50, 50, 50, 50, 50, 50, 50, 50};
+        var lb = stateful(new int[]{0, 0, 0, 0}, false, pids, loads, new int[8]);
+        var migs = lb.balance();
+        assertEquals(3, migs.size(), migs.toString());
+        assertEquals(Set.of(1, 2, 3),
+                migs.stream().map(DomainLoadBalancer.Migration::toDom).collect(Collectors.toSet()));
+        assertEquals(250.0, lb.domainLoad(0), 1e-9);
+    }
+
+    @Test
+    void balancesAcrossNumaNodes() {
+        // Node 0 = doms {0,1}, node 1 = doms {2,3}. All load sits on node 0 (dom0 200, dom1 200);
+        // only the cross-node step can move it, and it lands on node 1.
+        int[] pids = {1, 2, 3, 4, 5, 6, 7, 8};
+        double[] loads = {50, 50, 50, 50, 50, 50, 50, 50};
+        int[] doms = {0, 0, 0, 0, 1, 1, 1, 1};
+        var lb = stateful(new int[]{0, 0, 1, 1}, false, pids, loads, doms);
+        var migs = lb.balance();
+        assertFalse(migs.isEmpty());
+        assertTrue(migs.stream().allMatch(m -> m.toDom() >= 2), "moves must cross to node 1: " + migs);
+        assertTrue(lb.domainLoad(2) + lb.domainLoad(3) > 0);
+    }
+
+    @Test
+    void stateCarriesAcrossRounds() {
+        int[] pids = {1, 2, 3, 4};
+        double[] loads = {100, 100, 100, 100};
+        var lb = stateful(new int[]{0, 0}, false, pids, loads, new int[4]);
+        var first = lb.balance();
+        assertEquals(1, first.size());
+        int moved = first.get(0).pid();
+        assertEquals(1, lb.domainOf(moved), "migration is applied to the balancer's own state");
+
+        // Next tick: same loads reported against the new placement — balance converges further.
+        for (int pid : pids) lb.updateTask(pid, lb.domainOf(pid), 100, ALL, ALL, false);
+        var second = lb.balance();
+        assertEquals(1, second.size());
+        assertEquals(200.0, lb.domainLoad(0), 1e-9);
+        assertEquals(200.0, lb.domainLoad(1), 1e-9);
+        assertTrue(lb.balance().isEmpty(), "balanced state must be stable");
+
+        lb.removeTask(moved);
+        assertEquals(-1, lb.domainOf(moved));
+        assertEquals(3, lb.nrTasks());
+    }
+
+    @Test
+    void updateTaskRejectsUnknownDomain() {
+        var lb = new DomainLoadBalancer(new int[]{0, 0}, new DomainLoadBalancer.Options(false, false));
+        var e = assertThrows(IllegalArgumentException.class, () -> lb.updateTask(1, 2, 100, ALL, ALL, false));
+        assertTrue(e.getMessage().contains("no such domain: 2"), e.getMessage());
+        assertThrows(IllegalArgumentException.class, () -> lb.updateTask(1, -1, 100, ALL, ALL, false));
+        assertEquals(0, lb.nrTasks());
+    }
+
+    @Test
+    void parallelRoundMatchesSequentialRound() {
+        int n = 64;
+        int[] pids = new int[n];
+        double[] loads = new double[n];
+        int[] doms = new int[n];
+        var rnd = new Random(42);
+        for (int i = 0; i < n; i++) {
+            pids[i] = i + 1;
+            loads[i] = 10 + rnd.nextInt(90);
+            doms[i] = i % 3 == 0 ? 0 : (i % 3 == 1 ? 2 : 5);
+        }
+        int[] nodes = {0, 0, 0, 1, 1, 1, 2, 2};
+        var seq = stateful(nodes, false, pids, loads, doms).balance();
+        var par = stateful(nodes, true, pids, loads, doms).balance();
+        assertFalse(seq.isEmpty());
+        assertEquals(seq, par);
+    }
 }
@@ -0,0 +1,95 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.userspace;
+
+import me.bechberger.ebpf.bpf.QueuedTask;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Integration test for the event-driven framework-thread classification in
+ * {@link me.bechberger.ebpf.bpf.UserspaceSchedulerBase}: a thread the scheduler
+ * process starts after attach is put into {@code frameworkPids} by {@code initTask},
+ * and {@code exitTask} removes it again once the thread has exited, so a recycled PID
+ * is not classified as framework.
+ *
+ * <p>Attaches a real scheduler; skipped if the kernel has no sched_ext
+ * ({@code /sys/kernel/sched_ext}). The {@code /proc/self/task} rescan fallback stays
+ * off ({@link Opts#defaults()}), so only the BPF callbacks touch the map.
+ */
+public class FrameworkPidExitTest {
+
+    @Test
+    @Timeout(30)
+    void exitedFrameworkThreadIsNoLongerClassifiedAsFramework() throws Exception {
+        Assumptions.assumeTrue(Files.exists(Path.of("/sys/kernel/sched_ext")),
+                "sched_ext not available on this kernel (no /sys/kernel/sched_ext)");
+
+        var sched = new UserspaceScheduler() {
+            @Override
+            protected int policy(QueuedTask t) { return ANY_CPU; }
+        };
+        Thread runner = new Thread(() -> sched.runUntilExit(Opts.defaults()), "framework-pid-runner");
+        runner.setDaemon(true);
+        runner.start();
+        try {
+            long deadline = System.nanoTime() + 10_000_000_000L;
+            while (!sched.isAttached() && System.nanoTime() < deadline) Thread.sleep(50);
+            assertTrue(sched.isAttached(), "scheduler did not attach within 10s");
+
+            AtomicInteger tid = new AtomicInteger();
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            Thread worker = new Thread(() -> {
+                try {
+                    tid.set(Integer.parseInt(
+                            Path.of("/proc/thread-self").toRealPath().getFileName().toString()));
+                    started.countDown();
+                    release.await();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }, "framework-pid-worker");
+            worker.start();
+            started.await();
+
+            assertTrue(awaitFrameworkPid(sched, tid.get(), true),
+                    "initTask did not classify the new scheduler thread " + tid.get() + " as framework");
+
+            release.countDown();
+            worker.join();
+
+            assertTrue(awaitFrameworkPid(sched, tid.get(), false),
+                    "exitTask did not drop the exited thread " + tid.get() + " from frameworkPids");
+        } finally {
+            sched.requestExit();
+            runner.join(10_000);
+        }
+    }
+
+    /** Poll {@code frameworkPids} for up to 2 s until {@code pid} is (or is not) in it. */
+    private static boolean awaitFrameworkPid(UserspaceScheduler sched, int pid, boolean present)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + 2_000_000_000L;
+        do {
+            if (containsPid(sched, pid) == present) return true;
+            Thread.sleep(20);
+        } while (System.nanoTime() < deadline);
+        return false;
+    }
+
+    private static boolean containsPid(UserspaceScheduler sched, int pid) {
+        for (Map.Entry<Integer, Byte> e : sched.frameworkPidsIterable()) {
+            if (e.getKey() == pid) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,78 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.userspace;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+import static me.bechberger.ebpf.bpf.userspace.IdleCpuIndex.Level.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link IdleCpuIndex} on a synthetic 2-node machine: 256 CPUs, 2 SMT threads per core, 32 CPUs
+ * per LLC, 4 LLCs per node.
+ */
+class IdleCpuIndexTest {
+
+    private static final CpuTopology TOPO = CpuTopology.uniform(256, 2, 32, 4);
+
+    private static MemorySegment mask(Arena arena, int... idle) {
+        MemorySegment seg = arena.allocate(4096, 8);
+        for (int cpu : idle) {
+            long off = (long) (cpu / 64) * 8L;
+            seg.set(ValueLayout.JAVA_LONG, off, seg.get(ValueLayout.JAVA_LONG, off) | (1L << (cpu & 63)));
+        }
+        return seg;
+    }
+
+    @Test
+    void searchesOutwardFromPreviousCpu() {
+        var index = new IdleCpuIndex(TOPO);
+        try (var arena = Arena.ofConfined()) {
+            assertEquals(10, index.pick(mask(arena, 10, 11, 3, 40, 200), 10), "prev CPU itself");
+            assertEquals(11, index.pick(mask(arena, 11, 3, 40, 200), 10), "SMT sibling");
+            assertEquals(3, index.pick(mask(arena, 3, 40, 200), 10), "same LLC");
+            assertEquals(40, index.pick(mask(arena, 40, 200), 10), "same node");
+            assertEquals(200, index.pick(mask(arena, 200), 10), "other node");
+            assertEquals(-1, index.pick(mask(arena), 10));
+        }
+    }
+
+    @Test
+    void widestLevelBoundsTheSearch() {
+        var index = new IdleCpuIndex(TOPO);
+        try (var arena = Arena.ofConfined()) {
+            var idle = mask(arena, 40, 200);
+            assertEquals(-1, index.pick(idle, 10, LLC));
+            assertEquals(40, index.pick(idle, 10, NODE));
+            assertEquals(-1, index.pick(idle, 10, CORE));
+            assertEquals(40, index.pick(idle, -1), "unknown prev CPU searches everywhere from CPU 0");
+            assertEquals(-1, index.pick(idle, -1, NODE));
+        }
+    }
+
+    @Test
+    void scanWrapsWithinLevelStartingAfterPrev() {
+        var index = new IdleCpuIndex(TOPO);
+        try (var arena = Arena.ofConfined()) {
+            // LLC of CPU 20 is 0..31; idle 2 and 30 -> first after 20 is 30.
+            assertEquals(30, index.pick(mask(arena, 2, 30), 20));
+            // Only 2 idle -> wraps around inside the LLC.
+            assertEquals(2, index.pick(mask(arena, 2), 20));
+            // Node 1 spans words 2..3; from CPU 250 the wrap reaches 130.
+            assertEquals(130, index.pick(mask(arena, 130), 250));
+        }
+    }
+
+    @Test
+    void distanceNamesTheSharedLevel() {
+        var index = new IdleCpuIndex(TOPO);
+        assertEquals(CPU, index.distance(10, 10));
+        assertEquals(CORE, index.distance(10, 11));
+        assertEquals(LLC, index.distance(10, 3));
+        assertEquals(NODE, index.distance(10, 100));
+        assertEquals(ANY, index.distance(10, 200));
+    }
+}
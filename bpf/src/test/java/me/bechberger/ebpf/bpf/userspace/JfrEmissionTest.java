@@ -228,4 +228,154 @@ public class JfrEmissionTest {
         assertEquals(0, zeroSizeBatches,
                 "BatchEvent must NOT be emitted when drain returns 0 tasks");
     }
+
+    // ── Test 6: 1-in-N dispatch sampling ──────────────────────────────────────
+
+    @Test
+    @Timeout(5)
+    void dispatchEventsAreSampledOneInN() throws Exception {
+        int n = 8;
+        var sched = new JfrTestSched();
+        sched.opts.jfrDispatchSampling = 4;
+        for (int i = 0; i < n; i++) {
+            QueuedTask t = new QueuedTask();
+            t.pid = 600 + i;
+            t.enqCnt = 1;
+            sched.fakeTasks.add(t);
+        }
+
+        Path dump = tempDir.resolve("sampled.jfr");
+        try (var r = new Recording()) {
+            r.enable("hellobpf.userspace.Dispatch").withoutThreshold();
+            r.enable("hellobpf.userspace.Batch").withoutThreshold();
+            r.setDestination(dump);
+            r.start();
+            sched.drainBatchOnce();
+            r.stop();
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+        List<RecordedEvent> dispatches = events.stream()
+                .filter(ev -> ev.hasField("pid") && ev.getInt("pid") >= 600 && ev.getInt("pid") < 600 + n)
+                .toList();
+        assertEquals(n, sched.submittedPids.size(), "sampling must not skip dispatches");
+        assertEquals(2, dispatches.size(), "one DispatchEvent per 4 dispatches");
+        for (RecordedEvent ev : dispatches) {
+            assertEquals(4, ev.getInt("sampleWeight"));
+        }
+        List<RecordedEvent> batches = events.stream()
+                .filter(ev -> ev.hasField("size") && ev.getInt("size") == n)
+                .toList();
+        assertEquals(1, batches.size());
+        assertEquals(n, batches.get(0).getInt("dispatched"), "batch summary covers every dispatch");
+        assertEquals(2, batches.get(0).getInt("sampledDispatches"));
+    }
+
+    // ── Test 7: BatchEvent summarises outcomes and CPU spread ─────────────────
+
+    @Test
+    @Timeout(5)
+    void batchEventSummarisesOutcomesAndCpus() throws Exception {
+        var sched = new JfrTestSched() {
+            @Override
+            protected int policy(QueuedTask t) {
+                return t.pid % 2 == 0 ? 0 : ANY_CPU;
+            }
+
+            @Override
+            protected int submitDispatch(int targetCpu, int pid, long enqCnt, long sliceNs, long vtime) {
+                return switch (pid) {
+                    case 700 -> -1;    // ring full
+                    case 701 -> -22;   // any other failure
+                    default -> 0;
+                };
+            }
+        };
+        for (int i = 0; i < 5; i++) {
+            QueuedTask t = new QueuedTask();
+            t.pid = 700 + i;
+            t.enqCnt = 1;
+            sched.fakeTasks.add(t);
+        }
+
+        Path dump = tempDir.resolve("summary.jfr");
+        try (var r = new Recording()) {
+            r.enable("hellobpf.userspace.Batch").withoutThreshold();
+            r.setDestination(dump);
+            r.start();
+            sched.drainBatchOnce();
+            r.stop();
+        }
+
+        List<RecordedEvent> batches = RecordingFile.readAllEvents(dump).stream()
+                .filter(ev -> ev.getInt("size") == 5)
+                .toList();
+        assertEquals(1, batches.size());
+        RecordedEvent ev = batches.get(0);
+        assertEquals(3, ev.getInt("dispatched"));
+        assertEquals(1, ev.getInt("ringFull"));
+        assertEquals(1, ev.getInt("rejected"));
+        assertEquals(2, ev.getInt("anyCpu"), "odd pids are left to BPF");
+        assertEquals(1, ev.getInt("cpus"), "even pids all target CPU 0");
+        assertEquals(0, ev.getInt("sampledDispatches"), "DispatchEvent not enabled");
+    }
+
+    // ── Test 8: BatchEvent totals are exact with sharded workers ──────────────
+
+    @Test
+    @Timeout(10)
+    void batchEventTotalsAreExactWithWorkerThreads() throws Exception {
+        int n = 40_000;
+        var sched = new JfrTestSched() {
+            @Override
+            protected int policy(QueuedTask t) {
+                return t.pid % 2 == 0 ? (t.pid / 2) % 8 : ANY_CPU;
+            }
+
+            @Override
+            protected int submitDispatch(int targetCpu, int pid, long enqCnt, long sliceNs, long vtime) {
+                return switch (pid % 10) {
+                    case 1 -> -1;    // ring full
+                    case 3 -> -22;   // any other failure
+                    default -> 0;
+                };
+            }
+        };
+        sched.nrCpus = 8;
+        sched.opts.workerThreads = 4;
+        sched.opts.jfrDispatchSampling = 100;
+        for (int i = 0; i < n; i++) {
+            QueuedTask t = new QueuedTask();
+            t.pid = 10_000 + i;
+            t.enqCnt = 1;
+            sched.fakeTasks.add(t);
+        }
+
+        Path dump = tempDir.resolve("sharded.jfr");
+        try (var r = new Recording()) {
+            r.enable("hellobpf.userspace.Batch").withoutThreshold();
+            r.enable("hellobpf.userspace.Dispatch").withoutThreshold();
+            r.setDestination(dump);
+            r.start();
+            sched.drainBatchOnce();
+            r.stop();
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+        List<RecordedEvent> batches = events.stream()
+                .filter(ev -> ev.hasField("size") && ev.getInt("size") == n)
+                .toList();
+        assertEquals(1, batches.size());
+        RecordedEvent ev = batches.get(0);
+        assertEquals(n * 8 / 10, ev.getInt("dispatched"));
+        assertEquals(n / 10, ev.getInt("ringFull"));
+        assertEquals(n / 10, ev.getInt("rejected"));
+        assertEquals(n / 2, ev.getInt("anyCpu"), "odd pids are left to BPF");
+        assertEquals(8, ev.getInt("cpus"), "even pids spread over all 8 CPUs");
+        long sampled = events.stream()
+                .filter(e -> e.hasField("pid") && e.getInt("pid") >= 10_000 && e.getInt("pid") < 10_000 + n)
+                .count();
+        assertTrue(sampled > 0);
+        assertEquals(sampled, ev.getInt("sampledDispatches"), "every committed DispatchEvent is counted");
+    }
 }
@@ -0,0 +1,104 @@
+package me.bechberger.ebpf.bpf.userspace;
+
+import me.bechberger.ebpf.bpf.userspace.Signal.SignalKind;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JvmSignalsTest {
+
+    private static final int JVM = 4242;
+    private static final int VM_THREAD = 4250;
+
+    private static Signal sig(int kind, int tid, long payload, long ts) {
+        return new Signal(kind, tid, payload, ts);
+    }
+
+    @Test
+    void safepointOpensAndClosesPause() {
+        var js = new JvmSignals();
+        js.watch(JVM, "/opt/jdk/lib/server/libjvm.so");
+
+        assertTrue(js.accept(sig(SignalKind.JVM_SAFEPOINT_BEGIN, VM_THREAD, JVM, 1_000)));
+        assertTrue(js.inPause(JVM));
+        assertTrue(js.anyPause());
+        assertEquals(VM_THREAD, js.vmThread(JVM));
+
+        js.accept(sig(SignalKind.JVM_SAFEPOINT_END, VM_THREAD, JVM, 4_000));
+        assertFalse(js.inPause(JVM));
+        assertFalse(js.anyPause());
+        assertEquals(3_000, js.state(JVM).lastPauseNs());
+        assertEquals(1, js.state(JVM).pauses());
+    }
+
+    @Test
+    void gcBeginCarriesFullFlag() {
+        var js = new JvmSignals();
+        js.watch(JVM, null);
+        js.accept(sig(SignalKind.JVM_GC_BEGIN, VM_THREAD, JVM | (1L << 32), 10));
+        assertTrue(js.state(JVM).inGc());
+        assertTrue(js.state(JVM).fullGc());
+        assertTrue(js.inPause(JVM));
+        js.accept(sig(SignalKind.JVM_GC_END, VM_THREAD, JVM, 20));
+        assertFalse(js.inPause(JVM));
+        assertEquals(1, js.state(JVM).gcs());
+    }
+
+    @Test
+    void compilerThreadsTrackedPerTid() {
+        var js = new JvmSignals();
+        js.watch(JVM, null);
+        js.accept(sig(SignalKind.JVM_COMPILE_BEGIN, 4300, JVM, 1));
+        js.accept(sig(SignalKind.JVM_COMPILE_BEGIN, 4301, JVM, 2));
+        js.accept(sig(SignalKind.JVM_COMPILE_END, 4300, JVM, 3));
+        assertFalse(js.isCompiling(JVM, 4300));
+        assertTrue(js.isCompiling(JVM, 4301));
+        assertFalse(js.inPause(JVM), "JIT activity is not a pause");
+    }
+
+    @Test
+    void unmatchedEndAndDuplicateBeginKeepPauseCountConsistent() {
+        var js = new JvmSignals();
+        js.watch(JVM, null);
+        js.accept(sig(SignalKind.JVM_SAFEPOINT_END, VM_THREAD, JVM, 1));   // attached mid-pause
+        assertFalse(js.anyPause());
+        js.accept(sig(SignalKind.JVM_SAFEPOINT_BEGIN, VM_THREAD, JVM, 2));
+        js.accept(sig(SignalKind.JVM_SAFEPOINT_BEGIN, VM_THREAD, JVM, 3));
+        js.accept(sig(SignalKind.JVM_SAFEPOINT_END, VM_THREAD, JVM, 4));
+        assertFalse(js.anyPause());
+    }
+
+    @Test
+    void ignoresOtherKindsAndUnwatchedJvms() {
+        var js = new JvmSignals();
+        js.watch(JVM, null);
+        assertFalse(js.accept(sig(SignalKind.CPU_IDLE, 1, JVM, 0)));
+        assertFalse(js.accept(sig(SignalKind.JVM_SAFEPOINT_BEGIN, 1, 9999, 0)));
+        assertFalse(js.anyPause());
+        assertEquals(-1, js.vmThread(9999));
+    }
+
+    @Test
+    void exitedJvmIsForgottenWithItsPause() {
+        var js = new JvmSignals();
+        js.watch(JVM, null);
+        js.watch(JVM + 1, null);
+        js.accept(sig(SignalKind.JVM_SAFEPOINT_BEGIN, VM_THREAD, JVM, 1));
+        js.accept(sig(SignalKind.JVM_GC_BEGIN, VM_THREAD, JVM, 2));
+        assertTrue(js.anyPause());
+
+        assertEquals(1, js.forgetExited(pid -> pid != JVM));
+        assertFalse(js.anyPause(), "the exited JVM's pause must not hold back batch work");
+        assertFalse(js.inPause(JVM));
+        assertEquals(Set.of(JVM + 1), js.watched());
+        assertFalse(js.accept(sig(SignalKind.JVM_SAFEPOINT_END, VM_THREAD, JVM, 3)));
+        assertEquals(0, js.forgetExited(pid -> true));
+    }
+
+    @Test
+    void currentProcessIsAlive() {
+        assertTrue(JvmSignals.isAlive((int) ProcessHandle.current().pid()));
+    }
+}
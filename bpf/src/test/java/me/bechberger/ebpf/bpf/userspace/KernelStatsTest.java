@@ -0,0 +1,172 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.userspace;
+
+import com.sun.management.ThreadMXBean;
+import me.bechberger.ebpf.bpf.UserspaceSchedulerBase;
+import me.bechberger.ebpf.bpf.UserspaceSchedulerBase.Stats;
+import org.junit.jupiter.api.Test;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link KernelStats} summing a heap segment laid out like the BPF per-CPU stats rows, and
+ * {@link UserspaceScheduler#stats()} reading through it.
+ */
+class KernelStatsTest {
+
+    private static final int ROW_BYTES = UserspaceSchedulerBase.STATS_ROW_SLOTS * Long.BYTES;
+
+    private static MemorySegment rows(int nrCpus) {
+        return MemorySegment.ofArray(new long[nrCpus * UserspaceSchedulerBase.STATS_ROW_SLOTS]);
+    }
+
+    private static void add(MemorySegment rows, int cpu, int slot, long delta) {
+        long off = (long) cpu * ROW_BYTES + (long) (slot - 1) * Long.BYTES;
+        rows.set(ValueLayout.JAVA_LONG, off, rows.get(ValueLayout.JAVA_LONG, off) + delta);
+    }
+
+    @Test
+    void sumsEachSlotOverAllCpuRows() {
+        var seg = rows(4);
+        add(seg, 0, Stats.NR_QUEUED, 3);
+        add(seg, 3, Stats.NR_QUEUED, 4);
+        add(seg, 2, Stats.PREEMPTS_ISSUED, 5);
+        add(seg, 1, Stats.PREEMPT_UNRESOLVED, 1);
+
+        var k = new KernelStats(4).refresh(seg);
+        assertEquals(7, k.ringEnqueued());
+        assertEquals(5, k.preemptsIssued());
+        assertEquals(1, k.get(Stats.PREEMPT_UNRESOLVED));
+        assertEquals(0, k.kicksIssued());
+        assertEquals(0, k.get(0));
+        assertEquals(0, k.get(UserspaceSchedulerBase.STATS_ROW_SLOTS + 1));
+    }
+
+    @Test
+    void gaugeRowsMayGoNegativeButSumHolds() {
+        // a task starts running on CPU 0 and stops on CPU 1
+        var seg = rows(2);
+        add(seg, 0, Stats.RUNNING_TASKS, 1);
+        add(seg, 1, Stats.RUNNING_TASKS, -1);
+        add(seg, 1, Stats.RUNNING_TASKS, 1);
+        assertEquals(1, new KernelStats(2).refresh(seg).runningTasks());
+    }
+
+    @Test
+    void onlyReadsRowsOfPossibleCpus() {
+        var seg = rows(8);
+        add(seg, 1, Stats.KICKS_ISSUED, 2);
+        add(seg, 6, Stats.KICKS_ISSUED, 100);   // never written by a 4-CPU kernel
+        assertEquals(2, new KernelStats(4).refresh(seg).kicksIssued());
+        // a segment shorter than nrCpus rows is read up to its end
+        assertEquals(102, new KernelStats(64).refresh(seg).kicksIssued());
+    }
+
+    @Test
+    void refreshReusesTotalsAndKeepsThemWithoutSegment() {
+        var seg = rows(2);
+        var k = new KernelStats(2);
+        add(seg, 0, Stats.SIGNALS_DELIVERED, 1);
+        assertSame(k, k.refresh(seg));
+        assertEquals(1, k.signalsDelivered());
+        add(seg, 1, Stats.SIGNALS_DELIVERED, 2);
+        assertEquals(3, k.refresh(seg).signalsDelivered());
+        assertEquals(3, k.refresh(null).signalsDelivered(), "detached: last totals stay");
+    }
+
+    @Test
+    void refreshedReturnsImmutableSnapshot() {
+        var seg = rows(2);
+        var k = new KernelStats(2);
+        add(seg, 0, Stats.SIGNALS_DELIVERED, 1);
+        var snap = k.refreshed(seg);
+        assertTrue(snap.isImmutable());
+        assertEquals(0, k.signalsDelivered(), "refreshed() leaves the source unchanged");
+        assertEquals(1, snap.signalsDelivered());
+        add(seg, 1, Stats.SIGNALS_DELIVERED, 2);
+        assertEquals(1, snap.signalsDelivered(), "snapshots do not change");
+        assertEquals(3, snap.refreshed(seg).signalsDelivered());
+        assertSame(snap, snap.refreshed(null), "detached: last totals stay");
+        assertThrows(IllegalStateException.class, () -> snap.refresh(seg));
+        assertThrows(IllegalStateException.class, () -> snap.set(k));
+
+        k.refresh(seg);
+        var copy = k.snapshot();
+        assertEquals(3, copy.signalsDelivered());
+        assertEquals(3, new KernelStats(2).set(copy).signalsDelivered());
+    }
+
+    @Test
+    void sumReadsOneSlot() {
+        var seg = rows(4);
+        add(seg, 1, Stats.KICKS_ISSUED, 2);
+        add(seg, 3, Stats.KICKS_ISSUED, 5);
+        assertEquals(7, KernelStats.sum(seg, 4, Stats.KICKS_ISSUED));
+        assertEquals(2, KernelStats.sum(seg, 2, Stats.KICKS_ISSUED));
+        assertEquals(0, KernelStats.sum(seg, 4, 0));
+    }
+
+    @Test
+    void parsesPossibleCpuList() {
+        assertEquals(0, KernelStats.parseCpuListMax("0\n"));
+        assertEquals(127, KernelStats.parseCpuListMax("0-127\n"));
+        assertEquals(11, KernelStats.parseCpuListMax("0-3,8,10-11"));
+        assertThrows(IllegalArgumentException.class, () -> KernelStats.parseCpuListMax(""));
+        assertThrows(IllegalArgumentException.class, () -> new KernelStats(0));
+    }
+
+    @Test
+    void schedulerStatsReadTheMappedRows() {
+        // the scheduler sums the rows of this host's possible CPUs; CPU 0 always is one
+        var seg = rows(1);
+        var sched = new FakeSchedulerBase() {
+            @Override protected MemorySegment statsView() { return seg; }
+        };
+        assertEquals(SchedStatsSnapshot.ZERO, sched.stats());
+        add(seg, 0, Stats.NR_QUEUED, 2);
+        add(seg, 0, Stats.CONGESTION_EVENTS, 1);
+        add(seg, 0, Stats.KERNEL_DISPATCHES, 4);
+        add(seg, 0, Stats.HEARTBEAT_KICKS, 3);
+        add(seg, 0, Stats.PREEMPTS_ISSUED, 6);
+        assertEquals(new SchedStatsSnapshot(2, 1, 0, 0, 0, 0, 4, 3), sched.stats());
+        assertEquals(6, sched.preemptsIssued());
+        var before = sched.kernelStats();
+        add(seg, 0, Stats.PREEMPTS_ISSUED, 1);
+        assertEquals(7, sched.preemptsIssued());
+        assertEquals(6, before.preemptsIssued(), "earlier snapshots are not refreshed");
+        assertEquals(7, sched.kernelStats().preemptsIssued());
+
+        var mine = new KernelStats();
+        assertSame(mine, sched.kernelStats(mine));
+        assertEquals(7, mine.preemptsIssued());
+        add(seg, 0, Stats.PREEMPTS_ISSUED, 1);
+        assertEquals(8, sched.kernelStats(mine).preemptsIssued(), "refreshed in place");
+    }
+
+    @Test
+    void pollingIntoOwnedStatsDoesNotAllocate() {
+        var seg = rows(1);
+        add(seg, 0, Stats.KICKS_ISSUED, 1);
+        var sched = new FakeSchedulerBase() {
+            @Override protected MemorySegment statsView() { return seg; }
+        };
+        var mine = new KernelStats();
+        // short warm-up (class loading only): escape analysis in C2 could hide a regression
+        for (int i = 0; i < 100; i++) sched.kernelStats(mine);
+        if (!(ManagementFactory.getThreadMXBean() instanceof ThreadMXBean thread)
+                || !thread.isThreadAllocatedMemorySupported()) {
+            return; // platform doesn't expose per-thread allocation counters
+        }
+        long tid = Thread.currentThread().threadId();
+        long before = thread.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < 10_000; i++) sched.kernelStats(mine);
+        long perCall = (thread.getThreadAllocatedBytes(tid) - before) / 10_000;
+        // an immutable snapshot per call would be an object plus a long[] of all slots
+        assertTrue(perCall < 16, "kernelStats(dst) allocated " + perCall + " B/call");
+        assertEquals(1, mine.kicksIssued());
+    }
+}
@@ -0,0 +1,47 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.userspace;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class Log2HistogramTest {
+
+    @Test
+    void bucketsByPowerOfTwo() {
+        var h = new Log2Histogram();
+        h.add(0);
+        h.add(3);       // bucket 2 -> upper bound 4
+        h.add(1000);    // bucket 10 -> upper bound 1024
+        assertEquals(3, h.totalCount());
+        assertEquals(0, h.percentile(0.0));
+        assertEquals(4, h.percentile(0.5));
+        assertEquals(1024, h.percentile(1.0));
+    }
+
+    @Test
+    void emptyHistogramReportsZero() {
+        var h = new Log2Histogram();
+        assertEquals(0, h.totalCount());
+        assertEquals(0, h.percentile(0.99));
+    }
+
+    @Test
+    void concurrentAddsAreNotLost() throws Exception {
+        var h = new Log2Histogram();
+        int threads = 4, perThread = 10_000;
+        List<Thread> workers = new ArrayList<>();
+        for (int w = 0; w < threads; w++) {
+            Thread t = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) h.add(i);
+            });
+            workers.add(t);
+            t.start();
+        }
+        for (Thread t : workers) t.join();
+        assertEquals((long) threads * perThread, h.totalCount(), "no sample may be dropped without a lock");
+    }
+}
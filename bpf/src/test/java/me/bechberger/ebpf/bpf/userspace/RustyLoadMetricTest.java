@@ -56,4 +56,20 @@ class RustyLoadMetricTest {
                 "dormant task must decay far below its busy load; busy=" + busyLoad
                         + " decayed=" + decayed);
     }
+
+    @Test
+    void totalDutyCycleSumsWithoutMovingSamplePoints() {
+        var tr = new RustyLoadTracker(HALF_LIFE_NS);
+        long now = 0;
+        for (int i = 0; i < 50; i++) {
+            now += 100 * MS;
+            tr.onEnqueue(1, now, now);            // 100% busy
+            tr.onEnqueue(2, now / 10, now);       // 10% busy
+        }
+        double total = tr.totalDutyCycle(now);
+        assertEquals(tr.dutyCycle(1, now) + tr.dutyCycle(2, now), total, 1e-9);
+        assertTrue(total > 1.0 && total < 1.2, "about 1.1 CPUs of work; was " + total);
+        tr.totalDutyCycle(now + HALF_LIFE_NS);
+        assertEquals(HALF_LIFE_NS, tr.nanosSinceSeen(1, now + HALF_LIFE_NS), "read must not move the sample point");
+    }
 }
@@ -0,0 +1,95 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.userspace;
+
+import me.bechberger.ebpf.bpf.QueuedTask;
+import me.bechberger.ebpf.bpf.userspace.SimWorkload.Dist;
+import me.bechberger.ebpf.bpf.userspace.SimWorkload.TaskGroup;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs small policies through {@link SchedulerSimulator}: results must be deterministic per seed,
+ * bounded, and react to the policy (a policy that never dispatches relies on the stall fallback).
+ */
+class SchedulerSimulatorTest {
+
+    static final class AnySched extends UserspaceScheduler {
+        @Override protected int policy(QueuedTask t) { return ANY_CPU; }
+    }
+
+    /** Pins everything to CPU 0. */
+    static final class PinSched extends UserspaceScheduler {
+        @Override protected int policy(QueuedTask t) { return 0; }
+    }
+
+    static final class DropSched extends UserspaceScheduler {
+        @Override protected void schedule(QueuedTask[] tasks, int count) {}
+    }
+
+    /** Bypasses dispatchTask's range check and submits to a CPU the machine doesn't have. */
+    static final class OutOfRangeSched extends UserspaceScheduler {
+        @Override protected void schedule(QueuedTask[] tasks, int count) {
+            for (int i = 0; i < count; i++) {
+                submitDispatch(cpuCount(), tasks[i].pid, tasks[i].enqCnt, 0, tasks[i].vtime);
+            }
+        }
+    }
+
+    private static final SimWorkload MIXED = SimWorkload.of("mixed",
+            new TaskGroup("web", 16, Dist.exponential(200_000), Dist.exponential(1_000_000), 100),
+            new TaskGroup("batch", 2, Dist.fixed(20_000_000), Dist.fixed(0), 100));
+
+    private static SchedulerSimulator sim() {
+        return SchedulerSimulator.forTopology(CpuTopology.uniform(4, 2))
+                .withDuration(Duration.ofMillis(200)).withSeed(42);
+    }
+
+    @Test
+    void sameSeedGivesSameReport() {
+        var a = sim().run(AnySched::new, MIXED);
+        var b = sim().run(AnySched::new, MIXED);
+        assertEquals(a.toString(), b.toString());
+        assertTrue(a.bursts() > 0);
+        assertTrue(a.utilisation() > 0 && a.utilisation() <= 1.0, "utilisation " + a.utilisation());
+        assertTrue(a.fairness() > 0 && a.fairness() <= 1.0, "fairness " + a.fairness());
+        assertEquals(0, a.stallFallbacks());
+    }
+
+    @Test
+    void pinningToOneCpuCostsLatencyAndUtilisation() {
+        var any = sim().run(AnySched::new, MIXED);
+        var pin = sim().run(PinSched::new, MIXED);
+        assertTrue(pin.utilisation() <= 0.25 + 1e-9, "one of four CPUs busy at most: " + pin.utilisation());
+        assertTrue(pin.latencyP99() > any.latencyP99(), pin + " vs " + any);
+    }
+
+    @Test
+    void undispatchedTasksFallBackAfterStall() {
+        var r = sim().run(DropSched::new, MIXED);
+        assertEquals(0, r.dispatches());
+        assertTrue(r.stallFallbacks() > 0);
+        assertTrue(r.latencyP50() >= SchedulerSimulator.STALL_FALLBACK_NS);
+    }
+
+    @Test
+    void outOfRangeCpuIsRejected() {
+        var e = assertThrows(IllegalArgumentException.class, () -> sim().run(OutOfRangeSched::new, MIXED));
+        assertTrue(e.getMessage().contains("is out of range"), e.getMessage());
+    }
+
+    @Test
+    void runAllKeepsJobOrder() {
+        var s = sim();
+        var reports = SchedulerSimulator.runAll(List.of(
+                new SchedulerSimulator.Job("any", s, AnySched::new, MIXED),
+                new SchedulerSimulator.Job("pin", s, PinSched::new, MIXED),
+                new SchedulerSimulator.Job("any2", s, AnySched::new, MIXED)), 3);
+        assertEquals(List.of("any", "pin", "any2"), reports.stream().map(SimReport::label).toList());
+        assertEquals(reports.get(0).toString().substring(3), reports.get(2).toString().substring(4),
+                "parallel runs are independent and deterministic");
+    }
+}
@@ -51,4 +51,20 @@ class SignalDeliveryTest {
             assertEquals(42, sched.seen.get(1).payload());
         }
     }
+
+    @Test
+    void jvmSignalsFoldedBeforeOnSignal() {
+        try (Arena a = Arena.ofConfined()) {
+            TestSched sched = new TestSched();
+            sched.watchJvm(77, "/opt/jdk/lib/server/libjvm.so");   // no BPF handle: only registers
+            sched.pending.add(sig(a, Signal.SignalKind.JVM_SAFEPOINT_BEGIN, 80, 77, 100));
+
+            sched.drainSignalsOnce();
+
+            assertEquals(1, sched.seen.size(), "JVM signals still reach onSignal");
+            assertEquals(77, JvmSignals.jvmPid(sched.seen.get(0)));
+            assertTrue(sched.jvmSignals().inPause(77));
+            assertEquals(80, sched.jvmSignals().vmThread(77));
+        }
+    }
 }
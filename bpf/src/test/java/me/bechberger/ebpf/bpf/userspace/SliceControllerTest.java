@@ -0,0 +1,184 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.userspace;
+
+import me.bechberger.ebpf.bpf.QueuedTask;
+import me.bechberger.ebpf.bpf.userspace.SimWorkload.Dist;
+import me.bechberger.ebpf.bpf.userspace.SimWorkload.TaskGroup;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link SliceController} plumbing through the offline dispatch path, the shape of
+ * {@link AdaptiveSliceController}'s slices, and a latency/throughput comparison against fixed
+ * slices in {@link SchedulerSimulator}.
+ */
+class SliceControllerTest {
+
+    static final class AnySched extends UserspaceScheduler {
+        @Override protected int policy(QueuedTask t) { return ANY_CPU; }
+    }
+
+    private static QueuedTask task(int pid) {
+        var t = new QueuedTask();
+        t.pid = pid; t.prevCpu = -1; t.weight = 100;
+        return t;
+    }
+
+    @Test
+    void withoutControllerDispatchesUseBpfDefault() {
+        var h = SchedulerHarness.forScheduler(new AnySched()).withCpus(4);
+        h.feed(task(1)).runBatch();
+        assertEquals(0L, h.dispatches().get(0).sliceNs());
+    }
+
+    @Test
+    void controllerSliceReachesDispatch() {
+        var o = Opts.defaults();
+        o.sliceController = SliceController.fixed(2_000_000L);
+        var h = SchedulerHarness.forScheduler(new AnySched()).withCpus(4).withOpts(o);
+        h.feed(task(1), task(2)).runBatch();
+        assertEquals(2, h.dispatches().size());
+        h.dispatches().forEach(d -> assertEquals(2_000_000L, d.sliceNs()));
+        assertThrows(IllegalArgumentException.class, () -> SliceController.fixed(0));
+    }
+
+    @Test
+    void adaptiveSlicesFollowLoadAndDutyCycle() {
+        var c = new AdaptiveSliceController(new RustyLoadTracker(100_000_000L));
+        var idle = SliceController.Context.of(0, 1, 4, 8);
+        var busy = SliceController.Context.of(0, 16, 0, 8);
+        assertEquals(AdaptiveSliceController.DEFAULT_MAX_SLICE_NS, c.sliceFor(1.0, 100, 0.2, idle),
+                "nothing waits: CPU-bound tasks keep the whole maximum slice");
+        long hogBusy = c.sliceFor(1.0, 100, 0.9, busy);
+        long interactiveBusy = c.sliceFor(0.05, 100, 0.9, busy);
+        assertTrue(hogBusy < AdaptiveSliceController.DEFAULT_MAX_SLICE_NS, "contention shrinks slices");
+        assertTrue(interactiveBusy < hogBusy, interactiveBusy + " vs " + hogBusy);
+        assertTrue(c.sliceFor(1.0, 100, 4.0, busy) < hogBusy, "more load, shorter slices");
+        assertEquals(2 * c.sliceFor(0.5, 100, 0.9, busy), c.sliceFor(0.5, 200, 0.9, busy), 1);
+        assertEquals(AdaptiveSliceController.DEFAULT_MIN_SLICE_NS, c.sliceFor(0.0, 1, 50.0, busy));
+    }
+
+    @Test
+    void adaptiveFeedsItsTracker() {
+        var tracker = new RustyLoadTracker(100_000_000L);
+        var c = new AdaptiveSliceController(tracker);
+        var t = task(7);
+        c.sliceNs(t, SliceController.Context.of(0, 1, 0, 4));
+        t.execRuntime = 9_000_000L;
+        c.sliceNs(t, SliceController.Context.of(10_000_000L, 1, 0, 4));
+        assertTrue(tracker.tracks(7));
+        assertTrue(tracker.dutyCycle(7, 10_000_000L) > 0);
+    }
+
+    @Test
+    void adaptiveKeepsOneTrackerPerWorker() throws Exception {
+        int workers = 4;
+        var tracker = new RustyLoadTracker(100_000_000L);
+        var c = new AdaptiveSliceController(tracker);
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> failures = new CopyOnWriteArrayList<>();
+        for (int w = 0; w < workers; w++) {
+            int worker = w;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int round = 0; round < 200; round++) {
+                        var ctx = SliceController.Context.of(round * 1_000_000L, 8, 0, 4, workers);
+                        for (int pid = 1; pid <= 64; pid++) {
+                            if (UserspaceScheduler.workerForPid(pid, workers) != worker) continue;
+                            var t = task(pid);
+                            t.execRuntime = round * 500_000L;
+                            assertTrue(c.sliceNs(t, ctx) > 0);
+                        }
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) thread.join();
+        assertEquals(List.of(), failures);
+        for (int pid = 1; pid <= 64; pid++) {
+            assertTrue(c.trackerFor(pid, workers).tracks(pid), "pid " + pid);
+            assertEquals(UserspaceScheduler.workerForPid(pid, workers) == 0, tracker.tracks(pid),
+                    "the given tracker holds the first worker's pids, pid " + pid);
+        }
+    }
+
+    @Test
+    void adaptiveLoadSumsAllWorkers() {
+        var c = new AdaptiveSliceController(new RustyLoadTracker(100_000_000L));
+        int workers = 2;
+        // a CPU-bound task per worker: both count towards the load on one CPU
+        for (int step = 0; step <= 100; step++) {
+            for (int pid = 1; pid <= 2; pid++) {
+                var t = task(pid);
+                t.execRuntime = step * 20_000_000L;
+                c.sliceNs(t, SliceController.Context.of(step * 20_000_000L, 1, 1, 1, workers));
+            }
+        }
+        assertNotEquals(UserspaceScheduler.workerForPid(1, workers), UserspaceScheduler.workerForPid(2, workers));
+        var t = task(1);
+        t.execRuntime = 101 * 20_000_000L;
+        long slice = c.sliceNs(t, SliceController.Context.of(101 * 20_000_000L, 1, 1, 1, workers));
+        assertTrue(slice < AdaptiveSliceController.DEFAULT_MAX_SLICE_NS,
+                "two CPU-bound tasks on one CPU shrink the slice, got " + slice);
+    }
+
+    @Test
+    void harnessDispatchKeepsTwoArgumentConstructor() {
+        assertEquals(new SchedulerHarness.Dispatch(3, 42, 0L), new SchedulerHarness.Dispatch(3, 42));
+    }
+
+    // ── benchmarks: latency under overload, round trips when underloaded ──────
+
+    private static final SimWorkload OVERLOADED = SimWorkload.of("overloaded",
+            new TaskGroup("api", 32, Dist.exponential(300_000), Dist.exponential(2_000_000), 100),
+            new TaskGroup("batch", 6, Dist.fixed(100_000_000), Dist.fixed(0), 100));
+
+    private static final SimWorkload UNDERLOADED = SimWorkload.of("underloaded",
+            new TaskGroup("api", 8, Dist.exponential(200_000), Dist.exponential(5_000_000), 100),
+            new TaskGroup("batch", 2, Dist.fixed(100_000_000), Dist.fixed(0), 100));
+
+    private static SchedulerSimulator sim() {
+        return SchedulerSimulator.forTopology(CpuTopology.uniform(4, 4))
+                .withDuration(Duration.ofSeconds(1)).withSeed(7);
+    }
+
+    private static SchedulerSimulator adaptive() {
+        return sim().withSliceController(() -> new AdaptiveSliceController(new RustyLoadTracker(50_000_000L)));
+    }
+
+    /** Print the compared runs as {@code BENCH slice ...} lines when {@code BENCH=1} is set. */
+    private static void report(Object... runs) {
+        if (!"1".equals(System.getenv("BENCH"))) return;
+        for (Object run : runs) System.err.println("BENCH slice " + run);
+    }
+
+    @Test
+    void adaptiveCutsTailLatencyUnderOverload() {
+        var fixedDefault = sim().run(AnySched::new, OVERLOADED);
+        var fixedLong = sim().withSliceNanos(AdaptiveSliceController.DEFAULT_MAX_SLICE_NS).run(AnySched::new, OVERLOADED);
+        var adapt = adaptive().run(AnySched::new, OVERLOADED);
+        report(fixedDefault, fixedLong, adapt);
+        assertTrue(adapt.latencyP99() < fixedDefault.latencyP99(), adapt + " vs " + fixedDefault);
+        assertTrue(adapt.throughputPerSec() > fixedDefault.throughputPerSec(), adapt + " vs " + fixedDefault);
+        assertTrue(adapt.latencyP99() < fixedLong.latencyP99(), adapt + " vs " + fixedLong);
+    }
+
+    @Test
+    void adaptiveSavesRoundTripsWhenUnderloaded() {
+        var fixedDefault = sim().run(AnySched::new, UNDERLOADED);
+        var adapt = adaptive().run(AnySched::new, UNDERLOADED);
+        report(fixedDefault, adapt);
+        assertTrue(adapt.dispatches() < fixedDefault.dispatches(), adapt + " vs " + fixedDefault);
+        assertEquals(fixedDefault.throughputPerSec(), adapt.throughputPerSec(), fixedDefault.throughputPerSec() * 0.02);
+        assertTrue(adapt.latencyP99() <= fixedDefault.latencyP99(), adapt + " vs " + fixedDefault);
+    }
+}
@@ -0,0 +1,133 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.userspace;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link SmtPlacement} on a synthetic machine of 16 CPUs: 2 SMT threads per core (0/1, 2/3, ...),
+ * 8 CPUs per LLC, 1 node.
+ */
+class SmtPlacementTest {
+
+    private static final CpuTopology TOPO = CpuTopology.uniform(16, 2, 8, 1);
+
+    private static MemorySegment mask(Arena arena, int... idle) {
+        MemorySegment seg = arena.allocate(4096, 8);
+        for (int cpu : idle) {
+            long off = (long) (cpu / 64) * 8L;
+            seg.set(ValueLayout.JAVA_LONG, off, seg.get(ValueLayout.JAVA_LONG, off) | (1L << (cpu & 63)));
+        }
+        return seg;
+    }
+
+    @Test
+    void topologyListsSiblings() {
+        assertArrayEquals(new int[]{1}, TOPO.siblingsOf(0));
+        assertArrayEquals(new int[]{4}, TOPO.siblingsOf(5));
+        assertEquals(2, TOPO.maxThreadsPerCore());
+        assertArrayEquals(new int[0], CpuTopology.uniform(4, 4).siblingsOf(2));
+        assertEquals(1, CpuTopology.uniform(4, 4).maxThreadsPerCore());
+    }
+
+    @Test
+    void prefersFullyIdleCoreOverIdlePrevCpu() {
+        var smt = new SmtPlacement(TOPO);
+        try (var arena = Arena.ofConfined()) {
+            // prev CPU 2 is idle but its sibling 3 is busy; core 6/7 is fully idle
+            var idle = mask(arena, 2, 6, 7);
+            assertEquals(6, smt.pick(idle, 2, false));
+            assertEquals(2, smt.pick(mask(arena, 2, 3, 6, 7), 2, false), "prev core idle: stay");
+            assertEquals(12, smt.pick(mask(arena, 2, 12, 13), 2, false), "idle core in another LLC");
+        }
+    }
+
+    @Test
+    void noisyTaskAvoidsBusySiblings() {
+        var smt = new SmtPlacement(TOPO);
+        try (var arena = Arena.ofConfined()) {
+            // no idle core: CPU 2 (sibling 3 busy) and CPU 5 (sibling 4 busy)
+            var idle = mask(arena, 2, 5);
+            smt.noteDispatch(4, true);
+            assertEquals(2, smt.pick(idle, 2, true), "any busy sibling conflicts; none is free");
+            assertEquals(2, smt.pick(idle, 4, false), "quiet task skips the noisy CPU 4's sibling 5");
+            assertEquals(5, smt.pick(idle, 5, true), "falls back to any idle CPU");
+        }
+    }
+
+    @Test
+    void quietTaskAvoidsNoisySibling() {
+        var smt = new SmtPlacement(TOPO);
+        try (var arena = Arena.ofConfined()) {
+            var idle = mask(arena, 1, 9);
+            smt.noteDispatch(0, true);
+            assertTrue(smt.runsNoisy(idle, 0));
+            assertEquals(9, smt.pick(idle, 1, false));
+            smt.noteDispatch(0, false);
+            assertEquals(1, smt.pick(idle, 1, false), "mark replaced by a quiet task");
+        }
+    }
+
+    @Test
+    void noisyMarkExpiresWhenCpuGoesIdle() {
+        var smt = new SmtPlacement(TOPO);
+        try (var arena = Arena.ofConfined()) {
+            smt.noteDispatch(0, true);
+            var idle = mask(arena, 0, 1);
+            assertFalse(smt.runsNoisy(idle, 0));
+            assertEquals(1, smt.pick(idle, 1, false));
+        }
+    }
+
+    @Test
+    void exposesCoreLevelIdleMask() {
+        var smt = new SmtPlacement(TOPO);
+        try (var arena = Arena.ofConfined()) {
+            var idle = mask(arena, 0, 1, 2, 6, 7, 15);
+            var cores = smt.idleCores(idle, new CpuSet(16));
+            assertEquals(CpuSet.of(16, 0, 1, 6, 7), cores);
+            assertTrue(smt.isCoreIdle(idle, 7));
+            assertFalse(smt.isCoreIdle(idle, 2));
+            assertTrue(smt.idleCores(null, cores).isEmpty());
+        }
+    }
+
+    @Test
+    void unknownPrevCpuAndEmptyMask() {
+        var smt = new SmtPlacement(TOPO);
+        try (var arena = Arena.ofConfined()) {
+            assertEquals(10, smt.pick(mask(arena, 3, 10, 11), -1, false));
+            assertEquals(-1, smt.pick(mask(arena), 4, true));
+            assertEquals(-1, smt.pick(null, 4, false));
+        }
+    }
+
+    @Test
+    void marksNotedFromSeveralThreadsAreKeptPerCpu() throws InterruptedException {
+        var smt = new SmtPlacement(TOPO);
+        // each thread notes dispatches to its own half of the CPUs; the join makes the marks
+        // visible, so this only checks they stay per CPU, not the memory ordering
+        Thread[] workers = new Thread[2];
+        for (int w = 0; w < workers.length; w++) {
+            int first = w * 8;
+            workers[w] = new Thread(() -> {
+                for (int round = 0; round < 1000; round++) {
+                    for (int cpu = first; cpu < first + 8; cpu++) smt.noteDispatch(cpu, (cpu & 1) == 0);
+                }
+            });
+            workers[w].start();
+        }
+        for (Thread t : workers) t.join();
+        try (var arena = Arena.ofConfined()) {
+            var busy = mask(arena);
+            for (int cpu = 0; cpu < 16; cpu++) {
+                assertEquals((cpu & 1) == 0, smt.runsNoisy(busy, cpu), "cpu " + cpu);
+            }
+        }
+    }
+}
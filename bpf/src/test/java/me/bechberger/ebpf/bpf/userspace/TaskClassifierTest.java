@@ -1,13 +1,19 @@
 package me.bechberger.ebpf.bpf.userspace;
 
 import me.bechberger.ebpf.bpf.QueuedTask;
+import me.bechberger.ebpf.bpf.UserspaceSchedulerBase;
 import org.junit.jupiter.api.Test;
 
+import java.lang.foreign.Arena;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class TaskClassifierTest {
 
-    enum Tier { INTERACTIVE, BATCH }
+    enum Tier { INTERACTIVE, BATCH, SYSTEM }
 
     private QueuedTask task(int pid, int prevCpu, long weight) {
         var t = new QueuedTask();
@@ -51,4 +57,88 @@ class TaskClassifierTest {
             .build();
         assertThrows(IllegalStateException.class, () -> bad.decide(task(1, 0, 100)));
     }
+
+    private QueuedTask task(String comm, long weight, long nrCpusAllowed) {
+        var t = task(1, 0, weight);
+        byte[] b = comm.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(b, 0, t.comm, 0, b.length);
+        t.nrCpusAllowed = nrCpusAllowed;
+        return t;
+    }
+
+    @Test
+    void rulesClassifyBeforeFunctionFirstMatchWins() {
+        var c = TaskClassifier.<Tier>builder()
+            .rule(Tier.SYSTEM, TaskMatch.any().commPrefix("kworker"))
+            .rule(Tier.BATCH,  TaskMatch.any().weightBetween(1, 99))
+            .rule(Tier.SYSTEM, TaskMatch.any().weightBetween(1, 50))   // shadowed by the BATCH rule
+            .otherwise(Tier.INTERACTIVE)
+            .build();
+        assertEquals(Tier.SYSTEM,      c.classOf(task("kworker/3:1", 10, 1)));
+        assertEquals(Tier.BATCH,       c.classOf(task("java", 10, 8)));
+        assertEquals(Tier.INTERACTIVE, c.classOf(task("java", 100, 8)));
+    }
+
+    @Test
+    void taskMatchChecksCommBoundsAndExtension() {
+        var m = TaskMatch.any().commPrefix("pool-").cpusAllowedBetween(1, 4);
+        assertTrue(m.test(task("pool-1", 100, 4)));
+        assertFalse(m.test(task("pool-1", 100, 5)));
+        assertFalse(m.test(task("poo", 100, 1)));
+
+        var t = new QueuedTask();
+        try (Arena a = Arena.ofConfined()) {
+            var seg = a.allocate(QueuedTask.QT_SIZEOF + QueuedTask.EXT_CAP);
+            seg.set(ValueLayout.JAVA_LONG_UNALIGNED, QueuedTask.QT_SIZEOF + 8, 0x1234L);
+            QueuedTask.fillFromSegment(seg, t);
+        }
+        assertTrue(TaskMatch.any().extEquals(8, 0x1234L).test(t));
+        assertTrue(TaskMatch.any().extMasked(8, 0xF0L, 0x30L).test(t));
+        assertFalse(TaskMatch.any().extEquals(0, 0x1234L).test(t));
+        assertThrows(IllegalArgumentException.class, () -> TaskMatch.any().extEquals(4, 1));
+        assertThrows(IllegalArgumentException.class, () -> TaskMatch.any().commPrefix("sixteen-bytes-xx"));
+    }
+
+    @Test
+    void kernelRulesLowerUpToLastKernelHandledRule() {
+        var c = TaskClassifier.<Tier>builder()
+            .rule(Tier.INTERACTIVE, TaskMatch.any().commPrefix("ui-"))
+            .rule(Tier.SYSTEM,      TaskMatch.any().cpusAllowedBetween(1, 1))
+            .rule(Tier.BATCH,       TaskMatch.any().weightBetween(1, 99))
+            .otherwise(Tier.INTERACTIVE)
+            .kernelHandled(Tier.SYSTEM, KernelPlacement.PREV_CPU)
+            .policy(Tier.INTERACTIVE, t -> -1)
+            .policy(Tier.BATCH, t -> -1)
+            .build();
+        List<TaskClassifier.KernelRule> k = c.kernelRules();
+        assertEquals(2, k.size(), "trailing userspace-only rules are not lowered");
+        assertEquals(KernelPlacement.USERSPACE, k.get(0).placement(), "earlier rule keeps ui- tasks in Java");
+        assertEquals(KernelPlacement.PREV_CPU, k.get(1).placement());
+
+        var ctx = UserspaceScheduler.toClassRuleCtx(k.get(1));
+        assertEquals(2, ctx.action);
+        assertEquals(1, ctx.minCpusAllowed);
+        assertEquals(-1, ctx.extOffset);
+        var ui = UserspaceScheduler.toClassRuleCtx(k.get(0));
+        assertEquals(3, ui.commLen);
+        assertEquals('-', ui.commPrefix[2]);
+        assertEquals(16, ui.commPrefix.length);
+    }
+
+    @Test
+    void kernelHandledValidation() {
+        assertThrows(IllegalStateException.class, () -> TaskClassifier.<Tier>builder()
+            .otherwise(Tier.BATCH)
+            .kernelHandled(Tier.SYSTEM, KernelPlacement.GLOBAL_DSQ)   // no rule defines SYSTEM
+            .build());
+        assertThrows(IllegalArgumentException.class, () -> TaskClassifier.<Tier>builder()
+            .kernelHandled(Tier.SYSTEM, KernelPlacement.USERSPACE));
+        var tooMany = TaskClassifier.<Tier>builder().otherwise(Tier.BATCH)
+            .kernelHandled(Tier.SYSTEM, KernelPlacement.GLOBAL_DSQ);
+        for (int i = 0; i <= TaskClassifier.MAX_KERNEL_RULES; i++) {
+            tooMany.rule(Tier.SYSTEM, TaskMatch.any().weightBetween(i, i));
+        }
+        assertThrows(IllegalStateException.class, tooMany::build);
+        assertEquals(UserspaceSchedulerBase.MAX_CLASS_RULES, TaskClassifier.MAX_KERNEL_RULES);
+    }
 }
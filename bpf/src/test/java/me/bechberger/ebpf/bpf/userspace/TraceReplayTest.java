@@ -0,0 +1,154 @@
+// SPDX-License-Identifier: GPL-2.0
+package me.bechberger.ebpf.bpf.userspace;
+
+import me.bechberger.ebpf.bpf.QueuedTask;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Round-trips synthetic batches through {@link TraceRecorder} and {@link TraceReplayer}: every
+ * recorded task must reach {@code schedule} with its fields intact, the recorded clock must be
+ * visible through {@code nanoTime()}, and {@link TraceReplayer#diff} must count placement
+ * differences between two policies.
+ */
+class TraceReplayTest {
+
+    /** Pins every task to {@code pid % cpus}; remembers what it saw. */
+    static final class PinSched extends UserspaceScheduler {
+        final List<Long> clockSeen = new ArrayList<>();
+        final List<Long> vtimesSeen = new ArrayList<>();
+        @Override protected void schedule(QueuedTask[] tasks, int count) {
+            clockSeen.add(nanoTime());
+            for (int i = 0; i < count; i++) {
+                vtimesSeen.add(tasks[i].vtime);
+                dispatchTask(tasks[i], tasks[i].pid % cpuCount());
+            }
+        }
+    }
+
+    /** Sends everything to ANY_CPU. */
+    static final class AnySched extends UserspaceScheduler {
+        @Override protected int policy(QueuedTask t) { return ANY_CPU; }
+    }
+
+    private static QueuedTask task(int pid, long vtime) {
+        var t = new QueuedTask();
+        t.pid = pid;
+        t.vtime = vtime;
+        t.comm[0] = 'x';
+        return t;
+    }
+
+    private static Path record(Path dir) throws IOException {
+        Path file = dir.resolve("sched.trace");
+        try (var rec = TraceRecorder.create(file, 4)) {
+            rec.beginBatch(1_000);
+            rec.append(task(1, 10));
+            rec.append(task(2, 20));
+            rec.endBatch();
+            rec.beginBatch(2_000);
+            rec.endBatch();                      // empty: must not be written
+            rec.beginBatch(3_000);
+            rec.append(task(7, 30));
+            rec.endBatch();
+            assertEquals(2, rec.batches());
+            assertEquals(3, rec.records());
+        }
+        return file;
+    }
+
+    @Test
+    void replayFeedsRecordedTasksAndClock(@TempDir Path dir) throws IOException {
+        Path file = record(dir);
+        assertEquals(TraceRecorder.HEADER_SIZE + 2L * TraceRecorder.BATCH_HEADER_SIZE
+                + 3L * TraceRecorder.RECORD_SIZE, Files.size(file), "file is truncated to its content");
+
+        var sched = new PinSched();
+        try (var replay = TraceReplayer.open(file)) {
+            assertEquals(4, replay.nrCpus());
+            assertEquals(2, replay.batches());
+            var report = replay.replay(sched, TraceReplayer.Pace.FULL_SPEED);
+            assertEquals(3, report.tasks());
+            assertEquals(3, report.dispatches());
+            assertTrue(report.policyCpuNs() >= 0);
+        }
+        assertEquals(List.of(1_000L, 3_000L), sched.clockSeen, "nanoTime() follows recorded batch timestamps");
+        assertEquals(List.of(10L, 20L, 30L), sched.vtimesSeen);
+    }
+
+    @Test
+    void diffCountsPlacementDifferences(@TempDir Path dir) throws IOException {
+        Path file = record(dir);
+        try (var replay = TraceReplayer.open(file)) {
+            var same = replay.diff(new PinSched(), new PinSched());
+            assertEquals(3, same.compared());
+            assertEquals(0, same.differentCpu());
+
+            var diff = replay.diff(new PinSched(), new AnySched());
+            assertEquals(3, diff.compared());
+            assertEquals(3, diff.differentCpu(), "pinned vs ANY_CPU differs for every task");
+            assertEquals(0, diff.onlyA());
+            assertEquals(0, diff.onlyB());
+        }
+    }
+
+    @Test
+    void sizeCapStopsRecordingAndKeepsAValidTrace(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("capped.trace");
+        long cap = TraceRecorder.HEADER_SIZE + TraceRecorder.BATCH_HEADER_SIZE + 2L * TraceRecorder.RECORD_SIZE;
+        try (var rec = TraceRecorder.create(file, 4, cap)) {
+            rec.beginBatch(1_000);
+            rec.append(task(1, 10));
+            rec.append(task(2, 20));
+            rec.append(task(3, 30));             // over the cap: closes the batch with two tasks
+            assertFalse(rec.recording());
+            assertTrue(rec.stopReason().contains("size cap"), rec.stopReason());
+            rec.append(task(4, 40));             // ignored, even outside a batch
+            rec.endBatch();
+            rec.beginBatch(2_000);
+            rec.append(task(5, 50));
+            rec.endBatch();
+            assertEquals(1, rec.batches());
+            assertEquals(2, rec.records());
+        }
+        assertEquals(cap, Files.size(file));
+        var sched = new PinSched();
+        try (var replay = TraceReplayer.open(file)) {
+            assertEquals(2, replay.replay(sched, TraceReplayer.Pace.FULL_SPEED).tasks());
+        }
+        assertEquals(List.of(10L, 20L), sched.vtimesSeen);
+    }
+
+    @Test
+    void failedGrowthStopsRecordingWithoutThrowing(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("broken.trace");
+        var rec = TraceRecorder.create(file, 4, Long.MAX_VALUE, 4096);
+        rec.beginBatch(1_000);
+        rec.closeChannelForTest();
+        for (int i = 0; i < 4096 / TraceRecorder.RECORD_SIZE + 1; i++) {
+            rec.append(task(i, i));
+        }
+        assertFalse(rec.recording());
+        assertTrue(rec.stopReason().contains("growing"), rec.stopReason());
+        assertEquals((4096 - TraceRecorder.HEADER_SIZE - TraceRecorder.BATCH_HEADER_SIZE) / TraceRecorder.RECORD_SIZE,
+                rec.records(), "the batch keeps the tasks that fit");
+        rec.beginBatch(2_000);                   // still no exception
+        rec.endBatch();
+        assertThrows(IOException.class, rec::close, "the channel is already closed");
+    }
+
+    @Test
+    void rejectsForeignFiles(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("junk");
+        Files.write(file, new byte[64]);
+        assertThrows(IOException.class, () -> TraceReplayer.open(file));
+    }
+}
@@ -123,6 +123,52 @@ public class UserspaceSchedulerDispatchTest {
         }
     }
 
+    @Test
+    @Timeout(5)
+    void pickIdleCpuWithTopologyPrefersPreviousCore() {
+        try (var sched = new TestSched()) {
+            sched.nrCpus = 8;
+            sched.idleIndex = new IdleCpuIndex(CpuTopology.uniform(8, 2, 4, 1));
+            sched.setIdle(0);
+            sched.setIdle(5);
+            assertEquals(5, sched.pickIdleCpu(4), "sibling of CPU 4 is idle");
+            assertEquals(0, sched.pickIdleCpu(1), "sibling of CPU 1 is idle");
+            sched.clearIdle(5);
+            assertEquals(0, sched.pickIdleCpu(4), "no idle CPU in the LLC -> anywhere");
+
+            var t = new QueuedTask();
+            t.pid = 7;
+            t.prevCpu = 1;
+            sched.dispatchInternal(t, UserspaceScheduler.ANY_CPU);
+            assertEquals(0, sched.submitted.get(0)[0], "ANY_CPU resolves near prevCpu");
+        }
+    }
+
+    @Test
+    @Timeout(5)
+    void smtPlacementKeepsNoisyTaskOffBusySibling() {
+        try (var sched = new TestSched()) {
+            sched.nrCpus = 8;
+            sched.smtPlacement = new SmtPlacement(CpuTopology.uniform(8, 2, 4, 1));
+            sched.opts.noisyTasks = t -> t.pid == 9;
+            sched.setIdle(1);   // sibling 0 busy
+            sched.setIdle(6);
+            sched.setIdle(7);   // core 6/7 fully idle
+
+            var noisy = new QueuedTask();
+            noisy.pid = 9;
+            noisy.prevCpu = 1;
+            sched.dispatchInternal(noisy, UserspaceScheduler.ANY_CPU);
+            assertEquals(6, sched.submitted.get(0)[0], "fully idle core beats idle prev CPU");
+            sched.clearIdle(6);
+
+            var quiet = new QueuedTask();
+            quiet.pid = 8;
+            quiet.prevCpu = 7;
+            assertEquals(1, sched.selectCpu(quiet), "CPU 7 shares its core with the noisy task");
+        }
+    }
+
     @Test
     @Timeout(5)
     void pickIdleCpuReturnsAnyCpuWhenViewIsNull() {